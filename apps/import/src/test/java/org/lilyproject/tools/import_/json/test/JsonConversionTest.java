@@ -47,6 +47,7 @@ import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.ReturnFields;
 import org.lilyproject.repository.api.Scope;
 import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.api.filter.FieldExistsFilter;
 import org.lilyproject.repository.api.filter.FieldValueFilter;
 import org.lilyproject.repository.api.filter.RecordFilterList;
 import org.lilyproject.repository.api.filter.RecordIdPrefixFilter;
@@ -237,6 +238,27 @@ public class JsonConversionTest {
                 node.get("recordFilter").get("recordId").getTextValue());
     }
 
+    @Test
+    public void testScanFieldExistsFilter() throws Exception {
+        QName name = new QName("ns", "stringField");
+
+        RecordScan scan = new RecordScan();
+        scan.setRecordFilter(new FieldExistsFilter(name));
+
+        byte[] data = scanToBytes(scan);
+        RecordScan parsedScan = scanFromBytes(data);
+
+        assertNotNull(parsedScan.getRecordFilter());
+        assertTrue(parsedScan.getRecordFilter() instanceof FieldExistsFilter);
+        assertEquals(name, ((FieldExistsFilter) parsedScan.getRecordFilter()).getField());
+
+        // Check json
+        JsonNode node = new ObjectMapper().readTree(data);
+        assertEquals("org.lilyproject.repository.api.filter.FieldExistsFilter",
+                node.get("recordFilter").get("@class").getTextValue());
+        assertEquals("{ns}stringField", node.get("recordFilter").get("field").getTextValue());
+    }
+
     @Test
     public void testScanFieldValueFilter() throws Exception {
         QName name = new QName("ns", "stringField");
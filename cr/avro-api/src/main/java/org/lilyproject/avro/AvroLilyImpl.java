@@ -65,6 +65,30 @@ public class AvroLilyImpl implements AvroLily {
         }
     }
 
+    @Override
+    public List<ByteBuffer> createAll(List<ByteBuffer> records)
+            throws AvroRepositoryException, AvroInterruptedException {
+        try {
+            return converter.convertRecords(repository.createAll(converter.convertAvroRecords(records)));
+        } catch (RepositoryException e) {
+            throw converter.convert(e);
+        } catch (InterruptedException e) {
+            throw converter.convert(e);
+        }
+    }
+
+    @Override
+    public List<ByteBuffer> updateAll(List<ByteBuffer> records)
+            throws AvroRepositoryException, AvroInterruptedException {
+        try {
+            return converter.convertRecords(repository.updateAll(converter.convertAvroRecords(records)));
+        } catch (RepositoryException e) {
+            throw converter.convert(e);
+        } catch (InterruptedException e) {
+            throw converter.convert(e);
+        }
+    }
+
     @Override
     public ByteBuffer delete(ByteBuffer recordId, List<AvroMutationCondition> conditions)
             throws AvroRepositoryException, AvroInterruptedException {
@@ -21,7 +21,8 @@ import org.lilyproject.util.ArgumentValidator;
  * ones). If the value of the variant property is specified, it has to match exactly. If the value is
  * <code>null</code>, any value will match.
  *
- *
+ * <p>The row key is decoded from the given part of the buffer. Before Lily 1.4, the offset was ignored and the
+ * row key was decoded from the start of the buffer, see UPGRADE.txt.</p>
  */
 public class LilyRecordVariantFilter extends FilterBase {
     private Map<String, String> variantProperties;
@@ -1,16 +1,21 @@
 package org.lilyproject.indexer.batchbuild.test;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrQuery.ORDER;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocumentList;
+import org.codehaus.jackson.node.ObjectNode;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -34,6 +39,8 @@ import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.Scope;
 import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.solrtestfw.SolrDefinition;
+import org.lilyproject.solrtestfw.SolrHomeDirSetup;
 import org.lilyproject.solrtestfw.SolrProxy;
 import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.json.JsonFormat;
@@ -272,6 +279,85 @@ public class BatchBuildTest {
                 getResourceAsByteArray("batchIndexConf-test3.json"), false);
     }
 
+    @Test
+    public void testOfflineBatchIndex() throws Exception {
+        repository.recordBuilder()
+                .id("batch-offline-test")
+                .recordType(rt1.getName())
+                .field(ft1.getName(), "offline test")
+                .create();
+
+        File tmpDir = new File(System.getProperty("java.io.tmpdir"), "lily-batchbuild-offline-" +
+                System.currentTimeMillis());
+        try {
+            // Same Solr configuration as the one of the Solr server
+            File solrHome = new File(tmpDir, "solr");
+            SolrHomeDirSetup.write(solrHome, new SolrDefinition(getResourceAsByteArray("solrschema.xml")), null);
+            File solrConfDir = new File(new File(solrHome, SolrDefinition.DEFAULT_CORE_NAME), "conf");
+            File outputDir = new File(tmpDir, "output");
+
+            ObjectNode batchConf = (ObjectNode)JsonFormat.deserialize(
+                    getResourceAsByteArray("batchIndexConf-offline.json"));
+            ObjectNode offlineNode = (ObjectNode)batchConf.get("offline");
+            offlineNode.put("outputDir", outputDir.toURI().toString());
+            offlineNode.put("solrConfDir", solrConfDir.toURI().toString());
+
+            setBatchIndexConf(null, JsonFormat.serializeAsBytes(batchConf), true);
+            waitForIndexAndCommit(BUILD_TIMEOUT);
+
+            // The document did not go to the Solr server...
+            QueryResponse response = solrServer.query(new SolrQuery("field1:offline*"));
+            assertEquals(0, response.getResults().size());
+
+            // ... but is in the index built for the shard
+            File shardIndexDir = new File(outputDir, "shard1");
+            assertTrue(shardIndexDir.exists());
+            DirectoryReader reader = DirectoryReader.open(FSDirectory.open(shardIndexDir));
+            try {
+                assertEquals(1, reader.numDocs());
+                assertEquals("USER.batch-offline-test", reader.document(0).get("lily.id"));
+            } finally {
+                reader.close();
+            }
+        } finally {
+            FileUtils.deleteQuietly(tmpDir);
+        }
+    }
+
+    @Test
+    public void testIncrementalBatchIndex() throws Exception {
+        Record linkedRecord = repository.recordBuilder()
+                .id("batch-incremental-linked")
+                .recordType(rt1.getName())
+                .field(ft1.getName(), "incremental run1")
+                .create();
+
+        Record linkingRecord = repository.recordBuilder()
+                .id("batch-incremental-linking")
+                .recordType(rt1.getName())
+                .field(ft1.getName(), "incremental run1")
+                .field(ft2.getName(), new Link(linkedRecord.getId()))
+                .create();
+
+        buildAndCommit();
+
+        QueryResponse response = solrServer.query(new SolrQuery("field1:incremental\\ run1"));
+        assertEquals(2, response.getResults().size());
+
+        linkedRecord.setField(ft1.getName(), "incremental run2");
+        linkingRecord.setField(ft1.getName(), "incremental run2");
+        repository.update(linkedRecord);
+        repository.update(linkingRecord);
+
+        // Only the records having the link field are reindexed
+        setBatchIndexConf(null, getResourceAsByteArray("batchIndexConf-incremental.json"), true);
+        waitForIndexAndCommit(BUILD_TIMEOUT);
+
+        response = solrServer.query(new SolrQuery("field1:incremental\\ run2"));
+        assertEquals(1, response.getResults().size());
+        assertEquals("USER.batch-incremental-linking", response.getResults().get(0).getFieldValue("lily.id"));
+    }
+
     private byte[] getResourceAsByteArray(String name) throws IOException {
         InputStream is = null;
         try {
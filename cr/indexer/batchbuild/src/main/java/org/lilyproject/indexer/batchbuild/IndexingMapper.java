@@ -17,7 +17,7 @@ package org.lilyproject.indexer.batchbuild;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -27,8 +27,7 @@ import net.iharder.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.hbase.client.Result;
-import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.io.Text;
 import org.apache.http.client.HttpClient;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
@@ -59,7 +58,7 @@ import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.zookeeper.ZkUtil;
 import org.lilyproject.util.zookeeper.ZooKeeperItf;
 
-public class IndexingMapper extends IdRecordMapper<ImmutableBytesWritable, Result> {
+public class IndexingMapper extends IdRecordMapper<Text, SolrInputDocumentWritable> {
     private Indexer indexer;
     private ThreadSafeClientConnManager connectionManager;
     private IndexLocker indexLocker;
@@ -67,6 +66,11 @@ public class IndexingMapper extends IdRecordMapper<ImmutableBytesWritable, Resul
     private LilyClient lilyClient;
     private Repository repository;
     private ThreadPoolExecutor executor;
+    /**
+     * In the offline mode, the Solr documents are passed on to the {@link OfflineIndexReducer} rather than
+     * being sent to Solr, and no index locks are taken.
+     */
+    private boolean offline;
     private final Log log = LogFactory.getLog(getClass());
 
     @Override
@@ -89,12 +93,21 @@ public class IndexingMapper extends IdRecordMapper<ImmutableBytesWritable, Resul
 
             String indexName = jobConf.get("org.lilyproject.indexer.batchbuild.indexname");
 
-            SolrShardManager solrShardMgr = getShardManager(jobConf);
+            offline = jobConf.getBoolean("org.lilyproject.indexer.batchbuild.offline", false);
 
-            boolean enableLocking =
-                    Boolean.parseBoolean(jobConf.get("org.lilyproject.indexer.batchbuild.enableLocking"));
+            SolrShardManager solrShardMgr;
+            if (offline) {
+                solrShardMgr = new OfflineSolrShardManager(getShardSelector(jobConf, getSolrShards(jobConf)), context);
+                // Nobody else writes to the index which is being built
+                indexLocker = new IndexLocker(null, IndexLocker.Mode.DISABLED);
+            } else {
+                solrShardMgr = getShardManager(jobConf);
+
+                boolean enableLocking =
+                        Boolean.parseBoolean(jobConf.get("org.lilyproject.indexer.batchbuild.enableLocking"));
 
-            indexLocker = new IndexLocker(zk, enableLocking);
+                indexLocker = new IndexLocker(zk, enableLocking);
+            }
 
             final DerefMap derefMap = indexerConf.containsDerefExpressions() ?
                     DerefMapHbaseImpl.create(indexName, LilyClient.getHBaseConfiguration(zk), null,
@@ -122,23 +135,8 @@ public class IndexingMapper extends IdRecordMapper<ImmutableBytesWritable, Resul
             return new CloudSolrShardManager(indexName, zkConnectionString,
                     jobConf.get("org.lilyproject.indexer.batchbuild.solr.collection"), false);
         } else {
-            Map<String, String> solrShards = new HashMap<String, String>();
-            for (int i = 1; true; i++) {
-                String shardName = jobConf.get("org.lilyproject.indexer.batchbuild.solrshard.name." + i);
-                String shardAddress = jobConf.get("org.lilyproject.indexer.batchbuild.solrshard.address." + i);
-                if (shardName == null)
-                    break;
-                solrShards.put(shardName, shardAddress);
-            }
-
-            ShardSelector shardSelector;
-            String shardingConf = jobConf.get("org.lilyproject.indexer.batchbuild.shardingconf");
-            if (shardingConf != null) {
-                byte[] shardingConfBytes = Base64.decode(shardingConf);
-                shardSelector = JsonShardSelectorBuilder.build(shardingConfBytes);
-            } else {
-                shardSelector = DefaultShardSelectorBuilder.createDefaultSelector(solrShards);
-            }
+            Map<String, String> solrShards = getSolrShards(jobConf);
+            ShardSelector shardSelector = getShardSelector(jobConf, solrShards);
 
             connectionManager = new ThreadSafeClientConnManager();
             connectionManager.setDefaultMaxPerRoute(5);
@@ -153,6 +151,31 @@ public class IndexingMapper extends IdRecordMapper<ImmutableBytesWritable, Resul
         }
     }
 
+    /**
+     * Returns the Solr shards of the index, in the order in which they are defined.
+     */
+    static Map<String, String> getSolrShards(Configuration jobConf) {
+        Map<String, String> solrShards = new LinkedHashMap<String, String>();
+        for (int i = 1; true; i++) {
+            String shardName = jobConf.get("org.lilyproject.indexer.batchbuild.solrshard.name." + i);
+            String shardAddress = jobConf.get("org.lilyproject.indexer.batchbuild.solrshard.address." + i);
+            if (shardName == null)
+                break;
+            solrShards.put(shardName, shardAddress);
+        }
+        return solrShards;
+    }
+
+    private ShardSelector getShardSelector(Configuration jobConf, Map<String, String> solrShards) throws Exception {
+        String shardingConf = jobConf.get("org.lilyproject.indexer.batchbuild.shardingconf");
+        if (shardingConf != null) {
+            byte[] shardingConfBytes = Base64.decode(shardingConf);
+            return JsonShardSelectorBuilder.build(shardingConfBytes);
+        } else {
+            return DefaultShardSelectorBuilder.createDefaultSelector(solrShards);
+        }
+    }
+
     private int getIntProp(String name, Integer defaultValue, Configuration conf) {
         String value = conf.get(name);
         if (value == null) {
@@ -206,8 +229,10 @@ public class IndexingMapper extends IdRecordMapper<ImmutableBytesWritable, Resul
             boolean locked = false;
             RecordId recordId = idRecord.getId();
             try {
-                indexLocker.lock(recordId);
-                locked = true;
+                if (!offline) {
+                    indexLocker.lock(recordId);
+                    locked = true;
+                }
                 indexer.index(idRecord);
             } catch (Throwable t) {
                 context.getCounter(IndexBatchBuildCounters.NUM_FAILED_RECORDS).increment(1);
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.batchbuild;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+
+/**
+ * Builds the index of one Solr shard in the offline batch build, using an embedded Solr.
+ *
+ * <p>The index is written to the local disk of the task. When all documents have been added, it is copied
+ * to a directory named after the shard in the output directory of the job, from where it can be installed
+ * as the data/index directory of the Solr core serving the shard.</p>
+ *
+ * <p>The Solr configuration (solrconfig.xml, schema.xml and the files they refer to) is copied from the
+ * directory configured in the batch index configuration, which should be the same as the one of the
+ * Solr servers, since the analysis is done here.</p>
+ */
+public class OfflineIndexReducer extends Reducer<Text, SolrInputDocumentWritable, NullWritable, NullWritable> {
+    private static final String CORE_NAME = "core";
+    private static final int BATCH_SIZE = 1000;
+
+    private String shardName;
+    private File localDir;
+    private File dataDir;
+    private CoreContainer coreContainer;
+    private EmbeddedSolrServer solrServer;
+    private List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(BATCH_SIZE);
+    private final Log log = LogFactory.getLog(getClass());
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+        super.setup(context);
+
+        Configuration jobConf = context.getConfiguration();
+
+        // The reducer knows its shard from its partition, so that an index is created even for a shard
+        // which gets no documents
+        int partition = context.getTaskAttemptID().getTaskID().getId();
+        shardName = ShardPartitioner.getShardNames(jobConf).get(partition);
+
+        localDir = new File(new File(System.getProperty("java.io.tmpdir")),
+                "lily-offline-index-" + context.getTaskAttemptID());
+        File coreDir = new File(localDir, CORE_NAME);
+        dataDir = new File(coreDir, "data");
+        FileUtils.forceMkdir(dataDir);
+
+        Path solrConfDir = new Path(jobConf.get("org.lilyproject.indexer.batchbuild.offline.solrConfDir"));
+        solrConfDir.getFileSystem(jobConf).copyToLocalFile(solrConfDir, new Path(new File(coreDir, "conf").toURI()));
+
+        File solrXml = new File(localDir, "solr.xml");
+        PrintWriter writer = new PrintWriter(solrXml, "UTF-8");
+        writer.println("<solr persistent='false'>");
+        writer.println(" <cores adminPath='/admin/cores' defaultCoreName='" + CORE_NAME + "'>");
+        writer.println("  <core name='" + CORE_NAME + "' instanceDir='" + CORE_NAME + "' dataDir='" +
+                dataDir.getAbsolutePath() + "'/>");
+        writer.println(" </cores>");
+        writer.println("</solr>");
+        writer.close();
+
+        log.info("Building index for shard " + shardName + " in " + dataDir);
+
+        try {
+            coreContainer = new CoreContainer(localDir.getAbsolutePath(), solrXml);
+        } catch (Exception e) {
+            throw new IOException("Error starting embedded Solr for shard " + shardName, e);
+        }
+        solrServer = new EmbeddedSolrServer(coreContainer, CORE_NAME);
+    }
+
+    @Override
+    protected void reduce(Text key, Iterable<SolrInputDocumentWritable> values, Context context)
+            throws IOException, InterruptedException {
+        if (!key.toString().equals(shardName)) {
+            throw new IOException("Reducer for shard " + shardName + " received documents for shard " + key);
+        }
+
+        for (SolrInputDocumentWritable value : values) {
+            batch.add(value.getDocument());
+            if (batch.size() >= BATCH_SIZE) {
+                flush();
+            }
+            context.progress();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            solrServer.add(batch);
+        } catch (Exception e) {
+            throw new IOException("Error adding documents to the index of shard " + shardName, e);
+        }
+        batch.clear();
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+        try {
+            flush();
+            try {
+                solrServer.commit();
+            } catch (Exception e) {
+                throw new IOException("Error committing the index of shard " + shardName, e);
+            }
+            coreContainer.shutdown();
+            coreContainer = null;
+
+            // Copied to the work output path, which is moved to the output directory when the task commits
+            Path shardOutput = new Path(FileOutputFormat.getWorkOutputPath(context), shardName);
+            FileSystem fs = shardOutput.getFileSystem(context.getConfiguration());
+            fs.copyFromLocalFile(new Path(new File(dataDir, "index").toURI()), shardOutput);
+            log.info("Copied index for shard " + shardName + " to " + shardOutput);
+        } finally {
+            if (coreContainer != null) {
+                coreContainer.shutdown();
+            }
+            FileUtils.deleteQuietly(localDir);
+            super.cleanup(context);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.batchbuild;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.SolrParams;
+import org.lilyproject.indexer.engine.SolrClient;
+import org.lilyproject.indexer.engine.SolrClientException;
+import org.lilyproject.indexer.engine.SolrShardManager;
+import org.lilyproject.indexer.model.sharding.ShardSelector;
+import org.lilyproject.indexer.model.sharding.ShardSelectorException;
+import org.lilyproject.repository.api.RecordId;
+
+/**
+ * SolrShardManager for the offline batch build: rather than sending the documents to Solr, they are written
+ * as map output, keyed on the name of the shard they belong to, so that the {@link OfflineIndexReducer} for
+ * that shard can add them to its index.
+ *
+ * <p>Since the offline build starts from an empty index, deletes are ignored.</p>
+ */
+public class OfflineSolrShardManager implements SolrShardManager {
+    private final ShardSelector selector;
+    private final TaskInputOutputContext<?, ?, Text, SolrInputDocumentWritable> context;
+
+    public OfflineSolrShardManager(ShardSelector selector,
+            TaskInputOutputContext<?, ?, Text, SolrInputDocumentWritable> context) {
+        this.selector = selector;
+        this.context = context;
+    }
+
+    @Override
+    public SolrClient getSolrClient(RecordId recordId) throws ShardSelectorException {
+        return new ShardOutputClient(selector.getShard(recordId));
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    private class ShardOutputClient implements SolrClient {
+        private final Text shardName;
+
+        public ShardOutputClient(String shardName) {
+            this.shardName = new Text(shardName);
+        }
+
+        @Override
+        public String getDescription() {
+            return "offline shard " + shardName;
+        }
+
+        @Override
+        public UpdateResponse add(SolrInputDocument doc) throws SolrClientException, InterruptedException {
+            try {
+                // The context is shared by the indexing threads of the mapper
+                synchronized (context) {
+                    context.write(shardName, new SolrInputDocumentWritable(doc));
+                }
+            } catch (IOException e) {
+                throw new SolrClientException(getDescription(), e);
+            }
+            return new UpdateResponse();
+        }
+
+        @Override
+        public UpdateResponse add(Collection<SolrInputDocument> docs) throws SolrClientException,
+                InterruptedException {
+            for (SolrInputDocument doc : docs) {
+                add(doc);
+            }
+            return new UpdateResponse();
+        }
+
+        @Override
+        public UpdateResponse deleteById(String id) throws SolrClientException, InterruptedException {
+            return new UpdateResponse();
+        }
+
+        @Override
+        public UpdateResponse deleteById(List<String> ids) throws SolrClientException, InterruptedException {
+            return new UpdateResponse();
+        }
+
+        @Override
+        public UpdateResponse deleteByQuery(String query) throws SolrClientException, InterruptedException {
+            return new UpdateResponse();
+        }
+
+        @Override
+        public UpdateResponse commit(boolean waitFlush, boolean waitSearcher) throws SolrClientException,
+                InterruptedException {
+            return new UpdateResponse();
+        }
+
+        @Override
+        public UpdateResponse commit() throws SolrClientException, InterruptedException {
+            return new UpdateResponse();
+        }
+
+        @Override
+        public QueryResponse query(SolrParams params) throws SolrClientException, InterruptedException {
+            throw new UnsupportedOperationException("Querying is not possible during an offline index build.");
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.batchbuild;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * Sends the documents of each Solr shard to its own reducer, in the offline batch build: reducer i builds the
+ * index of the i-th shard of the index definition.
+ */
+public class ShardPartitioner extends Partitioner<Text, SolrInputDocumentWritable> implements Configurable {
+    private Configuration conf;
+    private List<String> shardNames;
+
+    @Override
+    public int getPartition(Text shardName, SolrInputDocumentWritable document, int numPartitions) {
+        int partition = shardNames.indexOf(shardName.toString());
+        if (partition == -1) {
+            throw new RuntimeException("Unknown Solr shard: " + shardName);
+        }
+        return partition % numPartitions;
+    }
+
+    @Override
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+        this.shardNames = getShardNames(conf);
+    }
+
+    @Override
+    public Configuration getConf() {
+        return conf;
+    }
+
+    static List<String> getShardNames(Configuration conf) {
+        return new ArrayList<String>(IndexingMapper.getSolrShards(conf).keySet());
+    }
+}
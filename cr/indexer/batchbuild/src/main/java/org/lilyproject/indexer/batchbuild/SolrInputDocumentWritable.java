@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.batchbuild;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.JavaBinCodec;
+
+/**
+ * Writable wrapper around a SolrInputDocument, serialized in Solr's javabin format.
+ */
+public class SolrInputDocumentWritable implements Writable {
+    private SolrInputDocument document;
+
+    public SolrInputDocumentWritable() {
+        // for hadoop readFields
+    }
+
+    public SolrInputDocumentWritable(SolrInputDocument document) {
+        this.document = document;
+    }
+
+    public SolrInputDocument getDocument() {
+        return document;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new JavaBinCodec().marshal(document, bos);
+        byte[] data = bos.toByteArray();
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        // Always a new document: Hadoop reuses the writable instances
+        document = (SolrInputDocument)new JavaBinCodec().unmarshal(new ByteArrayInputStream(data));
+    }
+}
@@ -29,6 +29,8 @@ public class DerefMapIndexFilter extends IndexFilter {
 
     private Map<String, String> dependencyRecordVariantProperties;
 
+    private Set<SchemaId> queriedVtags;
+
     private final DerefMapSerializationUtil serializationUtil = new DerefMapSerializationUtil(new IdGeneratorImpl());
 
     public DerefMapIndexFilter() {
@@ -45,10 +47,22 @@ public class DerefMapIndexFilter extends IndexFilter {
      */
     DerefMapIndexFilter(Map<String, String> dependencyRecordVariantProperties,
                         Set<SchemaId> queriedFields) {
-        super(Collections.singleton(FIELDS_KEY), Sets.newHashSet("variant_properties_pattern"));
+        this(dependencyRecordVariantProperties, queriedFields, null);
+    }
+
+    /**
+     * @param queriedVtags the vtags of the dependants to match, <code>null</code> to match all vtags. This allows
+     *                     to query several vtags with one scan, rather than one scan per vtag.
+     */
+    DerefMapIndexFilter(Map<String, String> dependencyRecordVariantProperties,
+                        Set<SchemaId> queriedFields, Set<SchemaId> queriedVtags) {
+        super(Collections.singleton(FIELDS_KEY), queriedVtags == null ?
+                Sets.newHashSet("variant_properties_pattern") :
+                Sets.newHashSet("variant_properties_pattern", "dependant_vtag"));
 
         this.queriedFields = queriedFields;
         this.dependencyRecordVariantProperties = dependencyRecordVariantProperties;
+        this.queriedVtags = queriedVtags;
     }
 
     @Override
@@ -77,6 +91,8 @@ public class DerefMapIndexFilter extends IndexFilter {
             if (!variantPropertiesPattern.matches(dependencyRecordVariantProperties)) {
                 return true;
             }
+        } else if ("dependant_vtag".equals(name) && queriedVtags != null) {
+            return !queriedVtags.contains(this.serializationUtil.deserializeSchemaId((byte[]) value));
         }
 
         return false;
@@ -107,6 +123,17 @@ public class DerefMapIndexFilter extends IndexFilter {
             out.writeUTF(entry.getKey());
             out.writeUTF(entry.getValue());
         }
+
+        if (queriedVtags == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(queriedVtags.size());
+            for (SchemaId queriedVtag : queriedVtags) {
+                final byte[] bytes = queriedVtag.getBytes();
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
     }
 
     @Override
@@ -129,5 +156,16 @@ public class DerefMapIndexFilter extends IndexFilter {
         for (int i = 0; i < dependencyRecordVariantPropertiesLength; i++) {
             dependencyRecordVariantProperties.put(in.readUTF(), in.readUTF());
         }
+
+        final int queriedVtagsLength = in.readInt();
+        if (queriedVtagsLength != -1) {
+            queriedVtags = new HashSet<SchemaId>(queriedVtagsLength);
+            for (int i = 0; i < queriedVtagsLength; i++) {
+                final int l = in.readInt();
+                final byte[] bytes = new byte[l];
+                in.readFully(bytes);
+                queriedVtags.add(this.serializationUtil.deserializeSchemaId(bytes));
+            }
+        }
     }
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.derefmap;
+
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.SchemaId;
+
+/**
+ * A record which depends on another record in a given vtag, as found in the {@link DerefMap}.
+ */
+public final class Dependant {
+    private final RecordId recordId;
+
+    private final SchemaId vtag;
+
+    public Dependant(RecordId recordId, SchemaId vtag) {
+        this.recordId = recordId;
+        this.vtag = vtag;
+    }
+
+    public RecordId getRecordId() {
+        return recordId;
+    }
+
+    public SchemaId getVtag() {
+        return vtag;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        Dependant other = (Dependant) o;
+        return recordId.equals(other.recordId) && vtag.equals(other.vtag);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * recordId.hashCode() + vtag.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return recordId + " (vtag " + vtag + ")";
+    }
+}
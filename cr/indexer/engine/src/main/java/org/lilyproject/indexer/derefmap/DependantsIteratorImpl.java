@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.derefmap;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.lilyproject.hbaseindex.QueryResult;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.SchemaId;
+
+/**
+ * Implementation of {@link DependantsIterator}, which reads the dependants from the query result as they are
+ * needed. A dependant can be stored multiple times for the same vtag (for different variant property patterns),
+ * such duplicates are skipped.
+ */
+final class DependantsIteratorImpl implements DependantsIterator {
+    private final QueryResult queryResult;
+    private final DerefMapSerializationUtil serializationUtil;
+    private final Set<Dependant> returned = new HashSet<Dependant>();
+    private Dependant next = null;
+
+    DependantsIteratorImpl(QueryResult queryResult, DerefMapSerializationUtil serializationUtil) {
+        this.queryResult = queryResult;
+        this.serializationUtil = serializationUtil;
+    }
+
+    @Override
+    public void close() throws IOException {
+        queryResult.close();
+    }
+
+    private Dependant getNextFromQueryResult() throws IOException {
+        byte[] identifier;
+        while ((identifier = queryResult.next()) != null) {
+            // the identifier is the record id of the record that depends on the queried record
+            final RecordId recordId = serializationUtil.deserializeRecordId(identifier);
+            final SchemaId vtag =
+                    serializationUtil.deserializeSchemaId((byte[]) queryResult.getIndexField("dependant_vtag"));
+            final Dependant dependant = new Dependant(recordId, vtag);
+            if (returned.add(dependant)) {
+                return dependant;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized boolean hasNext() throws IOException {
+        if (next == null) {
+            next = getNextFromQueryResult();
+        }
+        return next != null;
+    }
+
+    @Override
+    public synchronized Dependant next() throws IOException {
+        final Dependant result = hasNext() ? next : null;
+        next = null;
+        return result;
+    }
+}
@@ -55,4 +55,19 @@ public interface DerefMap {
     DependantRecordIdsIterator findDependantsOf(final RecordId dependency)
             throws IOException;
 
+    /**
+     * Find the dependants of a given record in several vtags at once: all dependants which depend on one of the
+     * given fields of the given record in one of the given vtags. This is done with a single scan, filtered
+     * server-side, rather than one scan per vtag.
+     *
+     * <p>A dependant is returned once for each vtag in which it depends on the given record.</p>
+     *
+     * @param dependency the record to find dependant record ids for
+     * @param fields     the field (on of the fields in the set) of the given dependency which is dereferenced in the
+     *                   dependant, <code>null</code> to ignore
+     * @param vtags      the vtags of the dependants you are interested in, <code>null</code> for all vtags
+     */
+    DependantsIterator findDependantsInVtags(final RecordId dependency, Set<SchemaId> fields, Set<SchemaId> vtags)
+            throws IOException;
+
 }
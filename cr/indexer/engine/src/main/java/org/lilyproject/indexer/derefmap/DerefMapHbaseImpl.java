@@ -1,8 +1,12 @@
 package org.lilyproject.indexer.derefmap;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -39,17 +43,35 @@ public class DerefMapHbaseImpl implements DerefMap {
 
     private DerefMapSerializationUtil serializationUtil;
 
+    /**
+     * Cache of the forward entries written by this instance, null if disabled.
+     */
+    private final Map<Dependant, Set<DependencyEntry>> forwardCache;
+
     /**
      * Private constructor. Clients should use static factory methods {@link #delete(String,
      * org.apache.hadoop.conf.Configuration)} and {@link #create(String, Configuration, HBaseTableFactory,
      * IdGenerator)}
      */
     private DerefMapHbaseImpl(final String indexName, final Configuration hbaseConfiguration,
-                              final HBaseTableFactory tableFactory, final IdGenerator idGenerator)
+                              final HBaseTableFactory tableFactory, final IdGenerator idGenerator,
+                              final int forwardCacheSize)
             throws IndexNotFoundException, IOException, InterruptedException {
 
         this.serializationUtil = new DerefMapSerializationUtil(idGenerator);
 
+        if (forwardCacheSize > 0) {
+            this.forwardCache = Collections.synchronizedMap(
+                    new LinkedHashMap<Dependant, Set<DependencyEntry>>(16, 0.75f, true) {
+                        @Override
+                        protected boolean removeEldestEntry(Map.Entry<Dependant, Set<DependencyEntry>> eldest) {
+                            return size() > forwardCacheSize;
+                        }
+                    });
+        } else {
+            this.forwardCache = null;
+        }
+
         final IndexManager indexManager = new IndexManager(hbaseConfiguration, tableFactory);
 
         IndexDefinition forwardIndexDef = new IndexDefinition(forwardIndexName(indexName));
@@ -84,7 +106,25 @@ public class DerefMapHbaseImpl implements DerefMap {
     public static DerefMap create(final String indexName, final Configuration hbaseConfiguration,
                                   final HBaseTableFactory tableFactory, final IdGenerator idGenerator)
             throws IndexNotFoundException, IOException, InterruptedException {
-        return new DerefMapHbaseImpl(indexName, hbaseConfiguration, tableFactory, idGenerator);
+        return new DerefMapHbaseImpl(indexName, hbaseConfiguration, tableFactory, idGenerator, 0);
+    }
+
+    /**
+     * Create a DerefMap which caches the forward entries of the last forwardCacheSize dependants it updated, so
+     * that updating them again does not need to read the forward index first.
+     *
+     * <p>The cache assumes all updates of a dependant pass through this instance: if the same records are also
+     * indexed by other processes (e.g. by another Lily node after the rowlog shards were redistributed, or by a
+     * batch index build), the cached entries can be outdated, causing backward index entries to be left behind
+     * or wrongly removed. Use 0 to disable the cache.</p>
+     *
+     * @param forwardCacheSize maximum number of cached forward entries
+     */
+    public static DerefMap create(final String indexName, final Configuration hbaseConfiguration,
+                                  final HBaseTableFactory tableFactory, final IdGenerator idGenerator,
+                                  final int forwardCacheSize)
+            throws IndexNotFoundException, IOException, InterruptedException {
+        return new DerefMapHbaseImpl(indexName, hbaseConfiguration, tableFactory, idGenerator, forwardCacheSize);
     }
 
     /**
@@ -114,7 +154,11 @@ public class DerefMapHbaseImpl implements DerefMap {
     public void updateDependencies(RecordId dependantRecordId, SchemaId dependantVtagId,
                                    Map<DependencyEntry, Set<SchemaId>> newDependencyEntries)
             throws IOException {
-        final Set<DependencyEntry> existingEntries = findDependencies(dependantRecordId, dependantVtagId);
+        final Dependant dependant = new Dependant(dependantRecordId, dependantVtagId);
+        Set<DependencyEntry> existingEntries = forwardCache != null ? forwardCache.get(dependant) : null;
+        if (existingEntries == null) {
+            existingEntries = findDependencies(dependantRecordId, dependantVtagId);
+        }
 
         // Figure out what changed
         final Set<DependencyEntry> removedDependencies =
@@ -122,16 +166,28 @@ public class DerefMapHbaseImpl implements DerefMap {
         final Collection<DependencyEntry> addedDependencies =
                 figureOutAddedDependencies(newDependencyEntries.keySet(), existingEntries);
 
+        if (removedDependencies.isEmpty() && addedDependencies.isEmpty() && !existingEntries.isEmpty()) {
+            // The forward entry already contains exactly these dependencies: nothing to do
+            return;
+        }
+
         // IMPORTANT implementation note: the order in which changes are applied is not arbitrary. It is such that if
         // the process would fail in between, there will never be left any state in the backward index which would not
-        // be found via the forward index.
+        // be found via the forward index. Each of the three steps is done with a single (multi-)mutation.
+
+        // If we fail halfway, we don't know what the forward entry looks like anymore
+        if (forwardCache != null) {
+            forwardCache.remove(dependant);
+        }
 
         // delete removed from bwd index
-        for (DependencyEntry removed : removedDependencies) {
-            final IndexEntry backwardEntry =
-                    createBackwardEntry(removed.getDependency(), dependantRecordId, dependantVtagId, null,
-                            removed.getMoreDimensionedVariants());
-            backwardDerefIndex.removeEntry(backwardEntry);
+        if (!removedDependencies.isEmpty()) {
+            final List<IndexEntry> backwardEntries = new ArrayList<IndexEntry>(removedDependencies.size());
+            for (DependencyEntry removed : removedDependencies) {
+                backwardEntries.add(createBackwardEntry(removed.getDependency(), dependantRecordId, dependantVtagId,
+                        null, removed.getMoreDimensionedVariants()));
+            }
+            backwardDerefIndex.removeEntries(backwardEntries);
         }
 
         // update fwd index (added and removed at the same time, it is a single row)
@@ -140,12 +196,19 @@ public class DerefMapHbaseImpl implements DerefMap {
         forwardDerefIndex.addEntry(fwdEntry);
 
         // add added to bwd idx
-        for (DependencyEntry added : addedDependencies) {
-            final Set<SchemaId> fields = newDependencyEntries.get(added);
-            final IndexEntry backwardEntry =
-                    createBackwardEntry(added.getDependency(), dependantRecordId, dependantVtagId, fields,
-                            added.getMoreDimensionedVariants());
-            backwardDerefIndex.addEntry(backwardEntry);
+        if (!addedDependencies.isEmpty()) {
+            final List<IndexEntry> backwardEntries = new ArrayList<IndexEntry>(addedDependencies.size());
+            for (DependencyEntry added : addedDependencies) {
+                final Set<SchemaId> fields = newDependencyEntries.get(added);
+                backwardEntries.add(createBackwardEntry(added.getDependency(), dependantRecordId, dependantVtagId,
+                        fields, added.getMoreDimensionedVariants()));
+            }
+            backwardDerefIndex.addEntries(backwardEntries);
+        }
+
+        if (forwardCache != null) {
+            forwardCache.put(dependant, Collections.unmodifiableSet(
+                    new HashSet<DependencyEntry>(newDependencyEntries.keySet())));
         }
     }
 
@@ -275,4 +338,19 @@ public class DerefMapHbaseImpl implements DerefMap {
         return findDependantsOf(dependency, (Set<SchemaId>) null, null);
     }
 
+    @Override
+    public DependantsIterator findDependantsInVtags(RecordId dependency, Set<SchemaId> fields, Set<SchemaId> vtags)
+            throws IOException {
+        final RecordId master = dependency.getMaster();
+
+        // The vtag comes right after the master record id in the index, so all vtags are covered by the range of
+        // the master record id, the vtags are filtered in the same pass as the fields and variant properties.
+        final Query query = new Query();
+        query.addEqualsCondition("dependency_masterrecordid", master.toBytes());
+
+        query.setIndexFilter(new DerefMapIndexFilter(dependency.getVariantProperties(), fields, vtags));
+
+        return new DependantsIteratorImpl(backwardDerefIndex.performQuery(query), this.serializationUtil);
+    }
+
 }
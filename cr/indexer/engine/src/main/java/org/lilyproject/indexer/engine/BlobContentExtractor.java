@@ -0,0 +1,478 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.lilyproject.indexer.model.indexerconf.IndexUpdateBuilder;
+import org.lilyproject.repository.api.Blob;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.util.ByteArrayKey;
+import org.lilyproject.util.Pair;
+import org.lilyproject.util.concurrent.CustomThreadFactory;
+import org.lilyproject.util.io.Closer;
+
+/**
+ * Extracts the text content of blobs using Tika, for indexing.
+ *
+ * <p>The extraction can be done by a pool of threads, so that the blobs of a record are extracted in
+ * parallel, and so that an extraction taking too long can be given up on. The pool is shared by all indexing
+ * threads, so under load an extraction can wait in the queue for a while. Both this wait and the extraction
+ * itself are limited to the timeout, so an indexing thread waits at most twice the timeout for a blob. Tika
+ * parsers do not always react to interrupts, so a thread of which the extraction timed out might stay busy:
+ * the pool then gets an extra thread in its place for as long as that extraction runs, up to twice the
+ * configured number of threads.</p>
+ *
+ * <p>When the extraction of a blob fails or times out, its content is left out of the index. Such blobs are
+ * reported in the {@link Extraction}, see {@link #reportFailures}.</p>
+ *
+ * <p>The extracted text can be cached in memory. Since the content of a blob never changes once it is stored,
+ * the cache is keyed on the blob key (and media type, which Tika uses to select the parser), so that indexing
+ * a record again, e.g. because of a change to a record it dereferences, does not parse its blobs again. The
+ * cache is limited in size and not persisted, so blobs are parsed again when they were evicted or after a
+ * restart.</p>
+ */
+public class BlobContentExtractor {
+    public static final int DEFAULT_WRITE_LIMIT = 500 * 1000; // Tika default: 100K
+
+    private final long timeout;
+    private final int writeLimit;
+    private final long cacheSize;
+    private final String failureMarkerField;
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+    private final Parser tikaParser = new AutoDetectParser();
+
+    /** Threads added to the pool in place of threads which are stuck in an extraction that timed out. */
+    private int replacementThreads;
+    private final Object poolLock = new Object();
+
+    private final Map<Pair<ByteArrayKey, String>, String> cache =
+            new LinkedHashMap<Pair<ByteArrayKey, String>, String>(16, 0.75f, true);
+    private long cachedChars;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    /**
+     * Creates an extractor which extracts in the calling thread, without caching.
+     */
+    public BlobContentExtractor() {
+        this(0, 0, DEFAULT_WRITE_LIMIT, 0);
+    }
+
+    public BlobContentExtractor(int threads, long timeout, int writeLimit, long cacheSize) {
+        this(threads, timeout, writeLimit, cacheSize, null);
+    }
+
+    /**
+     * @param threads number of extraction threads, 0 to extract in the calling thread
+     * @param timeout maximum time in ms the extraction of a blob can take, counted from when it starts running,
+     *                and also the maximum time it can wait to be started. Only applies when threads > 0.
+     * @param writeLimit maximum number of characters extracted from a blob, the rest is ignored
+     * @param cacheSize maximum number of characters of extracted text kept in memory, 0 disables the cache
+     * @param failureMarkerField see {@link #getFailureMarkerField}, null or empty for none
+     */
+    public BlobContentExtractor(int threads, long timeout, int writeLimit, long cacheSize,
+            String failureMarkerField) {
+        this.timeout = timeout;
+        this.writeLimit = writeLimit;
+        this.cacheSize = cacheSize;
+        this.failureMarkerField = failureMarkerField == null || failureMarkerField.trim().length() == 0 ?
+                null : failureMarkerField.trim();
+        this.threads = threads;
+
+        if (threads > 0) {
+            // The queue is not bounded, but it only holds the blobs of the records which are being indexed, since
+            // the indexing threads wait for their blobs
+            executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new CustomThreadFactory("blob-content-extractor", null, true));
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * The index field to which the name of the record field is added for each blob whose content was left out
+     * because its extraction failed or timed out, so that such documents can be found and reindexed. Null if no
+     * such field should be added. The field should be defined as multi-valued in the Solr schema.
+     */
+    public String getFailureMarkerField() {
+        return failureMarkerField;
+    }
+
+    /**
+     * Stops the extraction threads. Extractions which are still waiting are cancelled, their callers get an
+     * InterruptedException.
+     */
+    public void stop() {
+        if (executor != null) {
+            for (Runnable queued : executor.shutdownNow()) {
+                if (queued instanceof Future) {
+                    ((Future)queued).cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Extracts the text of the given blobs.
+     *
+     * @throws InterruptedException also when the extractor is stopped
+     */
+    public Extraction extract(List<BlobValue> blobs, Repository repository) throws InterruptedException {
+        List<ExtractTask> tasks = new ArrayList<ExtractTask>(blobs.size());
+        List<FutureTask<String>> futures = new ArrayList<FutureTask<String>>(blobs.size());
+        for (BlobValue blob : blobs) {
+            ExtractTask task = new ExtractTask(blob, repository);
+            FutureTask<String> future = new FutureTask<String>(task);
+            if (executor != null) {
+                try {
+                    executor.execute(future);
+                } catch (RejectedExecutionException e) {
+                    cancel(futures);
+                    throw new InterruptedException("Blob content extractor is stopped.");
+                }
+            } else {
+                future.run();
+            }
+            tasks.add(task);
+            futures.add(future);
+        }
+
+        Extraction extraction = new Extraction();
+        for (int i = 0; i < futures.size(); i++) {
+            FutureTask<String> future = futures.get(i);
+            ExtractTask task = tasks.get(i);
+            BlobValue blob = blobs.get(i);
+            String text = null;
+            try {
+                if (executor != null) {
+                    text = await(future, task);
+                } else {
+                    text = future.get();
+                }
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                executor.remove(future);
+                replaceIfStuck(task);
+                log.error("Blob extraction: " + e.getMessage() + " Field '" + blob.fieldType.getName() +
+                        "', record '" + blob.record.getId() + "'.");
+            } catch (ExecutionException e) {
+                // ExtractTask handles its errors
+                throw new RuntimeException(e.getCause());
+            } catch (CancellationException e) {
+                // Only happens when the extractor is stopped
+                cancel(futures);
+                throw new InterruptedException("Blob content extractor is stopped.");
+            } catch (InterruptedException e) {
+                cancel(futures);
+                throw e;
+            }
+
+            if (text == null) {
+                extraction.failedFields.add(blob.fieldType.getName());
+            } else if (text.length() > 0) {
+                extraction.texts.add(text);
+            }
+        }
+
+        if (executor != null && executor.isShutdown()) {
+            // Extractions might have been interrupted by the stop, don't let a document be indexed without them
+            throw new InterruptedException("Blob content extractor is stopped.");
+        }
+
+        return extraction;
+    }
+
+    private void cancel(List<FutureTask<String>> futures) {
+        for (FutureTask<String> future : futures) {
+            future.cancel(true);
+            if (executor != null) {
+                executor.remove(future);
+            }
+        }
+    }
+
+    /**
+     * Waits for the result of the task. The task should start within the timeout after it was submitted, and
+     * finish within the timeout after it started.
+     */
+    private String await(Future<String> future, ExtractTask task) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        while (true) {
+            long startTime = task.startTime;
+            long wait = (startTime == 0 ? task.submitTime : startTime) + timeout - System.currentTimeMillis();
+            if (wait <= 0) {
+                if (startTime == 0 && task.startTime != 0) {
+                    // Started just now, give it its time to run
+                    continue;
+                }
+                throw new TimeoutException(startTime == 0 ?
+                        "did not start within " + timeout + " ms, all extraction threads are busy." :
+                        "timed out after " + timeout + " ms.");
+            }
+            try {
+                return future.get(wait, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Check again, the task might have started while we were waiting
+            }
+        }
+    }
+
+    /**
+     * If the task is still running after it timed out and has been interrupted, its thread is probably stuck
+     * in a parser which does not react to interrupts. In that case, add a thread to the pool in its place,
+     * for as long as the task runs.
+     */
+    private void replaceIfStuck(ExtractTask task) {
+        synchronized (poolLock) {
+            if (task.running && !task.replaced && replacementThreads < threads) {
+                task.replaced = true;
+                replacementThreads++;
+                executor.setMaximumPoolSize(threads + replacementThreads);
+                executor.setCorePoolSize(threads + replacementThreads);
+            }
+        }
+    }
+
+    private void taskDone(ExtractTask task) {
+        synchronized (poolLock) {
+            task.running = false;
+            if (task.replaced) {
+                task.replaced = false;
+                replacementThreads--;
+                executor.setCorePoolSize(threads + replacementThreads);
+                executor.setMaximumPoolSize(threads + replacementThreads);
+            }
+        }
+    }
+
+    /**
+     * Makes the blobs of which the content was left out of the index visible: counts them in the
+     * blobExtractionFailures metric and adds their field names to the {@link #getFailureMarkerField
+     * failure marker field}.
+     *
+     * @param metrics can be null
+     */
+    public void reportFailures(Extraction extraction, IndexUpdateBuilder indexUpdateBuilder,
+            IndexerMetrics metrics) throws InterruptedException, RepositoryException {
+        List<QName> failedFields = extraction.getFailedFields();
+        if (failedFields.isEmpty()) {
+            return;
+        }
+
+        if (metrics != null) {
+            metrics.blobExtractionFailures.inc(failedFields.size());
+        }
+        if (failureMarkerField != null) {
+            List<String> markers = new ArrayList<String>(failedFields.size());
+            for (QName field : failedFields) {
+                markers.add(field.toString());
+            }
+            indexUpdateBuilder.addField(failureMarkerField, markers);
+        }
+    }
+
+    /**
+     * Opens the content of the blob.
+     */
+    protected InputStream getInputStream(BlobValue blobValue, Repository repository)
+            throws RepositoryException, InterruptedException {
+        return repository.getInputStream(blobValue.record, blobValue.fieldType.getName(), blobValue.indexes);
+    }
+
+    private synchronized String getCached(Pair<ByteArrayKey, String> key) {
+        return cache.get(key);
+    }
+
+    private synchronized void putCached(Pair<ByteArrayKey, String> key, String text) {
+        if (text.length() > cacheSize) {
+            return;
+        }
+
+        String old = cache.put(key, text);
+        if (old != null) {
+            cachedChars -= old.length();
+        }
+        cachedChars += text.length();
+
+        // Evict the least recently used entries
+        Iterator<String> it = cache.values().iterator();
+        while (cachedChars > cacheSize && it.hasNext()) {
+            cachedChars -= it.next().length();
+            it.remove();
+        }
+    }
+
+    private class ExtractTask implements Callable<String> {
+        private final BlobValue blobValue;
+        private final Repository repository;
+        private final long submitTime = System.currentTimeMillis();
+        private volatile long startTime;
+        /** Guarded by poolLock. */
+        private boolean running;
+        /** Guarded by poolLock: whether a thread has been added to the pool in place of this one. */
+        private boolean replaced;
+
+        ExtractTask(BlobValue blobValue, Repository repository) {
+            this.blobValue = blobValue;
+            this.repository = repository;
+        }
+
+        @Override
+        public String call() {
+            if (executor == null) {
+                return extract();
+            }
+
+            synchronized (poolLock) {
+                running = true;
+            }
+            startTime = System.currentTimeMillis();
+            try {
+                return extract();
+            } finally {
+                taskDone(this);
+            }
+        }
+
+        private String extract() {
+            Blob blob = blobValue.blob;
+            Pair<ByteArrayKey, String> cacheKey = null;
+            if (cacheSize > 0 && blob.getValue() != null) {
+                cacheKey = new Pair<ByteArrayKey, String>(new ByteArrayKey(blob.getValue()), blob.getMediaType());
+                String text = getCached(cacheKey);
+                if (text != null) {
+                    return text;
+                }
+            }
+
+            InputStream is = null;
+
+            WriteOutContentHandler woh = new WriteOutContentHandler(writeLimit);
+            BodyContentHandler ch = new BodyContentHandler(woh);
+
+            try {
+                is = getInputStream(blobValue, repository);
+
+                Metadata metadata = new Metadata();
+                metadata.add(Metadata.CONTENT_TYPE, blob.getMediaType());
+                if (blob.getName() != null)
+                    metadata.add(Metadata.RESOURCE_NAME_KEY, blob.getName());
+
+                ParseContext parseContext = new ParseContext();
+
+                tikaParser.parse(is, ch, metadata, parseContext);
+            } catch (Throwable t) {
+                if (woh.isWriteLimitReached(t)) {
+                    // ok, we'll just add use the partial result
+                    if (log.isInfoEnabled()) {
+                        log.info("Blob extraction: write limit reached. Field '" + blobValue.fieldType.getName() +
+                                "', record '" + blobValue.record.getId() + "'.");
+                    }
+                } else {
+                    log.error("Error extracting blob content. Field '" + blobValue.fieldType.getName() +
+                            "', record '" + blobValue.record.getId() + "'.", t);
+                    return null;
+                }
+            } finally {
+                Closer.close(is);
+            }
+
+            String text = ch.toString();
+            if (cacheKey != null) {
+                putCached(cacheKey, text);
+            }
+            return text;
+        }
+    }
+
+    /**
+     * The result of {@link #extract}.
+     */
+    public static class Extraction {
+        private final List<String> texts = new ArrayList<String>();
+        private final List<QName> failedFields = new ArrayList<QName>();
+
+        /**
+         * The non-empty texts, in the order of the blobs. Blobs for which the extraction failed or timed out
+         * are skipped.
+         */
+        public List<String> getTexts() {
+            return texts;
+        }
+
+        /**
+         * The fields of the blobs for which the extraction failed or timed out, once for each such blob.
+         */
+        public List<QName> getFailedFields() {
+            return failedFields;
+        }
+    }
+
+    /**
+     * A blob in a field of a record.
+     */
+    public static class BlobValue {
+        private final Record record;
+        private final FieldType fieldType;
+        private final int[] indexes;
+        private final Blob blob;
+
+        /**
+         * @param indexes the position of the blob within LIST or PATH values, see
+         *                {@link Repository#getInputStream(Record, org.lilyproject.repository.api.QName, int...)}
+         */
+        public BlobValue(Record record, FieldType fieldType, int[] indexes, Blob blob) {
+            this.record = record;
+            this.fieldType = fieldType;
+            this.indexes = indexes;
+            this.blob = blob;
+        }
+
+        public Blob getBlob() {
+            return blob;
+        }
+    }
+}
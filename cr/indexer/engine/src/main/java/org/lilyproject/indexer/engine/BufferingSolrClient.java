@@ -0,0 +1,286 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.SolrParams;
+
+/**
+ * A SolrClient which combines the adds and deletes-by-id done concurrently by different threads into
+ * batches, which are sent to Solr by a background thread.
+ *
+ * <p>The add and deleteById calls only return once the batch containing their update has been sent
+ * to Solr, and fail if sending the batch failed. For the callers, the behavior is thus the same as with a
+ * non-buffering client: once the call returns, the update has been handed over to Solr. This is important
+ * for the IndexUpdater, which should only confirm a message to the rowlog once its index updates are done.
+ * The throughput gain comes from many IndexUpdater threads sharing the same batches.</p>
+ *
+ * <p>The price of this is latency: each call can wait up to maxDelay before its batch is sent, and a caller
+ * doing several calls in a row waits for each of them. When few threads do updates, batches are mostly
+ * sent because of maxDelay rather than maxSize, so then every call takes about maxDelay longer than without
+ * buffering. Callers with several updates should therefore pass them in one call to the collection variants
+ * of add and deleteById, which put them all in the same batch.</p>
+ *
+ * <p>A batch is sent once it contains maxSize updates, or once maxDelay milliseconds have passed since the
+ * first update was added to it, whichever comes first. While a batch is being sent, updates are collected
+ * in the next batch. Within a batch, the order of the updates is maintained.</p>
+ *
+ * <p>Other operations (deleteByQuery, commit, query) are passed on directly.</p>
+ */
+public class BufferingSolrClient implements SolrClient, Closeable {
+    private final SolrClient delegate;
+    private final int maxSize;
+    private final long maxDelay;
+    private final SolrClientMetrics metrics;
+    private Batch currentBatch;
+    private volatile boolean stop = false;
+    private final Thread flushThread;
+    private final Log log = LogFactory.getLog(getClass());
+
+    /**
+     * @param metrics optional, can be null
+     */
+    public BufferingSolrClient(SolrClient delegate, int maxSize, long maxDelay, SolrClientMetrics metrics) {
+        this.delegate = delegate;
+        this.maxSize = maxSize;
+        this.maxDelay = maxDelay;
+        this.metrics = metrics;
+
+        flushThread = new Thread(new Flusher(), "Solr update buffer flusher for " + delegate.getDescription());
+        flushThread.setDaemon(true);
+        flushThread.start();
+    }
+
+    @Override
+    public String getDescription() {
+        return delegate.getDescription();
+    }
+
+    @Override
+    public UpdateResponse add(SolrInputDocument doc) throws SolrClientException, InterruptedException {
+        return buffer(Collections.singletonList(new Update(doc, null))).await();
+    }
+
+    @Override
+    public UpdateResponse add(Collection<SolrInputDocument> docs) throws SolrClientException, InterruptedException {
+        if (docs.isEmpty()) {
+            return delegate.add(docs);
+        }
+        List<Update> updates = new ArrayList<Update>(docs.size());
+        for (SolrInputDocument doc : docs) {
+            updates.add(new Update(doc, null));
+        }
+        return buffer(updates).await();
+    }
+
+    @Override
+    public UpdateResponse deleteById(String id) throws SolrClientException, InterruptedException {
+        return buffer(Collections.singletonList(new Update(null, id))).await();
+    }
+
+    @Override
+    public UpdateResponse deleteById(List<String> ids) throws SolrClientException, InterruptedException {
+        if (ids.isEmpty()) {
+            return delegate.deleteById(ids);
+        }
+        List<Update> updates = new ArrayList<Update>(ids.size());
+        for (String id : ids) {
+            updates.add(new Update(null, id));
+        }
+        return buffer(updates).await();
+    }
+
+    @Override
+    public UpdateResponse deleteByQuery(String query) throws SolrClientException, InterruptedException {
+        return delegate.deleteByQuery(query);
+    }
+
+    @Override
+    public UpdateResponse commit(boolean waitFlush, boolean waitSearcher) throws SolrClientException,
+            InterruptedException {
+        return delegate.commit(waitFlush, waitSearcher);
+    }
+
+    @Override
+    public UpdateResponse commit() throws SolrClientException, InterruptedException {
+        return delegate.commit();
+    }
+
+    @Override
+    public QueryResponse query(SolrParams params) throws SolrClientException, InterruptedException {
+        return delegate.query(params);
+    }
+
+    /**
+     * Adds the updates to the current batch. The updates of one call are never spread over several batches,
+     * so a batch can get a bit larger than maxSize.
+     */
+    private synchronized Batch buffer(List<Update> updates) {
+        if (stop) {
+            throw new IllegalStateException("This Solr client has been closed.");
+        }
+
+        if (currentBatch == null) {
+            currentBatch = new Batch();
+        }
+        Batch batch = currentBatch;
+        boolean wasEmpty = batch.updates.isEmpty();
+        batch.updates.addAll(updates);
+        if (wasEmpty || batch.updates.size() >= maxSize) {
+            notifyAll();
+        }
+        return batch;
+    }
+
+    /**
+     * Stops the background thread, after sending the updates that are still buffered.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            stop = true;
+            notifyAll();
+        }
+        try {
+            flushThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized Batch takeBatch() throws InterruptedException {
+        while (true) {
+            if (currentBatch != null) {
+                long wait = currentBatch.created + maxDelay - System.currentTimeMillis();
+                if (stop || wait <= 0 || currentBatch.updates.size() >= maxSize) {
+                    Batch batch = currentBatch;
+                    currentBatch = null;
+                    return batch;
+                }
+                wait(wait);
+            } else if (stop) {
+                return null;
+            } else {
+                wait();
+            }
+        }
+    }
+
+    private class Flusher implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Batch batch;
+                try {
+                    batch = takeBatch();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (batch == null)
+                    return;
+
+                batch.flush();
+            }
+        }
+    }
+
+    private static class Update {
+        private final SolrInputDocument doc;
+        private final String deleteId;
+
+        public Update(SolrInputDocument doc, String deleteId) {
+            this.doc = doc;
+            this.deleteId = deleteId;
+        }
+    }
+
+    private class Batch {
+        private final long created = System.currentTimeMillis();
+        private final List<Update> updates = new ArrayList<Update>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile UpdateResponse response;
+        private volatile Throwable failure;
+
+        /**
+         * Sends the updates to Solr. Consecutive adds, respectively deletes, are combined in one request,
+         * so that the order of the updates is maintained.
+         */
+        public void flush() {
+            long before = System.currentTimeMillis();
+            try {
+                List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+                List<String> deleteIds = new ArrayList<String>();
+                for (Update update : updates) {
+                    if (update.doc != null) {
+                        sendDeletes(deleteIds);
+                        docs.add(update.doc);
+                    } else {
+                        sendAdds(docs);
+                        deleteIds.add(update.deleteId);
+                    }
+                }
+                sendAdds(docs);
+                sendDeletes(deleteIds);
+            } catch (Throwable t) {
+                log.error("Error sending buffered updates to Solr " + delegate.getDescription(), t);
+                failure = t;
+            } finally {
+                if (metrics != null) {
+                    metrics.flushes.inc(System.currentTimeMillis() - before);
+                    metrics.flushedUpdates.inc(updates.size());
+                }
+                done.countDown();
+            }
+        }
+
+        private void sendAdds(List<SolrInputDocument> docs) throws SolrClientException, InterruptedException {
+            if (!docs.isEmpty()) {
+                response = docs.size() == 1 ? delegate.add(docs.get(0)) : delegate.add(docs);
+                docs.clear();
+            }
+        }
+
+        private void sendDeletes(List<String> ids) throws SolrClientException, InterruptedException {
+            if (!ids.isEmpty()) {
+                response = ids.size() == 1 ? delegate.deleteById(ids.get(0))
+                        : delegate.deleteById(new ArrayList<String>(ids));
+                ids.clear();
+            }
+        }
+
+        public UpdateResponse await() throws SolrClientException, InterruptedException {
+            done.await();
+            if (failure instanceof SolrClientException) {
+                throw (SolrClientException)failure;
+            } else if (failure != null) {
+                throw new SolrClientException(delegate.getDescription(), failure);
+            }
+            return response;
+        }
+    }
+}
@@ -88,7 +88,7 @@ public class ClassicSolrShardManager implements SolrShardManager {
             this.responseParser = new BinaryResponseParser();
         }
 
-        init(indexName, blockOnIOProblem);
+        init(indexName, blockOnIOProblem, solrClientConfig);
     }
 
     /**
@@ -121,7 +121,8 @@ public class ClassicSolrShardManager implements SolrShardManager {
         return shardConnections.values().iterator().next().solrClient.query(query);
     }
 
-    private void init(String indexName, boolean blockOnIOProblem) throws MalformedURLException {
+    private void init(String indexName, boolean blockOnIOProblem, SolrClientConfig solrClientConfig)
+            throws MalformedURLException {
         shardConnections = new HashMap<String, SolrClientHandle>();
         for (Map.Entry<String, String> shard : shards.entrySet()) {
             //ConcurrentUpdateSolrServer solr = new ConcurrentUpdateSolrServer(shard.getValue(), httpClient, 50, 5);
@@ -133,6 +134,10 @@ public class ClassicSolrShardManager implements SolrShardManager {
             if (blockOnIOProblem) {
                 solrClient = RetryingSolrClient.wrap(solrClient, metrics);
             }
+            if (solrClientConfig.isUpdateBufferEnabled()) {
+                solrClient = new BufferingSolrClient(solrClient, solrClientConfig.getUpdateBufferSize(),
+                        solrClientConfig.getUpdateBufferMaxDelay(), metrics);
+            }
             shardConnections.put(shard.getKey(), new SolrClientHandle(solrClient, metrics));
         }
     }
@@ -157,6 +162,9 @@ public class ClassicSolrShardManager implements SolrShardManager {
     public void close() throws IOException {
         if (shardConnections != null) {
             for (SolrClientHandle client : shardConnections.values()) {
+                if (client.solrClient instanceof BufferingSolrClient) {
+                    ((BufferingSolrClient)client.solrClient).close();
+                }
                 client.solrClientMetrics.shutdown();
             }
         }
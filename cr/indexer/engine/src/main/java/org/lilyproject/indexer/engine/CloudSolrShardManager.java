@@ -19,21 +19,34 @@ public class CloudSolrShardManager implements SolrShardManager {
 
     public CloudSolrShardManager(String indexName, String zkHost, String collection, boolean blockOnIOProblem)
             throws MalformedURLException {
+        this(indexName, zkHost, collection, blockOnIOProblem, new SolrClientConfig());
+    }
+
+    public CloudSolrShardManager(String indexName, String zkHost, String collection, boolean blockOnIOProblem,
+                                 SolrClientConfig solrClientConfig) throws MalformedURLException {
         solrServer = new CloudSolrServer(zkHost);
 
-        solrClient = createSolrClient(solrServer, collection, blockOnIOProblem, indexName);
+        solrClient = createSolrClient(solrServer, collection, blockOnIOProblem, indexName, solrClientConfig);
     }
 
     private SolrClient createSolrClient(CloudSolrServer solrServer, String collection, boolean blockOnIOProblem,
-                                        String indexName) {
-        final SolrClientImpl solrClient = new SolrClientImpl(solrServer, collection, "Solr Cloud Client");
+                                        String indexName, SolrClientConfig solrClientConfig) {
+        SolrClient solrClient = new SolrClientImpl(solrServer, collection, "Solr Cloud Client");
 
-        if (blockOnIOProblem) {
+        if (blockOnIOProblem || solrClientConfig.isUpdateBufferEnabled()) {
             solrClientMetrics = new SolrClientMetrics(indexName, "cloud");
-            return RetryingSolrClient.wrap(solrClient, solrClientMetrics);
-        } else {
-            return solrClient;
         }
+
+        if (blockOnIOProblem) {
+            solrClient = RetryingSolrClient.wrap(solrClient, solrClientMetrics);
+        }
+
+        if (solrClientConfig.isUpdateBufferEnabled()) {
+            solrClient = new BufferingSolrClient(solrClient, solrClientConfig.getUpdateBufferSize(),
+                    solrClientConfig.getUpdateBufferMaxDelay(), solrClientMetrics);
+        }
+
+        return solrClient;
     }
 
     @Override
@@ -43,6 +56,9 @@ public class CloudSolrShardManager implements SolrShardManager {
 
     @Override
     public void close() throws IOException {
+        if (solrClient instanceof BufferingSolrClient) {
+            ((BufferingSolrClient)solrClient).close();
+        }
         solrServer.shutdown();
         if (solrClientMetrics != null) {
             solrClientMetrics.shutdown();
@@ -28,6 +28,10 @@ import org.lilyproject.util.zookeeper.ZooKeeperItf;
 import org.lilyproject.util.zookeeper.ZooKeeperOperation;
 
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 // About the IndexLocker:
 //
@@ -59,8 +63,26 @@ import java.util.Arrays;
 // index lock for each record, which would lower chances of contention when having multiple
 // indexes defined. Will leave it like this though since I'd rather see the need for this locking
 // removed altogether.
+//
+// Update 2012: besides the ZooKeeper-based locking, there is now a local mode in which the lock is
+// a striped in-process lock. This is for the case where the only concurrency to protect against is
+// between the threads of one process, e.g. several index updaters (or concurrently processed messages)
+// within one Lily node. The MessagesWorkQueue already avoids that messages for the same row are
+// processed concurrently, so in that case the local lock is merely a safety net which costs nearly
+// nothing, compared to the two ZooKeeper round-trips per message of the ZooKeeper mode. The local mode
+// does not protect against other processes, such as the batch index build: when these can overlap with
+// incremental indexing, the ZooKeeper mode should be used.
 
 public class IndexLocker {
+    public enum Mode {
+        /** No locking at all. */
+        DISABLED,
+        /** Locks are nodes in ZooKeeper, which works across processes. */
+        ZOOKEEPER,
+        /** Locks are in-process striped locks, which only work between the threads of one process. */
+        LOCAL
+    }
+
     private ZooKeeperItf zk;
     private int waitBetweenTries = 20;
     private int maxWaitTime = 20000;
@@ -68,19 +90,49 @@ public class IndexLocker {
      * Flag to allow globally disabling the index locking.
      */
     private boolean enabled = true;
+    private Mode mode;
+
+    private static final int STRIPES = 1024;
+    private ReentrantLock[] stripes;
+    /**
+     * The records locked by the current thread, in the local mode. Needed because different records
+     * can map onto the same stripe, and to give the same re-entrant semantics as the ZooKeeper mode.
+     */
+    private final ThreadLocal<Set<RecordId>> localLocks = new ThreadLocal<Set<RecordId>>() {
+        @Override
+        protected Set<RecordId> initialValue() {
+            return new HashSet<RecordId>();
+        }
+    };
 
     private Log log = LogFactory.getLog(getClass());
 
     private static final String LOCK_PATH = "/lily/indexer/recordlock";        
 
     public IndexLocker(ZooKeeperItf zk, boolean enabled) throws InterruptedException, KeeperException {
+        this(zk, enabled ? Mode.ZOOKEEPER : Mode.DISABLED);
+    }
+
+    /**
+     * @param zk only used in {@link Mode#ZOOKEEPER} mode, can be null for the other modes.
+     */
+    public IndexLocker(ZooKeeperItf zk, Mode mode) throws InterruptedException, KeeperException {
         this.zk = zk;
-        this.enabled = enabled;
-        ZkUtil.createPath(zk, LOCK_PATH);
+        this.mode = mode;
+        this.enabled = mode != Mode.DISABLED;
+        if (mode == Mode.ZOOKEEPER) {
+            ZkUtil.createPath(zk, LOCK_PATH);
+        } else if (mode == Mode.LOCAL) {
+            stripes = new ReentrantLock[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new ReentrantLock();
+            }
+        }
     }
 
     public IndexLocker(ZooKeeperItf zk, int waitBetweenTries, int maxWaitTime) throws InterruptedException, KeeperException {
         this.zk = zk;
+        this.mode = Mode.ZOOKEEPER;
         this.waitBetweenTries = waitBetweenTries;
         this.maxWaitTime = maxWaitTime;
         ZkUtil.createPath(zk, LOCK_PATH);
@@ -99,6 +151,11 @@ public class IndexLocker {
             return;
         }
 
+        if (mode == Mode.LOCAL) {
+            lockLocal(recordId);
+            return;
+        }
+
         if (zk.isCurrentThreadEventThread()) {
             throw new RuntimeException("IndexLocker should not be used from within the ZooKeeper event thread.");
         }
@@ -166,6 +223,11 @@ public class IndexLocker {
             return;
         }
 
+        if (mode == Mode.LOCAL) {
+            unlockLocal(recordId);
+            return;
+        }
+
         if (zk.isCurrentThreadEventThread()) {
             throw new RuntimeException("IndexLocker should not be used from within the ZooKeeper event thread.");
         }
@@ -228,6 +290,10 @@ public class IndexLocker {
             return true;
         }
 
+        if (mode == Mode.LOCAL) {
+            return localLocks.get().contains(recordId);
+        }
+
         if (zk.isCurrentThreadEventThread()) {
             throw new RuntimeException("IndexLocker should not be used from within the ZooKeeper event thread.");
         }
@@ -250,6 +316,48 @@ public class IndexLocker {
         });
     }
 
+    public Mode getMode() {
+        return mode;
+    }
+
+    private void lockLocal(RecordId recordId) throws IndexLockException {
+        Set<RecordId> locked = localLocks.get();
+        if (locked.contains(recordId)) {
+            return;
+        }
+
+        ReentrantLock stripe = getStripe(recordId);
+        boolean obtained;
+        try {
+            obtained = stripe.tryLock(maxWaitTime, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IndexLockException("Interrupted while taking index lock on record " + recordId, e);
+        }
+
+        if (!obtained) {
+            throw new IndexLockTimeoutException("Failed to obtain an index lock for record " + recordId +
+                    " within " + maxWaitTime + " ms.");
+        }
+        locked.add(recordId);
+    }
+
+    private void unlockLocal(RecordId recordId) throws IndexLockException {
+        if (!localLocks.get().remove(recordId)) {
+            throw new IndexLockException("You cannot remove the index lock for record " + recordId +
+                    " because the token is incorrect.");
+        }
+        getStripe(recordId).unlock();
+    }
+
+    private ReentrantLock getStripe(RecordId recordId) {
+        // Spread the hash code a bit, as done by HashMap, since the stripe is taken from the lower bits
+        int h = recordId.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return stripes[h & (STRIPES - 1)];
+    }
+
     private String getPath(RecordId recordId) {
         return LOCK_PATH + "/" + recordId.toString();
     }
@@ -16,6 +16,7 @@
 package org.lilyproject.indexer.engine;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -23,13 +24,14 @@ import java.util.Map;
 import java.util.Set;
 
 import com.google.common.base.Function;
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Collections2;
-import com.google.common.collect.Lists;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Multimap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.lilyproject.indexer.derefmap.Dependant;
 import org.lilyproject.indexer.derefmap.DependantRecordIdsIterator;
+import org.lilyproject.indexer.derefmap.DependantsIterator;
 import org.lilyproject.indexer.derefmap.DerefMap;
 import org.lilyproject.indexer.model.indexerconf.IndexCase;
 import org.lilyproject.indexer.model.sharding.ShardSelectorException;
@@ -45,9 +47,10 @@ import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.Scope;
 import org.lilyproject.rowlog.api.RowLog;
+import org.lilyproject.rowlog.api.RowLogBatchMessageListener;
 import org.lilyproject.rowlog.api.RowLogException;
 import org.lilyproject.rowlog.api.RowLogMessage;
-import org.lilyproject.rowlog.api.RowLogMessageListener;
+import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.repo.RecordEvent;
 import org.lilyproject.util.repo.RecordEventHelper;
 import org.lilyproject.util.repo.VTaggedRecord;
@@ -90,7 +93,7 @@ import static org.lilyproject.util.repo.RecordEvent.Type.INDEX;
 /**
  * Updates the index in response to repository events.
  */
-public class IndexUpdater implements RowLogMessageListener {
+public class IndexUpdater implements RowLogBatchMessageListener {
     private Repository repository;
     private Indexer indexer;
     private IndexUpdaterMetrics metrics;
@@ -132,137 +135,170 @@ public class IndexUpdater implements RowLogMessageListener {
 
     @Override
     public boolean processMessage(RowLogMessage msg) throws InterruptedException {
+        return processMessages(Collections.singletonList(msg));
+    }
+
+    /**
+     * Processes several messages of the same record. The events are first coalesced (see
+     * {@link RecordEventCoalescer}), so that e.g. a series of updates of the record only causes the
+     * record to be read and indexed once.
+     */
+    @Override
+    public boolean processMessages(List<RowLogMessage> msgs) throws InterruptedException {
         long before = System.currentTimeMillis();
 
         // During the processing of this message, we switch the context class loader to the one
         // of the Kauri module to which the index updater belongs. This is necessary for Tika
         // to find its parser implementations.
 
-        RecordEvent event = null;
         RecordId recordId = null;
 
         ClassLoader currentCL = Thread.currentThread().getContextClassLoader();
         try {
             Thread.currentThread().setContextClassLoader(myContextClassLoader);
-            event = new RecordEvent(msg.getPayload(), idGenerator);
-            recordId = idGenerator.fromBytes(msg.getRowKey());
-
-            if (log.isDebugEnabled()) {
-                log.debug("Received message: " + event.toJson());
+            List<RecordEvent> events = new ArrayList<RecordEvent>(msgs.size());
+            for (RowLogMessage msg : msgs) {
+                events.add(new RecordEvent(msg.getPayload(), idGenerator));
             }
+            recordId = idGenerator.fromBytes(msgs.get(0).getRowKey());
 
-            if (event.getType().equals(INDEX)) {
+            if (events.size() > 1) {
+                events = RecordEventCoalescer.coalesce(events);
                 if (log.isDebugEnabled()) {
-                    log.debug(String.format("Record %1$s: reindex requested for these vtags: %2$s", recordId,
-                            indexer.vtagSetToNameString(event.getVtagsToIndex())));
+                    log.debug(String.format("Record %1$s: coalesced %2$s events into %3$s", recordId,
+                            msgs.size(), events.size()));
                 }
-                index(recordId, event.getVtagsToIndex());
-            } else if (event.getType().equals(DELETE)) {
-                // Record is deleted: delete its index entry. We do not check for a matching index case, since
-                // we can't (record is not available anymore), and besides IndexAwareMQFeeder takes care of sending us
-                // only relevant events.
-                indexLocker.lock(recordId);
+            }
+
+            // A failure for one event should not cause the remaining events to be skipped
+            for (RecordEvent event : events) {
                 try {
-                    indexer.delete(recordId);
-                } finally {
-                    indexLocker.unlockLogFailure(recordId);
+                    processEvent(recordId, event);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    String eventType = event.getType() != null ? event.getType().toString() : "(unknown)";
+                    log.error("Failure in IndexUpdater. Record '" + recordId + "', event type " + eventType, e);
+                    metrics.errors.inc();
                 }
+            }
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            if (recordId != null) {
+                log.error("Failure in IndexUpdater. Record '" + recordId + "'", e);
+            } else {
+                log.error("Failure in IndexUpdater. Failed before/while reading payload.", e);
+            }
+            metrics.errors.inc();
+        } finally {
+            long after = System.currentTimeMillis();
+            metrics.updates.inc(after - before);
+            Thread.currentThread().setContextClassLoader(currentCL);
+        }
+        return true;
+    }
 
-                if (log.isDebugEnabled()) {
-                    log.debug(String.format("Record %1$s: deleted from index (if present) because of " +
-                            "delete record event", recordId));
-                }
+    private void processEvent(RecordId recordId, RecordEvent event) throws Exception {
+        if (log.isDebugEnabled()) {
+            log.debug("Received message: " + event.toJson());
+        }
 
-                // After this we can go to update denormalized data
-                if (derefMap != null)
-                    updateDenormalizedData(recordId, null, null);
-            } else { // CREATE or UPDATE
-                VTaggedRecord vtRecord;
-
-                // Based on the partial old/new record state stored in the RecordEvent, determine whether we
-                // now match a different IndexCase than before, and if so, if the new case would have less vtags
-                // than the old one, perform the necessary deletes on Solr.
-                Record[] records =
-                        IndexRecordFilterUtil.getOldAndNewRecordForRecordFilterEvaluation(recordId, event, repository);
-                Record oldRecord = records[0];
-                Record newRecord = records[1];
-                IndexCase caseOld = oldRecord != null ? indexer.getConf().getIndexCase(oldRecord) : null;
-                IndexCase caseNew = newRecord != null ? indexer.getConf().getIndexCase(newRecord) : null;
-
-                if (oldRecord != null && newRecord != null) {
-                    if (caseOld != null && caseNew != null) {
-                        Set<SchemaId> droppedVtags = new HashSet<SchemaId>(caseOld.getVersionTags());
-                        droppedVtags.removeAll(caseNew.getVersionTags());
-
-                        if (droppedVtags.size() > 0) {
-                            // Perform deletes
-                            for (SchemaId vtag : droppedVtags) {
-                                indexer.delete(recordId, vtag);
-                            }
+        if (event.getType().equals(INDEX)) {
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Record %1$s: reindex requested for these vtags: %2$s", recordId,
+                        indexer.vtagSetToNameString(event.getVtagsToIndex())));
+            }
+            index(recordId, event.getVtagsToIndex());
+        } else if (event.getType().equals(DELETE)) {
+            // Record is deleted: delete its index entry. We do not check for a matching index case, since
+            // we can't (record is not available anymore), and besides IndexAwareMQFeeder takes care of sending us
+            // only relevant events.
+            lock(recordId);
+            try {
+                indexer.delete(recordId);
+            } finally {
+                indexLocker.unlockLogFailure(recordId);
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Record %1$s: deleted from index (if present) because of " +
+                        "delete record event", recordId));
+            }
+
+            // After this we can go to update denormalized data
+            if (derefMap != null)
+                updateDenormalizedData(recordId, null, null);
+        } else { // CREATE or UPDATE
+            VTaggedRecord vtRecord;
+
+            // Based on the partial old/new record state stored in the RecordEvent, determine whether we
+            // now match a different IndexCase than before, and if so, if the new case would have less vtags
+            // than the old one, perform the necessary deletes on Solr.
+            Record[] records =
+                    IndexRecordFilterUtil.getOldAndNewRecordForRecordFilterEvaluation(recordId, event, repository);
+            Record oldRecord = records[0];
+            Record newRecord = records[1];
+            IndexCase caseOld = oldRecord != null ? indexer.getConf().getIndexCase(oldRecord) : null;
+            IndexCase caseNew = newRecord != null ? indexer.getConf().getIndexCase(newRecord) : null;
+
+            if (oldRecord != null && newRecord != null) {
+                if (caseOld != null && caseNew != null) {
+                    Set<SchemaId> droppedVtags = new HashSet<SchemaId>(caseOld.getVersionTags());
+                    droppedVtags.removeAll(caseNew.getVersionTags());
+
+                    if (droppedVtags.size() > 0) {
+                        // Perform deletes
+                        for (SchemaId vtag : droppedVtags) {
+                            indexer.delete(recordId, vtag);
                         }
                     }
                 }
+            }
 
-                // This is an optimization: an IndexCase with empty vtags list means that this record is
-                // included in this index only to trigger updating of denormalized data.
-                boolean doIndexing = true;
-                if (caseNew != null) {
-                    doIndexing = caseNew.getVersionTags().size() > 0;
-                } else if (caseNew == null && caseOld != null) {
-                    // caseNew == null means either the record has been deleted, or means the record does
-                    // not match the recordFilter anymore. In either case, we only need to trigger update
-                    // of denormalized data (if the vtags list was empty on caseOld).
-                    doIndexing = caseOld.getVersionTags().size() > 0;
-                }
+            // This is an optimization: an IndexCase with empty vtags list means that this record is
+            // included in this index only to trigger updating of denormalized data.
+            boolean doIndexing = true;
+            if (caseNew != null) {
+                doIndexing = caseNew.getVersionTags().size() > 0;
+            } else if (caseNew == null && caseOld != null) {
+                // caseNew == null means either the record has been deleted, or means the record does
+                // not match the recordFilter anymore. In either case, we only need to trigger update
+                // of denormalized data (if the vtags list was empty on caseOld).
+                doIndexing = caseOld.getVersionTags().size() > 0;
+            }
 
-                RecordEventHelper eventHelper = new RecordEventHelper(event, null, repository.getTypeManager());
+            RecordEventHelper eventHelper = new RecordEventHelper(event, null, repository.getTypeManager());
 
-                if (doIndexing) {
-                    indexLocker.lock(recordId);
+            if (doIndexing) {
+                lock(recordId);
+                try {
                     try {
-                        try {
-                            // Read the vtags of the record. Note that while this algorithm is running, the record can
-                            // meanwhile undergo changes. However, we continuously work with the snapshot of the vtags
-                            // mappings read here. The processing of later events will bring the index up to date with
-                            // any new changes.
-                            vtRecord = new VTaggedRecord(recordId, eventHelper, repository);
-                        } catch (RecordNotFoundException e) {
-                            // The record has been deleted in the meantime.
-                            // For now, we do nothing, when the delete event is received the record will be removed
-                            // from the index (as well as update of denormalized data).
-                            // TODO: we should process all outstanding messages for the record (up to delete) in one go
-                            return true;
-                        }
-
-                        handleRecordCreateUpdate(vtRecord);
-                    } finally {
-                        indexLocker.unlockLogFailure(recordId);
+                        // Read the vtags of the record. Note that while this algorithm is running, the record can
+                        // meanwhile undergo changes. However, we continuously work with the snapshot of the vtags
+                        // mappings read here. The processing of later events will bring the index up to date with
+                        // any new changes.
+                        vtRecord = new VTaggedRecord(recordId, eventHelper, repository);
+                    } catch (RecordNotFoundException e) {
+                        // The record has been deleted in the meantime.
+                        // For now, we do nothing, when the delete event is received the record will be removed
+                        // from the index (as well as update of denormalized data). If the delete event was already
+                        // waiting in the queue together with this one, it was coalesced (see RecordEventCoalescer)
+                        // and we don't get here.
+                        return;
                     }
-                }
 
-                if (derefMap != null) {
-                    updateDenormalizedData(recordId, eventHelper.getUpdatedFieldsByScope(),
-                            eventHelper.getModifiedVTags());
+                    handleRecordCreateUpdate(vtRecord);
+                } finally {
+                    indexLocker.unlockLogFailure(recordId);
                 }
             }
 
-        } catch (InterruptedException e) {
-            throw e;
-        } catch (Exception e) {
-            if (recordId != null) {
-                String eventType = event != null && event.getType() != null ? event.getType().toString() : "(unknown)";
-                log.error("Failure in IndexUpdater. Record '" + recordId + "', event type " + eventType, e);
-                metrics.errors.inc();
-            } else {
-                log.error("Failure in IndexUpdater. Failed before/while reading payload.", e);
-                metrics.errors.inc();
+            if (derefMap != null) {
+                updateDenormalizedData(recordId, eventHelper.getUpdatedFieldsByScope(),
+                        eventHelper.getModifiedVTags());
             }
-        } finally {
-            long after = System.currentTimeMillis();
-            metrics.updates.inc(after - before);
-            Thread.currentThread().setContextClassLoader(currentCL);
         }
-        return true;
     }
 
     private void handleRecordCreateUpdate(VTaggedRecord vtRecord) throws Exception {
@@ -399,7 +435,7 @@ public class IndexUpdater implements RowLogMessageListener {
                                         Set<SchemaId> changedVTagFields)
             throws RepositoryException, InterruptedException, LinkIndexException, IOException {
 
-        Multimap<RecordId, SchemaId> referrersAndVTags = ArrayListMultimap.create();
+        Multimap<RecordId, SchemaId> referrersAndVTags = LinkedHashMultimap.create();
 
         Set<SchemaId> allVTags = indexer.getConf().getVtags();
 
@@ -407,29 +443,54 @@ public class IndexUpdater implements RowLogMessageListener {
             log.debug("Updating denormalized data for " + recordId + ", vtags: " + changedVTagFields);
         }
 
-        // The reason to iterate over all vtags is because a field from a record without versions might be
+        // The reason to consider all vtags is because a field from a record without versions might be
         // dereferenced into multiple vtagged versions of another record, and we don't know what the [indexed]
         // vtags of that other record are.
+
+        // For changed vtags or delete: reindex regardless of fields. The dependants are the same for all these
+        // vtags, so they are looked up only once.
+        Set<SchemaId> reindexVTags = new HashSet<SchemaId>();
         for (SchemaId vtag : allVTags) {
             if ((changedVTagFields != null && changedVTagFields.contains(vtag)) || updatedFieldsByScope == null) {
-                // changed vtags or delete: reindex regardless of fields
-                DependantRecordIdsIterator dependants = derefMap.findDependantsOf(recordId);
-                if (log.isDebugEnabled()) {
-                    log.debug("changed vtag: dependants of " + recordId + ": " +
-                            depIds(derefMap.findDependantsOf(recordId)));
-                }
+                reindexVTags.add(vtag);
+            }
+        }
+
+        if (!reindexVTags.isEmpty()) {
+            DependantRecordIdsIterator dependants = derefMap.findDependantsOf(recordId);
+            try {
                 while (dependants.hasNext()) {
-                    referrersAndVTags.put(dependants.next(), vtag);
+                    referrersAndVTags.putAll(dependants.next(), reindexVTags);
                 }
-            } else {
-                // vtag didn't change, but some fields did change:
-                Set<SchemaId> fields = new HashSet<SchemaId>();
-                for (Scope scope : updatedFieldsByScope.keySet()) {
-                    fields.addAll(toSchemaIds(updatedFieldsByScope.get(scope)));
-                }
-                final DependantRecordIdsIterator dependants = derefMap.findDependantsOf(recordId, fields, vtag);
-                while (dependants.hasNext()) {
-                    referrersAndVTags.put(dependants.next(), vtag);
+            } finally {
+                Closer.close(dependants);
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("changed vtag: dependants of " + recordId + ": " + referrersAndVTags.keySet());
+            }
+        }
+
+        // For the other vtags, some fields did change: look up the dependants on those fields in all these vtags
+        // at once.
+        if (updatedFieldsByScope != null && reindexVTags.size() < allVTags.size()) {
+            Set<SchemaId> fields = new HashSet<SchemaId>();
+            for (Scope scope : updatedFieldsByScope.keySet()) {
+                fields.addAll(toSchemaIds(updatedFieldsByScope.get(scope)));
+            }
+
+            if (!fields.isEmpty()) {
+                Set<SchemaId> vtags = new HashSet<SchemaId>(allVTags);
+                vtags.removeAll(reindexVTags);
+
+                DependantsIterator dependants = derefMap.findDependantsInVtags(recordId, fields, vtags);
+                try {
+                    while (dependants.hasNext()) {
+                        Dependant dependant = dependants.next();
+                        referrersAndVTags.put(dependant.getRecordId(), dependant.getVtag());
+                    }
+                } finally {
+                    Closer.close(dependants);
                 }
             }
         }
@@ -475,12 +536,13 @@ public class IndexUpdater implements RowLogMessageListener {
         }));
     }
 
-    private List<RecordId> depIds(DependantRecordIdsIterator dependants) throws IOException {
-        List<RecordId> recordIds = Lists.newArrayList();
-        while (dependants.hasNext()) {
-            recordIds.add(dependants.next());
-        }
-        return recordIds;
+    /**
+     * Takes the index lock, keeping track of the time spent waiting for it.
+     */
+    private void lock(RecordId recordId) throws IndexLockException {
+        long before = System.currentTimeMillis();
+        indexLocker.lock(recordId);
+        metrics.lockWait.inc(System.currentTimeMillis() - before);
     }
 
     /**
@@ -492,7 +554,7 @@ public class IndexUpdater implements RowLogMessageListener {
             SolrClientException, ShardSelectorException, IndexLockException, IOException {
         boolean lockObtained = false;
         try {
-            indexLocker.lock(recordId);
+            lock(recordId);
             lockObtained = true;
 
             VTaggedRecord vtRecord;
@@ -37,6 +37,12 @@ public class IndexUpdaterMetrics implements Updater {
 
     public MetricsTimeVaryingRate updates = new MetricsTimeVaryingRate("updates", registry);
 
+    /**
+     * Time spent waiting to obtain the index lock on a record. This depends a lot on the lock mode
+     * (see IndexLocker.Mode): with ZooKeeper locks it includes the ZooKeeper round-trips.
+     */
+    public MetricsTimeVaryingRate lockWait = new MetricsTimeVaryingRate("lockWait", registry);
+
     /**
      * This metric is incremented for all unusual errors, that is errors which prevented the index from being
      * updated.
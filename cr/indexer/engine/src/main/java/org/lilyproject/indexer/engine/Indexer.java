@@ -16,6 +16,7 @@
 package org.lilyproject.indexer.engine;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -34,6 +35,7 @@ import org.lilyproject.indexer.model.indexerconf.DynamicIndexField;
 import org.lilyproject.indexer.model.indexerconf.DynamicIndexField.DynamicIndexFieldMatch;
 import org.lilyproject.indexer.model.indexerconf.IndexCase;
 import org.lilyproject.indexer.model.indexerconf.IndexerConf;
+import org.lilyproject.indexer.model.indexerconf.MappingNode;
 import org.lilyproject.indexer.model.sharding.ShardSelectorException;
 import org.lilyproject.repository.api.FieldType;
 import org.lilyproject.repository.api.IdRecord;
@@ -76,6 +78,15 @@ public class Indexer {
 
     public Indexer(String indexName, IndexerConf conf, Repository repository, SolrShardManager solrShardMgr,
                    IndexLocker indexLocker, IndexerMetrics metrics, DerefMap derefMap) {
+        this(indexName, conf, repository, solrShardMgr, indexLocker, metrics, derefMap, new BlobContentExtractor());
+    }
+
+    /**
+     * @param blobContentExtractor used for the extraction of blob content, can be shared between indexers
+     */
+    public Indexer(String indexName, IndexerConf conf, Repository repository, SolrShardManager solrShardMgr,
+                   IndexLocker indexLocker, IndexerMetrics metrics, DerefMap derefMap,
+                   BlobContentExtractor blobContentExtractor) {
         this.indexName = indexName;
         this.conf = conf;
         this.repository = repository;
@@ -83,7 +94,7 @@ public class Indexer {
         this.indexLocker = indexLocker;
         this.typeManager = repository.getTypeManager();
         this.systemFields = SystemFields.getInstance(typeManager, repository.getIdGenerator());
-        this.valueEvaluator = new ValueEvaluator(conf);
+        this.valueEvaluator = new ValueEvaluator(conf, blobContentExtractor, metrics);
         this.metrics = metrics;
         this.derefMap = derefMap;
     }
@@ -169,11 +180,13 @@ public class Indexer {
             if (version == null) {
                 // If the version does not exist, we pro-actively delete it, though the IndexUpdater should
                 // do this any way when it later receives a message about the delete.
+                verifyLock(recordId);
+                List<String> deleteIds = new ArrayList<String>(entry.getValue().size());
                 for (SchemaId vtag : entry.getValue()) {
-                    verifyLock(recordId);
-                    solrShardMgr.getSolrClient(recordId).deleteById(getIndexId(recordId, vtag));
-                    metrics.deletesById.inc();
+                    deleteIds.add(getIndexId(recordId, vtag));
                 }
+                solrShardMgr.getSolrClient(recordId).deleteById(deleteIds);
+                metrics.deletesById.inc(deleteIds.size());
 
                 if (log.isDebugEnabled()) {
                     log.debug(String.format("Record %1$s, version %2$s: does not exist, deleted index" +
@@ -201,11 +214,21 @@ public class Indexer {
         // Note that it is important the the indexFields are evaluated in order, since multiple
         // indexFields can have the same name and the order of values for multi-value fields can be important.
         //
-        // The value of the indexFields is re-evaluated for each vtag. It is only the value of
-        // deref-values which can change from vtag to vtag, so we could optimize this by only
-        // evaluating those after the first run, but again because we want to maintain order and
-        // because a deref-field could share the same name with a non-deref field, we simply
-        // re-evaluate all fields for each vtag.
+        // It is only the value of deref-values which can change from vtag to vtag. Therefore, when indexing
+        // for multiple vtags, the output of each top-level index field (or other mapping node) is recorded for
+        // the first vtag, together with whether its evaluation needed the vtag. For the next vtags, the recorded
+        // output of the nodes which did not need the vtag is reused, and only the other nodes are evaluated
+        // again, still in the same order.
+        List<MappingNode> nodes = conf.getIndexFields().getChildren();
+        boolean recordOutput = vtags.size() > 1;
+        List<SolrDocumentBuilder.Recording> vtagIndependentOutput = null;
+        SolrDocumentBuilder.Recording dynamicFieldsOutput = null;
+
+        // The updates for all vtags are sent to Solr together, so that a buffering SolrClient handles them
+        // in one batch, rather than waiting for a batch for each vtag
+        List<SolrInputDocument> solrDocs = new ArrayList<SolrInputDocument>(vtags.size());
+        List<String> deleteIds = new ArrayList<String>();
+
         for (SchemaId vtag : vtags) {
 
             SolrDocumentBuilder solrDocumentBuilder =
@@ -214,34 +237,44 @@ public class Indexer {
 
             // By convention/definition, we first evaluate the static index fields and then the dynamic ones
 
-            //
-            // 1: evaluate the static index fields
-            //
-            conf.getIndexFields().collectIndexUpdate(solrDocumentBuilder);
-
-            //
-            // 2: evaluate dynamic index fields
-            //
-            if (!conf.getDynamicFields().isEmpty()) {
-                for (Map.Entry<SchemaId, Object> field : record.getFieldsById().entrySet()) {
-                    FieldType fieldType = typeManager.getFieldTypeById(field.getKey());
-                    for (DynamicIndexField dynField : conf.getDynamicFields()) {
-                        DynamicIndexFieldMatch match = dynField.matches(fieldType);
-                        if (match.match) {
-                            String fieldName = evalName(dynField, match, fieldType);
-
-                            List<String> values = valueEvaluator.format(record, fieldType, dynField.extractContext(),
-                                    dynField.getFormatter(), repository);
-
-                            solrDocumentBuilder.addField(fieldName, values);
-
-                            if (!dynField.getContinue()) {
-                                // stop on first match, unless continue attribute is true
-                                break;
-                            }
-                        }
+            if (vtagIndependentOutput == null) {
+                //
+                // 1: evaluate the static index fields
+                //
+                if (recordOutput) {
+                    vtagIndependentOutput = new ArrayList<SolrDocumentBuilder.Recording>(nodes.size());
+                    for (MappingNode node : nodes) {
+                        int vtagAccessCount = solrDocumentBuilder.getVTagAccessCount();
+                        solrDocumentBuilder.startRecording();
+                        node.collectIndexUpdate(solrDocumentBuilder);
+                        SolrDocumentBuilder.Recording output = solrDocumentBuilder.stopRecording();
+                        boolean vtagIndependent = solrDocumentBuilder.getVTagAccessCount() == vtagAccessCount;
+                        vtagIndependentOutput.add(vtagIndependent ? output : null);
                     }
+                } else {
+                    conf.getIndexFields().collectIndexUpdate(solrDocumentBuilder);
                 }
+
+                //
+                // 2: evaluate dynamic index fields, these never depend on the vtag
+                //
+                if (recordOutput) {
+                    solrDocumentBuilder.startRecording();
+                }
+                collectDynamicFields(record, solrDocumentBuilder);
+                if (recordOutput) {
+                    dynamicFieldsOutput = solrDocumentBuilder.stopRecording();
+                }
+            } else {
+                for (int i = 0; i < nodes.size(); i++) {
+                    SolrDocumentBuilder.Recording output = vtagIndependentOutput.get(i);
+                    if (output != null) {
+                        solrDocumentBuilder.replay(output);
+                    } else {
+                        nodes.get(i).collectIndexUpdate(solrDocumentBuilder);
+                    }
+                }
+                solrDocumentBuilder.replay(dynamicFieldsOutput);
             }
 
             if (solrDocumentBuilder.isEmptyDocument()) {
@@ -253,8 +286,7 @@ public class Indexer {
                 // because with deref-expressions we are never sure) that we did.
 
                 // There can be a previous entry in the index which we should try to delete
-                solrShardMgr.getSolrClient(record.getId()).deleteById(getIndexId(record.getId(), vtag));
-                metrics.deletesById.inc();
+                deleteIds.add(getIndexId(record.getId(), vtag));
 
                 if (log.isDebugEnabled())
                     log.debug(String.format("Record %1$s, vtag %2$s: no index fields produced output, " +
@@ -266,8 +298,7 @@ public class Indexer {
 
                 processDependencies(record, vtag, solrDocumentBuilder);
 
-                log.debug("index response " + solrShardMgr.getSolrClient(record.getId()).add(solrDoc).toString());
-                metrics.adds.inc();
+                solrDocs.add(solrDoc);
 
                 if (log.isDebugEnabled()) {
                     log.debug(String.format("Record %1$s, vtag %2$s: indexed, doc = %3$s", record.getId(),
@@ -275,6 +306,47 @@ public class Indexer {
                 }
             }
         }
+
+        SolrClient solrClient = solrShardMgr.getSolrClient(record.getId());
+        if (!deleteIds.isEmpty()) {
+            if (deleteIds.size() == 1) {
+                solrClient.deleteById(deleteIds.get(0));
+            } else {
+                solrClient.deleteById(deleteIds);
+            }
+            metrics.deletesById.inc(deleteIds.size());
+        }
+        if (!solrDocs.isEmpty()) {
+            UpdateResponse response = solrDocs.size() == 1 ? solrClient.add(solrDocs.get(0)) :
+                    solrClient.add(solrDocs);
+            log.debug("index response " + response.toString());
+            metrics.adds.inc(solrDocs.size());
+        }
+    }
+
+    private void collectDynamicFields(IdRecord record, SolrDocumentBuilder solrDocumentBuilder)
+            throws RepositoryException, InterruptedException {
+        if (!conf.getDynamicFields().isEmpty()) {
+            for (Map.Entry<SchemaId, Object> field : record.getFieldsById().entrySet()) {
+                FieldType fieldType = typeManager.getFieldTypeById(field.getKey());
+                for (DynamicIndexField dynField : conf.getDynamicFields()) {
+                    DynamicIndexFieldMatch match = dynField.matches(fieldType);
+                    if (match.match) {
+                        String fieldName = evalName(dynField, match, fieldType);
+
+                        List<String> values = valueEvaluator.format(record, fieldType, dynField.extractContext(),
+                                dynField.getFormatter(), solrDocumentBuilder);
+
+                        solrDocumentBuilder.addField(fieldName, values);
+
+                        if (!dynField.getContinue()) {
+                            // stop on first match, unless continue attribute is true
+                            break;
+                        }
+                    }
+                }
+            }
+        }
     }
 
     private void processDependencies(IdRecord record, SchemaId vtag, SolrDocumentBuilder solrDocumentBuilder)
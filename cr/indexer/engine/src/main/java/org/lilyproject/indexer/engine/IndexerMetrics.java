@@ -44,6 +44,12 @@ public class IndexerMetrics implements Updater {
 
     public MetricsTimeVaryingLong deletesByQuery = new MetricsTimeVaryingLong("deletesByQuery", registry);
 
+    /**
+     * Blobs of which the content was left out of the index because the extraction failed or timed out.
+     */
+    public MetricsTimeVaryingLong blobExtractionFailures = new MetricsTimeVaryingLong("blobExtractionFailures",
+            registry);
+
     public IndexerMetrics(String indexName) {
         this.indexName = indexName;
         context = MetricsUtil.getContext("indexer");
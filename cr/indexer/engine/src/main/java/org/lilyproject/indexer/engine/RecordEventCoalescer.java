@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.util.repo.RecordEvent;
+
+import static org.lilyproject.util.repo.RecordEvent.Type.CREATE;
+import static org.lilyproject.util.repo.RecordEvent.Type.DELETE;
+import static org.lilyproject.util.repo.RecordEvent.Type.INDEX;
+import static org.lilyproject.util.repo.RecordEvent.Type.UPDATE;
+
+/**
+ * Reduces a series of consecutive events of the same record to fewer events which, for the purpose of
+ * indexing, have the same effect.
+ *
+ * <p>The rules are:</p>
+ *
+ * <ul>
+ *     <li>A delete event replaces all events before it: it removes the record from the index and triggers
+ *     the update of all denormalized data that depends on the record, which covers everything the earlier
+ *     events would do.</li>
+ *     <li>Consecutive index events are combined into one index event for the union of their vtags.</li>
+ *     <li>An update event following a create or update event is merged into it: the updated fields are
+ *     combined, and the index record filter data describes the state before the first and after the last
+ *     event. This is only done if the events do not concern different versions, since an event can only
+ *     describe one created or updated version.</li>
+ * </ul>
+ *
+ * <p>Events which can't be merged are kept, in their original order.</p>
+ */
+public class RecordEventCoalescer {
+    private RecordEventCoalescer() {
+    }
+
+    /**
+     * @param events the events of one record, in the order they occurred
+     */
+    public static List<RecordEvent> coalesce(List<RecordEvent> events) {
+        List<RecordEvent> result = new ArrayList<RecordEvent>(events.size());
+        for (RecordEvent event : events) {
+            if (event.getType() == DELETE) {
+                result.clear();
+                result.add(event);
+                continue;
+            }
+
+            RecordEvent merged = result.isEmpty() ? null : merge(result.get(result.size() - 1), event);
+            if (merged != null) {
+                result.set(result.size() - 1, merged);
+            } else {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the combination of the two events, or null if they can't be combined.
+     */
+    private static RecordEvent merge(RecordEvent first, RecordEvent second) {
+        if (first.getType() == INDEX && second.getType() == INDEX) {
+            RecordEvent merged = new RecordEvent();
+            merged.setType(INDEX);
+            addVTagsToIndex(merged, first);
+            addVTagsToIndex(merged, second);
+            return merged;
+        }
+
+        if ((first.getType() != CREATE && first.getType() != UPDATE) || second.getType() != UPDATE) {
+            return null;
+        }
+
+        long version = -1;
+        for (long eventVersion : new long[] {first.getVersionCreated(), first.getVersionUpdated(),
+                second.getVersionCreated(), second.getVersionUpdated()}) {
+            if (eventVersion != -1) {
+                if (version != -1 && version != eventVersion) {
+                    return null;
+                }
+                version = eventVersion;
+            }
+        }
+
+        if ((first.getIndexRecordFilterData() == null) != (second.getIndexRecordFilterData() == null)) {
+            return null;
+        }
+
+        RecordEvent merged = new RecordEvent();
+        merged.setType(first.getType());
+        merged.setVersionCreated(first.getVersionCreated() != -1 ? first.getVersionCreated() :
+                second.getVersionCreated());
+        merged.setVersionUpdated(first.getVersionUpdated() != -1 ? first.getVersionUpdated() :
+                second.getVersionUpdated());
+        merged.setRecordTypeChanged(first.getRecordTypeChanged() || second.getRecordTypeChanged());
+
+        for (SchemaId field : first.getUpdatedFields()) {
+            merged.addUpdatedField(field);
+        }
+        for (SchemaId field : second.getUpdatedFields()) {
+            merged.addUpdatedField(field);
+        }
+
+        if (first.hasAttributes() || second.hasAttributes()) {
+            Map<String, String> attributes = new HashMap<String, String>();
+            attributes.putAll(first.getAttributes());
+            attributes.putAll(second.getAttributes());
+            merged.setAttributes(attributes);
+        }
+
+        if (first.getIndexRecordFilterData() != null) {
+            merged.setIndexRecordFilterData(merge(first.getIndexRecordFilterData(),
+                    second.getIndexRecordFilterData()));
+        }
+
+        return merged;
+    }
+
+    private static RecordEvent.IndexRecordFilterData merge(RecordEvent.IndexRecordFilterData first,
+            RecordEvent.IndexRecordFilterData second) {
+        RecordEvent.IndexRecordFilterData merged = new RecordEvent.IndexRecordFilterData();
+        merged.setOldRecordExists(first.getOldRecordExists());
+        merged.setOldRecordType(first.getOldRecordType());
+        merged.setNewRecordExists(second.getNewRecordExists());
+        merged.setNewRecordType(second.getNewRecordType());
+
+        // The old value comes from the first event in which the field occurs, the new value from the last one
+        Map<SchemaId, RecordEvent.FieldChange> changes = new LinkedHashMap<SchemaId, RecordEvent.FieldChange>();
+        if (first.getFieldChanges() != null) {
+            for (RecordEvent.FieldChange change : first.getFieldChanges()) {
+                changes.put(change.getId(), change);
+            }
+        }
+        if (second.getFieldChanges() != null) {
+            for (RecordEvent.FieldChange change : second.getFieldChanges()) {
+                RecordEvent.FieldChange previous = changes.get(change.getId());
+                if (previous == null) {
+                    changes.put(change.getId(), change);
+                } else {
+                    changes.put(change.getId(), new RecordEvent.FieldChange(change.getId(), previous.getOldValue(),
+                            change.getNewValue()));
+                }
+            }
+        }
+        for (RecordEvent.FieldChange change : changes.values()) {
+            merged.addChangedField(change.getId(), change.getOldValue(), change.getNewValue());
+        }
+
+        return merged;
+    }
+
+    private static void addVTagsToIndex(RecordEvent target, RecordEvent source) {
+        if (source.getVtagsToIndex() != null) {
+            for (SchemaId vtag : source.getVtagsToIndex()) {
+                target.addVTagToIndex(vtag);
+            }
+        }
+    }
+}
@@ -18,6 +18,8 @@ package org.lilyproject.indexer.engine;
 public class SolrClientConfig {
     private String requestWriter;
     private String responseParser;
+    private int updateBufferSize = 0;
+    private long updateBufferMaxDelay = 50;
 
     public SolrClientConfig() {
 
@@ -38,4 +40,31 @@ public class SolrClientConfig {
     public void setResponseParser(String responseParser) {
         this.responseParser = responseParser;
     }
+
+    public int getUpdateBufferSize() {
+        return updateBufferSize;
+    }
+
+    /**
+     * The maximum number of adds and deletes that are combined into one request to a Solr shard,
+     * see {@link BufferingSolrClient}. Values smaller than 2 disable buffering.
+     */
+    public void setUpdateBufferSize(int updateBufferSize) {
+        this.updateBufferSize = updateBufferSize;
+    }
+
+    public long getUpdateBufferMaxDelay() {
+        return updateBufferMaxDelay;
+    }
+
+    /**
+     * The maximum time, in milliseconds, that an update is buffered before it is sent to Solr.
+     */
+    public void setUpdateBufferMaxDelay(long updateBufferMaxDelay) {
+        this.updateBufferMaxDelay = updateBufferMaxDelay;
+    }
+
+    public boolean isUpdateBufferEnabled() {
+        return updateBufferSize > 1;
+    }
 }
@@ -15,6 +15,7 @@
  */
 package org.lilyproject.indexer.engine;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -47,6 +48,7 @@ import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.util.Pair;
 import org.lilyproject.util.repo.SystemFields;
 
 import com.google.common.cache.CacheBuilder;
@@ -76,6 +78,9 @@ public class SolrDocumentBuilder implements IndexUpdateBuilder {
     private SchemaId vtag;
     private long version;
 
+    private int vtagAccessCount;
+    private Recording recording;
+
     public SolrDocumentBuilder(Repository repository, IndexRecordFilter indexRecordFilter, SystemFields systemFields,
                                ValueEvaluator valueEvaluator, IdRecord record, String key, SchemaId vtag, long version) {
         this.repository = repository;
@@ -134,6 +139,10 @@ public class SolrDocumentBuilder implements IndexUpdateBuilder {
                 emptyDocument = false;
             }
         }
+
+        if (recording != null) {
+            recording.fields.add(new Pair<String, List<String>>(fieldName, values));
+        }
     }
 
     @Override
@@ -177,7 +186,11 @@ public class SolrDocumentBuilder implements IndexUpdateBuilder {
         RecordContext ctx = contexts.peek();
         try {
             if (!ctx.dep.moreDimensionedVariants.isEmpty() || !ctx.dep.id.equals(recordId)) { // avoid adding unnecesary self-references
-                dependencies.get(DerefMapUtil.newEntry(ctx.dep.id, ctx.dep.moreDimensionedVariants)).add(field);
+                DependencyEntry entry = DerefMapUtil.newEntry(ctx.dep.id, ctx.dep.moreDimensionedVariants);
+                dependencies.get(entry).add(field);
+                if (recording != null) {
+                    recording.dependencies.add(new Pair<DependencyEntry, SchemaId>(entry, field));
+                }
             }
         } catch (ExecutionException ee) {
             throw new RuntimeException("Failed to update dependencies");
@@ -218,9 +231,60 @@ public class SolrDocumentBuilder implements IndexUpdateBuilder {
 
     @Override
     public SchemaId getVTag() {
+        vtagAccessCount++;
         return vtag;
     }
 
+    /**
+     * The number of times the vtag was asked for. If this does not change during the evaluation of an index
+     * field, the evaluation did not depend on the vtag.
+     */
+    public int getVTagAccessCount() {
+        return vtagAccessCount;
+    }
+
+    /**
+     * Starts recording the fields and dependencies which are added, until {@link #stopRecording}.
+     */
+    public void startRecording() {
+        recording = new Recording();
+    }
+
+    public Recording stopRecording() {
+        Recording result = recording;
+        recording = null;
+        return result;
+    }
+
+    /**
+     * Adds the fields and dependencies of a recording, which can come from another SolrDocumentBuilder for
+     * the same record.
+     */
+    public void replay(Recording recording) throws InterruptedException, RepositoryException {
+        for (Pair<String, List<String>> field : recording.fields) {
+            addField(field.getV1(), field.getV2());
+        }
+        try {
+            for (Pair<DependencyEntry, SchemaId> dependency : recording.dependencies) {
+                dependencies.get(dependency.getV1()).add(dependency.getV2());
+                if (this.recording != null) {
+                    this.recording.dependencies.add(dependency);
+                }
+            }
+        } catch (ExecutionException ee) {
+            throw new RuntimeException("Failed to update dependencies");
+        }
+    }
+
+    /**
+     * The fields and dependencies added to a SolrDocumentBuilder, in order.
+     */
+    public static class Recording {
+        private final List<Pair<String, List<String>>> fields = new ArrayList<Pair<String, List<String>>>();
+        private final List<Pair<DependencyEntry, SchemaId>> dependencies =
+                new ArrayList<Pair<DependencyEntry, SchemaId>>();
+    }
+
     @Override
     public String evalIndexFieldName(NameTemplate nameTemplate) {
         if (getRecordContext().record != null) {
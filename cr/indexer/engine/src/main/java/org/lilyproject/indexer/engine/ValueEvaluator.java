@@ -15,7 +15,6 @@
  */
 package org.lilyproject.indexer.engine;
 
-import java.io.InputStream;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -24,14 +23,6 @@ import java.util.List;
 
 import com.google.common.collect.Lists;
 import com.google.common.primitives.Ints;
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-import org.apache.tika.metadata.Metadata;
-import org.apache.tika.parser.AutoDetectParser;
-import org.apache.tika.parser.ParseContext;
-import org.apache.tika.parser.Parser;
-import org.apache.tika.sax.BodyContentHandler;
-import org.apache.tika.sax.WriteOutContentHandler;
 import org.lilyproject.indexer.model.indexerconf.DerefValue;
 import org.lilyproject.indexer.model.indexerconf.FieldValue;
 import org.lilyproject.indexer.model.indexerconf.Follow;
@@ -44,26 +35,33 @@ import org.lilyproject.indexer.model.indexerconf.Value;
 import org.lilyproject.repository.api.Blob;
 import org.lilyproject.repository.api.FieldType;
 import org.lilyproject.repository.api.Record;
-import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RepositoryException;
-import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.repo.SystemFields;
 
 /**
  * Evaluates an index field value (a {@link Value}) to a value.
  */
 public class ValueEvaluator {
-    private Log log = LogFactory.getLog(getClass());
-
     private IndexerConf conf;
 
     private SystemFields systemFields;
 
-    private Parser tikaParser = new AutoDetectParser();
+    private final BlobContentExtractor blobContentExtractor;
+
+    private final IndexerMetrics metrics;
 
     public ValueEvaluator(IndexerConf conf) {
+        this(conf, new BlobContentExtractor(), null);
+    }
+
+    /**
+     * @param metrics can be null
+     */
+    public ValueEvaluator(IndexerConf conf, BlobContentExtractor blobContentExtractor, IndexerMetrics metrics) {
         this.conf = conf;
         this.systemFields = conf.getSystemFields();
+        this.blobContentExtractor = blobContentExtractor;
+        this.metrics = metrics;
     }
 
     /**
@@ -78,14 +76,13 @@ public class ValueEvaluator {
         if (indexValues == null || indexValues.size() == 0)
             return null;
 
-        Repository repository = indexUpdateBuilder.getRepository();
         if (valueDef.extractContent()) {
-            return extractContent(indexValues, repository);
+            return extractContent(indexValues, indexUpdateBuilder);
         }
 
         Formatter formatter = conf.getFormatters().getFormatter(valueDef.getFormatter());
 
-        return formatter.format(indexValues, repository);
+        return formatter.format(indexValues, indexUpdateBuilder.getRepository());
     }
 
     /**
@@ -94,7 +91,7 @@ public class ValueEvaluator {
      * record.
      */
     public List<String> format(Record record, FieldType fieldType, boolean extractContent, String formatterName,
-            Repository repository) throws InterruptedException {
+            IndexUpdateBuilder indexUpdateBuilder) throws InterruptedException, RepositoryException {
         Object value = record.getField(fieldType.getName());
 
         List<IndexValue> indexValues;
@@ -110,20 +107,21 @@ public class ValueEvaluator {
         }
 
         if (fieldType.getValueType().getDeepestValueType().getBaseName().equals("BLOB") && extractContent) {
-            return extractContent(indexValues, repository);
+            return extractContent(indexValues, indexUpdateBuilder);
         }
 
         Formatter formatter = conf.getFormatters().getFormatter(formatterName);
 
-        return formatter.format(indexValues, repository);
+        return formatter.format(indexValues, indexUpdateBuilder.getRepository());
     }
 
-    private List<String> extractContent(List<IndexValue> indexValues, Repository repository) {
+    private List<String> extractContent(List<IndexValue> indexValues, IndexUpdateBuilder indexUpdateBuilder)
+            throws InterruptedException, RepositoryException {
         // At this point we can be sure the value will be a blob, this is
         // validated during
         // the construction of the indexer conf.
 
-        List<String> result = new ArrayList<String>(indexValues.size());
+        List<BlobContentExtractor.BlobValue> blobs = new ArrayList<BlobContentExtractor.BlobValue>(indexValues.size());
 
         Deque<Integer> indexes = new ArrayDeque<Integer>();
 
@@ -133,68 +131,32 @@ public class ValueEvaluator {
             if (indexValue.listIndex != null)
                 indexes.addLast(indexValue.listIndex);
 
-            extractContent(indexValue.value, indexes, indexValue.record, indexValue.fieldType, result, repository);
+            collectBlobs(indexValue.value, indexes, indexValue.record, indexValue.fieldType, blobs);
         }
 
+        BlobContentExtractor.Extraction extraction =
+                blobContentExtractor.extract(blobs, indexUpdateBuilder.getRepository());
+
+        // The document is still indexed without the content of failed blobs, make it visible that it is incomplete
+        blobContentExtractor.reportFailures(extraction, indexUpdateBuilder, metrics);
+
+        List<String> result = extraction.getTexts();
         return result.isEmpty() ? null : result;
     }
 
-    private void extractContent(Object value, Deque<Integer> indexes, Record record, FieldType fieldType,
-            List<String> result, Repository repository) {
+    private void collectBlobs(Object value, Deque<Integer> indexes, Record record, FieldType fieldType,
+            List<BlobContentExtractor.BlobValue> blobs) {
 
         if (value instanceof List) { // this covers both LIST and PATH types
             List values = (List) value;
             for (int i = 0; i < values.size(); i++) {
                 indexes.addLast(i);
-                extractContent(values.get(i), indexes, record, fieldType, result, repository);
+                collectBlobs(values.get(i), indexes, record, fieldType, blobs);
                 indexes.removeLast();
             }
         } else {
-            extractContent(value, record, fieldType, Ints.toArray(indexes), result, repository);
-        }
-    }
-
-    private void extractContent(Object value, Record record, FieldType fieldType, int[] indexes, List<String> result,
-            Repository repository) {
-
-        Blob blob = (Blob) value;
-        InputStream is = null;
-
-        // TODO make write limit configurable
-        WriteOutContentHandler woh = new WriteOutContentHandler(500 * 1000); // 500K limit (Tika default: 100K)
-        BodyContentHandler ch = new BodyContentHandler(woh);
-
-        try {
-            is = repository.getInputStream(record, fieldType.getName(), indexes);
-
-            Metadata metadata = new Metadata();
-            metadata.add(Metadata.CONTENT_TYPE, blob.getMediaType());
-            if (blob.getName() != null)
-                metadata.add(Metadata.RESOURCE_NAME_KEY, blob.getName());
-
-            ParseContext parseContext = new ParseContext();
-
-            tikaParser.parse(is, ch, metadata, parseContext);
-        } catch (Throwable t) {
-            if (woh.isWriteLimitReached(t)) {
-                // ok, we'll just add use the partial result
-                if (log.isInfoEnabled()) {
-                    log.info("Blob extraction: write limit reached. Field '" + fieldType.getName() + "', record '"
-                            + record.getId() + "'.");
-                }
-            } else {
-                log.error(
-                        "Error extracting blob content. Field '" + fieldType.getName() + "', record '" + record.getId()
-                                + "'.", t);
-                return;
-            }
-        } finally {
-            Closer.close(is);
+            blobs.add(new BlobContentExtractor.BlobValue(record, fieldType, Ints.toArray(indexes), (Blob) value));
         }
-
-        String text = ch.toString();
-        if (text.length() > 0)
-            result.add(text);
     }
 
     private List<IndexValue> evalValue(Value value, IndexUpdateBuilder indexUpdateBuilder)
@@ -18,7 +18,6 @@ package org.lilyproject.indexer.integration;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hbase.util.Bytes;
-import org.lilyproject.indexer.model.indexerconf.IndexRecordFilter;
 import org.lilyproject.indexer.model.util.IndexInfo;
 import org.lilyproject.indexer.model.util.IndexRecordFilterUtil;
 import org.lilyproject.indexer.model.util.IndexesInfo;
@@ -36,7 +35,9 @@ import org.lilyproject.util.repo.RowLogContext;
 import javax.annotation.PostConstruct;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class IndexAwareMQFeeder implements RowLogMessageListener {
     private Log log = LogFactory.getLog(getClass());
@@ -138,15 +139,17 @@ public class IndexAwareMQFeeder implements RowLogMessageListener {
             //
             // And now, the actual subscription filtering
             //
+            // If the filter of the indexerconf matches either the old or new record state,
+            // then the index needs to process this event.
+            //
+            // The indexes are compared by name: IndexesInfo might have been refreshed since indexInfos was
+            // retrieved, in which case it returns other IndexInfo instances for the same indexes.
+            Set<String> relevantIndexNames = new HashSet<String>();
+            for (IndexInfo indexInfo : indexesInfo.getIndexInfos(oldRecord, newRecord)) {
+                relevantIndexNames.add(indexInfo.getIndexDefinition().getName());
+            }
             for (IndexInfo indexInfo : indexInfos) {
-                // If the filter of the indexerconf matches either the old or new record state,
-                // then the index needs to process this event
-                boolean relevantIndex = false;
-                IndexRecordFilter filter = indexInfo.getIndexerConf().getRecordFilter();
-                if ((oldRecord != null && filter.getIndexCase(oldRecord) != null)
-                        || (newRecord != null && filter.getIndexCase(newRecord) != null)) {
-                    relevantIndex = true;
-                }
+                boolean relevantIndex = relevantIndexNames.contains(indexInfo.getIndexDefinition().getName());
 
                 if (log.isDebugEnabled()) {
                     log.debug("Record " + recordId + " is found " + (relevantIndex ? "" : "not ")
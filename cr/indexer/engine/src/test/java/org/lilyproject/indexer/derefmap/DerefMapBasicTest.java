@@ -520,6 +520,51 @@ public class DerefMapBasicTest {
         assertEquals(Sets.newHashSet(a), asRecordIds(derefMap.findDependantsOf(b, field, tag2)));
     }
 
+    @Test
+    public void dependantsInMultipleVTags() throws Exception {
+        final SchemaId tag1 = ids.getSchemaId(UUID.randomUUID());
+        final SchemaId tag2 = ids.getSchemaId(UUID.randomUUID());
+        final SchemaId tag3 = ids.getSchemaId(UUID.randomUUID());
+        final SchemaId field = ids.getSchemaId(UUID.randomUUID());
+        final SchemaId otherField = ids.getSchemaId(UUID.randomUUID());
+
+        final RecordId a = ids.newRecordId();
+        final RecordId b = ids.newRecordId();
+        final RecordId dependency = ids.newRecordId();
+
+        derefMap.updateDependencies(a, tag1,
+                Collections.singletonMap(new DependencyEntry(dependency), Sets.newHashSet(field)));
+        derefMap.updateDependencies(a, tag2,
+                Collections.singletonMap(new DependencyEntry(dependency), Sets.newHashSet(field)));
+        derefMap.updateDependencies(b, tag2,
+                Collections.singletonMap(new DependencyEntry(dependency), Sets.newHashSet(otherField)));
+        derefMap.updateDependencies(b, tag3,
+                Collections.singletonMap(new DependencyEntry(dependency), Sets.newHashSet(field)));
+
+        assertEquals(Sets.newHashSet(new Dependant(a, tag1), new Dependant(a, tag2), new Dependant(b, tag3)),
+                asDependants(derefMap.findDependantsInVtags(dependency, Sets.newHashSet(field), null)));
+
+        assertEquals(Sets.newHashSet(new Dependant(a, tag2)),
+                asDependants(derefMap.findDependantsInVtags(dependency, Sets.newHashSet(field),
+                        Sets.newHashSet(tag2))));
+
+        assertEquals(Sets.newHashSet(new Dependant(a, tag2), new Dependant(b, tag2), new Dependant(b, tag3)),
+                asDependants(derefMap.findDependantsInVtags(dependency, null, Sets.newHashSet(tag2, tag3))));
+
+        assertEquals(Sets.newHashSet(),
+                asDependants(derefMap.findDependantsInVtags(dependency, Sets.newHashSet(otherField),
+                        Sets.newHashSet(tag1, tag3))));
+    }
+
+    private Set<Dependant> asDependants(DependantsIterator iter) throws IOException {
+        Set<Dependant> result = Sets.newHashSet();
+        while (iter.hasNext()) {
+            result.add(iter.next());
+        }
+        iter.close();
+        return result;
+    }
+
     private Set<RecordId> asRecordIds(DependantRecordIdsIterator iter) throws IOException {
         Set<RecordId> result = Sets.newHashSet();
         while (iter.hasNext()) {
@@ -536,6 +581,51 @@ public class DerefMapBasicTest {
         return map;
     }
 
+    @Test
+    public void manyDependenciesWithForwardCache() throws Exception {
+        String idPrefix = newIdPrefix();
+
+        final DerefMapHbaseImpl cachingDerefMap =
+                (DerefMapHbaseImpl) DerefMapHbaseImpl.create("test", repoSetup.getHadoopConf(), null, ids, 10);
+
+        final SchemaId dummyVtag = ids.getSchemaId(UUID.randomUUID());
+        final SchemaId dependencyField = ids.getSchemaId(UUID.randomUUID());
+        final RecordId dependant = ids.newRecordId(idPrefix + "dependant");
+        final RecordId[] dependencies = new RecordId[20];
+        for (int i = 0; i < dependencies.length; i++) {
+            dependencies[i] = ids.newRecordId(idPrefix + "dependency" + i);
+        }
+
+        // depend on the first 15 dependencies
+        final Map<DependencyEntry, Set<SchemaId>> first = Maps.newHashMap();
+        for (int i = 0; i < 15; i++) {
+            first.put(new DependencyEntry(dependencies[i]), Sets.newHashSet(dependencyField));
+        }
+        cachingDerefMap.updateDependencies(dependant, dummyVtag, first);
+
+        // then on the last 15: 5 are removed, 5 are added
+        final Map<DependencyEntry, Set<SchemaId>> second = Maps.newHashMap();
+        for (int i = 5; i < 20; i++) {
+            second.put(new DependencyEntry(dependencies[i]), Sets.newHashSet(dependencyField));
+        }
+        cachingDerefMap.updateDependencies(dependant, dummyVtag, second);
+        // an update without changes
+        cachingDerefMap.updateDependencies(dependant, dummyVtag, second);
+
+        assertEquals(second.keySet(), cachingDerefMap.findDependencies(dependant, dummyVtag));
+        for (int i = 0; i < dependencies.length; i++) {
+            final DependantRecordIdsIterator dependants =
+                    cachingDerefMap.findDependantsOf(dependencies[i], dependencyField, dummyVtag);
+            if (i < 5) {
+                assertFalse(dependants.hasNext());
+            } else {
+                assertTrue(dependants.hasNext());
+                assertEquals(dependant, dependants.next());
+                assertFalse(dependants.hasNext());
+            }
+        }
+    }
+
     private String newIdPrefix() {
         return String.format("TEST%3d", nextIdPrefix++);
     }
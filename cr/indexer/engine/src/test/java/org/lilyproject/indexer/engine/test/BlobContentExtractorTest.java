@@ -0,0 +1,370 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Test;
+import org.lilyproject.indexer.engine.BlobContentExtractor;
+import org.lilyproject.indexer.engine.IndexerMetrics;
+import org.lilyproject.indexer.model.indexerconf.IndexUpdateBuilder;
+import org.lilyproject.repository.api.Blob;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.impl.FieldTypeImpl;
+import org.lilyproject.repository.impl.RecordImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link BlobContentExtractor} without repository: the content of a blob is the text of its blob key,
+ * except for the special keys {@link #BLOCK} and {@link #FAIL}.
+ */
+public class BlobContentExtractorTest {
+    /** Blobs with this key block until {@link #release} is counted down, ignoring interrupts. */
+    private static final String BLOCK = "block";
+    /** Blobs with this key fail to be read. */
+    private static final String FAIL = "fail";
+
+    private static final QName FIELD1 = new QName("ns", "field1");
+    private static final QName FIELD2 = new QName("ns", "field2");
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private TestExtractor extractor;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (extractor != null) {
+            extractor.stop();
+        }
+    }
+
+    @Test
+    public void testCacheHit() throws Exception {
+        extractor = new TestExtractor(0, 0, 1000, null);
+
+        BlobContentExtractor.Extraction extraction = extractor.extract(blobs("aaaaaaaaaa"), null);
+        assertEquals("aaaaaaaaaa", extraction.getTexts().get(0).trim());
+        assertEquals(1, extractor.opens("aaaaaaaaaa"));
+
+        extraction = extractor.extract(blobs("aaaaaaaaaa"), null);
+        assertEquals("aaaaaaaaaa", extraction.getTexts().get(0).trim());
+        assertEquals(1, extractor.opens("aaaaaaaaaa"));
+    }
+
+    @Test
+    public void testCacheEviction() throws Exception {
+        // Room for two texts of 10 (or 11, with a line end) characters
+        extractor = new TestExtractor(0, 0, 25, null);
+
+        extractor.extract(blobs("aaaaaaaaaa", "bbbbbbbbbb"), null);
+        // Makes a the most recently used entry
+        extractor.extract(blobs("aaaaaaaaaa"), null);
+        assertEquals(1, extractor.opens("aaaaaaaaaa"));
+
+        // Evicts b, the least recently used entry
+        extractor.extract(blobs("cccccccccc"), null);
+
+        extractor.extract(blobs("aaaaaaaaaa"), null);
+        assertEquals(1, extractor.opens("aaaaaaaaaa"));
+        extractor.extract(blobs("bbbbbbbbbb"), null);
+        assertEquals(2, extractor.opens("bbbbbbbbbb"));
+    }
+
+    @Test
+    public void testTextLargerThanCacheIsNotCached() throws Exception {
+        extractor = new TestExtractor(0, 0, 5, null);
+
+        extractor.extract(blobs("aaaaaaaaaa"), null);
+        extractor.extract(blobs("aaaaaaaaaa"), null);
+        assertEquals(2, extractor.opens("aaaaaaaaaa"));
+    }
+
+    @Test
+    public void testFailedFields() throws Exception {
+        extractor = new TestExtractor(2, 60000, 0, null);
+
+        List<BlobContentExtractor.BlobValue> blobs = new ArrayList<BlobContentExtractor.BlobValue>();
+        blobs.add(blob(FIELD1, "aaaaaaaaaa"));
+        blobs.add(blob(FIELD2, FAIL));
+        blobs.add(blob(FIELD1, "bbbbbbbbbb"));
+
+        BlobContentExtractor.Extraction extraction = extractor.extract(blobs, null);
+        assertEquals(2, extraction.getTexts().size());
+        assertEquals("aaaaaaaaaa", extraction.getTexts().get(0).trim());
+        assertEquals("bbbbbbbbbb", extraction.getTexts().get(1).trim());
+        assertEquals(Collections.singletonList(FIELD2), extraction.getFailedFields());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        extractor = new TestExtractor(2, 200, 0, null);
+
+        List<BlobContentExtractor.BlobValue> blobs = new ArrayList<BlobContentExtractor.BlobValue>();
+        blobs.add(blob(FIELD1, BLOCK));
+        blobs.add(blob(FIELD2, "aaaaaaaaaa"));
+
+        long before = System.currentTimeMillis();
+        BlobContentExtractor.Extraction extraction = extractor.extract(blobs, null);
+        long duration = System.currentTimeMillis() - before;
+
+        assertTrue("duration: " + duration, duration >= 200 && duration < 5000);
+        assertEquals(Collections.singletonList(FIELD1), extraction.getFailedFields());
+        assertEquals(1, extraction.getTexts().size());
+        assertEquals("aaaaaaaaaa", extraction.getTexts().get(0).trim());
+    }
+
+    @Test
+    public void testStuckThreadIsReplaced() throws Exception {
+        extractor = new TestExtractor(1, 200, 0, null);
+
+        // Times out, but keeps its thread busy
+        BlobContentExtractor.Extraction extraction = extractor.extract(blobs(BLOCK), null);
+        assertEquals(Collections.singletonList(FIELD1), extraction.getFailedFields());
+
+        // Only succeeds if another thread took the place of the stuck one
+        extraction = extractor.extract(blobs("aaaaaaaaaa"), null);
+        assertEquals(0, extraction.getFailedFields().size());
+        assertEquals("aaaaaaaaaa", extraction.getTexts().get(0).trim());
+    }
+
+    @Test
+    public void testWaitForThreadIsBounded() throws Exception {
+        extractor = new TestExtractor(1, 200, 0, null);
+
+        // The first stuck thread is replaced, the second one not, since at most 'threads' threads are added
+        extractor.extract(blobs(BLOCK), null);
+        extractor.extract(blobs(BLOCK), null);
+
+        long before = System.currentTimeMillis();
+        BlobContentExtractor.Extraction extraction = extractor.extract(blobs("aaaaaaaaaa"), null);
+        long duration = System.currentTimeMillis() - before;
+
+        assertTrue("duration: " + duration, duration >= 200 && duration < 5000);
+        assertEquals(Collections.singletonList(FIELD1), extraction.getFailedFields());
+        assertEquals(0, extractor.opens("aaaaaaaaaa"));
+
+        // Once the stuck extractions end, the pool works as before
+        release.countDown();
+        extraction = extractor.extract(blobs("aaaaaaaaaa"), null);
+        assertEquals(0, extraction.getFailedFields().size());
+    }
+
+    @Test
+    public void testStopReleasesWaitingCallers() throws Exception {
+        extractor = new TestExtractor(1, 60000, 0, null);
+
+        ExtractThread running = new ExtractThread(blobs(BLOCK));
+        running.start();
+        // Wait till the extraction thread is busy
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (extractor.opens(BLOCK) == 0 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, extractor.opens(BLOCK));
+
+        ExtractThread queued = new ExtractThread(blobs("aaaaaaaaaa"));
+        queued.start();
+        Thread.sleep(100);
+
+        extractor.stop();
+
+        // The queued extraction is cancelled
+        queued.join(5000);
+        assertTrue(queued.exception.get() instanceof InterruptedException);
+
+        // The running extraction does not react to the interrupt, its caller waits for it to end
+        release.countDown();
+        running.join(5000);
+        assertTrue(running.exception.get() instanceof InterruptedException);
+
+        try {
+            extractor.extract(blobs("aaaaaaaaaa"), null);
+            fail("expected InterruptedException");
+        } catch (InterruptedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReportFailures() throws Exception {
+        extractor = new TestExtractor(0, 0, 0, "lily.blobFailures");
+
+        List<BlobContentExtractor.BlobValue> blobs = new ArrayList<BlobContentExtractor.BlobValue>();
+        blobs.add(blob(FIELD1, FAIL));
+        blobs.add(blob(FIELD2, "aaaaaaaaaa"));
+        blobs.add(blob(FIELD2, FAIL));
+        BlobContentExtractor.Extraction extraction = extractor.extract(blobs, null);
+
+        IndexerMetrics metrics = new IndexerMetrics("blobextractortest");
+        try {
+            RecordingIndexUpdateBuilder builder = new RecordingIndexUpdateBuilder();
+            extractor.reportFailures(extraction, builder.proxy(), metrics);
+
+            assertEquals(2, metrics.blobExtractionFailures.getCurrentIntervalValue());
+            List<String> markers = builder.fields.get("lily.blobFailures");
+            assertNotNull(markers);
+            assertEquals(Arrays.asList(FIELD1.toString(), FIELD2.toString()), markers);
+        } finally {
+            metrics.shutdown();
+        }
+    }
+
+    @Test
+    public void testReportFailuresWithoutMarkerField() throws Exception {
+        extractor = new TestExtractor(0, 0, 0, null);
+
+        BlobContentExtractor.Extraction extraction = extractor.extract(blobs(FAIL), null);
+
+        RecordingIndexUpdateBuilder builder = new RecordingIndexUpdateBuilder();
+        extractor.reportFailures(extraction, builder.proxy(), null);
+        assertEquals(0, builder.fields.size());
+    }
+
+    private List<BlobContentExtractor.BlobValue> blobs(String... keys) {
+        List<BlobContentExtractor.BlobValue> blobs = new ArrayList<BlobContentExtractor.BlobValue>();
+        for (String key : keys) {
+            blobs.add(blob(FIELD1, key));
+        }
+        return blobs;
+    }
+
+    private BlobContentExtractor.BlobValue blob(QName field, String key) {
+        Blob blob = new Blob(Bytes.toBytes(key), "text/plain", (long)key.length(), null);
+        return new BlobContentExtractor.BlobValue(new RecordImpl(), new FieldTypeImpl(null, null, field,
+                Scope.NON_VERSIONED), null, blob);
+    }
+
+    private class TestExtractor extends BlobContentExtractor {
+        private final Map<String, AtomicInteger> opens = new ConcurrentHashMap<String, AtomicInteger>();
+
+        TestExtractor(int threads, long timeout, long cacheSize, String failureMarkerField) {
+            super(threads, timeout, DEFAULT_WRITE_LIMIT, cacheSize, failureMarkerField);
+        }
+
+        int opens(String key) {
+            AtomicInteger count = opens.get(key);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        protected InputStream getInputStream(BlobValue blobValue, Repository repository) {
+            String key = Bytes.toString(blobValue.getBlob().getValue());
+            synchronized (opens) {
+                if (!opens.containsKey(key)) {
+                    opens.put(key, new AtomicInteger());
+                }
+            }
+            opens.get(key).incrementAndGet();
+
+            if (key.equals(BLOCK)) {
+                return new BlockingInputStream();
+            } else if (key.equals(FAIL)) {
+                return new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("Test failure");
+                    }
+                };
+            } else {
+                return new ByteArrayInputStream(Bytes.toBytes(key));
+            }
+        }
+    }
+
+    /**
+     * Blocks until the test releases it, like a parser which does not react to interrupts.
+     */
+    private class BlockingInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    release.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return -1;
+        }
+    }
+
+    private class ExtractThread extends Thread {
+        private final List<BlobContentExtractor.BlobValue> blobs;
+        private final AtomicReference<Exception> exception = new AtomicReference<Exception>();
+
+        ExtractThread(List<BlobContentExtractor.BlobValue> blobs) {
+            this.blobs = blobs;
+        }
+
+        @Override
+        public void run() {
+            try {
+                extractor.extract(blobs, null);
+            } catch (Exception e) {
+                exception.set(e);
+            }
+        }
+    }
+
+    /**
+     * Records the fields added through {@link IndexUpdateBuilder#addField}.
+     */
+    private static class RecordingIndexUpdateBuilder implements InvocationHandler {
+        private final Map<String, List<String>> fields = new ConcurrentHashMap<String, List<String>>();
+
+        IndexUpdateBuilder proxy() {
+            return (IndexUpdateBuilder)Proxy.newProxyInstance(IndexUpdateBuilder.class.getClassLoader(),
+                    new Class[] {IndexUpdateBuilder.class}, this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("addField")) {
+                fields.put((String)args[0], (List<String>)args[1]);
+                return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.Test;
+import org.lilyproject.indexer.engine.BufferingSolrClient;
+import org.lilyproject.indexer.engine.SolrClient;
+import org.lilyproject.indexer.engine.SolrClientException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BufferingSolrClientTest {
+
+    @Test
+    public void testConcurrentUpdatesAreBatched() throws Exception {
+        RecordingSolrClient recorder = new RecordingSolrClient();
+        final BufferingSolrClient client = new BufferingSolrClient(recorder, 10, 100, null);
+
+        ExecutorService executor = Executors.newFixedThreadPool(20);
+        List<Future<UpdateResponse>> futures = new ArrayList<Future<UpdateResponse>>();
+        for (int i = 0; i < 100; i++) {
+            final String id = String.valueOf(i);
+            futures.add(executor.submit(new Callable<UpdateResponse>() {
+                @Override
+                public UpdateResponse call() throws Exception {
+                    if (Integer.parseInt(id) % 2 == 0) {
+                        SolrInputDocument doc = new SolrInputDocument();
+                        doc.addField("lily.key", id);
+                        return client.add(doc);
+                    } else {
+                        return client.deleteById(id);
+                    }
+                }
+            }));
+        }
+
+        for (Future<UpdateResponse> future : futures) {
+            assertNotNull(future.get());
+        }
+        executor.shutdown();
+        client.close();
+
+        assertEquals(100, recorder.updates.size());
+        assertTrue("Expected updates to be combined, number of requests: " + recorder.requests,
+                recorder.requests < 100);
+    }
+
+    @Test
+    public void testOrderWithinBatch() throws Exception {
+        RecordingSolrClient recorder = new RecordingSolrClient();
+        BufferingSolrClient client = new BufferingSolrClient(recorder, 100, 10, null);
+
+        // A single thread waits for each update, so this only checks the updates are passed on
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("lily.key", "a");
+        client.add(doc);
+        client.deleteById("a");
+        client.add(doc);
+        client.close();
+
+        assertEquals(Collections.<String>emptyList(), recorder.differences("add:a", "delete:a", "add:a"));
+    }
+
+    @Test
+    public void testCollectionsAreBuffered() throws Exception {
+        RecordingSolrClient recorder = new RecordingSolrClient();
+        final BufferingSolrClient client = new BufferingSolrClient(recorder, 100, 200, null);
+
+        final List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+        for (String key : new String[] {"a", "b", "c"}) {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("lily.key", key);
+            docs.add(doc);
+        }
+
+        // Both calls end up in the same batch, which combines the adds in one request
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<UpdateResponse> adds = executor.submit(new Callable<UpdateResponse>() {
+            @Override
+            public UpdateResponse call() throws Exception {
+                return client.add(docs.subList(0, 2));
+            }
+        });
+        Future<UpdateResponse> add = executor.submit(new Callable<UpdateResponse>() {
+            @Override
+            public UpdateResponse call() throws Exception {
+                return client.add(docs.get(2));
+            }
+        });
+        assertNotNull(adds.get());
+        assertNotNull(add.get());
+
+        assertNotNull(client.deleteById(Arrays.asList("a", "b")));
+        executor.shutdown();
+        client.close();
+
+        assertEquals(5, recorder.updates.size());
+        assertEquals(2, recorder.requests);
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        RecordingSolrClient recorder = new RecordingSolrClient();
+        recorder.fail = true;
+        BufferingSolrClient client = new BufferingSolrClient(recorder, 10, 10, null);
+
+        try {
+            client.deleteById("a");
+            fail("Expected exception");
+        } catch (SolrClientException e) {
+            // expected
+        }
+        client.close();
+    }
+
+    private static class RecordingSolrClient implements SolrClient {
+        private final List<String> updates = Collections.synchronizedList(new ArrayList<String>());
+        private volatile int requests;
+        private volatile boolean fail;
+
+        private synchronized UpdateResponse record(List<String> ops) throws SolrClientException {
+            if (fail) {
+                throw new SolrClientException(getDescription(), new Exception("failure"));
+            }
+            requests++;
+            updates.addAll(ops);
+            return new UpdateResponse();
+        }
+
+        public List<String> differences(String... expected) {
+            List<String> result = new ArrayList<String>();
+            for (int i = 0; i < Math.max(expected.length, updates.size()); i++) {
+                String actual = i < updates.size() ? updates.get(i) : null;
+                String exp = i < expected.length ? expected[i] : null;
+                if (actual == null || !actual.equals(exp)) {
+                    result.add(i + ": expected " + exp + " got " + actual);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public String getDescription() {
+            return "recorder";
+        }
+
+        @Override
+        public UpdateResponse add(SolrInputDocument doc) throws SolrClientException {
+            return record(Collections.singletonList("add:" + doc.getFieldValue("lily.key")));
+        }
+
+        @Override
+        public UpdateResponse add(Collection<SolrInputDocument> docs) throws SolrClientException {
+            List<String> ops = new ArrayList<String>();
+            for (SolrInputDocument doc : docs) {
+                ops.add("add:" + doc.getFieldValue("lily.key"));
+            }
+            return record(ops);
+        }
+
+        @Override
+        public UpdateResponse deleteById(String id) throws SolrClientException {
+            return record(Collections.singletonList("delete:" + id));
+        }
+
+        @Override
+        public UpdateResponse deleteById(List<String> ids) throws SolrClientException {
+            List<String> ops = new ArrayList<String>();
+            for (String id : ids) {
+                ops.add("delete:" + id);
+            }
+            return record(ops);
+        }
+
+        @Override
+        public UpdateResponse deleteByQuery(String query) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public UpdateResponse commit(boolean waitFlush, boolean waitSearcher) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public UpdateResponse commit() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public QueryResponse query(SolrParams params) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
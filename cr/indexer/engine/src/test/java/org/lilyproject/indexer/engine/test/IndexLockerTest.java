@@ -21,6 +21,7 @@ import org.apache.hadoop.hbase.zookeeper.MiniZooKeeperCluster;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.lilyproject.indexer.engine.IndexLockException;
 import org.lilyproject.indexer.engine.IndexLockTimeoutException;
 import org.lilyproject.indexer.engine.IndexLocker;
 import org.lilyproject.repository.api.RecordId;
@@ -34,6 +35,7 @@ import org.lilyproject.util.zookeeper.ZooKeeperItf;
 import java.io.File;
 import java.util.*;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -169,6 +171,69 @@ public class IndexLockerTest {
         }        
     }
 
+    @Test
+    public void testLocalLockConcurrencyOnSameRecord() throws Exception {
+        IndexLocker indexLocker = new IndexLocker(null, IndexLocker.Mode.LOCAL);
+        RecordId recordId = new IdGeneratorImpl().newRecordId();
+
+        List<Info> infos = new ArrayList<Info>();
+
+        for (int i = 0; i < 7; i++) {
+            Info info = new Info();
+            Thread thread = new Thread(new Locker(i + 1, info, indexLocker, recordId));
+            info.thread = thread;
+            infos.add(info);
+        }
+
+        for (Info info : infos) {
+            info.thread.start();
+        }
+
+        for (Info info : infos) {
+            info.thread.join();
+        }
+
+        for (Info info : infos) {
+            assertNull(info.throwable);
+        }
+
+        Collections.sort(infos, new Comparator<Info>() {
+            @Override
+            public int compare(Info o1, Info o2) {
+                return (int)(o1.lockObtainTime - o2.lockObtainTime);
+            }
+        });
+
+        for (int i = 1; i < infos.size(); i++) {
+            assertTrue(infos.get(i).lockObtainTime >= infos.get(i - 1).lockReleaseTime);
+        }
+    }
+
+    @Test
+    public void testLocalLockReentrant() throws Exception {
+        IndexLocker indexLocker = new IndexLocker(null, IndexLocker.Mode.LOCAL);
+        RecordId recordId1 = new IdGeneratorImpl().newRecordId();
+        RecordId recordId2 = new IdGeneratorImpl().newRecordId();
+
+        indexLocker.lock(recordId1);
+        indexLocker.lock(recordId1);
+        indexLocker.lock(recordId2);
+        assertTrue(indexLocker.hasLock(recordId1));
+        assertTrue(indexLocker.hasLock(recordId2));
+
+        indexLocker.unlock(recordId1);
+        assertFalse(indexLocker.hasLock(recordId1));
+        assertTrue(indexLocker.hasLock(recordId2));
+        indexLocker.unlock(recordId2);
+
+        try {
+            indexLocker.unlock(recordId2);
+            fail("expected exception");
+        } catch (IndexLockException e) {
+            // expected
+        }
+    }
+
     private static class Locker implements Runnable {
         private int number;
         private Info info;
@@ -30,6 +30,7 @@ import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -59,8 +60,10 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.lilyproject.hadooptestfw.CleanupUtil;
 import org.lilyproject.hadooptestfw.TestHelper;
+import org.lilyproject.indexer.derefmap.DependantRecordIdsIterator;
 import org.lilyproject.indexer.derefmap.DerefMap;
 import org.lilyproject.indexer.derefmap.DerefMapHbaseImpl;
+import org.lilyproject.indexer.engine.BlobContentExtractor;
 import org.lilyproject.indexer.engine.ClassicSolrShardManager;
 import org.lilyproject.indexer.engine.IndexLocker;
 import org.lilyproject.indexer.engine.IndexUpdater;
@@ -120,6 +123,9 @@ import org.lilyproject.util.repo.VersionTag;
 public class IndexerTest {
     private final static RepositorySetup repoSetup = new RepositorySetup();
     private static IndexerConf INDEXER_CONF;
+    // Extracts in a thread pool and caches, so that the blob tests cover these
+    private static final BlobContentExtractor BLOB_CONTENT_EXTRACTOR =
+            new BlobContentExtractor(2, 60000, BlobContentExtractor.DEFAULT_WRITE_LIMIT, 1000 * 1000);
     private static SolrTestingUtility SOLR_TEST_UTIL;
     private static Repository repository;
     private static TypeManager typeManager;
@@ -226,6 +232,7 @@ public class IndexerTest {
 
     @AfterClass
     public static void tearDownAfterClass() throws Exception {
+        BLOB_CONTENT_EXTRACTOR.stop();
         repoSetup.stop();
 
         if (SOLR_TEST_UTIL != null)
@@ -250,7 +257,7 @@ public class IndexerTest {
         }
         derefMap = DerefMapHbaseImpl.create("test", hbaseConf, null, repository.getIdGenerator());
         Indexer indexer = new Indexer("test", INDEXER_CONF, repository, solrShardManager, indexLocker,
-                new IndexerMetrics("test"), derefMap);
+                new IndexerMetrics("test"), derefMap, BLOB_CONTENT_EXTRACTOR);
 
         RowLogMessageListenerMapping.INSTANCE.put("IndexUpdater", new IndexUpdater(indexer, indexUpdaterRepository,
                 indexLocker, repoSetup.getMq(), new IndexUpdaterMetrics("test"), derefMap, "IndexUpdater"));
@@ -2697,6 +2704,83 @@ public class IndexerTest {
         verifyResultCount("+v_field2:met +lily.vtag:latest", 1);
     }
 
+    /**
+     * When several vtags point to the same version, the index fields which do not depend on the vtag are
+     * evaluated once and their output is reused for the other vtags. This checks that the result is the same
+     * as when evaluating everything for each vtag.
+     */
+    @Test
+    public void testVtagsOnSameVersion() throws Exception {
+        changeIndexUpdater("indexerconf_vtags_same_version.xml");
+        messageVerifier.disable();
+
+        // The linked record has a different version for each vtag
+        Record linked = repository.newRecord();
+        linked.setRecordType(vRecordType1.getName());
+        linked.setField(vfield1.getName(), "linked1");
+        linked.setField(vfield2.getName(), "linked1b");
+        linked = repository.create(linked);
+        linked.setField(vfield1.getName(), "linked2");
+        linked.setField(vfield2.getName(), "linked2b");
+        linked.setField(liveTag.getName(), 1L);
+        linked.setField(previewTag.getName(), 2L);
+        linked = repository.update(linked);
+
+        // The record itself has both vtags on its only version
+        Record record = repository.newRecord();
+        record.setRecordType(vRecordType1.getName());
+        record.setField(vfield1.getName(), "plain1");
+        record.setField(vLinkField1.getName(), new Link(linked.getId()));
+        record.setField(vfield2.getName(), "plain2");
+        record.setField(vStringMvField.getName(), Arrays.asList("c", "a", "b"));
+        record.setField(liveTag.getName(), 1L);
+        record.setField(previewTag.getName(), 1L);
+        record = repository.create(record);
+
+        commitIndex();
+
+        String liveQuery = "+lily.id:" + qesc(record.getId().toString()) + " +lily.vtag:live";
+        String previewQuery = "+lily.id:" + qesc(record.getId().toString()) + " +lily.vtag:preview";
+
+        // The values of the deref field differ per vtag, also when sharing its name with plain fields
+        verifyFieldValues(liveQuery, "vt_mixed_literal_mv", "plain1", "linked1", "plain2");
+        verifyFieldValues(previewQuery, "vt_mixed_literal_mv", "plain1", "linked2", "plain2");
+        verifyFieldValues(liveQuery, "vt_deref_literal", "linked1b");
+        verifyFieldValues(previewQuery, "vt_deref_literal", "linked2b");
+
+        // The order of multi-value field values is kept
+        verifyFieldValues(liveQuery, "vt_mv_literal_mv", "c", "a", "b");
+        verifyFieldValues(previewQuery, "vt_mv_literal_mv", "c", "a", "b");
+
+        // The deref map has the dependency for each vtag
+        assertEquals(Collections.singleton(record.getId()),
+                findDependants(linked.getId(), vfield1.getId(), liveTag.getId()));
+        assertEquals(Collections.singleton(record.getId()),
+                findDependants(linked.getId(), vfield1.getId(), previewTag.getId()));
+
+        // Which is used when the linked record changes for one of the vtags
+        linked.setField(previewTag.getName(), 1L);
+        linked = repository.update(linked);
+        commitIndex();
+
+        verifyFieldValues(liveQuery, "vt_mixed_literal_mv", "plain1", "linked1", "plain2");
+        verifyFieldValues(previewQuery, "vt_mixed_literal_mv", "plain1", "linked1", "plain2");
+        verifyFieldValues(previewQuery, "vt_deref_literal", "linked1b");
+    }
+
+    private Set<RecordId> findDependants(RecordId dependency, SchemaId field, SchemaId vtag) throws IOException {
+        Set<RecordId> result = new HashSet<RecordId>();
+        DependantRecordIdsIterator it = derefMap.findDependantsOf(dependency, field, vtag);
+        try {
+            while (it.hasNext()) {
+                result.add(it.next());
+            }
+        } finally {
+            it.close();
+        }
+        return result;
+    }
+
     /**
      * This test might better fit in the indexer-model package
      */
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine.test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.lilyproject.indexer.engine.RecordEventCoalescer;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.util.repo.RecordEvent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecordEventCoalescerTest {
+    private IdGenerator idGenerator = new IdGeneratorImpl();
+
+    @Test
+    public void testUpdatesAreMerged() {
+        SchemaId field1 = newSchemaId();
+        SchemaId field2 = newSchemaId();
+
+        RecordEvent create = event(RecordEvent.Type.CREATE, field1);
+        create.setVersionCreated(1);
+        RecordEvent update1 = event(RecordEvent.Type.UPDATE, field1);
+        update1.setVersionUpdated(1);
+        RecordEvent update2 = event(RecordEvent.Type.UPDATE, field2);
+
+        List<RecordEvent> result = RecordEventCoalescer.coalesce(Arrays.asList(create, update1, update2));
+
+        assertEquals(1, result.size());
+        RecordEvent merged = result.get(0);
+        assertEquals(RecordEvent.Type.CREATE, merged.getType());
+        assertEquals(1, merged.getVersionCreated());
+        assertEquals(1, merged.getVersionUpdated());
+        assertEquals(2, merged.getUpdatedFields().size());
+        assertTrue(merged.getUpdatedFields().contains(field1));
+        assertTrue(merged.getUpdatedFields().contains(field2));
+    }
+
+    @Test
+    public void testDifferentVersionsAreNotMerged() {
+        RecordEvent update1 = event(RecordEvent.Type.UPDATE, newSchemaId());
+        update1.setVersionCreated(2);
+        RecordEvent update2 = event(RecordEvent.Type.UPDATE, newSchemaId());
+        update2.setVersionCreated(3);
+        RecordEvent update3 = event(RecordEvent.Type.UPDATE, newSchemaId());
+        update3.setRecordTypeChanged(true);
+
+        List<RecordEvent> result = RecordEventCoalescer.coalesce(Arrays.asList(update1, update2, update3));
+
+        assertEquals(2, result.size());
+        assertEquals(2, result.get(0).getVersionCreated());
+        assertFalse(result.get(0).getRecordTypeChanged());
+        assertEquals(3, result.get(1).getVersionCreated());
+        assertTrue(result.get(1).getRecordTypeChanged());
+    }
+
+    @Test
+    public void testDeleteReplacesEarlierEvents() {
+        RecordEvent update = event(RecordEvent.Type.UPDATE, newSchemaId());
+        RecordEvent delete = event(RecordEvent.Type.DELETE);
+        RecordEvent create = event(RecordEvent.Type.CREATE, newSchemaId());
+        RecordEvent index = event(RecordEvent.Type.INDEX);
+        index.addVTagToIndex(newSchemaId());
+
+        List<RecordEvent> result = RecordEventCoalescer.coalesce(Arrays.asList(update, delete, create, index));
+
+        assertEquals(3, result.size());
+        assertEquals(RecordEvent.Type.DELETE, result.get(0).getType());
+        assertEquals(RecordEvent.Type.CREATE, result.get(1).getType());
+        assertEquals(RecordEvent.Type.INDEX, result.get(2).getType());
+    }
+
+    @Test
+    public void testIndexEventsAreMerged() {
+        SchemaId vtag1 = newSchemaId();
+        SchemaId vtag2 = newSchemaId();
+        RecordEvent index1 = event(RecordEvent.Type.INDEX);
+        index1.addVTagToIndex(vtag1);
+        RecordEvent index2 = event(RecordEvent.Type.INDEX);
+        index2.addVTagToIndex(vtag1);
+        index2.addVTagToIndex(vtag2);
+
+        List<RecordEvent> result = RecordEventCoalescer.coalesce(Arrays.asList(index1, index2));
+
+        assertEquals(1, result.size());
+        assertEquals(2, result.get(0).getVtagsToIndex().size());
+    }
+
+    @Test
+    public void testIndexRecordFilterData() {
+        SchemaId field1 = newSchemaId();
+        SchemaId field2 = newSchemaId();
+        SchemaId recordType1 = newSchemaId();
+        SchemaId recordType2 = newSchemaId();
+
+        RecordEvent update1 = event(RecordEvent.Type.UPDATE, field1);
+        RecordEvent.IndexRecordFilterData data1 = new RecordEvent.IndexRecordFilterData();
+        data1.setOldRecordExists(true);
+        data1.setNewRecordExists(true);
+        data1.setOldRecordType(recordType1);
+        data1.setNewRecordType(recordType1);
+        data1.addChangedField(field1, Bytes.toBytes("a"), Bytes.toBytes("b"));
+        update1.setIndexRecordFilterData(data1);
+
+        RecordEvent update2 = event(RecordEvent.Type.UPDATE, field1, field2);
+        RecordEvent.IndexRecordFilterData data2 = new RecordEvent.IndexRecordFilterData();
+        data2.setOldRecordExists(true);
+        data2.setNewRecordExists(true);
+        data2.setOldRecordType(recordType1);
+        data2.setNewRecordType(recordType2);
+        data2.addChangedField(field1, Bytes.toBytes("b"), Bytes.toBytes("c"));
+        data2.addChangedField(field2, null, Bytes.toBytes("x"));
+        update2.setIndexRecordFilterData(data2);
+
+        List<RecordEvent> result = RecordEventCoalescer.coalesce(Arrays.asList(update1, update2));
+
+        assertEquals(1, result.size());
+        RecordEvent.IndexRecordFilterData merged = result.get(0).getIndexRecordFilterData();
+        assertEquals(recordType1, merged.getOldRecordType());
+        assertEquals(recordType2, merged.getNewRecordType());
+        assertEquals(2, merged.getFieldChanges().size());
+        assertEquals(field1, merged.getFieldChanges().get(0).getId());
+        assertArrayEquals(Bytes.toBytes("a"), merged.getFieldChanges().get(0).getOldValue());
+        assertArrayEquals(Bytes.toBytes("c"), merged.getFieldChanges().get(0).getNewValue());
+        assertEquals(field2, merged.getFieldChanges().get(1).getId());
+        assertNull(merged.getFieldChanges().get(1).getOldValue());
+        assertArrayEquals(Bytes.toBytes("x"), merged.getFieldChanges().get(1).getNewValue());
+    }
+
+    private RecordEvent event(RecordEvent.Type type, SchemaId... updatedFields) {
+        RecordEvent event = new RecordEvent();
+        event.setType(type);
+        for (SchemaId field : updatedFields) {
+            event.addUpdatedField(field);
+        }
+        return event;
+    }
+
+    private SchemaId newSchemaId() {
+        return idGenerator.getSchemaId(UUID.randomUUID());
+    }
+}
@@ -394,6 +394,33 @@ public class RecordMatcherTest {
         assertNull(idxConf.getRecordFilter().getIndexCase(recordNs2TypeA));
     }
 
+    @Test
+    public void testIncludeOrderWithMixedPatterns() throws Exception {
+        // The first matching include should win, also when the includes are looked up by record type
+        String conf = makeIndexerConf(
+                "xmlns:ns1='ns1' xmlns:ns2='ns2'",
+                Lists.newArrayList(
+                        "recordType='ns1:typeA' vtags='vtag1'",
+                        "recordType='*:typeB' vtags='vtag2'",
+                        "recordType='ns2:typeB' vtags='vtag1'",
+                        "recordType='ns2:*' vtags='vtag1'",
+                        "vtags='vtag1,vtag2'"),
+                Lists.newArrayList("recordType='ns1:typeC'")
+        );
+
+        IndexerConf idxConf = IndexerConfBuilder.build(new ByteArrayInputStream(conf.getBytes()), repository);
+
+        assertEquals(ImmutableSet.of(vtag1.getId()), idxConf.getRecordFilter()
+                .getIndexCase(newRecordOfType(new QName("ns1", "typeA"))).getVersionTags());
+        assertEquals(ImmutableSet.of(vtag2.getId()), idxConf.getRecordFilter()
+                .getIndexCase(newRecordOfType(new QName("ns2", "typeB"))).getVersionTags());
+        assertEquals(ImmutableSet.of(vtag1.getId()), idxConf.getRecordFilter()
+                .getIndexCase(newRecordOfType(new QName("ns2", "typeA"))).getVersionTags());
+        assertEquals(ImmutableSet.of(vtag1.getId(), vtag2.getId()), idxConf.getRecordFilter()
+                .getIndexCase(newRecordOfType(new QName("ns3", "typeA"))).getVersionTags());
+        assertNull(idxConf.getRecordFilter().getIndexCase(newRecordOfType(new QName("ns1", "typeC"))));
+    }
+
     @Test
     public void testAllCombined() throws Exception {
         String conf = makeIndexerConf(
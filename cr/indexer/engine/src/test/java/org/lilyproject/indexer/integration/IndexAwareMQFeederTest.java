@@ -22,7 +22,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.collect.Lists;
 import org.apache.solr.client.solrj.response.QueryResponse;
@@ -49,6 +52,7 @@ import org.lilyproject.indexer.model.impl.IndexerModelImpl;
 import org.lilyproject.indexer.model.indexerconf.IndexerConf;
 import org.lilyproject.indexer.model.indexerconf.IndexerConfBuilder;
 import org.lilyproject.indexer.model.sharding.ShardSelectorException;
+import org.lilyproject.indexer.model.util.IndexInfo;
 import org.lilyproject.indexer.model.util.IndexesInfo;
 import org.lilyproject.indexer.model.util.IndexesInfoImpl;
 import org.lilyproject.repository.api.FieldType;
@@ -476,6 +480,70 @@ public class IndexAwareMQFeederTest {
         assertEquals(0, solrClientFalse.deletes());
     }
 
+    @Test
+    public void testRoutingDuringIndexesInfoRefresh() throws Exception {
+        setupIndexes(Lists.newArrayList("indexerconf_typeA.xml", "indexerconf_typeB.xml"));
+
+        CountingIndexUpdater indexUpdaterA = indexUpdaters.get(0);
+        CountingIndexUpdater indexUpdaterB = indexUpdaters.get(1);
+
+        // Keep modifying index B, each modification causes IndexesInfo to be refreshed asynchronously
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        Thread modifier = new Thread() {
+            @Override
+            public void run() {
+                int i = 0;
+                while (!stop.get()) {
+                    try {
+                        String lock = indexerModel.lockIndex("index1");
+                        try {
+                            IndexDefinition index = indexerModel.getMutableIndex("index1");
+                            index.setSolrShards(Collections.singletonMap("shard1", "http://somewhere1/" + (i++)));
+                            indexerModel.updateIndex(index, lock);
+                        } finally {
+                            indexerModel.unlockIndex(lock);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        };
+        modifier.start();
+
+        int recordCount = 50;
+        try {
+            Record record = repository.newRecord();
+            record.setRecordType(new QName("mqfeedtest", "typeA"));
+            record.setField(new QName("mqfeedtest", "field1"), "value1");
+
+            for (int i = 0; i < recordCount; i++) {
+                // Whatever refresh happens in between, the lookup should always find index A
+                Set<String> names = new HashSet<String>();
+                for (IndexInfo indexInfo : indexesInfo.getIndexInfos(record, null)) {
+                    names.add(indexInfo.getIndexDefinition().getName());
+                }
+                assertEquals(Collections.singleton("index0"), names);
+
+                repository.recordBuilder()
+                        .defaultNamespace("mqfeedtest")
+                        .recordType("typeA")
+                        .field("field1", "value" + i)
+                        .create();
+            }
+        } finally {
+            stop.set(true);
+            modifier.join();
+        }
+
+        repoSetup.processMQ();
+
+        // None of the events should have been lost because of a refresh of IndexesInfo
+        assertEquals(recordCount, indexUpdaterA.events());
+        assertEquals(recordCount, solrClients.get(0).adds());
+        assertEquals(0, indexUpdaterB.events());
+    }
+
     @Test
     public void testDisableMQFeedingAttribute() throws Exception {
         String NS = "org.lilyproject.indexer.integration.test.attr";
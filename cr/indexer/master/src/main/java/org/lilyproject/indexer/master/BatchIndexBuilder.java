@@ -19,29 +19,51 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 
 import net.iharder.Base64;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
 import org.lilyproject.hbaseindex.IndexNotFoundException;
 import org.lilyproject.indexer.batchbuild.IndexingMapper;
+import org.lilyproject.indexer.batchbuild.OfflineIndexReducer;
+import org.lilyproject.indexer.batchbuild.ShardPartitioner;
+import org.lilyproject.indexer.batchbuild.SolrInputDocumentWritable;
 import org.lilyproject.indexer.derefmap.DerefMapHbaseImpl;
 import org.lilyproject.indexer.engine.SolrClientConfig;
 import org.lilyproject.indexer.model.api.IndexDefinition;
 import org.lilyproject.indexer.model.indexerconf.IndexerConf;
 import org.lilyproject.indexer.model.indexerconf.IndexerConfBuilder;
 import org.lilyproject.mapreduce.LilyMapReduceUtil;
+import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.RecordScan;
 import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.ReturnFields;
+import org.lilyproject.repository.api.filter.FieldExistsFilter;
+import org.lilyproject.repository.api.filter.RecordFilter;
+import org.lilyproject.repository.api.filter.RecordFilterList;
+import org.lilyproject.repository.api.filter.RecordTypeFilter;
+import org.lilyproject.tools.import_.json.Namespaces;
+import org.lilyproject.tools.import_.json.NamespacesConverter;
+import org.lilyproject.tools.import_.json.QNameConverter;
 import org.lilyproject.tools.import_.json.RecordScanReader;
 import org.lilyproject.util.hbase.HBaseTableFactory;
 import org.lilyproject.util.json.JsonFormat;
+import org.lilyproject.util.json.JsonFormatException;
+import org.lilyproject.util.json.JsonUtil;
 
 public class BatchIndexBuilder {
     /**
@@ -94,17 +116,34 @@ public class BatchIndexBuilder {
             job.getConfiguration().set("org.lilyproject.indexer.batchbuild.solr.collection", index.getSolrCollection());
         }
 
-        job.setNumReduceTasks(0);
-        job.setOutputFormatClass(NullOutputFormat.class);
-
-
         JsonNode batchConfigurationNode =
                 JsonFormat.deserializeNonStd(new ByteArrayInputStream(batchIndexConfiguration));
+
+        if (batchConfigurationNode.has("offline")) {
+            configureOfflineBuild(job, index, batchConfigurationNode.get("offline"));
+        } else {
+            job.setNumReduceTasks(0);
+            job.setOutputFormatClass(NullOutputFormat.class);
+        }
+
         RecordScan recordScan = RecordScanReader.INSTANCE.fromJson(batchConfigurationNode.get("scan"), repository);
         recordScan.setReturnFields(ReturnFields.ALL);
         recordScan.setCacheBlocks(false);
         recordScan.setCaching(1024);
 
+        ObjectNode incrementalNode = JsonUtil.getObject(batchConfigurationNode, "incremental", null);
+        if (incrementalNode != null) {
+            RecordFilter incrementalFilter = createIncrementalFilter(incrementalNode);
+            if (recordScan.getRecordFilter() != null) {
+                RecordFilterList filterList = new RecordFilterList(RecordFilterList.Operator.MUST_PASS_ALL);
+                filterList.addFilter(recordScan.getRecordFilter());
+                filterList.addFilter(incrementalFilter);
+                recordScan.setRecordFilter(filterList);
+            } else {
+                recordScan.setRecordFilter(incrementalFilter);
+            }
+        }
+
         if (batchConfigurationNode.has("clearDerefMap") &&
                 batchConfigurationNode.get("clearDerefMap").asBoolean(false)) {
             try {
@@ -159,6 +198,76 @@ public class BatchIndexBuilder {
         return job;
     }
 
+    /**
+     * Configures the job to build the Solr indexes itself, rather than sending the documents to the Solr servers.
+     * There is a reducer per shard, which writes the index of its shard to a subdirectory of the output directory.
+     */
+    private static void configureOfflineBuild(Job job, IndexDefinition index, JsonNode offlineNode)
+            throws JsonFormatException {
+        if (index.getSolrShards() == null || index.getSolrShards().isEmpty()) {
+            throw new RuntimeException("Offline batch index build is only supported for Solr shards, not for " +
+                    "SolrCloud. Index: " + index.getName());
+        }
+
+        String outputDir = JsonUtil.getString(offlineNode, "outputDir");
+        String solrConfDir = JsonUtil.getString(offlineNode, "solrConfDir");
+
+        job.getConfiguration().setBoolean("org.lilyproject.indexer.batchbuild.offline", true);
+        job.getConfiguration().set("org.lilyproject.indexer.batchbuild.offline.solrConfDir", solrConfDir);
+
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(SolrInputDocumentWritable.class);
+        job.setPartitionerClass(ShardPartitioner.class);
+        job.setReducerClass(OfflineIndexReducer.class);
+        job.setNumReduceTasks(index.getSolrShards().size());
+
+        // The reducers write the indexes directly in the output directory, they don't produce records
+        LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+        FileOutputFormat.setOutputPath(job, new Path(outputDir));
+    }
+
+    /**
+     * Creates the filter for an incremental rebuild, after a change to the indexer configuration which only
+     * affects some record types or fields. Only the records of one of the listed record types, or having one
+     * of the listed fields, pass. The filter is evaluated in the region servers, so the other records are not
+     * even read by the mappers.
+     */
+    private static RecordFilter createIncrementalFilter(ObjectNode incrementalNode)
+            throws JsonFormatException, org.lilyproject.tools.import_.json.JsonFormatException {
+        Namespaces namespaces = NamespacesConverter.fromContextJson(incrementalNode);
+        RecordFilterList filter = new RecordFilterList(RecordFilterList.Operator.MUST_PASS_ONE);
+
+        for (QName recordType : readQNames(incrementalNode, "recordTypes", namespaces)) {
+            filter.addFilter(new RecordTypeFilter(recordType));
+        }
+
+        for (QName field : readQNames(incrementalNode, "fields", namespaces)) {
+            filter.addFilter(new FieldExistsFilter(field));
+        }
+
+        if (filter.getFilters().isEmpty()) {
+            throw new JsonFormatException("An incremental batch index build should specify at least one record " +
+                    "type or field.");
+        }
+
+        return filter;
+    }
+
+    private static List<QName> readQNames(ObjectNode node, String prop, Namespaces namespaces)
+            throws JsonFormatException, org.lilyproject.tools.import_.json.JsonFormatException {
+        List<QName> names = new ArrayList<QName>();
+        ArrayNode array = JsonUtil.getArray(node, prop, null);
+        if (array != null) {
+            for (JsonNode nameNode : array) {
+                if (!nameNode.isTextual()) {
+                    throw new JsonFormatException("Expected a string array for " + prop + ", found: " + nameNode);
+                }
+                names.add(QNameConverter.fromJson(nameNode.getTextValue(), namespaces));
+            }
+        }
+        return names;
+    }
+
     /**
      * This method was copied from Hadoop JobConf (Apache License).
      */
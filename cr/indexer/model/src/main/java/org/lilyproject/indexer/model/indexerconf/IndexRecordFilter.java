@@ -27,6 +27,9 @@ import java.util.*;
 public class IndexRecordFilter {
     private List<Pair<RecordMatcher, IndexCase>> includes = new ArrayList<Pair<RecordMatcher, IndexCase>>();
     private List<RecordMatcher> excludes = new ArrayList<RecordMatcher>();
+    private RecordMatcherLookup<Pair<RecordMatcher, IndexCase>> includeLookup =
+            new RecordMatcherLookup<Pair<RecordMatcher, IndexCase>>();
+    private RecordMatcherLookup<RecordMatcher> excludeLookup = new RecordMatcherLookup<RecordMatcher>();
 
     public IndexRecordFilter() {
 
@@ -34,10 +37,13 @@ public class IndexRecordFilter {
 
     public void addExclude(RecordMatcher exclude) {
         excludes.add(exclude);
+        excludeLookup.add(exclude, exclude);
     }
 
     public void addInclude(RecordMatcher include, IndexCase indexCase) {
-        includes.add(new Pair<RecordMatcher, IndexCase>(include, indexCase));
+        Pair<RecordMatcher, IndexCase> pair = new Pair<RecordMatcher, IndexCase>(include, indexCase);
+        includes.add(pair);
+        includeLookup.add(include, pair);
     }
 
     public Set<QName> getFieldDependencies() {
@@ -71,15 +77,18 @@ public class IndexRecordFilter {
     }
 
     public IndexCase getIndexCase(Record record) {
+        // Only the matchers which can match the record type of the record are evaluated
+        QName recordType = record.getRecordTypeName();
+
         // If an exclude matches, the record is not included in this index.
         // Excludes have higher precedence than includes.
-        for (RecordMatcher exclude : excludes) {
+        for (RecordMatcher exclude : excludeLookup.get(recordType)) {
             if (exclude.matches(record)) {
                 return null;
             }
         }
 
-        for (Pair<RecordMatcher, IndexCase> include : includes) {
+        for (Pair<RecordMatcher, IndexCase> include : includeLookup.get(recordType)) {
             if (include.getV1().matches(record)) {
                 return include.getV2();
             }
@@ -88,6 +97,14 @@ public class IndexRecordFilter {
         return null;
     }
 
+    public List<RecordMatcher> getIncludeMatchers() {
+        List<RecordMatcher> matchers = new ArrayList<RecordMatcher>(includes.size());
+        for (Pair<RecordMatcher, IndexCase> include : includes) {
+            matchers.add(include.getV1());
+        }
+        return matchers;
+    }
+
     public List<IndexCase> getAllIndexCases() {
         List<IndexCase> cases = new ArrayList<IndexCase>(includes.size());
         for (Pair<RecordMatcher, IndexCase> include : includes) {
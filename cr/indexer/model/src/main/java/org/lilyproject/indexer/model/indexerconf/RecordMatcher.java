@@ -118,6 +118,22 @@ public class RecordMatcher {
         return fieldType != null ? Collections.singleton(fieldType.getId()) : Collections.<SchemaId>emptySet();
     }
 
+    /**
+     * Returns the record type namespace a record should have to match, or null if this matcher does not
+     * require one specific namespace.
+     */
+    String getExactRecordTypeNamespace() {
+        return recordTypeNamespace != null ? recordTypeNamespace.getExactString() : null;
+    }
+
+    /**
+     * Returns the record type name a record should have to match, or null if this matcher does not
+     * require one specific name.
+     */
+    String getExactRecordTypeName() {
+        return recordTypeName != null ? recordTypeName.getExactString() : null;
+    }
+
     public boolean dependsOnRecordType() {
         return recordTypeName != null || recordTypeNamespace != null;
     }
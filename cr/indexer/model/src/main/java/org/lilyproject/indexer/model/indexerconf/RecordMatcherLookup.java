@@ -0,0 +1,135 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.model.indexerconf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.lilyproject.repository.api.QName;
+
+/**
+ * Looks up the values associated with {@link RecordMatcher}s which might match a record, based on the
+ * record type of the record. This avoids evaluating all matchers for each record.
+ *
+ * <p>Matchers requiring an exact record type namespace and name, or an exact namespace, are looked up by
+ * record type. Matchers with wildcards or without record type condition are candidates for every record.
+ * The returned candidates still need to be evaluated with {@link RecordMatcher#matches}, since the other
+ * conditions (variant properties, field value) are not taken into account.</p>
+ *
+ * <p>The candidates are returned in the order in which they were added, without duplicate values.</p>
+ *
+ * <p>The lookup structure is built on first use after the last {@link #add}. Adding is not thread safe,
+ * and should be done before the lookup is shared.</p>
+ */
+public class RecordMatcherLookup<T> {
+    private final List<Entry<T>> entries = new ArrayList<Entry<T>>();
+    private volatile Compiled<T> compiled;
+
+    public void add(RecordMatcher matcher, T value) {
+        entries.add(new Entry<T>(matcher, value));
+        compiled = null;
+    }
+
+    /**
+     * Returns the values of the matchers which might match a record of the given record type.
+     *
+     * @param recordType can be null, for records without record type
+     */
+    public List<T> get(QName recordType) {
+        Compiled<T> compiled = this.compiled;
+        if (compiled == null) {
+            compiled = compile();
+            this.compiled = compiled;
+        }
+
+        if (recordType != null) {
+            List<T> result = compiled.byRecordType.get(recordType);
+            if (result != null) {
+                return result;
+            }
+            result = compiled.byNamespace.get(recordType.getNamespace());
+            if (result != null) {
+                return result;
+            }
+        }
+        return compiled.generic;
+    }
+
+    private Compiled<T> compile() {
+        Set<QName> recordTypes = new LinkedHashSet<QName>();
+        Set<String> namespaces = new LinkedHashSet<String>();
+        for (Entry<T> entry : entries) {
+            if (entry.namespace != null) {
+                namespaces.add(entry.namespace);
+                if (entry.name != null) {
+                    recordTypes.add(new QName(entry.namespace, entry.name));
+                }
+            }
+        }
+
+        Compiled<T> result = new Compiled<T>();
+        for (QName recordType : recordTypes) {
+            result.byRecordType.put(recordType, collect(recordType.getNamespace(), recordType.getName()));
+        }
+        for (String namespace : namespaces) {
+            result.byNamespace.put(namespace, collect(namespace, null));
+        }
+        result.generic = collect(null, null);
+        return result;
+    }
+
+    /**
+     * Collects the values of the entries which are candidates for the given namespace and name, which
+     * are null when not known.
+     */
+    private List<T> collect(String namespace, String name) {
+        Set<T> values = new LinkedHashSet<T>();
+        for (Entry<T> entry : entries) {
+            if (entry.namespace != null && !entry.namespace.equals(namespace)) {
+                continue;
+            }
+            if (entry.name != null && !entry.name.equals(name)) {
+                continue;
+            }
+            values.add(entry.value);
+        }
+        return Collections.unmodifiableList(new ArrayList<T>(values));
+    }
+
+    private static class Entry<T> {
+        final String namespace;
+        final String name;
+        final T value;
+
+        Entry(RecordMatcher matcher, T value) {
+            this.namespace = matcher.getExactRecordTypeNamespace();
+            // Only looked up by name in combination with the namespace
+            this.name = namespace != null ? matcher.getExactRecordTypeName() : null;
+            this.value = value;
+        }
+    }
+
+    private static class Compiled<T> {
+        final Map<QName, List<T>> byRecordType = new HashMap<QName, List<T>>();
+        final Map<String, List<T>> byNamespace = new HashMap<String, List<T>>();
+        List<T> generic;
+    }
+}
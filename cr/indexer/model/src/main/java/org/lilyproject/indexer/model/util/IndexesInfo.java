@@ -16,6 +16,7 @@
 package org.lilyproject.indexer.model.util;
 
 import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
 
 import java.util.Collection;
 import java.util.Set;
@@ -30,6 +31,14 @@ import java.util.Set;
 public interface IndexesInfo {
     Collection<IndexInfo> getIndexInfos();
 
+    /**
+     * Returns the indexes whose record filter includes at least one of the given records. Only the record
+     * filters of indexes which can include records of the record types of these records are evaluated.
+     *
+     * @param records records to check, null entries are ignored
+     */
+    Set<IndexInfo> getIndexInfos(Record... records);
+
     Set<QName> getRecordFilterFieldDependencies();
 
     boolean getRecordFilterDependsOnRecordType();
@@ -17,6 +17,7 @@ package org.lilyproject.indexer.model.util;
 
 import java.io.ByteArrayInputStream;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -35,9 +36,12 @@ import org.lilyproject.indexer.model.api.IndexerModel;
 import org.lilyproject.indexer.model.api.IndexerModelEvent;
 import org.lilyproject.indexer.model.api.IndexerModelListener;
 import org.lilyproject.indexer.model.indexerconf.IndexRecordFilter;
+import org.lilyproject.indexer.model.indexerconf.RecordMatcher;
+import org.lilyproject.indexer.model.indexerconf.RecordMatcherLookup;
 import org.lilyproject.indexer.model.indexerconf.IndexerConf;
 import org.lilyproject.indexer.model.indexerconf.IndexerConfBuilder;
 import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.Repository;
 
 /**
@@ -47,18 +51,17 @@ public class IndexesInfoImpl implements IndexesInfo {
     private final IndexerModel indexerModel;
     private final Repository repository;
 
-    private Map<String, IndexInfo> indexInfos;
-    private Set<QName> recordFilterFieldDependencies;
-    private boolean recordFilterDependsOnRecordType;
+    /**
+     * The current information about the indexes. A refresh replaces it as a whole, so readers always see
+     * information which belongs together. Null until the initial load of the indexes has been done.
+     */
+    private volatile Snapshot snapshot;
 
     private final Listener listener = new Listener();
     private final Log log = LogFactory.getLog(getClass());
     private final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
             new ArrayBlockingQueue<Runnable>(1), new ThreadPoolExecutor.DiscardPolicy());
 
-    /** Has the initial load of the indexes been done? */
-    private volatile boolean initialized = false;
-
     public IndexesInfoImpl(IndexerModel indexerModel, Repository repository) {
         this.indexerModel = indexerModel;
         this.repository = repository;
@@ -93,50 +96,91 @@ public class IndexesInfoImpl implements IndexesInfo {
         // Pre-calculate some cross-index information
         Set<QName> recordFilterFieldDependencies = new HashSet<QName>();
         boolean recordFilterDependsOnRecordType = false;
+        RecordMatcherLookup<IndexInfo> indexInfosByRecordType = new RecordMatcherLookup<IndexInfo>();
         for (IndexInfo indexInfo : newIndexInfos.values()) {
             IndexRecordFilter recordFilter = indexInfo.getIndexerConf().getRecordFilter();
+            for (RecordMatcher include : recordFilter.getIncludeMatchers()) {
+                indexInfosByRecordType.add(include, indexInfo);
+            }
             recordFilterFieldDependencies.addAll(recordFilter.getFieldDependencies());
             if (!recordFilterDependsOnRecordType) {
                 recordFilterDependsOnRecordType = recordFilter.dependsOnRecordType();
             }
         }
 
-        this.indexInfos = newIndexInfos;
-        this.recordFilterFieldDependencies = recordFilterFieldDependencies;
-        this.recordFilterDependsOnRecordType = recordFilterDependsOnRecordType;
+        // Build the lookup structure before it is shared
+        indexInfosByRecordType.get(null);
+
+        this.snapshot = new Snapshot(Collections.unmodifiableMap(newIndexInfos), indexInfosByRecordType,
+                Collections.unmodifiableSet(recordFilterFieldDependencies), recordFilterDependsOnRecordType);
     }
 
     /**
      * Assures the indexes information is loaded on startup before the first information is consulted
      * from IndexesInfo.
      */
-    private void assureInitialized() {
-        if (!initialized) {
+    private Snapshot assureInitialized() {
+        Snapshot snapshot = this.snapshot;
+        if (snapshot == null) {
             synchronized (this) {
-                if (!initialized) {
+                if (this.snapshot == null) {
                     refresh();
-                    initialized = true;
                 }
+                snapshot = this.snapshot;
             }
         }
+        return snapshot;
     }
 
     @Override
     public Collection<IndexInfo> getIndexInfos() {
-        assureInitialized();
-        return indexInfos.values();
+        return assureInitialized().indexInfos.values();
+    }
+
+    @Override
+    public Set<IndexInfo> getIndexInfos(Record... records) {
+        RecordMatcherLookup<IndexInfo> indexInfosByRecordType = assureInitialized().indexInfosByRecordType;
+        Set<IndexInfo> result = new HashSet<IndexInfo>();
+        for (Record record : records) {
+            if (record == null) {
+                continue;
+            }
+            for (IndexInfo indexInfo : indexInfosByRecordType.get(record.getRecordTypeName())) {
+                if (!result.contains(indexInfo)
+                        && indexInfo.getIndexerConf().getRecordFilter().getIndexCase(record) != null) {
+                    result.add(indexInfo);
+                }
+            }
+        }
+        return result;
     }
 
     @Override
     public Set<QName> getRecordFilterFieldDependencies() {
-        assureInitialized();
-        return recordFilterFieldDependencies;
+        return assureInitialized().recordFilterFieldDependencies;
     }
 
     @Override
     public boolean getRecordFilterDependsOnRecordType() {
-        assureInitialized();
-        return recordFilterDependsOnRecordType;
+        return assureInitialized().recordFilterDependsOnRecordType;
+    }
+
+    /**
+     * The information calculated by one refresh. Instances are never modified.
+     */
+    private static class Snapshot {
+        private final Map<String, IndexInfo> indexInfos;
+        private final RecordMatcherLookup<IndexInfo> indexInfosByRecordType;
+        private final Set<QName> recordFilterFieldDependencies;
+        private final boolean recordFilterDependsOnRecordType;
+
+        Snapshot(Map<String, IndexInfo> indexInfos, RecordMatcherLookup<IndexInfo> indexInfosByRecordType,
+                Set<QName> recordFilterFieldDependencies, boolean recordFilterDependsOnRecordType) {
+            this.indexInfos = indexInfos;
+            this.indexInfosByRecordType = indexInfosByRecordType;
+            this.recordFilterFieldDependencies = recordFilterFieldDependencies;
+            this.recordFilterDependsOnRecordType = recordFilterDependsOnRecordType;
+        }
     }
 
     private class Listener implements IndexerModelListener {
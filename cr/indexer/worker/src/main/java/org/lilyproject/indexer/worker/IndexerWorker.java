@@ -43,6 +43,7 @@ import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.zookeeper.KeeperException;
 import org.lilyproject.indexer.derefmap.DerefMap;
 import org.lilyproject.indexer.derefmap.DerefMapHbaseImpl;
+import org.lilyproject.indexer.engine.BlobContentExtractor;
 import org.lilyproject.indexer.engine.ClassicSolrShardManager;
 import org.lilyproject.indexer.engine.CloudSolrShardManager;
 import org.lilyproject.indexer.engine.IndexLocker;
@@ -125,6 +126,8 @@ public class IndexerWorker {
 
     private HBaseTableFactory tableFactory;
 
+    private BlobContentExtractor blobContentExtractor;
+
     private final Log log = LogFactory.getLog(getClass());
 
     public IndexerWorker(IndexerModel indexerModel, Repository repository, RowLog rowLog, ZooKeeperItf zk,
@@ -153,6 +156,10 @@ public class IndexerWorker {
         connectionManager.setMaxTotal(settings.getSolrMaxTotalConnections());
         httpClient = new DefaultHttpClient(connectionManager);
 
+        blobContentExtractor = new BlobContentExtractor(settings.getBlobExtractionThreads(),
+                settings.getBlobExtractionTimeout(), settings.getBlobExtractionWriteLimit(),
+                settings.getBlobExtractionCacheSize(), settings.getBlobExtractionFailureMarkerField());
+
         eventWorker = new EventWorker();
         eventWorkerThread = new Thread(eventWorker, "IndexerWorkerEventWorker");
         eventWorkerThread.start();
@@ -188,6 +195,7 @@ public class IndexerWorker {
         }
 
         connectionManager.shutdown();
+        blobContentExtractor.stop();
     }
 
     private void addIndexUpdater(IndexDefinition index) {
@@ -198,18 +206,19 @@ public class IndexerWorker {
 
             final SolrShardManager solrShardMgr = getSolrShardManager(index);
 
-            IndexLocker indexLocker = new IndexLocker(zk, settings.getEnableLocking());
+            IndexLocker indexLocker = new IndexLocker(zk,
+                    settings.getEnableLocking() ? settings.getLockMode() : IndexLocker.Mode.DISABLED);
             IndexerMetrics indexerMetrics = new IndexerMetrics(index.getName());
 
             // Create a deref map in case the indexer configuration contains deref fields and the index definition says
             // we should maintain a deref map.
             DerefMap derefMap = index.isEnableDerefMap() && indexerConf.containsDerefExpressions() ?
                     DerefMapHbaseImpl.create(index.getName(), hbaseConf, tableFactory,
-                            repository.getIdGenerator()) : null;
+                            repository.getIdGenerator(), settings.getDerefMapForwardCacheSize()) : null;
 
             // create and register the indexer
             Indexer indexer = new Indexer(index.getName(), indexerConf, repository, solrShardMgr, indexLocker,
-                    indexerMetrics, derefMap);
+                    indexerMetrics, derefMap, blobContentExtractor);
             indexerRegistry.register(indexer);
 
             IndexUpdaterMetrics updaterMetrics = new IndexUpdaterMetrics(index.getName());
@@ -220,7 +229,7 @@ public class IndexerWorker {
 
             for (int i = 0; i < settings.getListenersPerIndex(); i++) {
                 RemoteListenerHandler handler = new RemoteListenerHandler(rowLog, index.getQueueSubscriptionId(),
-                        indexUpdater, rowLogConfMgr, hostName);
+                        indexUpdater, rowLogConfMgr, hostName, settings.getMaxConcurrentMessagesPerListener());
                 listenerHandlers.add(handler);
             }
 
@@ -255,7 +264,7 @@ public class IndexerWorker {
     private SolrShardManager getSolrShardManager(IndexDefinition index) throws Exception {
         if (index.getSolrShards().isEmpty()) {
             return new CloudSolrShardManager(index.getName(), index.getZkConnectionString(), index.getSolrCollection(),
-                    true);
+                    true, solrClientConfig);
         } else {
             ShardSelector shardSelector;
             if (index.getShardingConfiguration() == null) {
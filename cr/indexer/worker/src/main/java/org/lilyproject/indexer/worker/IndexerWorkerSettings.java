@@ -15,11 +15,22 @@
  */
 package org.lilyproject.indexer.worker;
 
+import org.lilyproject.indexer.engine.BlobContentExtractor;
+import org.lilyproject.indexer.engine.IndexLocker;
+
 public class IndexerWorkerSettings {
     private int listenersPerIndex = 10;
+    private int maxConcurrentMessagesPerListener = 1;
     private boolean enableLocking = false;
+    private IndexLocker.Mode lockMode = IndexLocker.Mode.ZOOKEEPER;
     private int solrMaxTotalConnections = 200;
     private int solrMaxConnectionsPerHost = 50;
+    private int derefMapForwardCacheSize = 0;
+    private int blobExtractionThreads = 4;
+    private long blobExtractionTimeout = 60000;
+    private int blobExtractionWriteLimit = BlobContentExtractor.DEFAULT_WRITE_LIMIT;
+    private long blobExtractionCacheSize = 10 * 1000 * 1000;
+    private String blobExtractionFailureMarkerField = null;
 
     public int getListenersPerIndex() {
         return listenersPerIndex;
@@ -29,6 +40,14 @@ public class IndexerWorkerSettings {
         this.listenersPerIndex = listenersPerIndex;
     }
 
+    public int getMaxConcurrentMessagesPerListener() {
+        return maxConcurrentMessagesPerListener;
+    }
+
+    public void setMaxConcurrentMessagesPerListener(int maxConcurrentMessagesPerListener) {
+        this.maxConcurrentMessagesPerListener = maxConcurrentMessagesPerListener;
+    }
+
     public boolean getEnableLocking() {
         return enableLocking;
     }
@@ -37,6 +56,17 @@ public class IndexerWorkerSettings {
         this.enableLocking = enableLocking;
     }
 
+    /**
+     * The kind of lock to use when locking is enabled, see {@link IndexLocker.Mode}.
+     */
+    public IndexLocker.Mode getLockMode() {
+        return lockMode;
+    }
+
+    public void setLockMode(IndexLocker.Mode lockMode) {
+        this.lockMode = lockMode;
+    }
+
     public int getSolrMaxTotalConnections() {
         return solrMaxTotalConnections;
     }
@@ -52,4 +82,74 @@ public class IndexerWorkerSettings {
     public void setSolrMaxConnectionsPerHost(int solrMaxConnectionsPerHost) {
         this.solrMaxConnectionsPerHost = solrMaxConnectionsPerHost;
     }
+
+    /**
+     * The number of forward deref map entries cached per index, 0 disables the cache. See
+     * {@link org.lilyproject.indexer.derefmap.DerefMapHbaseImpl#create(String,
+     * org.apache.hadoop.conf.Configuration, org.lilyproject.util.hbase.HBaseTableFactory,
+     * org.lilyproject.repository.api.IdGenerator, int)}.
+     */
+    public int getDerefMapForwardCacheSize() {
+        return derefMapForwardCacheSize;
+    }
+
+    public void setDerefMapForwardCacheSize(int derefMapForwardCacheSize) {
+        this.derefMapForwardCacheSize = derefMapForwardCacheSize;
+    }
+
+    /**
+     * The number of threads extracting blob content, shared by all indexes. 0 extracts in the indexing threads.
+     */
+    public int getBlobExtractionThreads() {
+        return blobExtractionThreads;
+    }
+
+    public void setBlobExtractionThreads(int blobExtractionThreads) {
+        this.blobExtractionThreads = blobExtractionThreads;
+    }
+
+    /**
+     * The time in ms after which the extraction of blob content is given up on.
+     */
+    public long getBlobExtractionTimeout() {
+        return blobExtractionTimeout;
+    }
+
+    public void setBlobExtractionTimeout(long blobExtractionTimeout) {
+        this.blobExtractionTimeout = blobExtractionTimeout;
+    }
+
+    /**
+     * The maximum number of characters extracted from a blob.
+     */
+    public int getBlobExtractionWriteLimit() {
+        return blobExtractionWriteLimit;
+    }
+
+    public void setBlobExtractionWriteLimit(int blobExtractionWriteLimit) {
+        this.blobExtractionWriteLimit = blobExtractionWriteLimit;
+    }
+
+    /**
+     * The maximum number of characters of extracted blob content kept in memory, 0 disables the cache.
+     */
+    public long getBlobExtractionCacheSize() {
+        return blobExtractionCacheSize;
+    }
+
+    public void setBlobExtractionCacheSize(long blobExtractionCacheSize) {
+        this.blobExtractionCacheSize = blobExtractionCacheSize;
+    }
+
+    /**
+     * The index field in which the record fields are listed of which blob content was left out because the
+     * extraction failed or timed out, null or empty for none.
+     */
+    public String getBlobExtractionFailureMarkerField() {
+        return blobExtractionFailureMarkerField;
+    }
+
+    public void setBlobExtractionFailureMarkerField(String blobExtractionFailureMarkerField) {
+        this.blobExtractionFailureMarkerField = blobExtractionFailureMarkerField;
+    }
 }
@@ -17,9 +17,12 @@ package org.lilyproject.linkindex;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.hadoop.hbase.util.Bytes;
@@ -30,6 +33,7 @@ import org.lilyproject.hbaseindex.IndexManager;
 import org.lilyproject.hbaseindex.IndexNotFoundException;
 import org.lilyproject.hbaseindex.Query;
 import org.lilyproject.hbaseindex.QueryResult;
+import org.lilyproject.linkindex.LinkIndexCache.Direction;
 import org.lilyproject.linkindex.LinkIndexMetrics.Action;
 import org.lilyproject.repository.api.IdGenerator;
 import org.lilyproject.repository.api.RecordId;
@@ -56,13 +60,30 @@ public class LinkIndex {
     private LinkIndexMetrics metrics;
     private Index forwardIndex;
     private Index backwardIndex;
+    /** Cache of getReferrers and getForwardLinks results, null if disabled. */
+    private LinkIndexCache cache;
 
     private static final byte[] SOURCE_FIELD_KEY = Bytes.toBytes("sf");
     private static final byte[] VTAG_KEY = Bytes.toBytes("vt");
 
     public LinkIndex(final IndexManager indexManager, Repository repository) throws IndexNotFoundException, IOException,
             InterruptedException {
+        this(indexManager, repository, 0);
+    }
+
+    /**
+     * @param cacheSize the number of records for which the results of {@link #getReferrers} and
+     *                  {@link #getForwardLinks} are cached, 0 to disable caching. The cache is only
+     *                  invalidated by the changes done through this LinkIndex instance (such as by the
+     *                  {@link LinkIndexUpdater} using it): only enable it if this instance is the only one updating
+     *                  the link index, or if slightly outdated results are acceptable.
+     */
+    public LinkIndex(final IndexManager indexManager, Repository repository, int cacheSize)
+            throws IndexNotFoundException, IOException, InterruptedException {
         metrics = new LinkIndexMetrics("linkIndex");
+        if (cacheSize > 0) {
+            cache = new LinkIndexCache(cacheSize);
+        }
         this.idGenerator = repository.getIdGenerator();
 
         // About the structure of these indexes:
@@ -99,11 +120,16 @@ public class LinkIndex {
      */
     public void deleteLinks(RecordId sourceRecord) throws LinkIndexException {
         long before = System.currentTimeMillis();
+        Set<RecordId> changedTargets = null;
         try {
             byte[] sourceAsBytes = sourceRecord.toBytes();
 
             // Read links from the forwards table
             Set<Pair<FieldedLink, SchemaId>> oldLinks = getAllForwardLinks(sourceRecord);
+            changedTargets = new HashSet<RecordId>();
+            for (Pair<FieldedLink, SchemaId> link : oldLinks) {
+                changedTargets.add(link.getV1().getRecordId());
+            }
 
             // Delete existing entries from the backwards table
             List<IndexEntry> entries = new ArrayList<IndexEntry>(oldLinks.size());
@@ -128,17 +154,19 @@ public class LinkIndex {
         } catch (IOException e) {
             throw new LinkIndexException("Error deleting links for record '" + sourceRecord + "'", e);
         } finally {
+            invalidateCache(sourceRecord, changedTargets);
             metrics.report(Action.DELETE_LINKS, System.currentTimeMillis() - before);
         }
     }
 
     public void deleteLinks(RecordId sourceRecord, SchemaId vtag) throws LinkIndexException {
         long before = System.currentTimeMillis();
+        Set<FieldedLink> oldLinks = null;
         try {
             byte[] sourceAsBytes = sourceRecord.toBytes();
 
             // Read links from the forwards table
-            Set<FieldedLink> oldLinks = getFieldedForwardLinks(sourceRecord, vtag);
+            oldLinks = getFieldedForwardLinks(sourceRecord, vtag);
 
             // Delete existing entries from the backwards table
             List<IndexEntry> entries = new ArrayList<IndexEntry>(oldLinks.size());
@@ -164,6 +192,9 @@ public class LinkIndex {
             throw new LinkIndexException("Error deleting links for record '" + sourceRecord + "', vtag '" + vtag + "'",
                     e);
         } finally {
+            if (cache != null && oldLinks != null) {
+                invalidateCache(sourceRecord, getRecordIds(oldLinks));
+            }
             metrics.report(Action.DELETE_LINKS_VTAG, System.currentTimeMillis() - before);
         }
     }
@@ -180,6 +211,8 @@ public class LinkIndex {
     public void updateLinks(RecordId sourceRecord, SchemaId vtag, Set<FieldedLink> links, boolean isNewRecord)
             throws LinkIndexException {
         long before = System.currentTimeMillis();
+        Set<FieldedLink> removedLinks = null;
+        Set<FieldedLink> addedLinks = null;
         try {
             // We could simply delete all the old entries using deleteLinks() and then add
             // all new entries, but instead we find out what actually needs adding or removing and only
@@ -195,9 +228,9 @@ public class LinkIndex {
             }
 
             // Find out what changed
-            Set<FieldedLink> removedLinks = new HashSet<FieldedLink>(oldLinks);
+            removedLinks = new HashSet<FieldedLink>(oldLinks);
             removedLinks.removeAll(links);
-            Set<FieldedLink> addedLinks = new HashSet<FieldedLink>(links);
+            addedLinks = new HashSet<FieldedLink>(links);
             addedLinks.removeAll(oldLinks);
 
             // Apply added links
@@ -246,10 +279,34 @@ public class LinkIndex {
             throw new LinkIndexException("Error updating links for record '" + sourceRecord + "', vtag '" +
                     vtag + "'", e);
         } finally {
+            if (cache != null && addedLinks != null) {
+                Set<RecordId> changedTargets = getRecordIds(addedLinks);
+                changedTargets.addAll(getRecordIds(removedLinks));
+                invalidateCache(sourceRecord, changedTargets);
+            }
             metrics.report(Action.UPDATE_LINKS, System.currentTimeMillis() - before);
         }
     }
 
+    /**
+     * Removes the cached query results which are affected by changes to the links of the source record.
+     *
+     * @param changedTargets the targets of the links which were (possibly) added or removed, null if none
+     */
+    private void invalidateCache(RecordId sourceRecord, Set<RecordId> changedTargets) {
+        if (cache != null && changedTargets != null && !changedTargets.isEmpty()) {
+            cache.invalidate(sourceRecord, changedTargets);
+        }
+    }
+
+    private static Set<RecordId> getRecordIds(Collection<FieldedLink> links) {
+        Set<RecordId> recordIds = new HashSet<RecordId>();
+        for (FieldedLink link : links) {
+            recordIds.add(link.getRecordId());
+        }
+        return recordIds;
+    }
+
     private IndexEntry createBackwardIndexEntry(SchemaId vtag, RecordId target, SchemaId sourceField) {
         IndexEntry entry = new IndexEntry(backwardIndex.getDefinition());
 
@@ -282,16 +339,15 @@ public class LinkIndex {
     public Set<RecordId> getReferrers(RecordId record, SchemaId vtag, SchemaId sourceField) throws LinkIndexException {
         long before = System.currentTimeMillis();
         try {
-            Query query = new Query();
-            query.addEqualsCondition("target", record.toBytes());
-            if (vtag != null) {
-                query.addEqualsCondition("vtag", vtag.getBytes());
-            }
-            if (sourceField != null) {
-                query.addEqualsCondition("sourcefield", sourceField.getBytes());
+            Set<RecordId> result = getCached(Direction.REFERRERS, record, vtag, sourceField);
+            if (result != null) {
+                return result;
             }
+            long generation = cache != null ? cache.getGeneration() : 0;
 
-            Set<RecordId> result = new HashSet<RecordId>();
+            Query query = createQuery("target", record, vtag, sourceField);
+
+            result = new HashSet<RecordId>();
 
             QueryResult qr = backwardIndex.performQuery(query);
             byte[] id;
@@ -301,6 +357,7 @@ public class LinkIndex {
             Closer.close(
                     qr); // Not closed in finally block: avoid HBase contact when there could be connection problems.
 
+            putCached(Direction.REFERRERS, record, vtag, sourceField, result, generation);
             return result;
         } catch (IOException e) {
             throw new LinkIndexException("Error getting referrers for record '" + record + "', vtag '" + vtag +
@@ -310,6 +367,35 @@ public class LinkIndex {
         }
     }
 
+    /**
+     * Gets the referrers of a number of records at once, using one scan over the link index rather than one
+     * scan per record.
+     *
+     * @return a map containing, for each of the records, the set of records linking to it
+     */
+    public Map<RecordId, Set<RecordId>> getReferrers(Collection<RecordId> records, SchemaId vtag)
+            throws LinkIndexException {
+        return getReferrers(records, vtag, null);
+    }
+
+    /**
+     * Multi-record variant of {@link #getReferrers(RecordId, SchemaId, SchemaId)}.
+     *
+     * @return a map containing, for each of the records, the set of records linking to it
+     */
+    public Map<RecordId, Set<RecordId>> getReferrers(Collection<RecordId> records, SchemaId vtag,
+            SchemaId sourceField) throws LinkIndexException {
+        long before = System.currentTimeMillis();
+        try {
+            return getLinks(Direction.REFERRERS, records, vtag, sourceField);
+        } catch (IOException e) {
+            throw new LinkIndexException("Error getting referrers for " + records.size() + " records, vtag '" + vtag +
+                    "', field '" + sourceField + "'", e);
+        } finally {
+            metrics.report(Action.GET_REFERRERS_MULTI, System.currentTimeMillis() - before);
+        }
+    }
+
     public Set<FieldedLink> getFieldedReferrers(RecordId record, SchemaId vtag) throws LinkIndexException {
         long before = System.currentTimeMillis();
         try {
@@ -374,16 +460,15 @@ public class LinkIndex {
             throws LinkIndexException {
         long before = System.currentTimeMillis();
         try {
-            Query query = new Query();
-            query.addEqualsCondition("source", record.toBytes());
-            if (vtag != null) {
-                query.addEqualsCondition("vtag", vtag.getBytes());
-            }
-            if (sourceField != null) {
-                query.addEqualsCondition("sourcefield", sourceField.getBytes());
+            Set<RecordId> result = getCached(Direction.FORWARD, record, vtag, sourceField);
+            if (result != null) {
+                return result;
             }
+            long generation = cache != null ? cache.getGeneration() : 0;
 
-            Set<RecordId> result = new HashSet<RecordId>();
+            Query query = createQuery("source", record, vtag, sourceField);
+
+            result = new HashSet<RecordId>();
 
             QueryResult qr = forwardIndex.performQuery(query);
             byte[] id;
@@ -393,6 +478,7 @@ public class LinkIndex {
             Closer.close(
                     qr); // Not closed in finally block: avoid HBase contact when there could be connection problems.
 
+            putCached(Direction.FORWARD, record, vtag, sourceField, result, generation);
             return result;
         } catch (IOException e) {
             throw new LinkIndexException("Error getting forward links for record '" + record + "', vtag '" +
@@ -402,6 +488,112 @@ public class LinkIndex {
         }
     }
 
+    /**
+     * Gets the forward links of a number of records at once, using one scan over the link index rather than one
+     * scan per record.
+     *
+     * @return a map containing, for each of the records, the set of records it links to
+     */
+    public Map<RecordId, Set<RecordId>> getForwardLinks(Collection<RecordId> records, SchemaId vtag)
+            throws LinkIndexException {
+        return getForwardLinks(records, vtag, null);
+    }
+
+    /**
+     * Multi-record variant of {@link #getForwardLinks(RecordId, SchemaId, SchemaId)}.
+     *
+     * @return a map containing, for each of the records, the set of records it links to
+     */
+    public Map<RecordId, Set<RecordId>> getForwardLinks(Collection<RecordId> records, SchemaId vtag,
+            SchemaId sourceField) throws LinkIndexException {
+        long before = System.currentTimeMillis();
+        try {
+            return getLinks(Direction.FORWARD, records, vtag, sourceField);
+        } catch (IOException e) {
+            throw new LinkIndexException("Error getting forward links for " + records.size() + " records, vtag '" +
+                    vtag + "', field '" + sourceField + "'", e);
+        } finally {
+            metrics.report(Action.GET_FW_LINKS_MULTI, System.currentTimeMillis() - before);
+        }
+    }
+
+    private Map<RecordId, Set<RecordId>> getLinks(Direction direction, Collection<RecordId> records, SchemaId vtag,
+            SchemaId sourceField) throws IOException {
+        Index index = direction == Direction.REFERRERS ? backwardIndex : forwardIndex;
+        String recordField = direction == Direction.REFERRERS ? "target" : "source";
+
+        Map<RecordId, Set<RecordId>> result = new LinkedHashMap<RecordId, Set<RecordId>>();
+        List<RecordId> queriedRecords = new ArrayList<RecordId>(records.size());
+        List<Query> queries = new ArrayList<Query>(records.size());
+        for (RecordId record : records) {
+            if (result.containsKey(record)) {
+                continue;
+            }
+            Set<RecordId> cached = getCached(direction, record, vtag, sourceField);
+            if (cached != null) {
+                result.put(record, cached);
+            } else {
+                result.put(record, new HashSet<RecordId>());
+                queriedRecords.add(record);
+                queries.add(createQuery(recordField, record, vtag, sourceField));
+            }
+        }
+
+        if (queries.isEmpty()) {
+            return result;
+        }
+
+        long generation = cache != null ? cache.getGeneration() : 0;
+
+        // The results of all queries come in one stream, the record to which an entry belongs is read from its key
+        QueryResult qr = index.performQueries(queries);
+        byte[] id;
+        while ((id = qr.next()) != null) {
+            RecordId record = idGenerator.fromBytes((byte[])qr.getIndexField(recordField));
+            Set<RecordId> links = result.get(record);
+            if (links != null) {
+                links.add(idGenerator.fromBytes(id));
+            }
+        }
+        Closer.close(qr); // Not closed in finally block: avoid HBase contact when there could be connection problems.
+
+        for (RecordId record : queriedRecords) {
+            putCached(direction, record, vtag, sourceField, result.get(record), generation);
+        }
+
+        return result;
+    }
+
+    private Query createQuery(String recordField, RecordId record, SchemaId vtag, SchemaId sourceField) {
+        Query query = new Query();
+        query.addEqualsCondition(recordField, record.toBytes());
+        if (vtag != null) {
+            query.addEqualsCondition("vtag", vtag.getBytes());
+        }
+        if (sourceField != null) {
+            query.addEqualsCondition("sourcefield", sourceField.getBytes());
+        }
+        return query;
+    }
+
+    /**
+     * Returns a modifiable copy of the cached result, or null if not cached.
+     */
+    private Set<RecordId> getCached(Direction direction, RecordId record, SchemaId vtag, SchemaId sourceField) {
+        if (cache == null) {
+            return null;
+        }
+        Set<RecordId> cached = cache.get(direction, record, vtag, sourceField);
+        return cached != null ? new HashSet<RecordId>(cached) : null;
+    }
+
+    private void putCached(Direction direction, RecordId record, SchemaId vtag, SchemaId sourceField,
+            Set<RecordId> result, long generation) {
+        if (cache != null) {
+            cache.put(direction, record, vtag, sourceField, result, generation);
+        }
+    }
+
     public Set<FieldedLink> getFieldedForwardLinks(RecordId record, SchemaId vtag)
             throws LinkIndexException {
         long before = System.currentTimeMillis();
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.linkindex;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.util.Pair;
+
+/**
+ * LRU cache of the results of {@link LinkIndex#getReferrers} and {@link LinkIndex#getForwardLinks}, per record.
+ *
+ * <p>To avoid that a query which ran concurrently with an update puts an outdated result in the cache, results are
+ * only put if no invalidation happened since the query started, see {@link #getGeneration}.</p>
+ */
+class LinkIndexCache {
+    enum Direction {REFERRERS, FORWARD}
+
+    private final Map<RecordId, Map<Pair<SchemaId, SchemaId>, Set<RecordId>>> referrers;
+    private final Map<RecordId, Map<Pair<SchemaId, SchemaId>, Set<RecordId>>> forwardLinks;
+    private long generation;
+
+    public LinkIndexCache(int maxRecords) {
+        referrers = createLruMap(maxRecords);
+        forwardLinks = createLruMap(maxRecords);
+    }
+
+    private static Map<RecordId, Map<Pair<SchemaId, SchemaId>, Set<RecordId>>> createLruMap(final int maxRecords) {
+        return new LinkedHashMap<RecordId, Map<Pair<SchemaId, SchemaId>, Set<RecordId>>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<RecordId, Map<Pair<SchemaId, SchemaId>, Set<RecordId>>> e) {
+                return size() > maxRecords;
+            }
+        };
+    }
+
+    private Map<RecordId, Map<Pair<SchemaId, SchemaId>, Set<RecordId>>> getMap(Direction direction) {
+        return direction == Direction.REFERRERS ? referrers : forwardLinks;
+    }
+
+    /**
+     * Returns the cached result, or null if not cached.
+     */
+    public synchronized Set<RecordId> get(Direction direction, RecordId record, SchemaId vtag, SchemaId sourceField) {
+        Map<Pair<SchemaId, SchemaId>, Set<RecordId>> results = getMap(direction).get(record);
+        return results == null ? null : results.get(new Pair<SchemaId, SchemaId>(vtag, sourceField));
+    }
+
+    /**
+     * @param generation the value of {@link #getGeneration} from before the query was performed
+     */
+    public synchronized void put(Direction direction, RecordId record, SchemaId vtag, SchemaId sourceField,
+            Set<RecordId> result, long generation) {
+        if (generation != this.generation) {
+            // the result might already be outdated
+            return;
+        }
+
+        Map<RecordId, Map<Pair<SchemaId, SchemaId>, Set<RecordId>>> map = getMap(direction);
+        Map<Pair<SchemaId, SchemaId>, Set<RecordId>> results = map.get(record);
+        if (results == null) {
+            results = new HashMap<Pair<SchemaId, SchemaId>, Set<RecordId>>();
+            map.put(record, results);
+        }
+        results.put(new Pair<SchemaId, SchemaId>(vtag, sourceField),
+                Collections.unmodifiableSet(new HashSet<RecordId>(result)));
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Removes the cached results affected by a change to the links of the given source record.
+     *
+     * @param targets the records to which links were added or removed
+     */
+    public synchronized void invalidate(RecordId source, Collection<RecordId> targets) {
+        generation++;
+        forwardLinks.remove(source);
+        for (RecordId target : targets) {
+            referrers.remove(target);
+        }
+    }
+}
@@ -33,6 +33,7 @@ import org.lilyproject.util.repo.VersionTag;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
@@ -123,6 +124,54 @@ public class LinkIndexTest {
         assertEquals(1, referrers.size());
     }
 
+    @Test
+    public void testMultiRecordQueries() throws Exception {
+        // Uses a link index with a cache, to check the cache gets invalidated by updates
+        LinkIndex cachingLinkIndex = new LinkIndex(new IndexManager(repoSetup.getHadoopConf()), repository, 100);
+        SchemaId liveTag = repository.getIdGenerator().getSchemaId(UUID.randomUUID());
+
+        RecordId id1 = ids.newRecordId("multi1");
+        RecordId id2 = ids.newRecordId("multi2");
+        RecordId id3 = ids.newRecordId("multi3");
+        RecordId idA = ids.newRecordId("multiA");
+        RecordId idB = ids.newRecordId("multiB");
+
+        Set<FieldedLink> linksA = new HashSet<FieldedLink>();
+        linksA.add(new FieldedLink(id1, field1));
+        linksA.add(new FieldedLink(id2, field1));
+        cachingLinkIndex.updateLinks(idA, liveTag, linksA);
+
+        Set<FieldedLink> linksB = new HashSet<FieldedLink>();
+        linksB.add(new FieldedLink(id2, field1));
+        cachingLinkIndex.updateLinks(idB, liveTag, linksB);
+
+        Map<RecordId, Set<RecordId>> referrers = cachingLinkIndex.getReferrers(Arrays.asList(id1, id2, id3), liveTag);
+        assertEquals(3, referrers.size());
+        assertEquals(new HashSet<RecordId>(Arrays.asList(idA)), referrers.get(id1));
+        assertEquals(new HashSet<RecordId>(Arrays.asList(idA, idB)), referrers.get(id2));
+        assertTrue(referrers.get(id3).isEmpty());
+
+        Map<RecordId, Set<RecordId>> forwardLinks = cachingLinkIndex.getForwardLinks(Arrays.asList(idA, idB), liveTag);
+        assertEquals(new HashSet<RecordId>(Arrays.asList(id1, id2)), forwardLinks.get(idA));
+        assertEquals(new HashSet<RecordId>(Arrays.asList(id2)), forwardLinks.get(idB));
+
+        // Change the links of idB, the cached results should be invalidated
+        linksB.clear();
+        linksB.add(new FieldedLink(id3, field1));
+        cachingLinkIndex.updateLinks(idB, liveTag, linksB);
+
+        referrers = cachingLinkIndex.getReferrers(Arrays.asList(id1, id2, id3), liveTag);
+        assertEquals(new HashSet<RecordId>(Arrays.asList(idA)), referrers.get(id1));
+        assertEquals(new HashSet<RecordId>(Arrays.asList(idA)), referrers.get(id2));
+        assertEquals(new HashSet<RecordId>(Arrays.asList(idB)), referrers.get(id3));
+        assertEquals(new HashSet<RecordId>(Arrays.asList(id3)), cachingLinkIndex.getForwardLinks(idB, liveTag));
+
+        cachingLinkIndex.deleteLinks(idA);
+        referrers = cachingLinkIndex.getReferrers(Arrays.asList(id1, id2), liveTag);
+        assertTrue(referrers.get(id1).isEmpty());
+        assertTrue(referrers.get(id2).isEmpty());
+    }
+
     @Test
     public void testLinkIndexWithShortRecordIds() throws Exception {
         final RecordId id1 = ids.newRecordId("id1");
@@ -23,6 +23,8 @@ import java.util.List;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.zookeeper.KeeperException;
 import org.kauriproject.conf.Conf;
 import org.lilyproject.repository.api.BlobManager;
@@ -41,6 +43,7 @@ public class BlobIncubatorMonitorSetup {
     private final TypeManager typeManager;
     private final Conf blobManagerConf;
     private final String hostName;
+    private final Log log = LogFactory.getLog(getClass());
 
     public BlobIncubatorMonitorSetup(ZooKeeperItf zookeeper, HBaseTableFactory hbaseTableFactory,
             BlobManager blobManager, TypeManager typeManager, Conf blobManagerConf, String hostName) throws IOException {
@@ -54,10 +57,13 @@ public class BlobIncubatorMonitorSetup {
 
     @PostConstruct
     public void start() throws LeaderElectionSetupException, IOException, InterruptedException, KeeperException {
-        long minimalAge = 1000 * blobManagerConf.getChild("blobIncubatorMonitor").getAttributeAsLong("minimalAge");
-        long monitorDelay = blobManagerConf.getChild("blobIncubatorMonitor").getAttributeAsLong("monitorDelay");
-        long runDelay = 1000 * blobManagerConf.getChild("blobIncubatorMonitor").getAttributeAsLong("runDelay");
-        blobIncubatorMonitor = new BlobIncubatorMonitor(zookeeper, hbaseTableFactory, blobManager, typeManager, minimalAge, monitorDelay, runDelay);
+        Conf monitorConf = blobManagerConf.getChild("blobIncubatorMonitor");
+        long minimalAge = 1000 * monitorConf.getAttributeAsLong("minimalAge");
+        long runDelay = 1000 * monitorConf.getAttributeAsLong("runDelay");
+        int maxChecksPerSecond = getMaxChecksPerSecond(monitorConf);
+        int threads = monitorConf.getAttributeAsInteger("threads", 4);
+        blobIncubatorMonitor = new BlobIncubatorMonitor(zookeeper, hbaseTableFactory, blobManager, typeManager,
+                minimalAge, runDelay, maxChecksPerSecond, threads);
 
         List<String> blobIncubatorNodes = Collections.EMPTY_LIST;
         Conf nodesConf = blobManagerConf.getChild("blobIncubatorMonitor").getChild("nodes");
@@ -72,6 +78,25 @@ public class BlobIncubatorMonitorSetup {
         }
     }
     
+    /**
+     * Reads maxChecksPerSecond. The configuration of older versions has monitorDelay instead, the time to pause
+     * after each checked blob, which is translated to the corresponding number of checks per second. Since the
+     * configuration inherits from the default one, which has maxChecksPerSecond, monitorDelay takes precedence
+     * when both are present.
+     */
+    private int getMaxChecksPerSecond(Conf monitorConf) {
+        if (monitorConf.getAttribute("monitorDelay", null) == null) {
+            return monitorConf.getAttributeAsInteger("maxChecksPerSecond", 500);
+        }
+
+        long delay = monitorConf.getAttributeAsLong("monitorDelay");
+        int maxChecksPerSecond = delay > 0 ? (int)Math.max(1, 1000 / delay) : 0;
+        log.warn("The blobIncubatorMonitor configuration contains the obsolete monitorDelay (" + delay +
+                " ms), it is translated to maxChecksPerSecond=" + maxChecksPerSecond + ". Please replace it with " +
+                "maxChecksPerSecond (default 500) in blobmanager.xml.");
+        return maxChecksPerSecond;
+    }
+
     @PreDestroy
     public void stop() {
         blobIncubatorMonitor.stop();
@@ -56,9 +56,13 @@ public class BlobManagerSetup {
 
         BlobStoreAccess dfsBlobStoreAccess = new DFSBlobStoreAccess(fs, blobRootPath);
         BlobStoreAccess hbaseBlobStoreAccess = new HBaseBlobStoreAccess(tableFactory);
+        int hbaseChunkSize = blobManagerConf.getChild("hbaseChunkSize")
+                .getValueAsInteger(ChunkedHBaseBlobStoreAccess.DEFAULT_CHUNK_SIZE);
+        BlobStoreAccess chunkedHBaseBlobStoreAccess = new ChunkedHBaseBlobStoreAccess(tableFactory, false,
+                hbaseChunkSize);
         BlobStoreAccess inlineBlobStoreAccess = new InlineBlobStoreAccess();
         List<BlobStoreAccess> blobStoreAccesses = Arrays.asList(dfsBlobStoreAccess, hbaseBlobStoreAccess,
-                inlineBlobStoreAccess);
+                chunkedHBaseBlobStoreAccess, inlineBlobStoreAccess);
 
         String defaultStoreName = blobManagerConf.getChild("blobStore").getAttribute("default");
         BlobStoreAccessConfig blobStoreAccessConfig = new BlobStoreAccessConfig(defaultStoreName);
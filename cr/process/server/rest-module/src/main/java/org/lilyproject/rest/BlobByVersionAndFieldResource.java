@@ -25,17 +25,23 @@ import org.lilyproject.repository.api.*;
 
 @Path("record/{id}/version/{version:\\d+}/field/{fieldName}/data")
 public class BlobByVersionAndFieldResource extends RepositoryEnabled {
+    // Not available as Response.Status in JAX-RS 1.x
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
 
     @GET
     @Produces("*/*")
     public Response get(@PathParam("id") String id, @PathParam("version") String version,
-            @PathParam("fieldName") String fieldName, @Context UriInfo uriInfo) {
-        return getBlob(id, version, fieldName, uriInfo, repository);
+            @PathParam("fieldName") String fieldName, @Context UriInfo uriInfo, @Context HttpHeaders headers) {
+        return getBlob(id, version, fieldName, uriInfo, headers, repository);
     }
 
 
+    /**
+     * Returns the blob, or only the requested byte range if the request has a Range header with a single range.
+     */
     protected static Response getBlob(String id, String version, String fieldName, UriInfo uriInfo,
-            final Repository repository) {
+            HttpHeaders headers, final Repository repository) {
         final RecordId recordId = repository.getIdGenerator().fromString(id);
 
         final QName fieldQName = ResourceClassUtil.parseQName(fieldName, uriInfo.getQueryParameters());
@@ -49,7 +55,21 @@ public class BlobByVersionAndFieldResource extends RepositoryEnabled {
 
         try {
             final BlobAccess blobAccess = repository.getBlob(recordId, versionNr, fieldQName, indexes);
-            return Response.ok(blobAccess, MediaType.valueOf(blobAccess.getBlob().getMediaType())).build();
+            MediaType mediaType = MediaType.valueOf(blobAccess.getBlob().getMediaType());
+
+            BlobRange range;
+            try {
+                range = BlobRange.parse(headers.getRequestHeaders().getFirst("Range"), blobAccess);
+            } catch (IllegalArgumentException e) {
+                return Response.status(HTTP_REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header("Content-Range", "bytes */" + blobAccess.getBlob().getSize()).build();
+            }
+
+            if (range != null) {
+                return Response.status(HTTP_PARTIAL_CONTENT).entity(range).type(mediaType)
+                        .header("Accept-Ranges", "bytes").header("Content-Range", range.getContentRange()).build();
+            }
+            return Response.ok(blobAccess, mediaType).header("Accept-Ranges", "bytes").build();
         } catch (RecordNotFoundException e) {
             throw new ResourceException(e, NOT_FOUND.getStatusCode());
         } catch (FieldNotFoundException e) {
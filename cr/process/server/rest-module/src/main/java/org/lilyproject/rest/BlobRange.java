@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rest;
+
+import org.lilyproject.repository.api.BlobAccess;
+
+/**
+ * A byte range of a blob, the entity of a partial (206) response to a request with a Range header.
+ */
+public class BlobRange {
+    private final BlobAccess blobAccess;
+    private final long first;
+    private final long last;
+
+    /**
+     * @param first position of the first byte of the range
+     * @param last position of the last byte of the range (inclusive, as in HTTP byte ranges)
+     */
+    public BlobRange(BlobAccess blobAccess, long first, long last) {
+        this.blobAccess = blobAccess;
+        this.first = first;
+        this.last = last;
+    }
+
+    public BlobAccess getBlobAccess() {
+        return blobAccess;
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    public long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * The value for the Content-Range header.
+     */
+    public String getContentRange() {
+        return "bytes " + first + "-" + last + "/" + blobAccess.getBlob().getSize();
+    }
+
+    /**
+     * Parses the value of a Range header. Only a single byte range is supported: for other (or invalid) values,
+     * null is returned, which means the Range header should be ignored and the complete blob be returned.
+     *
+     * @throws IllegalArgumentException if the range is not satisfiable, i.e. starts beyond the end of the blob
+     */
+    public static BlobRange parse(String rangeHeader, BlobAccess blobAccess) {
+        if (rangeHeader == null) {
+            return null;
+        }
+        String value = rangeHeader.trim();
+        if (!value.startsWith("bytes=") || value.indexOf(',') != -1) {
+            return null;
+        }
+        value = value.substring("bytes=".length()).trim();
+        int dash = value.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+
+        long size = blobAccess.getBlob().getSize();
+        long first;
+        long last;
+        try {
+            String firstValue = value.substring(0, dash).trim();
+            String lastValue = value.substring(dash + 1).trim();
+            if (firstValue.length() == 0) {
+                // suffix range: the last n bytes
+                long suffixLength = Long.parseLong(lastValue);
+                if (suffixLength == 0) {
+                    throw new IllegalArgumentException("Empty suffix range: " + rangeHeader);
+                }
+                first = Math.max(0, size - suffixLength);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(firstValue);
+                if (lastValue.length() == 0) {
+                    last = size - 1;
+                } else {
+                    last = Long.parseLong(lastValue);
+                    if (last < first) {
+                        // syntactically invalid range
+                        return null;
+                    }
+                    last = Math.min(last, size - 1);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (first < 0) {
+            return null;
+        }
+        if (first >= size) {
+            throw new IllegalArgumentException("Range not satisfiable for blob of size " + size + ": " + rangeHeader);
+        }
+
+        return new BlobRange(blobAccess, first, last);
+    }
+}
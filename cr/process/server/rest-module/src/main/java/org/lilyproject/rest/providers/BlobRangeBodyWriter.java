@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rest.providers;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.lilyproject.repository.api.BlobException;
+import org.lilyproject.rest.BlobRange;
+import org.lilyproject.util.io.Closer;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+@Provider
+public class BlobRangeBodyWriter implements MessageBodyWriter<BlobRange> {
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return BlobRange.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(BlobRange blobRange, Class<?> type, Type genericType, Annotation[] annotations,
+            MediaType mediaType) {
+        return blobRange.getLength();
+    }
+
+    @Override
+    public void writeTo(BlobRange blobRange, Class<?> type, Type genericType, Annotation[] annotations,
+            MediaType mediaType, MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+            throws IOException, WebApplicationException {
+        InputStream is = null;
+        try {
+            // The blob store starts reading at the first byte of the range
+            is = blobRange.getBlobAccess().getInputStream(blobRange.getFirst());
+            IOUtils.copyLarge(new BoundedInputStream(is, blobRange.getLength()), entityStream);
+        } catch (BlobException e) {
+            throw new IOException("Error reading blob.", e);
+        } finally {
+            Closer.close(is);
+        }
+    }
+}
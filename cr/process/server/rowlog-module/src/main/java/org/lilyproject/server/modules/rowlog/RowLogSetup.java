@@ -41,6 +41,7 @@ import org.lilyproject.rowlog.impl.RowLogHashShardRouter;
 import org.lilyproject.rowlog.impl.RowLogImpl;
 import org.lilyproject.rowlog.impl.RowLogProcessorElection;
 import org.lilyproject.rowlog.impl.RowLogProcessorImpl;
+import org.lilyproject.rowlog.impl.RowLogProcessorPartitioning;
 import org.lilyproject.rowlog.impl.RowLogProcessorSettings;
 import org.lilyproject.rowlog.impl.RowLogShardSetup;
 import org.lilyproject.rowlog.impl.WalListener;
@@ -62,6 +63,7 @@ public class RowLogSetup {
     private RowLogImpl messageQueue;
     private WalRowLog writeAheadLog;
     private RowLogProcessorElection messageQueueProcessorLeader;
+    private RowLogProcessorPartitioning messageQueueProcessorPartitioning;
     private RowLogProcessorElection writeAheadLogProcessorLeader;
     private Thread walProcessorStartupThread;
     private final HBaseTableFactory hbaseTableFactory;
@@ -92,9 +94,11 @@ public class RowLogSetup {
         long wakeupTimeout = initialConf.getChild("wakeupTimeout").getValueAsLong();
         long orphanedMessageDelay = initialConf.getChild("orphanedMessageDelay").getValueAsLong();
         int deleteBufferSize = initialConf.getChild("deleteBufferSize").getValueAsInteger();
+        int putBatchSize = initialConf.getChild("putBatchSize").getValueAsInteger(100);
+        long putBatchLinger = initialConf.getChild("putBatchLinger").getValueAsLong(0L);
 
         return new RowLogConfig(respectOrder, enableNotify, notifyDelay, minimalProcessDelay, wakeupTimeout,
-                orphanedMessageDelay, deleteBufferSize);
+                orphanedMessageDelay, deleteBufferSize, putBatchSize, putBatchLinger);
     }
 
     @PostConstruct
@@ -171,10 +175,19 @@ public class RowLogSetup {
                 }
             }
             RowLogProcessorSettings settings = createProcessorSettings(mqProcessorConf);
-            RowLogProcessor processor = new RowLogProcessorImpl(messageQueue, confMgr, hbaseConf, settings);
-            messageQueueProcessorLeader = new RowLogProcessorElection(zk, processor, lilyInfo);
+            RowLogProcessorImpl processor = new RowLogProcessorImpl(messageQueue, confMgr, hbaseConf, settings);
+            boolean partitioned = mqProcessorConf.getChild("partitioned").getValueAsBoolean(false);
+            if (partitioned) {
+                messageQueueProcessorPartitioning = new RowLogProcessorPartitioning(zk, processor, lilyInfo);
+            } else {
+                messageQueueProcessorLeader = new RowLogProcessorElection(zk, processor, lilyInfo);
+            }
             if (mqProcessorNodes.isEmpty() || mqProcessorNodes.contains(hostName)) {
-                messageQueueProcessorLeader.start();
+                if (partitioned) {
+                    messageQueueProcessorPartitioning.start();
+                } else {
+                    messageQueueProcessorLeader.start();
+                }
             }
         } else {
             log.info("Not participating in MQ processor election.");
@@ -232,12 +245,21 @@ public class RowLogSetup {
                 conf.getChild("messagesWorkQueueSize")
                         .getValueAsInteger(settings.getMessagesWorkQueueSize()));
 
+        settings.setRemoteListenerWindow(
+                conf.getChild("remoteListenerWindow")
+                        .getValueAsInteger(settings.getRemoteListenerWindow()));
+
+        settings.setMaxMessagesPerRow(
+                conf.getChild("maxMessagesPerRow")
+                        .getValueAsInteger(settings.getMaxMessagesPerRow()));
+
         return settings;
     }
 
     @PreDestroy
     public void stop() throws RowLogException, InterruptedException, KeeperException {
         Closer.close(messageQueueProcessorLeader);
+        Closer.close(messageQueueProcessorPartitioning);
         if (walProcessorStartupThread != null && walProcessorStartupThread.isAlive()) {
             walProcessorStartupThread.interrupt();
             walProcessorStartupThread.join();
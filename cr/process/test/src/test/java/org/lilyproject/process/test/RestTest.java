@@ -725,6 +725,13 @@ public class RestTest {
         response = get(BASE_URI + "/record/USER.blob1/field/b$blob1/data?ns.b=org.lilyproject.resttest");
         assertStatus(Status.SUCCESS_OK, response);
         assertEquals(data, response.getEntityAsText());
+
+        // Read a range of the blob
+        req = new Request(Method.GET, BASE_URI + "/record/USER.blob1/field/b$blob1/data?ns.b=org.lilyproject.resttest");
+        req.getRanges().add(new Range(7, 4));
+        response = CLIENT.handle(req);
+        assertStatus(Status.SUCCESS_PARTIAL_CONTENT, response);
+        assertEquals("blob", response.getEntityAsText());
     }
 
     @Test
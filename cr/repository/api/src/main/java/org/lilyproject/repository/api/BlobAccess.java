@@ -27,4 +27,11 @@ public interface BlobAccess {
      * The InputStream is only opened when this method is called.
      */
     InputStream getInputStream() throws BlobException;
+
+    /**
+     * Opens an InputStream which starts at the given position in the blob. This is more efficient than skipping
+     * on the stream returned by {@link #getInputStream()}, since the blob store does not need to read the
+     * skipped bytes.
+     */
+    InputStream getInputStream(long offset) throws BlobException;
 }
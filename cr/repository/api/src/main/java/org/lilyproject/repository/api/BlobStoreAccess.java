@@ -58,6 +58,19 @@ public interface BlobStoreAccess {
      */
     InputStream getInputStream(byte[] key) throws BlobException;
 
+    /**
+     * Get an {@link InputStream} which starts reading at the given position in the blob, without reading the
+     * bytes before it from the blobstore (as far as the blobstore allows).
+     *
+     * @param key a unique key identifying the written bytes on the blobstore, see {@link #getOutputStream(Blob)}
+     * @param offset the position of the first byte to read. If it is beyond the end of the blob, the InputStream
+     *               is at its end immediately.
+     *
+     * @return an InputStream from which a stream of bytes can be read
+     * @throws BlobException when an unexpected exception occurred (e.g. an IOException of the underlying blobstore)
+     */
+    InputStream getInputStream(byte[] key, long offset) throws BlobException;
+
     /**
      * Delete the bytes identified by the key from the blobstore
      *
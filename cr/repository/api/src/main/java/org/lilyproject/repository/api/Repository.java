@@ -202,6 +202,45 @@ public interface Repository extends Closeable {
      */
     Record createOrUpdate(Record record, boolean useLatestRecordType) throws RepositoryException, InterruptedException;
 
+    /**
+     * Creates a list of records in one call.
+     *
+     * <p>This has the same effect as calling {@link #create(Record)} for each of the records, but the
+     * storage operations are grouped over the records where possible, which gives a much better throughput
+     * when creating many records.
+     *
+     * <p>The outcome of each record is reported through the responseStatus of the corresponding entry in
+     * the returned list: {@link ResponseStatus#CREATED} if it was created, or {@link ResponseStatus#CONFLICT}
+     * if it could not be created because it already existed or was locked by a concurrent operation. Records
+     * with a conflict status are returned as supplied (with their record id filled in).
+     *
+     * <p>The batch is not atomic: in case an exception is thrown, some of the records might have been created.
+     *
+     * @return the created records, in the same order as the supplied records
+     * @throws InvalidRecordException if one of the records is not valid for creation, in which case nothing
+     *                                is created
+     */
+    List<Record> createAll(List<Record> records) throws RepositoryException, InterruptedException;
+
+    /**
+     * Updates a list of records in one call.
+     *
+     * <p>This has the same effect as calling {@link #update(Record)} for each of the records, but the
+     * storage operations are grouped over the records where possible, which gives a much better throughput
+     * when updating many records.
+     *
+     * <p>The outcome of each record is reported through the responseStatus of the corresponding entry in
+     * the returned list: {@link ResponseStatus#UPDATED}, {@link ResponseStatus#UP_TO_DATE}, or
+     * {@link ResponseStatus#CONFLICT} if it could not be updated because it does not exist or was locked
+     * by a concurrent operation. Records with a conflict status are returned as supplied.
+     *
+     * <p>The batch is not atomic: in case an exception is thrown, some of the records might have been updated.
+     *
+     * @return the updated records, in the same order as the supplied records
+     * @throws InvalidRecordException if one of the records has no id, in which case nothing is updated
+     */
+    List<Record> updateAll(List<Record> records) throws RepositoryException, InterruptedException;
+
     /**
      * @param recordId   the id of the record to read, null is not allowed
      * @param fieldNames list of names of the fields to read or null to read all fields
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.api.filter;
+
+import org.lilyproject.repository.api.QName;
+
+/**
+ * Filters on the presence of a record field: only records which have a value for the field pass.
+ *
+ * <p>For versioned fields, the filtering happens based on the last version of the record.</p>
+ */
+public class FieldExistsFilter implements RecordFilter {
+    private QName field;
+
+    public FieldExistsFilter() {
+    }
+
+    public FieldExistsFilter(QName field) {
+        this.field = field;
+    }
+
+    public QName getField() {
+        return field;
+    }
+
+    public void setField(QName field) {
+        this.field = field;
+    }
+}
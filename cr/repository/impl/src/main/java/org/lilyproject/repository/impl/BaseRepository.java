@@ -431,6 +431,10 @@ public abstract class BaseRepository implements Repository {
     }
 
     // Retrieves the row from the table and check if it exists and has not been flagged as deleted
+    //
+    // The time range and max versions already make the region server return only the cells of the requested
+    // version: no extra server-side filter is used for that. Cells of deleted fields are still returned, as a
+    // delete marker of one byte, and are skipped by the RecordDecoder.
     protected Result getRow(RecordId recordId, Long version, int numberOfVersions, List<FieldType> fields)
             throws RecordException {
         Result result;
@@ -35,8 +35,19 @@ public class BlobIncubatorMetrics implements Updater {
 
     public MetricsTimeVaryingRate checkDuration = new MetricsTimeVaryingRate("check_duration", registry);
 
+    /**
+     * Time spent waiting to stay below the maximum number of checks per second.
+     */
+    public MetricsTimeVaryingRate throttleDuration = new MetricsTimeVaryingRate("throttle_duration", registry);
+
+    public MetricsTimeVaryingInt checkCount = new MetricsTimeVaryingInt("check_cnt", registry);
     public MetricsTimeVaryingInt blobDeleteCount = new MetricsTimeVaryingInt("blob_delete_cnt", registry);
     public MetricsTimeVaryingInt refDeleteCount = new MetricsTimeVaryingInt("ref_delete_cnt", registry);
+
+    /**
+     * Number of incubator entries checked so far by the current (or last) run of the monitor.
+     */
+    public MetricsLongValue runCheckedCount = new MetricsLongValue("run_checked_cnt", registry);
     
     public BlobIncubatorMetrics() {
         context = MetricsUtil.getContext("blobIncubator");
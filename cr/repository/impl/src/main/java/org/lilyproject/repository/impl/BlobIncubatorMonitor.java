@@ -16,11 +16,19 @@
 package org.lilyproject.repository.impl;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTableInterface;
@@ -45,6 +53,7 @@ import org.lilyproject.repository.api.TypeManager;
 import org.lilyproject.repository.api.ValueType;
 import org.lilyproject.repository.impl.id.SchemaIdImpl;
 import org.lilyproject.util.Logs;
+import org.lilyproject.util.concurrent.CustomThreadFactory;
 import org.lilyproject.util.hbase.HBaseTableFactory;
 import org.lilyproject.util.hbase.LilyHBaseSchema;
 import org.lilyproject.util.hbase.LilyHBaseSchema.BlobIncubatorCf;
@@ -62,7 +71,8 @@ public class BlobIncubatorMonitor {
     private final ZooKeeperItf zk;
     private LeaderElection leaderElection;
     private final long minimalAge;
-    private final long monitorDelay;
+    private final int maxChecksPerSecond;
+    private final int threads;
     private final BlobManager blobManager;
     private final TypeManager typeManager;
     private MonitorThread monitorThread;
@@ -70,14 +80,34 @@ public class BlobIncubatorMonitor {
     private HTableInterface blobIncubatorTable;
     private final long runDelay;
 
+    /**
+     * Number of incubator entries which are read and checked together.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * @param monitorDelay the time to wait per checked blob, converted to a maximum number of checks per second
+     */
     public BlobIncubatorMonitor(ZooKeeperItf zk, HBaseTableFactory tableFactory, BlobManager blobManager,
             TypeManager typeManager, long minimalAge, long monitorDelay, long runDelay) throws IOException, InterruptedException {
+        this(zk, tableFactory, blobManager, typeManager, minimalAge, runDelay,
+                monitorDelay > 0 ? (int)Math.max(1, 1000 / monitorDelay) : 0, 1);
+    }
+
+    /**
+     * @param maxChecksPerSecond maximum number of incubator entries checked per second, 0 for no limit
+     * @param threads number of threads deleting unused blobs in parallel
+     */
+    public BlobIncubatorMonitor(ZooKeeperItf zk, HBaseTableFactory tableFactory, BlobManager blobManager,
+            TypeManager typeManager, long minimalAge, long runDelay, int maxChecksPerSecond, int threads)
+            throws IOException, InterruptedException {
         this.zk = zk;
         this.blobManager = blobManager;
         this.typeManager = typeManager;
         this.minimalAge = minimalAge;
-        this.monitorDelay = monitorDelay;
         this.runDelay = runDelay;
+        this.maxChecksPerSecond = maxChecksPerSecond;
+        this.threads = Math.max(1, threads);
 
         this.blobIncubatorTable = LilyHBaseSchema.getBlobIncubatorTable(tableFactory, false);
         this.recordTable = LilyHBaseSchema.getRecordTable(tableFactory);
@@ -182,60 +212,132 @@ public class BlobIncubatorMonitor {
             long monitorBegin = System.currentTimeMillis();
             Scan scan = new Scan();
             scan.addFamily(BlobIncubatorCf.REF.bytes);
+            scan.setCaching(BATCH_SIZE);
             long maxStamp = System.currentTimeMillis() - minimalAge;
             scan.setTimeRange(0, maxStamp);
             ResultScanner scanner = blobIncubatorTable.getScanner(scan);
-            while (!stopRequested) {
-                Result[] results = scanner.next(100);
-                if (results == null || (results.length == 0)) {
-                   break;
-                }
-                for (Result result : results) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads,
+                    new CustomThreadFactory("blob-incubator-monitor"));
+            long checked = 0;
+            metrics.runCheckedCount.set(0);
+            try {
+                while (!stopRequested) {
+                    Result[] results = scanner.next(BATCH_SIZE);
+                    if (results == null || (results.length == 0)) {
+                       break;
+                    }
                     long before = System.currentTimeMillis();
-                    checkResult(result);
-                    // usually these times will be very short, a bit too short to measure with ms precision, but
-                    // this is mainly to observe when it would take long so that is fine
-                    metrics.checkDuration.inc(System.currentTimeMillis() - before);
+                    checkResults(results, executor);
+                    // this is mainly to observe when it would take long, so no need for more than ms precision
+                    metrics.checkDuration.inc(results.length, System.currentTimeMillis() - before);
+
+                    checked += results.length;
+                    metrics.checkCount.inc(results.length);
+                    metrics.runCheckedCount.set(checked);
 
                     if (stopRequested) {
                         break;
                     }
 
-                    if (monitorDelay > 0) {
-                        Thread.sleep(monitorDelay);
-                    }
+                    throttle(monitorBegin, checked);
                 }
+            } finally {
+                executor.shutdownNow();
+                Closer.close(scanner);
             }
-            Closer.close(scanner);
             metrics.runDuration.inc(System.currentTimeMillis() - monitorBegin);
-            log.debug("Stop run blob incubator monitor");
+            log.debug("Stop run blob incubator monitor, checked " + checked + " blobs");
         }
 
-        private void checkResult(Result result) throws IOException, RepositoryException, InterruptedException {
-            byte[] recordIdBytes = result.getValue(BlobIncubatorCf.REF.bytes, BlobIncubatorColumn.RECORD.bytes);
-            SchemaId recordId = new SchemaIdImpl(recordIdBytes);
-            byte[] blobKey = result.getRow();
-            if (Arrays.equals(recordIdBytes,BlobManagerImpl.INCUBATE)) {
-                    deleteBlob(blobKey, recordId, null);
-            } else {
-                SchemaId fieldId = new SchemaIdImpl(result.getValue(BlobIncubatorCf.REF.bytes, BlobIncubatorColumn.FIELD.bytes));
-                Result blobUsage;
-                try {
-                    blobUsage = getBlobUsage(blobKey, recordId, fieldId);
-                    if (blobUsage == null || blobUsage.isEmpty()) {
-                        deleteBlob(blobKey, recordId, fieldId); // Delete blob and reference
+        /**
+         * Waits as long as needed to stay below maxChecksPerSecond, averaged since the start of the run.
+         */
+        private void throttle(long monitorBegin, long checked) throws InterruptedException {
+            if (maxChecksPerSecond <= 0) {
+                return;
+            }
+            long wait = monitorBegin + (checked * 1000 / maxChecksPerSecond) - System.currentTimeMillis();
+            if (wait > 0) {
+                metrics.throttleDuration.inc(wait);
+                Thread.sleep(wait);
+            }
+        }
+
+        /**
+         * Checks a batch of incubator entries: the usage of the reserved blobs is checked with one multi-get on
+         * the record table, the references to used blobs are removed with one multi-delete, and the unused blobs
+         * are deleted in parallel.
+         */
+        private void checkResults(Result[] results, ExecutorService executor)
+                throws IOException, RepositoryException, InterruptedException {
+            List<IncubatorEntry> unused = new ArrayList<IncubatorEntry>();
+            List<IncubatorEntry> reserved = new ArrayList<IncubatorEntry>();
+            List<Get> usageGets = new ArrayList<Get>();
+
+            for (Result result : results) {
+                byte[] recordIdBytes = result.getValue(BlobIncubatorCf.REF.bytes, BlobIncubatorColumn.RECORD.bytes);
+                SchemaId recordId = new SchemaIdImpl(recordIdBytes);
+                byte[] blobKey = result.getRow();
+                if (Arrays.equals(recordIdBytes, BlobManagerImpl.INCUBATE)) {
+                    unused.add(new IncubatorEntry(result, recordId, null));
+                } else {
+                    SchemaId fieldId = new SchemaIdImpl(result.getValue(BlobIncubatorCf.REF.bytes, BlobIncubatorColumn.FIELD.bytes));
+                    try {
+                        usageGets.add(getBlobUsageGet(blobKey, recordId, fieldId));
+                        reserved.add(new IncubatorEntry(result, recordId, fieldId));
+                    } catch (FieldTypeNotFoundException e) {
+                        log.warn("Failed to check blob usage " + Hex.encodeHexString(blobKey) +
+                                ", recordId " + recordId +
+                                ", fieldId " + fieldId, e);
+                    } catch (TypeException e) {
+                        log.warn("Failed to check blob usage " + Hex.encodeHexString(blobKey) +
+                                ", recordId " + recordId +
+                                ", fieldId " + fieldId, e);
+                    }
+                }
+            }
+
+            if (!usageGets.isEmpty()) {
+                Result[] usages = recordTable.get(usageGets);
+                List<Delete> referenceDeletes = new ArrayList<Delete>();
+                for (int i = 0; i < usages.length; i++) {
+                    IncubatorEntry entry = reserved.get(i);
+                    if (usages[i] == null || usages[i].isEmpty()) {
+                        unused.add(entry); // Delete blob and reference
                     } else {
-                        deleteReference(blobKey, recordId); // The blob is used: only delete the reference
+                        // The blob is used: only delete the reference. Only the reference cells we've read are
+                        // deleted, a reference which would have been added since then has a newer timestamp.
+                        Delete delete = new Delete(entry.blobKey);
+                        delete.deleteFamily(BlobIncubatorCf.REF.bytes, entry.timestamp);
+                        referenceDeletes.add(delete);
+                    }
+                }
+                if (!referenceDeletes.isEmpty()) {
+                    int count = referenceDeletes.size();
+                    blobIncubatorTable.delete(referenceDeletes);
+                    metrics.refDeleteCount.inc(count);
+                }
+            }
+
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(unused.size());
+            for (final IncubatorEntry entry : unused) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        deleteBlob(entry.blobKey, entry.recordId, entry.fieldId);
+                        return null;
                     }
-                } catch (FieldTypeNotFoundException e) {
-                    log.warn("Failed to check blob usage " + Hex.encodeHexString(blobKey) +
-                            ", recordId " + recordId +
-                            ", fieldId " + fieldId, e);
-                } catch (TypeException e) {
-                    log.warn("Failed to check blob usage " + Hex.encodeHexString(blobKey) +
-                            ", recordId " + recordId +
-                            ", fieldId " + fieldId, e);
+                }));
+            }
+            try {
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException)e.getCause();
                 }
+                throw new IOException("Error deleting unused blob", e.getCause());
             }
         }
 
@@ -269,7 +371,7 @@ public class BlobIncubatorMonitor {
             return result;
         }
 
-        private Result getBlobUsage(byte[] blobKey, SchemaId recordId, SchemaId fieldId) throws FieldTypeNotFoundException,
+        private Get getBlobUsageGet(byte[] blobKey, SchemaId recordId, SchemaId fieldId) throws FieldTypeNotFoundException,
                 TypeException, InterruptedException, IOException, RepositoryException {
             FieldTypeImpl fieldType = (FieldTypeImpl)typeManager.getFieldTypeById(fieldId);
             ValueType valueType = fieldType.getValueType();
@@ -280,7 +382,26 @@ public class BlobIncubatorMonitor {
             WritableByteArrayComparable valueComparator = new ContainsValueComparator(valueToCompare);
             Filter filter = new SingleColumnValueFilter(RecordCf.DATA.bytes, fieldType.getQualifier(), CompareOp.EQUAL, valueComparator);
             get.setFilter(filter);
-            return recordTable.get(get);
+            return get;
+        }
+    }
+
+    private static class IncubatorEntry {
+        private final byte[] blobKey;
+        private final SchemaId recordId;
+        private final SchemaId fieldId;
+        /** The timestamp of the newest reference cell that was read. */
+        private final long timestamp;
+
+        IncubatorEntry(Result result, SchemaId recordId, SchemaId fieldId) {
+            this.blobKey = result.getRow();
+            this.recordId = recordId;
+            this.fieldId = fieldId;
+            long timestamp = 0;
+            for (KeyValue kv : result.raw()) {
+                timestamp = Math.max(timestamp, kv.getTimestamp());
+            }
+            this.timestamp = timestamp;
         }
     }
 
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.repository.api.Blob;
+import org.lilyproject.repository.api.BlobException;
+import org.lilyproject.repository.api.BlobStoreAccess;
+import org.lilyproject.util.hbase.HBaseTableFactory;
+import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
+
+/**
+ * Stores blobs in HBase, split over fixed-size chunks, rather than in one cell as the {@link HBaseBlobStoreAccess}
+ * does.
+ *
+ * <p>Each blob is one row in the blob table. The chunks are stored in separate columns, and are written to HBase
+ * as soon as they are full, so writing a blob needs only one chunk of memory. When the output stream is closed, a
+ * meta column is written containing the size of the blob and the chunk size. The input stream reads the chunks one
+ * at a time, when they are needed, and can skip to any position without reading the chunks before it.</p>
+ *
+ * <p>The chunk size is stored with each blob, so blobs can always be read, even if the chunk size used for writing
+ * changed in the meantime.</p>
+ */
+public class ChunkedHBaseBlobStoreAccess implements BlobStoreAccess {
+
+    private static final byte[] BLOB_TABLE = Bytes.toBytes("blob");
+    private static final String ID = "HBASE_CHUNKED";
+    private static final String BLOBS_COLUMN_FAMILY = "data";
+    private static final byte[] BLOBS_COLUMN_FAMILY_BYTES = Bytes.toBytes(BLOBS_COLUMN_FAMILY);
+    private static final byte[] META_COLUMN = Bytes.toBytes("m");
+    private static final byte CHUNK_COLUMN_PREFIX = (byte)'c';
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    private final HTableInterface table;
+    private final int chunkSize;
+
+    public ChunkedHBaseBlobStoreAccess(Configuration hbaseConf) throws IOException, InterruptedException {
+        this(hbaseConf, false);
+    }
+
+    public ChunkedHBaseBlobStoreAccess(Configuration hbaseConf, boolean clientMode)
+            throws IOException, InterruptedException {
+        this(new HBaseTableFactoryImpl(hbaseConf), clientMode, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ChunkedHBaseBlobStoreAccess(HBaseTableFactory tableFactory) throws IOException, InterruptedException {
+        this(tableFactory, false, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize the size of the chunks of the blobs written through this BlobStoreAccess
+     */
+    public ChunkedHBaseBlobStoreAccess(HBaseTableFactory tableFactory, boolean clientMode, int chunkSize)
+            throws IOException, InterruptedException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize should be at least 1, got: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+
+        HTableDescriptor tableDescriptor = new HTableDescriptor(BLOB_TABLE);
+        tableDescriptor.addFamily(new HColumnDescriptor(BLOBS_COLUMN_FAMILY));
+
+        table = tableFactory.getTable(tableDescriptor, !clientMode);
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public OutputStream getOutputStream(Blob blob) throws BlobException {
+        UUID uuid = UUID.randomUUID();
+        byte[] blobKey = Bytes.toBytes(uuid.getMostSignificantBits());
+        blobKey = Bytes.add(blobKey, Bytes.toBytes(uuid.getLeastSignificantBits()));
+        return new ChunkedOutputStream(blobKey, blob);
+    }
+
+    @Override
+    public InputStream getInputStream(byte[] blobKey) throws BlobException {
+        return getInputStream(blobKey, 0);
+    }
+
+    @Override
+    public InputStream getInputStream(byte[] blobKey, long offset) throws BlobException {
+        Get get = new Get(blobKey);
+        get.addColumn(BLOBS_COLUMN_FAMILY_BYTES, META_COLUMN);
+        if (offset == 0) {
+            // Read the meta data together with the first chunk, most blobs consist of only one chunk
+            get.addColumn(BLOBS_COLUMN_FAMILY_BYTES, chunkColumn(0));
+        }
+        Result result;
+        try {
+            result = table.get(get);
+        } catch (IOException e) {
+            throw new BlobException("Failed to open an inputstream for blobkey '" + Hex.encodeHexString(blobKey)
+                    + "' on the " + ID + " blobstore", e);
+        }
+        byte[] meta = result.getValue(BLOBS_COLUMN_FAMILY_BYTES, META_COLUMN);
+        if (meta == null) {
+            throw new BlobException("Failed to open an inputstream for blobkey '" + Hex.encodeHexString(blobKey)
+                    + "' since no blob was found on the " + ID + " blobstore");
+        }
+        long size = Bytes.toLong(meta, 0);
+        int blobChunkSize = Bytes.toInt(meta, Bytes.SIZEOF_LONG);
+
+        ChunkedInputStream is = new ChunkedInputStream(blobKey, size, blobChunkSize,
+                result.getValue(BLOBS_COLUMN_FAMILY_BYTES, chunkColumn(0)));
+        is.skip(offset);
+        return is;
+    }
+
+    @Override
+    public void delete(byte[] blobKey) throws BlobException {
+        Delete delete = new Delete(blobKey);
+        try {
+            table.delete(delete);
+        } catch (IOException e) {
+            throw new BlobException("Failed to delete blob with key '" + Hex.encodeHexString(blobKey) + "' from the "
+                    + ID + " blobstore", e);
+        }
+    }
+
+    @Override
+    public boolean incubate() {
+        return true;
+    }
+
+    private static byte[] chunkColumn(int chunk) {
+        byte[] column = new byte[1 + Bytes.SIZEOF_INT];
+        column[0] = CHUNK_COLUMN_PREFIX;
+        Bytes.putInt(column, 1, chunk);
+        return column;
+    }
+
+    private class ChunkedOutputStream extends OutputStream {
+        private final byte[] blobKey;
+        private final Blob blob;
+        private byte[] buffer;
+        private int count;
+        private int chunk;
+        private long size;
+        private boolean closed;
+
+        public ChunkedOutputStream(byte[] blobKey, Blob blob) {
+            this.blobKey = blobKey;
+            this.blob = blob;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream is closed");
+            }
+            while (len > 0) {
+                if (buffer == null) {
+                    // A new buffer for each chunk, since the Put keeps a reference to it
+                    buffer = new byte[chunkSize];
+                }
+                int n = Math.min(len, chunkSize - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                size += n;
+                if (count == chunkSize) {
+                    writeChunk();
+                }
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            byte[] value = count == buffer.length ? buffer : Bytes.head(buffer, count);
+            Put put = new Put(blobKey);
+            put.add(BLOBS_COLUMN_FAMILY_BYTES, chunkColumn(chunk), value);
+            table.put(put);
+            chunk++;
+            buffer = null;
+            count = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            if (count > 0) {
+                writeChunk();
+            }
+
+            // The meta column is written last: a blob of which the writing failed halfway can't be read
+            Put put = new Put(blobKey);
+            put.add(BLOBS_COLUMN_FAMILY_BYTES, META_COLUMN, Bytes.add(Bytes.toBytes(size), Bytes.toBytes(chunkSize)));
+            table.put(put);
+            blob.setValue(blobKey);
+        }
+    }
+
+    private class ChunkedInputStream extends InputStream {
+        private final byte[] blobKey;
+        private final long size;
+        private final int blobChunkSize;
+        private long position;
+        /** The chunk containing the current position, null if it still needs to be read. */
+        private byte[] chunkData;
+        private int chunk;
+
+        public ChunkedInputStream(byte[] blobKey, long size, int blobChunkSize, byte[] firstChunk) {
+            this.blobKey = blobKey;
+            this.size = size;
+            this.blobChunkSize = blobChunkSize;
+            this.chunkData = firstChunk;
+            this.chunk = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= size) {
+                return -1;
+            }
+
+            int chunkOffset = loadChunk();
+            int n = Math.min(len, chunkData.length - chunkOffset);
+            System.arraycopy(chunkData, chunkOffset, b, off, n);
+            position += n;
+            return n;
+        }
+
+        /**
+         * Makes sure chunkData contains the chunk of the current position.
+         *
+         * @return the offset of the current position within the chunk
+         */
+        private int loadChunk() throws IOException {
+            int neededChunk = (int)(position / blobChunkSize);
+            if (chunkData == null || chunk != neededChunk) {
+                Get get = new Get(blobKey);
+                byte[] column = chunkColumn(neededChunk);
+                get.addColumn(BLOBS_COLUMN_FAMILY_BYTES, column);
+                chunkData = table.get(get).getValue(BLOBS_COLUMN_FAMILY_BYTES, column);
+                chunk = neededChunk;
+            }
+
+            int chunkOffset = (int)(position - (long)neededChunk * blobChunkSize);
+            if (chunkData == null || chunkData.length <= chunkOffset) {
+                chunkData = null;
+                throw new IOException("Chunk " + neededChunk + " of blob with key '" + Hex.encodeHexString(blobKey)
+                        + "' is missing or too short on the " + ID + " blobstore");
+            }
+            return chunkOffset;
+        }
+
+        @Override
+        public long skip(long n) {
+            // Skipping doesn't read anything: the chunk of the new position is read on the next read
+            long skipped = Math.max(0, Math.min(n, size - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (chunkData == null || chunk != (int)(position / blobChunkSize)) {
+                return 0;
+            }
+            long inChunk = chunkData.length - (position - (long)chunk * blobChunkSize);
+            return (int)Math.max(0, Math.min(inChunk, size - position));
+        }
+    }
+}
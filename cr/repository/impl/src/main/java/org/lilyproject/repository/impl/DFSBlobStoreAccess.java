@@ -22,6 +22,7 @@ import java.io.OutputStream;
 import java.util.UUID;
 
 import org.apache.commons.codec.binary.Hex;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -29,6 +30,7 @@ import org.apache.hadoop.hbase.util.Bytes;
 import org.lilyproject.repository.api.Blob;
 import org.lilyproject.repository.api.BlobException;
 import org.lilyproject.repository.api.BlobStoreAccess;
+import org.lilyproject.util.io.Closer;
 
 public class DFSBlobStoreAccess implements BlobStoreAccess {
 
@@ -76,6 +78,26 @@ public class DFSBlobStoreAccess implements BlobStoreAccess {
         }
     }
 
+    @Override
+    public InputStream getInputStream(byte[] blobKey, long offset) throws BlobException {
+        UUID uuid = decode(blobKey);
+        Path path = createPath(uuid);
+        FSDataInputStream is = null;
+        try {
+            is = fileSystem.open(path);
+            if (offset > 0) {
+                // Seeking beyond the end of the file is not allowed
+                long length = fileSystem.getFileStatus(path).getLen();
+                is.seek(Math.min(offset, length));
+            }
+            return is;
+        } catch (IOException e) {
+            Closer.close(is);
+            throw new BlobException("Failed to open an inputstream for blobkey '" + Hex.encodeHexString(blobKey) +
+                    "' at offset " + offset + " on the DFS blobstore", e);
+        }
+    }
+
     private Path createPath(UUID uuid) {
         String fileName = uuid.toString();
         String dirLevel1 = fileName.substring(0, 2);
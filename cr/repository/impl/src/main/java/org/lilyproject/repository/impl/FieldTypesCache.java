@@ -15,162 +15,76 @@
  */
 package org.lilyproject.repository.impl;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import org.lilyproject.repository.api.*;
 
-public class FieldTypesCache extends FieldTypesImpl implements FieldTypes {
-    // A lock on the monitor needs to be taken when changes are to be made on
-    // the nameCache, on the count variable, on the nameCacheOutOfDate boolean
-    // or if a bucket monitor needs to be added.
-    private final Object monitor = new Object();
-    // A lock on a bucket monitor needs to be taken when changes are to be made
-    // on a bucket.
-    private final Map<String, Object> bucketMonitors = new HashMap<String, Object>();
-    // The nameCacheOutOfData should be set to true when an update happens on
-    // a bucket. This means that if the nameCache is requested, it should be
-    // refreshed first. Once it is refreshed it can be put back to false.
-    private volatile boolean nameCacheOutOfDate = false;
-    // The count indicates how many buckets are being updated. As long as the
-    // count is higher than 0, the nameCache can not be updated since this could
-    // lead to an inconsistent state (two types could get the same name).
-    private volatile int count = 0;
-    
-    private ConcurrentHashMap<String, Set<SchemaId>> localUpdateBuckets = new ConcurrentHashMap<String, Set<SchemaId>>();
+/**
+ * The cache of field types.
+ *
+ * <p>The cache holds an immutable {@link FieldTypesImpl}. Each change replaces it by a new version which
+ * shares the unchanged buckets with the previous one (see {@link FieldTypesImpl#update}). Reads, including
+ * {@link #getSnapshot()}, simply use the current version and never block. Changes are serialized.</p>
+ */
+public class FieldTypesCache implements FieldTypes {
+    private volatile FieldTypesImpl fieldTypes = new FieldTypesImpl();
 
-    private Log log = LogFactory.getLog(getClass());
+    // Lock to be taken by anyone changing the field types or the localUpdateBuckets
+    private final Object updateLock = new Object();
 
-    public FieldTypesCache() {
-        super();
-        for (String bucketId : buckets.keySet()) {
-            bucketMonitors.put(bucketId, new Object());
-        }
-    }
+    private Map<String, Set<SchemaId>> localUpdateBuckets = new HashMap<String, Set<SchemaId>>();
 
     /**
-     * When accessing the nameCache, this method should always be used instead
-     * of using the variable immediately
+     * Returns a snapshot of the cache. This snapshot cannot be updated, and is not affected by later
+     * changes to the cache.
+     *
+     * @return the FieldTypes snapshot
      */
-    protected Map<QName, FieldType> getNameCache() throws InterruptedException {
-        // First check if the name cache is out of date
-        if (nameCacheOutOfDate) {
-            synchronized (monitor) {
-                // Wait until no buckets are being updated
-                while (count > 0) {
-                    monitor.wait();
-                }
-                if (nameCacheOutOfDate) {
-                // Re-initialize the nameCache
-                    Map<QName, FieldType> newNameCache = new HashMap<QName, FieldType>();
-                    for (Map<SchemaId, FieldType> bucket : buckets.values()) {
-                        for (FieldType fieldType : bucket.values())
-                            newNameCache.put(fieldType.getName(), fieldType);
-                    }
-                    nameCache = newNameCache;
-                    nameCacheOutOfDate = false;
-                }
-            }
-        }
-        return nameCache;
+    public FieldTypes getSnapshot() {
+        return fieldTypes;
     }
 
-    /**
-     * Increment the number of buckets being updated.
-     */
-    private void incCount() {
-        synchronized (monitor) {
-            count++;
-            monitor.notify();
-        }
+    @Override
+    public FieldType getFieldType(SchemaId id) throws FieldTypeNotFoundException {
+        return fieldTypes.getFieldType(id);
     }
 
-    /**
-     * Decrement the number of buckets being updated and mark the nameCache out
-     * of date.
-     */
-    private void decCount() {
-        synchronized (monitor) {
-            count--;
-            nameCacheOutOfDate = true;
-            monitor.notify();
-        }
+    @Override
+    public FieldType getFieldType(QName name) throws FieldTypeNotFoundException {
+        return fieldTypes.getFieldType(name);
     }
 
-    /**
-     * Return the monitor of a bucket and create it if it does not exist yet.
-     * 
-     * @param bucketId
-     * @return
-     */
-    private Object getBucketMonitor(String bucketId) {
-        Object bucketMonitor = bucketMonitors.get(bucketId);
-        if (bucketMonitor == null) {
-            // If the bucket does not exist yet we need to create it
-            // Take the lock on the monitor to avoid that another call would
-            // created it at the same time
-            synchronized (monitor) {
-                // Make sure it hasn't been created meanwhile (= between
-                // checking for null and taking the lock on the monitor)
-                bucketMonitor = bucketMonitors.get(bucketId);
-                if (bucketMonitor == null) {
-                    bucketMonitor = new Object();
-                    bucketMonitors.put(bucketId, bucketMonitor);
-                }
-            }
-        }
-        return bucketMonitor;
+    @Override
+    public List<FieldType> getFieldTypes() {
+        return fieldTypes.getFieldTypes();
     }
 
-    /**
-     * Take a snapshot of the cache and return it. This snapshot cannot be
-     * updated.
-     * 
-     * @return the FieldTypes snapshot
-     * @throws InterruptedException
-     */
-    public FieldTypes getSnapshot() throws InterruptedException {
-        synchronized (monitor) {
-            while (count > 0) {
-                monitor.wait();
-            }
-            FieldTypesImpl newFieldTypes = new FieldTypesImpl();
-            for (Entry<String, Map<SchemaId, FieldType>> bucketEntry : buckets.entrySet()) {
-                Map<SchemaId, FieldType> fieldTypeIdBucket = new HashMap<SchemaId, FieldType>();
-                fieldTypeIdBucket.putAll(bucketEntry.getValue());
-                newFieldTypes.buckets.put(bucketEntry.getKey(), fieldTypeIdBucket);
-                for (FieldType fieldType: bucketEntry.getValue().values()) {
-                    newFieldTypes.nameCache.put(fieldType.getName(), fieldType);
-                }
-            }
-            return newFieldTypes;
-        }
+    @Override
+    public FieldType getFieldTypeByNameReturnNull(QName name) {
+        return fieldTypes.getFieldTypeByNameReturnNull(name);
+    }
+
+    @Override
+    public boolean fieldTypeExists(QName name) {
+        return fieldTypes.fieldTypeExists(name);
     }
 
     /**
      * Refreshes the whole cache to contain the given list of field types.
      * 
      * @param fieldTypes
-     * @throws InterruptedException
      */
-    public void refreshFieldTypes(List<FieldType> fieldTypes) throws InterruptedException {
-        // Since we will update all buckets, we take the lock on the monitor for
-        // the whole operation
-        synchronized (monitor) {
-            while (count > 0) {
-                monitor.wait();
-            }
-            nameCacheOutOfDate = true;
-            // One would expect that existing buckets need to be cleared first.
+    public void refreshFieldTypes(List<FieldType> fieldTypes) {
+        synchronized (updateLock) {
+            // One would expect that existing field types need to be cleared first.
             // But since field types cannot be deleted we will just overwrite
             // them.
+            List<FieldType> toUpdate = new ArrayList<FieldType>(fieldTypes.size());
             for (FieldType fieldType : fieldTypes) {
                 String bucketId = AbstractSchemaCache.encodeHex(fieldType.getId().getBytes());
                 // Only update if it was not updated locally
@@ -178,14 +92,10 @@ public class FieldTypesCache extends FieldTypesImpl implements FieldTypes {
                 // update,
                 // or the refresh for this update will follow.
                 if (!removeFromLocalUpdateBucket(fieldType.getId(), bucketId)) {
-                    Map<SchemaId, FieldType> bucket = buckets.get(bucketId);
-                    if (bucket == null) {
-                        bucket = new ConcurrentHashMap<SchemaId, FieldType>(8, .75f, 1);
-                        buckets.put(bucketId, bucket);
-                    }
-                    bucket.put(fieldType.getId(), fieldType);
+                    toUpdate.add(fieldType);
                 }
             }
+            this.fieldTypes = this.fieldTypes.update(toUpdate);
         }
     }
 
@@ -197,29 +107,19 @@ public class FieldTypesCache extends FieldTypesImpl implements FieldTypes {
     public void refreshFieldTypeBucket(TypeBucket typeBucket) {
         String bucketId = typeBucket.getBucketId();
 
-        // First increment the number of buckets that are being updated
-        incCount();
-        // Get a lock on the bucket to be updated
-        synchronized (getBucketMonitor(bucketId)) {
-            List<FieldType> fieldTypes = typeBucket.getFieldTypes();
-            Map<SchemaId, FieldType> bucket = buckets.get(bucketId);
+        synchronized (updateLock) {
             // One would expect that an existing bucket need to be cleared
             // first.
             // But since field types cannot be deleted we will just overwrite
             // them.
-            if (bucket == null) {
-                bucket = new ConcurrentHashMap<SchemaId, FieldType>(Math.min(fieldTypes.size(), 8), .75f, 1);
-                buckets.put(bucketId, bucket);
-            }
-            // Fill the bucket with the new field types
-            for (FieldType fieldType : fieldTypes) {
+            List<FieldType> toUpdate = new ArrayList<FieldType>();
+            for (FieldType fieldType : typeBucket.getFieldTypes()) {
                 if (!removeFromLocalUpdateBucket(fieldType.getId(), bucketId)) {
-                    bucket.put(fieldType.getId(), fieldType);
+                    toUpdate.add(fieldType);
                 }
             }
+            this.fieldTypes = this.fieldTypes.update(toUpdate);
         }
-        // Decrement the number of buckets that are being updated again.
-        decCount();
     }
 
     /**
@@ -232,24 +132,15 @@ public class FieldTypesCache extends FieldTypesImpl implements FieldTypes {
         FieldType ftToCache = fieldType.clone();
         SchemaId id = ftToCache.getId();
         String bucketId = AbstractSchemaCache.encodeHex(id.getBytes());
-        // First increment the number of buckets that are being updated
-        incCount();
-        // Get a lock on the bucket to be updated
-        synchronized (getBucketMonitor(bucketId)) {
-            Map<SchemaId, FieldType> bucket = buckets.get(bucketId);
-            // If the bucket does not exist yet, create it
-            if (bucket == null) {
-                bucket = new ConcurrentHashMap<SchemaId, FieldType>(8, .75f, 1);
-                buckets.put(bucketId, bucket);
-            }
-            bucket.put(id, ftToCache);
+        synchronized (updateLock) {
+            List<FieldType> toUpdate = new ArrayList<FieldType>(1);
+            toUpdate.add(ftToCache);
+            this.fieldTypes = this.fieldTypes.update(toUpdate);
             // Mark that this fieldType is updated locally
             // and that the next refresh can be ignored
             // since this refresh can contain an old fieldType
             addToLocalUpdateBucket(id, bucketId);
         }
-        // Decrement the number of buckets that are being updated again.
-        decCount();
     }
 
     // Add the id of a field type that has been updated locally
@@ -278,14 +169,9 @@ public class FieldTypesCache extends FieldTypesImpl implements FieldTypes {
     }
     
     public void clear() {
-        nameCache.clear();
-
-        for (Map bucket : buckets.values()) {
-            bucket.clear();
-        }
-
-        for (Set<SchemaId> bucket : localUpdateBuckets.values()) {
-            bucket.clear();
+        synchronized (updateLock) {
+            fieldTypes = new FieldTypesImpl();
+            localUpdateBuckets.clear();
         }
     }
 }
@@ -16,35 +16,158 @@
 package org.lilyproject.repository.impl;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.lilyproject.repository.api.*;
 import org.lilyproject.util.ArgumentValidator;
 
+/**
+ * An immutable set of field types, used as the snapshot of the field types returned by
+ * {@link TypeManager#getFieldTypesSnapshot()}.
+ *
+ * <p>Changes are made through {@link #update}, which returns a new FieldTypesImpl rather than modifying
+ * this one. The field types are spread over buckets, both by ID (the same buckets as used by the schema
+ * cache) and by name. A new version only copies the buckets that contain changed field types and shares
+ * all other buckets with the previous version, so that the cost of a change does not depend on the total
+ * number of field types, and readers of an existing version never need to wait for it.</p>
+ */
 public class FieldTypesImpl implements FieldTypes {
-    private Log log = LogFactory.getLog(getClass());
-    
-    // Always use getNameCache() instead of this variable directly, to make sure
-    // this is the up-to-date nameCache (in case of FieldTypesCache).
-    protected Map<QName, FieldType> nameCache;
-    protected Map<String, Map<SchemaId, FieldType>> buckets;
+    private static final int ID_BUCKETS = 256;
+    private static final int NAME_BUCKETS = 256;
+
+    /**
+     * The field types by ID, spread over buckets by the first byte of the ID, which corresponds to the
+     * bucket ID as given by {@link AbstractSchemaCache#encodeHex}. The buckets are looked up on the ID
+     * bytes rather than on SchemaId, so that an ID which is part of a larger byte array can be looked up
+     * without copying it.
+     */
+    private final IdBucket[] buckets;
+
+    /**
+     * The field types by name, spread over buckets by hash code. These maps are never modified once
+     * they are part of an instance.
+     */
+    private final Map<QName, FieldType>[] nameBuckets;
 
     public FieldTypesImpl() {
-        nameCache = new HashMap<QName, FieldType>();
-        buckets = new ConcurrentHashMap<String, Map<SchemaId, FieldType>>();
+        this(newIdBuckets(), FieldTypesImpl.<QName>newBuckets(NAME_BUCKETS));
+    }
+
+    private FieldTypesImpl(IdBucket[] buckets, Map<QName, FieldType>[] nameBuckets) {
+        this.buckets = buckets;
+        this.nameBuckets = nameBuckets;
+    }
+
+    private static IdBucket[] newIdBuckets() {
+        IdBucket[] buckets = new IdBucket[ID_BUCKETS];
+        Arrays.fill(buckets, IdBucket.EMPTY);
+        return buckets;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> Map<K, FieldType>[] newBuckets(int count) {
+        Map<K, FieldType>[] buckets = new Map[count];
+        for (int i = 0; i < count; i++) {
+            buckets[i] = Collections.emptyMap();
+        }
+        return buckets;
+    }
+
+    private static int idBucket(byte[] id, int offset) {
+        return id[offset] & (ID_BUCKETS - 1);
+    }
+
+    private static int nameBucket(QName name) {
+        int h = name.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (NAME_BUCKETS - 1);
+    }
+
+    /**
+     * Returns a new FieldTypesImpl which contains the field types of this one, with the given field types
+     * added or replacing the existing field type with the same ID. The given field types should not be
+     * modified anymore afterwards.
+     */
+    public FieldTypesImpl update(Collection<FieldType> fieldTypes) {
+        if (fieldTypes.isEmpty()) {
+            return this;
+        }
+
+        // The changed ID buckets, as maps which are turned into new IdBuckets at the end
+        Map<SchemaId, FieldType>[] changedBuckets = FieldTypesImpl.<SchemaId>newBuckets(ID_BUCKETS);
+        Map<QName, FieldType>[] newNameBuckets = nameBuckets.clone();
+        // The buckets which have been copied for this update, and hence can be modified
+        boolean[] copiedBuckets = new boolean[ID_BUCKETS];
+        boolean[] copiedNameBuckets = new boolean[NAME_BUCKETS];
+
+        for (FieldType fieldType : fieldTypes) {
+            SchemaId id = fieldType.getId();
+            int bucket = idBucket(id.getBytes(), 0);
+            if (!copiedBuckets[bucket]) {
+                changedBuckets[bucket] = buckets[bucket].toMap();
+                copiedBuckets[bucket] = true;
+            }
+            FieldType previous = changedBuckets[bucket].put(id, fieldType);
+
+            // In case of a rename, the old name should not refer to this field type anymore
+            if (previous != null && !previous.getName().equals(fieldType.getName())) {
+                int oldNameBucket = nameBucket(previous.getName());
+                FieldType byOldName = newNameBuckets[oldNameBucket].get(previous.getName());
+                if (byOldName != null && byOldName.getId().equals(id)) {
+                    copyBucket(newNameBuckets, copiedNameBuckets, oldNameBucket).remove(previous.getName());
+                }
+            }
+
+            copyBucket(newNameBuckets, copiedNameBuckets, nameBucket(fieldType.getName()))
+                    .put(fieldType.getName(), fieldType);
+        }
+
+        IdBucket[] newBuckets = buckets.clone();
+        for (int i = 0; i < ID_BUCKETS; i++) {
+            if (copiedBuckets[i]) {
+                newBuckets[i] = new IdBucket(changedBuckets[i].values());
+            }
+        }
+
+        return new FieldTypesImpl(newBuckets, newNameBuckets);
+    }
+
+    private static <K> Map<K, FieldType> copyBucket(Map<K, FieldType>[] buckets, boolean[] copied, int index) {
+        if (!copied[index]) {
+            buckets[index] = new HashMap<K, FieldType>(buckets[index]);
+            copied[index] = true;
+        }
+        return buckets[index];
+    }
+
+    /**
+     * Returns the field type with the given ID without cloning it, or null if it is not known.
+     */
+    protected FieldType getFieldTypeReturnNull(SchemaId id) {
+        byte[] idBytes = id.getBytes();
+        return getFieldTypeReturnNull(idBytes, 0, idBytes.length);
     }
 
-    protected Map<QName, FieldType> getNameCache() throws InterruptedException {
-        return nameCache;
+    /**
+     * Returns the field type with the ID in the given part of a byte array, without cloning it, or null if
+     * it is not known. This allows to look up field types by an ID contained in a larger byte array, such as
+     * an HBase column qualifier, without creating a SchemaId for it.
+     */
+    public FieldType getFieldTypeReturnNull(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return null;
+        }
+        return buckets[idBucket(buffer, offset)].get(buffer, offset, length);
     }
 
     @Override
-    public List<FieldType> getFieldTypes() throws InterruptedException {
+    public List<FieldType> getFieldTypes() {
         List<FieldType> fieldTypes = new ArrayList<FieldType>();
-        for (FieldType fieldType : getNameCache().values()) {
-            fieldTypes.add(fieldType.clone());
+        for (IdBucket bucket : buckets) {
+            for (FieldType fieldType : bucket.fieldTypes) {
+                fieldTypes.add(fieldType.clone());
+            }
         }
         return fieldTypes;
     }
@@ -52,13 +175,7 @@ public class FieldTypesImpl implements FieldTypes {
     @Override
     public FieldType getFieldType(SchemaId id) throws FieldTypeNotFoundException {
         ArgumentValidator.notNull(id, "id");
-        String bucket = AbstractSchemaCache.encodeHex(id.getBytes());
-        
-        Map<SchemaId, FieldType> fieldTypeIdCacheBucket = buckets.get(bucket);
-        if (fieldTypeIdCacheBucket == null) {
-            throw new FieldTypeNotFoundException(id);
-        }
-        FieldType fieldType = fieldTypeIdCacheBucket.get(id);
+        FieldType fieldType = getFieldTypeReturnNull(id);
         if (fieldType == null) {
             throw new FieldTypeNotFoundException(id);
         }
@@ -66,22 +183,74 @@ public class FieldTypesImpl implements FieldTypes {
     }
 
     @Override
-    public FieldType getFieldType(QName name) throws FieldTypeNotFoundException, InterruptedException {
+    public FieldType getFieldType(QName name) throws FieldTypeNotFoundException {
         ArgumentValidator.notNull(name, "name");
-        FieldType fieldType = getNameCache().get(name);
+        FieldType fieldType = nameBuckets[nameBucket(name)].get(name);
         if (fieldType == null) {
             throw new FieldTypeNotFoundException(name);
         }
         return fieldType.clone();
     }
 
-    public FieldType getFieldTypeByNameReturnNull(QName name) throws InterruptedException {
+    @Override
+    public FieldType getFieldTypeByNameReturnNull(QName name) {
         ArgumentValidator.notNull(name, "name");
-        FieldType fieldType = getNameCache().get(name);
+        FieldType fieldType = nameBuckets[nameBucket(name)].get(name);
         return fieldType != null ? fieldType.clone() : null;
     }
 
-    public boolean fieldTypeExists(QName name) throws InterruptedException {
-        return getNameCache().containsKey(name);
+    @Override
+    public boolean fieldTypeExists(QName name) {
+        return nameBuckets[nameBucket(name)].containsKey(name);
+    }
+
+    /**
+     * The field types of one ID bucket, sorted on their ID bytes so that they can be found by binary search
+     * on an ID which is part of a larger byte array. Instances are never modified.
+     */
+    private static class IdBucket {
+        static final IdBucket EMPTY = new IdBucket(Collections.<FieldType>emptyList());
+
+        private final byte[][] ids;
+        private final FieldType[] fieldTypes;
+
+        IdBucket(Collection<FieldType> fieldTypes) {
+            this.fieldTypes = fieldTypes.toArray(new FieldType[fieldTypes.size()]);
+            Arrays.sort(this.fieldTypes, new Comparator<FieldType>() {
+                @Override
+                public int compare(FieldType o1, FieldType o2) {
+                    return Bytes.compareTo(o1.getId().getBytes(), o2.getId().getBytes());
+                }
+            });
+            this.ids = new byte[this.fieldTypes.length][];
+            for (int i = 0; i < this.fieldTypes.length; i++) {
+                this.ids[i] = this.fieldTypes[i].getId().getBytes();
+            }
+        }
+
+        FieldType get(byte[] buffer, int offset, int length) {
+            int low = 0;
+            int high = ids.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = Bytes.compareTo(ids[mid], 0, ids[mid].length, buffer, offset, length);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return fieldTypes[mid];
+                }
+            }
+            return null;
+        }
+
+        Map<SchemaId, FieldType> toMap() {
+            Map<SchemaId, FieldType> map = new HashMap<SchemaId, FieldType>();
+            for (FieldType fieldType : fieldTypes) {
+                map.put(fieldType.getId(), fieldType);
+            }
+            return map;
+        }
     }
 }
@@ -83,6 +83,11 @@ public class HBaseBlobStoreAccess implements BlobStoreAccess {
 
     @Override
     public InputStream getInputStream(byte[] blobKey) throws BlobException {
+        return getInputStream(blobKey, 0);
+    }
+
+    @Override
+    public InputStream getInputStream(byte[] blobKey, long offset) throws BlobException {
         Get get = new Get(blobKey);
         get.addColumn(BLOBS_COLUMN_FAMILY_BYTES, BLOB_COLUMN);
         Result result;
@@ -95,7 +100,9 @@ public class HBaseBlobStoreAccess implements BlobStoreAccess {
         if (value == null) {
             throw new BlobException("Failed to open an inputstream for blobkey '" + Hex.encodeHexString(blobKey) + "' since no blob was found on the HBASE blobstore");
         }
-        return new ByteArrayInputStream(value);
+        // The blob is a single cell, so it is always read completely
+        int start = (int)Math.min(offset, value.length);
+        return new ByteArrayInputStream(value, start, value.length - start);
     }
 
     @Override
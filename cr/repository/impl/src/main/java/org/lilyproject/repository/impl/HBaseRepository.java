@@ -16,6 +16,7 @@
 package org.lilyproject.repository.impl;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -204,6 +205,13 @@ public class HBaseRepository extends BaseRepository {
             RecordId recordId = record.getId();
             if (recordId == null) {
                 recordId = idGenerator.newRecordId();
+
+                // A freshly generated id is not expected to exist yet, so first try to create the record
+                // without locking and reading the row.
+                Record newRecord = createOptimistic(record, recordId);
+                if (newRecord != null) {
+                    return newRecord;
+                }
             }
 
             byte[] rowId = recordId.toBytes();
@@ -302,6 +310,94 @@ public class HBaseRepository extends BaseRepository {
         }
     }
 
+    /**
+     * Creates a record for which the row is assumed not to exist yet. Rather than locking the row and reading
+     * it, the row is written and locked in one conditional put. The lock is still taken since it is needed
+     * for the processing of the WAL message.
+     *
+     * @return null if the row turned out to exist, or if the record references blobs, in which case the
+     *         regular create path should be followed
+     */
+    private Record createOptimistic(Record record, RecordId recordId) throws RepositoryException {
+        RowLock rowLock = null;
+        try {
+            FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
+
+            // Blob reservations can't easily be undone in case of a conflict, so leave these to the regular path
+            if (hasBlobFields(record, fieldTypes)) {
+                return null;
+            }
+
+            RecordEvent recordEvent = new RecordEvent();
+            recordEvent.setType(Type.CREATE);
+
+            // Note that in the (highly unlikely) case of a conflict, the hooks will be called a second time
+            // by the regular create path.
+            for (RecordUpdateHook hook : updateHooks) {
+                hook.beforeCreate(record, this, fieldTypes, recordEvent);
+            }
+
+            Record newRecord = record.cloneRecord();
+            newRecord.setId(recordId);
+
+            Put put = new Put(recordId.toBytes());
+            put.add(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes, 1L, Bytes.toBytes(false));
+            Set<BlobReference> referencedBlobs = new HashSet<BlobReference>();
+            Set<BlobReference> unReferencedBlobs = new HashSet<BlobReference>();
+
+            calculateRecordChanges(newRecord, newRecord(), 1L, put, recordEvent, referencedBlobs,
+                    unReferencedBlobs, false, fieldTypes);
+
+            if (record.hasAttributes()) {
+                recordEvent.setAttributes(record.getAttributes());
+            }
+
+            recordEvent.setRecordTypeChanged(false);
+            Long newVersion = newRecord.getVersion();
+            if (newVersion != null)
+                recordEvent.setVersionCreated(newVersion);
+
+            RowLogMessage walMessage = wal.putMessage(recordId.toBytes(), null, recordEvent.toJsonBytes(), put);
+
+            // A row which never contained a record has no deleted flag, see also REAL_RECORDS_FILTER
+            rowLock = rowLocker.putAndLock(put, RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
+            if (rowLock == null) {
+                // Nothing was written to the record row, the message on the rowlog shard will be
+                // cleaned up as an orphan.
+                return null;
+            }
+
+            processWalMessage(walMessage, rowLock, recordEvent);
+
+            newRecord.setResponseStatus(ResponseStatus.CREATED);
+            newRecord.getFieldsToDelete().clear();
+            return newRecord;
+
+        } catch (IOException e) {
+            throw new RecordException("Exception occurred while creating record '" + recordId + "' in HBase table",
+                    e);
+        } catch (RowLogException e) {
+            throw new RecordException("Exception occurred while creating record '" + recordId + "' in HBase table",
+                    e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RecordException("Exception occurred while creating record '" + recordId + "' in HBase table",
+                    e);
+        } finally {
+            unlockRow(rowLock);
+        }
+    }
+
+    private boolean hasBlobFields(Record record, FieldTypes fieldTypes)
+            throws RepositoryException, InterruptedException {
+        for (QName fieldName : record.getFields().keySet()) {
+            if (fieldTypes.getFieldType(fieldName).getValueType().getDeepestValueType() instanceof BlobValueType) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void checkCreatePreconditions(Record record) throws InvalidRecordException {
         ArgumentValidator.notNull(record, "record");
         if (record.getRecordTypeName() == null) {
@@ -450,6 +546,10 @@ public class HBaseRepository extends BaseRepository {
             throw new RecordException("Invalid or expired lock trying to put record '" + recordId + "' on HBase table");
         }
 
+        processWalMessage(walMessage, rowLock, recordEvent);
+    }
+
+    private void processWalMessage(RowLogMessage walMessage, RowLock rowLock, RecordEvent recordEvent) {
         if (walMessage != null) {
             try {
                 RowLogContext rowLogContext = new RowLogContext();
@@ -469,6 +569,276 @@ public class HBaseRepository extends BaseRepository {
         }
     }
 
+    @Override
+    public List<Record> createAll(List<Record> records) throws RepositoryException, InterruptedException {
+        ArgumentValidator.notNull(records, "records");
+        long before = System.currentTimeMillis();
+        List<BatchEntry> entries = new ArrayList<BatchEntry>(records.size());
+        try {
+            // Validate everything up front, so that invalid input does not leave a partially executed batch
+            for (Record record : records) {
+                checkCreatePreconditions(record);
+            }
+
+            FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
+
+            for (Record record : records) {
+                RecordId recordId = record.getId() != null ? record.getId() : idGenerator.newRecordId();
+                entries.add(new BatchEntry(record, recordId, rowLocker.lockRow(recordId.toBytes())));
+            }
+
+            // Check the existence of all rows with one multi-get
+            List<BatchEntry> lockedEntries = new ArrayList<BatchEntry>(entries.size());
+            List<Get> gets = new ArrayList<Get>(entries.size());
+            for (BatchEntry entry : entries) {
+                if (entry.rowLock == null) {
+                    entry.conflict();
+                    continue;
+                }
+                Get get = new Get(entry.recordId.toBytes());
+                get.addColumn(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
+                get.addColumn(RecordCf.DATA.bytes, RecordColumn.VERSION.bytes);
+                gets.add(get);
+                lockedEntries.add(entry);
+            }
+            Result[] results = gets.isEmpty() ? new Result[0] : recordTable.get(gets);
+
+            for (int i = 0; i < lockedEntries.size(); i++) {
+                BatchEntry entry = lockedEntries.get(i);
+                Result result = results[i];
+
+                long version = 1L;
+                if (result != null && !result.isEmpty()) {
+                    byte[] recordDeleted = result.getValue(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
+                    if (recordDeleted != null && !Bytes.toBoolean(recordDeleted)) {
+                        entry.conflict();
+                        continue;
+                    }
+                    byte[] oldVersion = result.getValue(RecordCf.DATA.bytes, RecordColumn.VERSION.bytes);
+                    if (oldVersion != null) {
+                        version = Bytes.toLong(oldVersion) + 1;
+                        // See create(): clears data left behind by an incompletely executed delete
+                        clearData(entry.recordId, null);
+                    }
+                }
+
+                RecordEvent recordEvent = new RecordEvent();
+                recordEvent.setType(Type.CREATE);
+
+                for (RecordUpdateHook hook : updateHooks) {
+                    hook.beforeCreate(entry.record, this, fieldTypes, recordEvent);
+                }
+
+                Record newRecord = entry.record.cloneRecord();
+                newRecord.setId(entry.recordId);
+
+                Put put = new Put(entry.recordId.toBytes());
+                put.add(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes, 1L, Bytes.toBytes(false));
+                entry.newRecord = newRecord;
+                entry.put = put;
+                entry.recordEvent = recordEvent;
+
+                calculateRecordChanges(newRecord, newRecord(), version, put, recordEvent, entry.referencedBlobs,
+                        entry.unReferencedBlobs, false, fieldTypes);
+
+                if (entry.record.hasAttributes()) {
+                    recordEvent.setAttributes(entry.record.getAttributes());
+                }
+
+                recordEvent.setRecordTypeChanged(false);
+                Long newVersion = newRecord.getVersion();
+                if (newVersion != null)
+                    recordEvent.setVersionCreated(newVersion);
+
+                reserveBlobs(null, entry.referencedBlobs);
+            }
+
+            writeBatch(entries, ResponseStatus.CREATED);
+
+            return toResponseRecords(entries);
+        } catch (IOException e) {
+            throw new RecordException("Exception occurred while creating records in HBase table", e);
+        } catch (RowLogException e) {
+            throw new RecordException("Exception occurred while creating records in HBase table", e);
+        } catch (BlobException e) {
+            throw new RecordException("Exception occurred while creating records", e);
+        } finally {
+            unlockRows(entries);
+            metrics.report(Action.CREATE_ALL, System.currentTimeMillis() - before);
+        }
+    }
+
+    @Override
+    public List<Record> updateAll(List<Record> records) throws RepositoryException, InterruptedException {
+        ArgumentValidator.notNull(records, "records");
+        long before = System.currentTimeMillis();
+        List<BatchEntry> entries = new ArrayList<BatchEntry>(records.size());
+        try {
+            for (Record record : records) {
+                if (record.getId() == null) {
+                    throw new InvalidRecordException("The recordId cannot be null for a record to be updated.",
+                            record.getId());
+                }
+            }
+
+            FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
+
+            List<RecordId> lockedIds = new ArrayList<RecordId>(records.size());
+            for (Record record : records) {
+                BatchEntry entry = new BatchEntry(record, record.getId(), rowLocker.lockRow(record.getId().toBytes()));
+                entries.add(entry);
+                if (entry.rowLock == null) {
+                    entry.conflict();
+                } else {
+                    checkAndProcessOpenMessages(entry.recordId, entry.rowLock);
+                    lockedIds.add(entry.recordId);
+                }
+            }
+
+            // Read the current state of all records with one multi-get
+            Map<RecordId, Result> results = lockedIds.isEmpty() ?
+                    Collections.<RecordId, Result>emptyMap() : getRows(lockedIds, null);
+
+            for (BatchEntry entry : entries) {
+                if (entry.status != null)
+                    continue;
+
+                Result result = results.get(entry.recordId);
+                if (result == null) {
+                    entry.conflict();
+                    continue;
+                }
+
+                Record originalRecord = new UnmodifiableRecord(recdec.decodeRecord(entry.recordId,
+                        recdec.getLatestVersion(result), null, result, fieldTypes));
+
+                RecordEvent recordEvent = new RecordEvent();
+                recordEvent.setType(Type.UPDATE);
+
+                for (RecordUpdateHook hook : updateHooks) {
+                    hook.beforeUpdate(entry.record, originalRecord, this, fieldTypes, recordEvent);
+                }
+
+                Record newRecord = entry.record.cloneRecord();
+                entry.newRecord = newRecord;
+
+                Put put = new Put(entry.recordId.toBytes());
+                long newVersion = originalRecord.getVersion() == null ? 1 : originalRecord.getVersion() + 1;
+
+                if (calculateRecordChanges(newRecord, originalRecord, newVersion, put, recordEvent,
+                        entry.referencedBlobs, entry.unReferencedBlobs, true, fieldTypes)) {
+                    if (entry.record.hasAttributes()) {
+                        recordEvent.setAttributes(entry.record.getAttributes());
+                    }
+                    entry.put = put;
+                    entry.recordEvent = recordEvent;
+                    reserveBlobs(entry.recordId, entry.referencedBlobs);
+                } else {
+                    entry.status = ResponseStatus.UP_TO_DATE;
+                }
+            }
+
+            writeBatch(entries, ResponseStatus.UPDATED);
+
+            return toResponseRecords(entries);
+        } catch (IOException e) {
+            throw new RecordException("Exception occurred while updating records on HBase table", e);
+        } catch (RowLogException e) {
+            throw new RecordException("Exception occurred while updating records on HBase table", e);
+        } catch (BlobException e) {
+            throw new RecordException("Exception occurred while updating records", e);
+        } finally {
+            unlockRows(entries);
+            metrics.report(Action.UPDATE_ALL, System.currentTimeMillis() - before);
+        }
+    }
+
+    /**
+     * Writes the prepared entries of a createAll or updateAll batch: the WAL messages of all entries are put
+     * on the rowlog shards in one go, after which the rows themselves are put and the WAL messages processed.
+     */
+    private void writeBatch(List<BatchEntry> entries, ResponseStatus successStatus)
+            throws InterruptedException, RowLogException, IOException {
+        List<BatchEntry> toWrite = new ArrayList<BatchEntry>(entries.size());
+        List<byte[]> payloads = new ArrayList<byte[]>(entries.size());
+        List<Put> puts = new ArrayList<Put>(entries.size());
+        for (BatchEntry entry : entries) {
+            if (entry.status == null && entry.put != null) {
+                toWrite.add(entry);
+                payloads.add(entry.recordEvent.toJsonBytes());
+                puts.add(entry.put);
+            }
+        }
+
+        if (toWrite.isEmpty())
+            return;
+
+        List<RowLogMessage> walMessages = wal.putMessages(null, payloads, puts);
+
+        for (int i = 0; i < toWrite.size(); i++) {
+            BatchEntry entry = toWrite.get(i);
+            if (!rowLocker.put(entry.put, entry.rowLock)) {
+                // Same situation as the RecordException thrown by putRowWithWalProcessing, but we don't want to
+                // fail the other records of the batch. The message on the shard is left as an orphan.
+                log.warn("Invalid or expired lock trying to put record '" + entry.recordId + "' on HBase table");
+                entry.conflict();
+                continue;
+            }
+
+            blobManager.handleBlobReferences(entry.recordId, entry.referencedBlobs, entry.unReferencedBlobs);
+            entry.status = successStatus;
+
+            processWalMessage(walMessages.isEmpty() ? null : walMessages.get(i), entry.rowLock, entry.recordEvent);
+        }
+    }
+
+    private List<Record> toResponseRecords(List<BatchEntry> entries) {
+        List<Record> responses = new ArrayList<Record>(entries.size());
+        for (BatchEntry entry : entries) {
+            Record response = entry.newRecord != null ? entry.newRecord : entry.record.cloneRecord();
+            if (entry.newRecord == null && response.getId() == null) {
+                response.setId(entry.recordId);
+            }
+            response.setResponseStatus(entry.status);
+            response.getFieldsToDelete().clear();
+            responses.add(response);
+        }
+        return responses;
+    }
+
+    private void unlockRows(List<BatchEntry> entries) {
+        for (BatchEntry entry : entries) {
+            unlockRow(entry.rowLock);
+        }
+    }
+
+    /**
+     * The state of one record within a createAll or updateAll call.
+     */
+    private static class BatchEntry {
+        final Record record;
+        final RecordId recordId;
+        final RowLock rowLock;
+        final Set<BlobReference> referencedBlobs = new HashSet<BlobReference>();
+        final Set<BlobReference> unReferencedBlobs = new HashSet<BlobReference>();
+        Record newRecord;
+        Put put;
+        RecordEvent recordEvent;
+        /** The outcome for this record, null as long as it is not yet known. */
+        ResponseStatus status;
+
+        BatchEntry(Record record, RecordId recordId, RowLock rowLock) {
+            this.record = record;
+            this.recordId = recordId;
+            this.rowLock = rowLock;
+        }
+
+        void conflict() {
+            status = ResponseStatus.CONFLICT;
+            newRecord = null;
+        }
+    }
+
     // Calculates the changes that are to be made on the record-row and puts
     // this information on the Put object and the RecordEvent
     private boolean calculateRecordChanges(Record record, Record originalRecord, Long version, Put put,
@@ -47,6 +47,12 @@ public class InlineBlobStoreAccess implements BlobStoreAccess {
     public InputStream getInputStream(byte[] blobKey) throws BlobException {
         return new ByteArrayInputStream(blobKey);
     }
+
+    @Override
+    public InputStream getInputStream(byte[] blobKey, long offset) throws BlobException {
+        int start = (int)Math.min(offset, blobKey.length);
+        return new ByteArrayInputStream(blobKey, start, blobKey.length - start);
+    }
     
     @Override
     public void delete(byte[] blobKey) {
@@ -16,6 +16,7 @@
 package org.lilyproject.repository.impl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -24,10 +25,12 @@ import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
 
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.bytes.impl.DataInputImpl;
 import org.lilyproject.repository.api.FieldType;
 import org.lilyproject.repository.api.FieldTypes;
 import org.lilyproject.repository.api.IdGenerator;
@@ -53,6 +56,11 @@ import static org.lilyproject.util.hbase.LilyHBaseSchema.RecordColumn;
  *
  * <p>The methods in this class assume they are supplied with non-deleted records, thus where the
  * {@link LilyHBaseSchema.RecordColumn#DELETED} flag is false.</p>
+ *
+ * <p>When decoding a single version of a record, the fields are decoded directly from the KeyValues of the
+ * Result, reading qualifiers and values at their offset in the underlying byte arrays, so that only the
+ * resulting field values are allocated. This avoids {@link Result#getMap()}, which copies all qualifiers and
+ * values into a map.</p>
  */
 public class RecordDecoder {
     public static Map<Scope, byte[]> RECORD_TYPE_ID_QUALIFIERS = new EnumMap<Scope, byte[]>(Scope.class);
@@ -111,29 +119,38 @@ public class RecordDecoder {
         // All non-versioned fields are stored at version 1, so we extract the fields at version 1
         Long versionToRead = (requestedVersion == null) ? 1L : requestedVersion;
 
-        // Get a map of all fields with their values for each (cell-)version
-        NavigableMap<byte[], NavigableMap<Long, byte[]>> mapWithVersions = result.getMap().get(RecordCf.DATA.bytes);
-        if (mapWithVersions != null) {
-            // Iterate over all columns
-            for (Map.Entry<byte[], NavigableMap<Long, byte[]>> columnWithAllVersions : mapWithVersions.entrySet()) {
-                // Check if the retrieved column is from a data field, and not a system field
-                byte[] key = columnWithAllVersions.getKey();
-                if (key[0] == LilyHBaseSchema.RecordColumn.DATA_PREFIX) {
-                    NavigableMap<Long, byte[]> allValueVersions = columnWithAllVersions.getValue();
-                    // Get the entry for the version (can be a cell with a lower version number if the field was not changed)
-                    Map.Entry<Long, byte[]> ceilingEntry = allValueVersions.ceilingEntry(versionToRead);
-                    if (ceilingEntry != null) {
-                        // Extract and decode the value of the field
-                        Pair<FieldType, Object> field =
-                                extractField(key, ceilingEntry.getValue(), readContext, fieldTypes);
-                        if (field != null) {
-                            record.setField(field.getV1().getName(), field.getV2());
-                        }
-                    }
+        KeyValue[] keyValues = result.raw();
+        if (keyValues != null) {
+            KeyValue lastColumn = null;
+            // The KeyValues are sorted by column, and within a column from the highest to the lowest version
+            for (KeyValue kv : keyValues) {
+                // Check if the column is from a data field, and not a system field
+                byte[] buffer = kv.getBuffer();
+                int qualifierOffset = kv.getQualifierOffset();
+                int qualifierLength = kv.getQualifierLength();
+                if (qualifierLength == 0 || buffer[qualifierOffset] != RecordColumn.DATA_PREFIX
+                        || !kv.matchingFamily(RecordCf.DATA.bytes)) {
+                    continue;
+                }
+                // Take the first cell not higher than the version (can be a cell with a lower version number if
+                // the field was not changed), and skip the further cells of that column
+                if (kv.getTimestamp() > versionToRead || (lastColumn != null && Bytes.equals(buffer, qualifierOffset,
+                        qualifierLength, lastColumn.getBuffer(), lastColumn.getQualifierOffset(),
+                        lastColumn.getQualifierLength()))) {
+                    continue;
+                }
+                lastColumn = kv;
+
+                // Extract and decode the value of the field
+                Pair<FieldType, Object> field = extractField(buffer, qualifierOffset, qualifierLength, buffer,
+                        kv.getValueOffset(), kv.getValueLength(), readContext, fieldTypes);
+                if (field != null) {
+                    record.setField(field.getV1().getName(), field.getV2());
                 }
             }
         }
-        
+
+
         for (Scope scope : Scope.values()) {
             Pair<SchemaId, Long> recordTypePair =  requestedVersion == null ? extractLatestRecordType(scope, result) : 
                 extractVersionRecordType(scope, result, requestedVersion);
@@ -197,7 +214,6 @@ public class RecordDecoder {
         // Get a map of all fields with their values for each (cell-)version
         NavigableMap<byte[], NavigableMap<Long, byte[]>> mapWithVersions = result.getMap().get(RecordCf.DATA.bytes);
         if (mapWithVersions != null) {
-
             // Iterate over all columns
             for (Map.Entry<byte[], NavigableMap<Long, byte[]>> columnWithAllVersions : mapWithVersions.entrySet()) {
 
@@ -221,7 +237,9 @@ public class RecordDecoder {
                                     !lastDecodedFieldVersion.equals(ceilingEntry.getKey())) {
                                 // Not yet decoded, do it now
                                 lastDecodedFieldVersion = ceilingEntry.getKey();
-                                lastDecodedField = extractField(key, ceilingEntry.getValue(), null, fieldTypes);
+                                byte[] value = ceilingEntry.getValue();
+                                lastDecodedField = extractField(key, 0, key.length, value, 0, value.length, null,
+                                        fieldTypes);
                             }
                             if (lastDecodedField != null) {
                                 record.setField(lastDecodedField.getV1().getName(), lastDecodedField.getV2());
@@ -265,21 +283,42 @@ public class RecordDecoder {
         return new RecordImpl(recordId);
     }
 
-    private Pair<FieldType, Object> extractField(byte[] key, byte[] prefixedValue, ReadContext context,
-                                                 FieldTypes fieldTypes)
+    /**
+     * Decodes a field from its qualifier and prefixed value, which are given as a part of a byte array, without
+     * copying them.
+     */
+    private Pair<FieldType, Object> extractField(byte[] qualifierBuffer, int qualifierOffset, int qualifierLength,
+                                                 byte[] valueBuffer, int valueOffset, int valueLength,
+                                                 ReadContext context, FieldTypes fieldTypes)
             throws RepositoryException, InterruptedException {
-        byte prefix = prefixedValue[0];
+        byte prefix = valueBuffer[valueOffset];
         if (LilyHBaseSchema.DELETE_FLAG == prefix) {
             return null;
         }
-        FieldType fieldType = fieldTypes.getFieldType(new SchemaIdImpl(Bytes.tail(key, key.length - 1)));
+        // Skip the data prefix of the qualifier, the rest is the field type id
+        FieldType fieldType = getFieldType(qualifierBuffer, qualifierOffset + 1, qualifierLength - 1, fieldTypes);
         if (context != null)
-            context.addFieldType(fieldType);
+            context.addFieldType(fieldType.clone());
         ValueType valueType = fieldType.getValueType();
-        Object value = valueType.read(EncodingUtil.stripPrefix(prefixedValue));
+        Object value = valueType.read(new DataInputImpl(valueBuffer, valueOffset + 1, valueLength - 1));
         return new Pair<FieldType, Object>(fieldType, value);
     }
 
+    /**
+     * Looks up a field type by its id, given as a part of a byte array. The returned field type can be shared
+     * with the schema cache and should not be modified.
+     */
+    private FieldType getFieldType(byte[] buffer, int offset, int length, FieldTypes fieldTypes)
+            throws RepositoryException, InterruptedException {
+        if (fieldTypes instanceof FieldTypesImpl) {
+            FieldType fieldType = ((FieldTypesImpl)fieldTypes).getFieldTypeReturnNull(buffer, offset, length);
+            if (fieldType != null)
+                return fieldType;
+        }
+        // Not a snapshot of the schema cache, or an unknown field type, in which case this throws the exception
+        return fieldTypes.getFieldType(new SchemaIdImpl(Arrays.copyOfRange(buffer, offset, offset + length)));
+    }
+
     /**
      * Extracts the latest record type for a specific scope from the Result.
      */
@@ -292,26 +331,12 @@ public class RecordDecoder {
     }
 
     /**
-     * Gets the latest value for a family/qualifier from a Result object, using its
-     * getMap(). Most of the time this will be more efficient than using
-     * Result.getValue() since the map will need to built anyway when reading the
-     * record.
+     * Gets the latest value for a family/qualifier from a Result object. This looks up the KeyValue
+     * rather than using the Result's getMap(), so that the map does not need to be built.
      */
     public byte[] getLatest(Result result, byte[] family, byte[] qualifier) {
-        NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> map = result.getMap();
-        if (map == null)
-            return null;
-
-        NavigableMap<byte[], NavigableMap<Long, byte[]>> qualifiers = map.get(family);
-        if (qualifiers == null)
-            return null;
-
-        NavigableMap<Long, byte[]> timestamps = qualifiers.get(qualifier);
-        if (timestamps == null)
-            return null;
-
-        Map.Entry<Long, byte[]> entry = timestamps.lastEntry();
-        return entry == null ? null : entry.getValue();
+        KeyValue kv = result.getColumnLatest(family, qualifier);
+        return kv == null ? null : kv.getValue();
     }
 
     /**
@@ -344,41 +369,39 @@ public class RecordDecoder {
      * Extracts the record type for a specific version and a specific scope
      */
     public Pair<SchemaId, Long> extractVersionRecordType(Scope scope, Result result, Long version) {
-        NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> allVersionsMap = result.getMap();
-        NavigableMap<byte[], NavigableMap<Long, byte[]>> allColumnsAllVersionsMap = allVersionsMap
-                .get(RecordCf.DATA.bytes);
-
         byte[] recordTypeIdColumnName = RECORD_TYPE_ID_QUALIFIERS.get(scope);
         byte[] recordTypeVersionColumnName = RECORD_TYPE_VERSION_QUALIFIERS.get(scope);
         // Get recordTypeId
-        Map.Entry<Long, byte[]> idCeilingEntry = null;
-        NavigableMap<Long, byte[]> recordTypeIdMap = allColumnsAllVersionsMap.get(recordTypeIdColumnName);
-        if (recordTypeIdMap != null) {
-            idCeilingEntry = recordTypeIdMap.ceilingEntry(version);
-        }
-        SchemaId recordTypeId;
-        if (idCeilingEntry == null)
+        KeyValue idKv = getAtVersion(result, RecordCf.DATA.bytes, recordTypeIdColumnName, version);
+        if (idKv == null)
             return null; // No record type was found
-        recordTypeId = new SchemaIdImpl(idCeilingEntry.getValue());
+        SchemaId recordTypeId = new SchemaIdImpl(idKv.getValue());
 
         // Get recordTypeVersion
-        Long recordTypeVersion;
-        Map.Entry<Long, byte[]> versionCeilingEntry = null;
-        NavigableMap<Long, byte[]> recordTypeVersionMap = allColumnsAllVersionsMap.get(recordTypeVersionColumnName);
-        if (recordTypeVersionMap != null) {
-            versionCeilingEntry = recordTypeVersionMap.ceilingEntry(version);
-        }
-        if (versionCeilingEntry == null)
+        KeyValue versionKv = getAtVersion(result, RecordCf.DATA.bytes, recordTypeVersionColumnName, version);
+        if (versionKv == null)
             return null; // No record type was found, we should never get here: if there is an id there should also be a version
-        recordTypeVersion = Bytes.toLong(versionCeilingEntry.getValue());
+        Long recordTypeVersion = Bytes.toLong(versionKv.getBuffer(), versionKv.getValueOffset());
         Pair<SchemaId, Long> recordType = new Pair<SchemaId, Long>(recordTypeId, recordTypeVersion);
         return recordType;
     }
 
+    /**
+     * Gets the KeyValue with the highest version not higher than the given version for a family/qualifier
+     * from a Result object.
+     */
+    private KeyValue getAtVersion(Result result, byte[] family, byte[] qualifier, long version) {
+        // The cells of the column are sorted from the highest to the lowest version
+        for (KeyValue kv : result.getColumn(family, qualifier)) {
+            if (kv.getTimestamp() <= version)
+                return kv;
+        }
+        return null;
+    }
+
     public Long getLatestVersion(Result result) {
-        byte[] latestVersionBytes = getLatest(result, RecordCf.DATA.bytes, LilyHBaseSchema.RecordColumn.VERSION.bytes);
-        Long latestVersion = latestVersionBytes != null ? Bytes.toLong(latestVersionBytes) : null;
-        return latestVersion;
+        KeyValue kv = result.getColumnLatest(RecordCf.DATA.bytes, LilyHBaseSchema.RecordColumn.VERSION.bytes);
+        return kv != null ? Bytes.toLong(kv.getBuffer(), kv.getValueOffset()) : null;
     }
 
     public static void addSystemColumnsToGet(Get get) {
@@ -30,7 +30,7 @@ import org.lilyproject.util.hbase.metrics.MBeanUtil;
 import org.lilyproject.util.hbase.metrics.MetricsDynamicMBeanBase;
 
 public class RepositoryMetrics implements Updater {
-    public enum Action{CREATE, READ, UPDATE, DELETE};
+    public enum Action{CREATE, READ, UPDATE, DELETE, CREATE_ALL, UPDATE_ALL};
     public enum HBaseAction{PUT, GET, LOCK, UNLOCK};
     private final MetricsRegistry registry = new MetricsRegistry();
     private final MetricsRecord metricsRecord;
@@ -98,6 +98,36 @@ public class RemoteRepository extends BaseRepository {
         }
     }
 
+    @Override
+    public List<Record> createAll(List<Record> records) throws RepositoryException, InterruptedException {
+        try {
+            return converter.convertAvroRecords(lilyProxy.createAll(converter.convertRecords(records)));
+        } catch (AvroRepositoryException e) {
+            throw converter.convert(e);
+        } catch (AvroGenericException e) {
+            throw converter.convert(e);
+        } catch (AvroRemoteException e) {
+            throw handleAvroRemoteException(e);
+        } catch (UndeclaredThrowableException e) {
+            throw handleUndeclaredRecordThrowable(e);
+        }
+    }
+
+    @Override
+    public List<Record> updateAll(List<Record> records) throws RepositoryException, InterruptedException {
+        try {
+            return converter.convertAvroRecords(lilyProxy.updateAll(converter.convertRecords(records)));
+        } catch (AvroRepositoryException e) {
+            throw converter.convert(e);
+        } catch (AvroGenericException e) {
+            throw converter.convert(e);
+        } catch (AvroRemoteException e) {
+            throw handleAvroRemoteException(e);
+        } catch (UndeclaredThrowableException e) {
+            throw handleUndeclaredRecordThrowable(e);
+        }
+    }
+
     @Override
     public Record delete(RecordId recordId, List<MutationCondition> conditions)
             throws RepositoryException, InterruptedException {
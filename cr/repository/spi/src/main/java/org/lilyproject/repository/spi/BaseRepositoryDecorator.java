@@ -100,6 +100,16 @@ public class BaseRepositoryDecorator implements RepositoryDecorator {
         return delegate.createOrUpdate(record, useLatestRecordType);
     }
 
+    @Override
+    public List<Record> createAll(List<Record> records) throws RepositoryException, InterruptedException {
+        return delegate.createAll(records);
+    }
+
+    @Override
+    public List<Record> updateAll(List<Record> records) throws RepositoryException, InterruptedException {
+        return delegate.updateAll(records);
+    }
+
     @Override
     public Record read(RecordId recordId, List<QName> fieldNames) throws RepositoryException, InterruptedException {
         return delegate.read(recordId, fieldNames);
@@ -59,6 +59,7 @@ import org.lilyproject.repository.api.Scope;
 import org.lilyproject.repository.api.TypeManager;
 import org.lilyproject.repository.api.ValueType;
 import org.lilyproject.repository.api.VersionNotFoundException;
+import org.lilyproject.repository.api.filter.FieldExistsFilter;
 import org.lilyproject.repository.api.filter.FieldValueFilter;
 import org.lilyproject.repository.api.filter.RecordFilterList;
 import org.lilyproject.repository.api.filter.RecordIdPrefixFilter;
@@ -1521,6 +1522,50 @@ public abstract class AbstractRepositoryTest {
         assertEquals(ResponseStatus.UP_TO_DATE, resultRecord.getResponseStatus());
     }
 
+    @Test
+    public void testCreateAllAndUpdateAll() throws Exception {
+        RecordId existingId = idGenerator.newRecordId();
+        Record existing = repository.newRecord(existingId);
+        existing.setRecordType(recordType1.getName(), recordType1.getVersion());
+        existing.setField(fieldType1.getName(), "value0");
+        repository.create(existing);
+
+        List<Record> records = new ArrayList<Record>();
+        for (int i = 0; i < 3; i++) {
+            Record record = repository.newRecord();
+            record.setRecordType(recordType1.getName(), recordType1.getVersion());
+            record.setField(fieldType1.getName(), "value" + i);
+            records.add(record);
+        }
+        records.add(existing);
+
+        List<Record> created = repository.createAll(records);
+        assertEquals(4, created.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(ResponseStatus.CREATED, created.get(i).getResponseStatus());
+            assertNotNull(created.get(i).getId());
+            assertEquals("value" + i, repository.read(created.get(i).getId()).getField(fieldType1.getName()));
+        }
+        // The record which already existed gives a conflict
+        assertEquals(ResponseStatus.CONFLICT, created.get(3).getResponseStatus());
+        assertEquals(existingId, created.get(3).getId());
+
+        List<Record> updates = new ArrayList<Record>();
+        Record update = repository.newRecord(created.get(0).getId());
+        update.setField(fieldType1.getName(), "value0-updated");
+        updates.add(update);
+        updates.add(created.get(1));
+        updates.add(repository.newRecord(idGenerator.newRecordId()));
+        updates.get(2).setField(fieldType1.getName(), "value-nonexisting");
+
+        List<Record> updated = repository.updateAll(updates);
+        assertEquals(3, updated.size());
+        assertEquals(ResponseStatus.UPDATED, updated.get(0).getResponseStatus());
+        assertEquals(ResponseStatus.UP_TO_DATE, updated.get(1).getResponseStatus());
+        assertEquals(ResponseStatus.CONFLICT, updated.get(2).getResponseStatus());
+        assertEquals("value0-updated", repository.read(created.get(0).getId()).getField(fieldType1.getName()));
+    }
+
     @Test
     public void testUpdateMutableFieldsRecordType() throws Exception {
         Record record = repository.newRecord();
@@ -2329,6 +2374,38 @@ public abstract class AbstractRepositoryTest {
         assertEquals(3, countResults(repository.getScanner(scan)));
     }
 
+    @Test
+    public void testFieldExistsFilter() throws Exception {
+        FieldType fieldType =
+                typeManager.createFieldType("STRING", new QName("FieldExistsFilter", "field"), Scope.NON_VERSIONED);
+        FieldType otherFieldType =
+                typeManager.createFieldType("STRING", new QName("FieldExistsFilter", "other"), Scope.NON_VERSIONED);
+        RecordType rt = typeManager.recordTypeBuilder()
+                .defaultNamespace("FieldExistsFilter")
+                .name("rt1")
+                .fieldEntry().use(fieldType).add()
+                .fieldEntry().use(otherFieldType).add()
+                .create();
+
+        Record record =
+                repository.recordBuilder().recordType(rt.getName()).field(fieldType.getName(), "value1").create();
+        repository.recordBuilder().recordType(rt.getName()).field(fieldType.getName(), "value2").create();
+        repository.recordBuilder().recordType(rt.getName()).field(otherFieldType.getName(), "value3").create();
+
+        RecordScan scan = new RecordScan();
+        scan.setRecordFilter(new FieldExistsFilter(fieldType.getName()));
+        assertEquals(2, countResults(repository.getScanner(scan)));
+
+        // A deleted field does not exist anymore, even if a delete marker is left behind
+        record.getFieldsToDelete().add(fieldType.getName());
+        record.setField(otherFieldType.getName(), "whatever");
+        repository.update(record);
+
+        scan = new RecordScan();
+        scan.setRecordFilter(new FieldExistsFilter(fieldType.getName()));
+        assertEquals(1, countResults(repository.getScanner(scan)));
+    }
+
     @Test
     public void testFilterList() throws Exception {
         FieldType f1 = typeManager.createFieldType("STRING", new QName("FilterList", "field1"), Scope.NON_VERSIONED);
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lilyproject.hadooptestfw.TestHelper;
+import org.lilyproject.repository.api.Blob;
+import org.lilyproject.repository.api.BlobException;
+import org.lilyproject.repository.impl.ChunkedHBaseBlobStoreAccess;
+import org.lilyproject.repotestfw.RepositorySetup;
+import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ChunkedHBaseBlobStoreAccessTest {
+    private final static RepositorySetup repoSetup = new RepositorySetup();
+    private static ChunkedHBaseBlobStoreAccess blobStoreAccess;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestHelper.setupLogging();
+        repoSetup.setupCore();
+
+        blobStoreAccess = new ChunkedHBaseBlobStoreAccess(new HBaseTableFactoryImpl(repoSetup.getHadoopConf()),
+                false, 100);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        repoSetup.stop();
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        for (int size : new int[] {0, 1, 99, 100, 101, 1000, 1234}) {
+            byte[] data = randomBytes(size);
+            byte[] blobKey = write(data);
+
+            InputStream is = blobStoreAccess.getInputStream(blobKey);
+            assertArrayEquals("blob of size " + size, data, IOUtils.toByteArray(is));
+            is.close();
+        }
+    }
+
+    @Test
+    public void testSkip() throws Exception {
+        byte[] data = randomBytes(1234);
+        byte[] blobKey = write(data);
+
+        InputStream is = blobStoreAccess.getInputStream(blobKey);
+        assertEquals(550, is.skip(550));
+        assertEquals(data[550] & 0xFF, is.read());
+        assertEquals(100, is.skip(100));
+        byte[] rest = IOUtils.toByteArray(is);
+        assertArrayEquals(Arrays.copyOfRange(data, 651, data.length), rest);
+        assertEquals(0, is.skip(10));
+        assertEquals(-1, is.read());
+        is.close();
+    }
+
+    @Test
+    public void testReadFromOffset() throws Exception {
+        byte[] data = randomBytes(1234);
+        byte[] blobKey = write(data);
+
+        for (int offset : new int[] {0, 1, 100, 250, 1233}) {
+            InputStream is = blobStoreAccess.getInputStream(blobKey, offset);
+            assertArrayEquals(Arrays.copyOfRange(data, offset, data.length), IOUtils.toByteArray(is));
+            is.close();
+        }
+
+        InputStream is = blobStoreAccess.getInputStream(blobKey, 2000);
+        assertEquals(-1, is.read());
+        is.close();
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        byte[] blobKey = write(randomBytes(250));
+        blobStoreAccess.delete(blobKey);
+
+        try {
+            blobStoreAccess.getInputStream(blobKey);
+            fail("Expected an exception");
+        } catch (BlobException e) {
+            // expected
+        }
+    }
+
+    private byte[] write(byte[] data) throws Exception {
+        Blob blob = new Blob("application/octet-stream", (long)data.length, "test");
+        OutputStream os = blobStoreAccess.getOutputStream(blob);
+        // Write in pieces which don't align with the chunks
+        int pos = 0;
+        while (pos < data.length) {
+            int len = Math.min(33, data.length - pos);
+            os.write(data, pos, len);
+            pos += len;
+        }
+        os.close();
+        return blob.getValue();
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.test;
+
+import static org.easymock.classextension.EasyMock.createControl;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.easymock.classextension.IMocksControl;
+import org.junit.Test;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.api.ValueType;
+import org.lilyproject.repository.impl.FieldTypeImpl;
+import org.lilyproject.repository.impl.FieldTypesImpl;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
+
+public class FieldTypesImplTest {
+    private IMocksControl control = createControl();
+
+    @Test
+    public void testUpdateCreatesNewVersion() throws Exception {
+        ValueType valueType = control.createMock(ValueType.class);
+        control.replay();
+
+        List<FieldType> fieldTypes = new ArrayList<FieldType>();
+        for (int i = 0; i < 1000; i++) {
+            fieldTypes.add(new FieldTypeImpl(new SchemaIdImpl(UUID.randomUUID()), valueType,
+                    new QName("ns", "field" + i), Scope.NON_VERSIONED));
+        }
+
+        FieldTypesImpl empty = new FieldTypesImpl();
+        FieldTypesImpl v1 = empty.update(fieldTypes);
+        assertEquals(0, empty.getFieldTypes().size());
+        assertEquals(1000, v1.getFieldTypes().size());
+        for (FieldType fieldType : fieldTypes) {
+            assertEquals(fieldType, v1.getFieldType(fieldType.getId()));
+            assertEquals(fieldType, v1.getFieldType(fieldType.getName()));
+        }
+
+        // Rename one field type, the previous version should not be affected
+        FieldType renamed = fieldTypes.get(0).clone();
+        renamed.setName(new QName("ns", "renamed"));
+        FieldTypesImpl v2 = v1.update(Collections.singletonList(renamed));
+
+        assertEquals(1000, v2.getFieldTypes().size());
+        assertEquals(renamed.getName(), v2.getFieldType(renamed.getId()).getName());
+        assertTrue(v2.fieldTypeExists(renamed.getName()));
+        assertFalse(v2.fieldTypeExists(fieldTypes.get(0).getName()));
+        assertNull(v2.getFieldTypeByNameReturnNull(fieldTypes.get(0).getName()));
+
+        assertEquals(fieldTypes.get(0).getName(), v1.getFieldType(renamed.getId()).getName());
+        assertTrue(v1.fieldTypeExists(fieldTypes.get(0).getName()));
+        assertFalse(v1.fieldTypeExists(renamed.getName()));
+
+        // An empty update doesn't create a new version
+        assertSame(v2, v2.update(Collections.<FieldType>emptyList()));
+        control.verify();
+    }
+
+    @Test
+    public void testLookupByPartOfArray() throws Exception {
+        ValueType valueType = control.createMock(ValueType.class);
+        control.replay();
+
+        FieldType fieldType = new FieldTypeImpl(new SchemaIdImpl(UUID.randomUUID()), valueType,
+                new QName("ns", "field"), Scope.NON_VERSIONED);
+        FieldTypesImpl fieldTypes = new FieldTypesImpl().update(Collections.singletonList(fieldType));
+
+        // The id preceded and followed by other bytes, as in an HBase KeyValue
+        byte[] id = fieldType.getId().getBytes();
+        byte[] buffer = new byte[id.length + 10];
+        System.arraycopy(id, 0, buffer, 5, id.length);
+
+        assertSame(fieldType, fieldTypes.getFieldTypeReturnNull(buffer, 5, id.length));
+        assertNull(fieldTypes.getFieldTypeReturnNull(buffer, 4, id.length));
+        assertNull(fieldTypes.getFieldTypeReturnNull(buffer, 5, id.length - 1));
+        control.verify();
+    }
+}
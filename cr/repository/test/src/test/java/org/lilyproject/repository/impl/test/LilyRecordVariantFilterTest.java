@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.lilyproject.hbaseext.LilyRecordVariantFilter;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LilyRecordVariantFilterTest {
+    private final IdGenerator idGenerator = new IdGeneratorImpl();
+
+    @Test
+    public void testFilterRowKey() {
+        LilyRecordVariantFilter filter = new LilyRecordVariantFilter(variantProperties("lang", "en"));
+
+        RecordId master = idGenerator.newRecordId("foo");
+        assertTrue(filter.filterRowKey(master.toBytes(), 0, master.toBytes().length));
+
+        RecordId variant = idGenerator.newRecordId(master, variantProperties("lang", "en"));
+        assertFalse(filter.filterRowKey(variant.toBytes(), 0, variant.toBytes().length));
+
+        RecordId otherValue = idGenerator.newRecordId(master, variantProperties("lang", "nl"));
+        assertTrue(filter.filterRowKey(otherValue.toBytes(), 0, otherValue.toBytes().length));
+    }
+
+    /**
+     * The row key can be part of a larger buffer, e.g. the buffer of a KeyValue.
+     */
+    @Test
+    public void testFilterRowKeyWithOffset() {
+        Map<String, String> anyLang = new HashMap<String, String>();
+        anyLang.put("lang", null);
+        LilyRecordVariantFilter filter = new LilyRecordVariantFilter(anyLang);
+
+        RecordId userVariant = idGenerator.newRecordId(idGenerator.newRecordId("foo"),
+                variantProperties("lang", "en"));
+        assertFalse(filterRowKeyInBuffer(filter, userVariant, idGenerator.newRecordId("bar")));
+
+        RecordId uuidVariant = idGenerator.newRecordId(idGenerator.newRecordId(), variantProperties("lang", "en"));
+        assertFalse(filterRowKeyInBuffer(filter, uuidVariant, idGenerator.newRecordId()));
+
+        // The variant properties after the row key should not be seen
+        RecordId master = idGenerator.newRecordId("foo");
+        assertTrue(filterRowKeyInBuffer(filter, master, userVariant));
+
+        Map<String, String> twoProperties = variantProperties("lang", "en");
+        twoProperties.put("branch", "dev");
+        RecordId otherVariant = idGenerator.newRecordId(idGenerator.newRecordId("foo"), twoProperties);
+        assertTrue(filterRowKeyInBuffer(filter, otherVariant, userVariant));
+    }
+
+    /**
+     * Calls filterRowKey with the row key in the middle of a buffer, between the bytes of other record ids.
+     */
+    private boolean filterRowKeyInBuffer(LilyRecordVariantFilter filter, RecordId recordId, RecordId other) {
+        byte[] rowKey = recordId.toBytes();
+        byte[] otherBytes = other.toBytes();
+        byte[] buffer = new byte[otherBytes.length + rowKey.length + otherBytes.length];
+        System.arraycopy(otherBytes, 0, buffer, 0, otherBytes.length);
+        System.arraycopy(rowKey, 0, buffer, otherBytes.length, rowKey.length);
+        System.arraycopy(otherBytes, 0, buffer, otherBytes.length + rowKey.length, otherBytes.length);
+
+        return filter.filterRowKey(buffer, otherBytes.length, rowKey.length);
+    }
+
+    private Map<String, String> variantProperties(String name, String value) {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(name, value);
+        return properties;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.hbaseindex.filter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.filter.FilterBase;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * HBase filter which only lets through the rows starting with one of a set of prefixes, seeking from one prefix
+ * to the next one, so that several prefix scans can be done with a single scanner.
+ *
+ * <p>Since it relies on seek hints, this filter should be the only filter of the scan (not part of a FilterList).
+ * The scan should start at the smallest prefix.</p>
+ */
+public class RowPrefixesFilter extends FilterBase {
+    /** The sorted prefixes, without prefixes which are extensions of other ones. */
+    private byte[][] prefixes;
+
+    /** Index of the prefix which is currently being scanned, or of the next prefix to seek to. */
+    private int current;
+
+    private boolean done;
+
+    public RowPrefixesFilter(List<byte[]> prefixes) {
+        SortedSet<byte[]> sorted = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+        sorted.addAll(prefixes);
+
+        List<byte[]> result = new ArrayList<byte[]>(sorted.size());
+        for (byte[] prefix : sorted) {
+            // A prefix which is an extension of the previous one only matches rows the previous one also matches
+            if (result.isEmpty()
+                    || compareToPrefix(prefix, 0, prefix.length, result.get(result.size() - 1)) != 0) {
+                result.add(prefix);
+            }
+        }
+        this.prefixes = result.toArray(new byte[result.size()][]);
+    }
+
+    public RowPrefixesFilter() {
+        // for hbase readFields
+    }
+
+    /**
+     * The smallest prefix, which is the row at which the scan should start.
+     */
+    public byte[] getFirstPrefix() {
+        return prefixes.length > 0 ? prefixes[0] : new byte[0];
+    }
+
+    @Override
+    public ReturnCode filterKeyValue(KeyValue keyValue) {
+        while (current < prefixes.length) {
+            byte[] prefix = prefixes[current];
+            int prefixCompare = compareToPrefix(keyValue.getBuffer(), keyValue.getRowOffset(),
+                    keyValue.getRowLength(), prefix);
+            if (prefixCompare == 0) {
+                return ReturnCode.INCLUDE;
+            } else if (prefixCompare < 0) {
+                // the row comes before the current prefix: seek to it
+                return ReturnCode.SEEK_NEXT_USING_HINT;
+            } else {
+                // the row comes after all rows starting with the current prefix
+                current++;
+            }
+        }
+
+        done = true;
+        return ReturnCode.NEXT_ROW;
+    }
+
+    @Override
+    public KeyValue getNextKeyHint(KeyValue currentKV) {
+        return KeyValue.createFirstOnRow(prefixes[current]);
+    }
+
+    @Override
+    public boolean filterAllRemaining() {
+        return done;
+    }
+
+    /**
+     * Compares a row with a prefix, returns 0 if the row starts with the prefix.
+     */
+    private static int compareToPrefix(byte[] buffer, int offset, int length, byte[] prefix) {
+        int compareLength = Math.min(length, prefix.length);
+        int result = Bytes.compareTo(buffer, offset, compareLength, prefix, 0, compareLength);
+        if (result == 0 && length < prefix.length) {
+            // the row is a prefix of the prefix, hence smaller
+            return -1;
+        }
+        return result;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(prefixes.length);
+        for (byte[] prefix : prefixes) {
+            Bytes.writeByteArray(out, prefix);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int count = in.readInt();
+        prefixes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            prefixes[i] = Bytes.readByteArray(in);
+        }
+        current = 0;
+        done = false;
+    }
+}
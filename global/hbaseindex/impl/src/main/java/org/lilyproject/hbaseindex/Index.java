@@ -35,6 +35,7 @@ import org.apache.hadoop.hbase.filter.FilterList;
 import org.apache.hadoop.hbase.filter.RowFilter;
 import org.apache.hadoop.hbase.filter.WhileMatchFilter;
 import org.lilyproject.hbaseindex.filter.IndexFilterHbaseImpl;
+import org.lilyproject.hbaseindex.filter.RowPrefixesFilter;
 import org.lilyproject.util.ArgumentValidator;
 import org.lilyproject.util.ByteArrayKey;
 
@@ -288,6 +289,69 @@ public class Index {
         return new ScannerQueryResult(htable.getScanner(scan), definition);
     }
 
+    /**
+     * Performs a number of queries using one scanner, rather than one scanner per query. The scanner seeks from the
+     * entries of one query to those of the next one.
+     *
+     * <p>The queries can only contain equals conditions, no range condition or index filter. The results of all
+     * queries are returned together, in index order, with the entries matching several of the queries returned only
+     * once. Use {@link QueryResult#getIndexField} to find out to which query a result belongs.
+     */
+    public QueryResult performQueries(List<Query> queries) throws IOException {
+        ArgumentValidator.notNull(queries, "queries");
+        if (queries.isEmpty()) {
+            throw new IllegalArgumentException("At least one query is required.");
+        }
+
+        List<byte[]> prefixes = new ArrayList<byte[]>(queries.size());
+        for (Query query : queries) {
+            prefixes.add(buildEqualsPrefix(query));
+        }
+
+        RowPrefixesFilter filter = new RowPrefixesFilter(prefixes);
+        // The prefixes filter is the only filter: seek hints are not supported from within a FilterList
+        Scan scan = new Scan(filter.getFirstPrefix());
+        scan.setFilter(filter);
+        scan.setCaching(30);
+
+        return new ScannerQueryResult(htable.getScanner(scan), definition);
+    }
+
+    /**
+     * Builds the key prefix shared by all entries matching a query which consists of equals conditions only.
+     */
+    private byte[] buildEqualsPrefix(Query query) throws IOException {
+        validateQuery(query);
+
+        if (query.getRangeCondition() != null || query.getIndexFilter() != null) {
+            throw new MalformedQueryException("Queries performed together can only contain equals conditions.");
+        }
+
+        final StructBuilder keyStructBuilder = new StructBuilder();
+        final List<Object> keyComponents = new ArrayList<Object>(definition.getFields().size());
+
+        for (IndexFieldDefinition fieldDef : definition.getFields()) {
+            final Query.EqualsCondition eqCond = query.getCondition(fieldDef.getName());
+            if (eqCond == null) {
+                break;
+            }
+            checkQueryValueType(fieldDef, eqCond.getValue());
+            final RowKey key = fieldDef.asRowKey();
+            key.setTermination(Termination.MUST);
+            keyStructBuilder.add(key);
+            keyComponents.add(eqCond.getValue());
+        }
+
+        if (keyComponents.size() < query.getEqConditions().size()) {
+            throw new MalformedQueryException("The query contains equals conditions on fields which do not "
+                    + "immediately follow on the previous equals condition.");
+        }
+
+        final StructRowKey rk = keyStructBuilder.toRowKey();
+        rk.setTermination(Termination.MUST);
+        return rk.serialize(keyComponents.toArray());
+    }
+
     /**
      * Validates that all fields used in the query actually exist in the index definition.
      *
@@ -290,6 +290,57 @@ public class IndexTest {
         assertResultSize(3, result);
     }
 
+    @Test
+    public void testPerformQueries() throws Exception {
+        final String INDEX_NAME = "performQueries";
+        IndexManager indexManager = new IndexManager(HBASE_PROXY.getConf());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME);
+        indexDef.addIntegerField("field1");
+        indexDef.addStringField("field2");
+
+        Index index = indexManager.getIndex(indexDef);
+
+        int[] values1 = {1, 2, 2, 3, 4, 5};
+        String[] values2 = {"a", "a", "b", "a", "a", "c"};
+        for (int i = 0; i < values1.length; i++) {
+            IndexEntry entry = new IndexEntry(indexDef);
+            entry.addField("field1", values1[i]);
+            entry.addField("field2", values2[i]);
+            entry.setIdentifier(Bytes.toBytes("key" + i));
+            index.addEntry(entry);
+        }
+
+        Query query1 = new Query();
+        query1.addEqualsCondition("field1", 4);
+
+        Query query2 = new Query();
+        query2.addEqualsCondition("field1", 2);
+
+        // overlaps with query2
+        Query query3 = new Query();
+        query3.addEqualsCondition("field1", 2);
+        query3.addEqualsCondition("field2", "b");
+
+        // no results
+        Query query4 = new Query();
+        query4.addEqualsCondition("field1", 5);
+        query4.addEqualsCondition("field2", "a");
+
+        QueryResult result = index.performQueries(Arrays.asList(query1, query2, query3, query4));
+        assertResultIds(result, "key1", "key2", "key4");
+
+        // A range condition is not supported
+        Query rangeQuery = new Query();
+        rangeQuery.setRangeCondition("field1", 1, 3);
+        try {
+            index.performQueries(Arrays.asList(query1, rangeQuery));
+            fail("Expected a MalformedQueryException");
+        } catch (MalformedQueryException e) {
+            // expected
+        }
+    }
+
     @Test
     public void testDeleteFromIndex() throws Exception {
         final String INDEX_NAME = "deleteFromIndex";
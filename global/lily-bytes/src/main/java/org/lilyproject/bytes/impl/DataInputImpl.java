@@ -44,14 +44,14 @@ public class DataInputImpl implements DataInput {
     private static final long HALF_MASK = 0x3FFL;
 
     private final byte[] source; // The underlying byte[]
-    private int startPosition;
+    // Positions are absolute positions in the source: a DataInput on a part of a byte[] does not copy that part
     private int pos; // Position of the next value to be read
-    private int size;
+    private int size; // Position up to which can be read
 
     // Character array build while reading a string.
     // The same char array is reused for each read, avoiding to allocated a new array each time.
-    // It is resized it when needed.
-    private char[] chararr = new char[80];
+    // It is created on the first string read, and resized when needed.
+    private char[] chararr;
 
     /**
      * Constructor for the {@link DataInput}.
@@ -65,7 +65,8 @@ public class DataInputImpl implements DataInput {
 
     /**
      * Constructor for the {@link DataInput} based on a part of a byte[] (from startPosition to startPostion + size).
-     * The source should have been created using {@link DataOutputImpl}.
+     * The source should have been created using {@link DataOutputImpl}. The part is not copied, and
+     * {@link #getPosition()} and {@link #getSize()} are positions in the source.
      *
      * @param source        the underlying byte[] from which the data will be read.
      * @param startPosition start position in the source byte[]
@@ -73,24 +74,22 @@ public class DataInputImpl implements DataInput {
      */
     public DataInputImpl(byte[] source, int startPosition, int size) {
         this.source = source;
-        this.startPosition = startPosition;
-        this.size = size;
-        this.pos = 0;
+        this.size = startPosition + size;
+        this.pos = startPosition;
     }
 
     /**
      * Constructor for the {@link DataInput} based on an existing DataInputImpl.
      * Its source (the underlying byte[]) is the same as for the given dataInput.
      *
-     * @param startPosition position within the source, relative to the startPosition of the given dataInput
-     * @param size          the size of the DataInput
-     *                      The source is a sub-array of the underlying byte[] from which the data will be read,
-     *                      limited between startPosition en startPosition+length
-     *                      It should have been created using {@link DataOutputImpl}.
+     * @param startPosition position within the source
+     * @param size          the position in the source up to which can be read
+     *                      The data will be read from the underlying byte[], limited between startPosition
+     *                      and size. It should have been created using {@link DataOutputImpl}.
      */
     public DataInputImpl(DataInputImpl dataInput, int startPosition, int size) {
         this.source = dataInput.source;
-        this.pos = dataInput.startPosition + startPosition;
+        this.pos = startPosition;
         this.size = size;
     }
 
@@ -132,7 +131,7 @@ public class DataInputImpl implements DataInput {
         int count = pos;
         int endPos = pos + utflen;
         // Resize the chararr if it is not large enough.
-        if (chararr.length < utflen) {
+        if (chararr == null || chararr.length < utflen) {
             chararr = new char[utflen * 2];
         }
 
@@ -138,6 +138,24 @@ public class HBaseRowLocker implements RowLocker {
         return table.checkAndPut(lock.getRowKey(), family, qualifier, lock.getPermit(), put);
     }
     
+    @Override
+    public RowLock putAndLock(Put put, byte[] checkFamily, byte[] checkQualifier) throws IOException {
+        byte[] rowKey = put.getRow();
+        RowLock rowLock = RowLock.createRowLock(rowKey);
+        put.add(family, qualifier, 1L, rowLock.getPermit());
+        if (table.checkAndPut(rowKey, checkFamily, checkQualifier, null, put)) {
+            if (metrics != null) {
+                metrics.optimisticLocks.inc();
+            }
+            return rowLock;
+        }
+
+        if (metrics != null) {
+            metrics.optimisticLockConflicts.inc();
+        }
+        return null;
+    }
+
     @Override
     public boolean delete(Delete delete, RowLock lock) throws IOException {
         if (!Bytes.equals(delete.getRow(), lock.getRowKey()))
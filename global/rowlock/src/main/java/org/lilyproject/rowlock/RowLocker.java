@@ -44,5 +44,15 @@ public interface RowLocker {
 
     boolean put(Put put, RowLock lock) throws IOException;
 
+    /**
+     * Performs the put and locks its row in one atomic operation, on condition that the given check column
+     * does not exist on the row. This allows to write and lock a row which is expected to be new, without
+     * first having to lock it and read it.
+     *
+     * <p>The lock is only obtained, and the put only performed, if the returned RowLock is not null. In
+     * case of a null result, the caller should fall back to the regular lockRow path.
+     */
+    RowLock putAndLock(Put put, byte[] checkFamily, byte[] checkQualifier) throws IOException;
+
     boolean delete(Delete delete, RowLock lock) throws IOException;
 }
@@ -34,6 +34,11 @@ public class RowLockerMetrics implements Updater {
     private final MetricsContext context;
 
     public MetricsTimeVaryingLong contentions = new MetricsTimeVaryingLong("contentions", registry);
+    /** Rows written and locked in one go by {@link RowLocker#putAndLock}. */
+    public MetricsTimeVaryingLong optimisticLocks = new MetricsTimeVaryingLong("optimisticLocks", registry);
+    /** Calls to {@link RowLocker#putAndLock} which failed because the row already existed. */
+    public MetricsTimeVaryingLong optimisticLockConflicts =
+            new MetricsTimeVaryingLong("optimisticLockConflicts", registry);
 
     public RowLockerMetrics() {
         context = MetricsUtil.getContext("rowLocker");
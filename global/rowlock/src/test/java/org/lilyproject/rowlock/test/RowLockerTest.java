@@ -130,6 +130,26 @@ public class RowLockerTest {
         assertFalse(locker.put(put, lock2));
     }
     
+    @Test
+    public void testPutAndLock() throws IOException {
+        HBaseRowLocker locker = new HBaseRowLocker(table, family, qualifier, 60000L);
+        byte[] rowKey = Bytes.toBytes("testPutAndLock");
+        byte[] checkQualifier = Bytes.toBytes("testQualifier");
+
+        Put put = new Put(rowKey);
+        put.add(family, checkQualifier, Bytes.toBytes("testValue"));
+        RowLock lock = locker.putAndLock(put, family, checkQualifier);
+        assertNotNull(lock);
+        assertTrue(locker.isLocked(rowKey));
+        locker.unlockRow(lock);
+
+        // The check column exists now, so a second attempt should fail and leave the row unlocked
+        put = new Put(rowKey);
+        put.add(family, checkQualifier, Bytes.toBytes("testValue2"));
+        assertNull(locker.putAndLock(put, family, checkQualifier));
+        assertFalse(locker.isLocked(rowKey));
+    }
+
     @Test
     public void testPutLockOtherRow() throws IOException {
         HBaseRowLocker locker = new HBaseRowLocker(table, family, qualifier, 60000L);
@@ -118,6 +118,23 @@ public interface RowLog {
     RowLogMessage putMessage(byte[] rowKey, byte[] data, byte[] payload, Put put,
             List<String> subscriptionIds) throws RowLogException, InterruptedException;
 
+    /**
+     * Batch variant of {@link #putMessage(byte[], byte[], byte[], Put)}, which puts one message for each of the
+     * given Put objects. The row of each message is the row of its Put.
+     *
+     * <p>The messages destined for the same {@link RowLogShard} are written to it using a single multi-put,
+     * rather than doing one put per message. As with the single variant, the payload and execution state are
+     * added to the supplied Put objects, which should be applied by the caller afterwards.
+     *
+     * @param data informative data per message, can be null, otherwise should have the same size as puts
+     * @param payloads the payload for each message, should have the same size as puts
+     * @param puts the Put objects for the rows the messages are about, null is not allowed
+     * @return the created messages, in the same order as the puts. The returned list is empty if there
+     * are no subscriptions.
+     */
+    List<RowLogMessage> putMessages(List<byte[]> data, List<byte[]> payloads, List<Put> puts)
+            throws RowLogException, InterruptedException;
+
     /**
      * Request each registered {@link RowLogMessageListener} to process a {@link RowLogMessage} explicitly. 
      * This method can be called independently from a {@link RowLogProcessor} and can be used for instance when a message
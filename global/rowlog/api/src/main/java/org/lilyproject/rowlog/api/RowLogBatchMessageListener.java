@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.api;
+
+import java.util.List;
+
+/**
+ * A {@link RowLogMessageListener} which can process several messages of the same row in one go.
+ *
+ * <p>When the RowLogProcessor finds several messages of the same row waiting to be processed, it can
+ * offer them together to the listener (if configured to do so). This allows the listener to do the work
+ * once for the row rather than once for each message, e.g. when the same record was updated several times
+ * in quick succession. Listeners which do not implement this interface get the messages one by one.</p>
+ */
+public interface RowLogBatchMessageListener extends RowLogMessageListener {
+    /**
+     * Request the listener to process the given messages, which all belong to the same row, and which are
+     * given in the order they have been put on the rowlog.
+     *
+     * @return true if all messages were processed and should not be offered again for processing, false if
+     * they should all be re-offered again later
+     */
+    boolean processMessages(List<RowLogMessage> messages) throws InterruptedException;
+}
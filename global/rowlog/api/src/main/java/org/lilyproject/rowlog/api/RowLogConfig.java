@@ -26,6 +26,8 @@ public class RowLogConfig {
     private long wakeupTimeout;
     private long orphanedMessageDelay;
     private int deleteBufferSize;
+    private int putBatchSize;
+    private long putBatchLinger;
 
     /**
      * A value object bundling the configuration paramaters for a rowlog and its processors.
@@ -43,6 +45,21 @@ public class RowLogConfig {
      */
     public RowLogConfig(boolean respsectOrder, boolean enableNotify, long notifyDelay, long minimalProcessDelay,
             long wakeupTimeout, long orphanedMessageDelay, int deleteBufferSize) {
+        this(respsectOrder, enableNotify, notifyDelay, minimalProcessDelay, wakeupTimeout, orphanedMessageDelay,
+                deleteBufferSize, 100, 0L);
+    }
+
+    /**
+     * @param putBatchSize maximum number of message puts that concurrent writers to the same rowlog shard can
+     *                     have combined into one multi-put on HBase. A value of 1 or less disables this.
+     * @param putBatchLinger time to wait for other writers to join a batch of message puts before sending it to
+     *                       HBase. With 0, a batch consists of the puts that arrived while the previous batch
+     *                       was being written.
+     * @see #RowLogConfig(boolean, boolean, long, long, long, long, int)
+     */
+    public RowLogConfig(boolean respsectOrder, boolean enableNotify, long notifyDelay, long minimalProcessDelay,
+            long wakeupTimeout, long orphanedMessageDelay, int deleteBufferSize, int putBatchSize,
+            long putBatchLinger) {
         this.respectOrder = respsectOrder;
         this.enableNotify = enableNotify;
         this.notifyDelay = notifyDelay;
@@ -50,6 +67,8 @@ public class RowLogConfig {
         this.wakeupTimeout = wakeupTimeout;
         this.orphanedMessageDelay = orphanedMessageDelay;
         this.deleteBufferSize = deleteBufferSize;
+        this.putBatchSize = putBatchSize;
+        this.putBatchLinger = putBatchLinger;
     }
 
     public boolean isRespectOrder() {
@@ -108,10 +127,26 @@ public class RowLogConfig {
         this.deleteBufferSize = deleteBufferSize;
     }
 
+    public int getPutBatchSize() {
+        return putBatchSize;
+    }
+
+    public void setPutBatchSize(int putBatchSize) {
+        this.putBatchSize = putBatchSize;
+    }
+
+    public long getPutBatchLinger() {
+        return putBatchLinger;
+    }
+
+    public void setPutBatchLinger(long putBatchLinger) {
+        this.putBatchLinger = putBatchLinger;
+    }
+
     @Override
     public int hashCode() {
         return Objects.hashCode(enableNotify, minimalProcessDelay, notifyDelay, wakeupTimeout, orphanedMessageDelay,
-                respectOrder, deleteBufferSize);
+                respectOrder, deleteBufferSize, putBatchSize, putBatchLinger);
     }
 
     @Override
@@ -129,7 +164,9 @@ public class RowLogConfig {
                 && Objects.equal(wakeupTimeout, other.wakeupTimeout)
                 && Objects.equal(orphanedMessageDelay, other.orphanedMessageDelay)
                 && Objects.equal(respectOrder, other.respectOrder)
-                && Objects.equal(deleteBufferSize, other.deleteBufferSize);
+                && Objects.equal(deleteBufferSize, other.deleteBufferSize)
+                && Objects.equal(putBatchSize, other.putBatchSize)
+                && Objects.equal(putBatchLinger, other.putBatchLinger);
     }
 
     @Override
@@ -137,6 +174,7 @@ public class RowLogConfig {
         return "RowLogConfig [respectOrder=" + respectOrder + ", enableNotify="
                 + enableNotify + ", notifyDelay=" + notifyDelay + ", minimalProcessDelay=" + minimalProcessDelay +
                 ", wakeupTimeout=" + wakeupTimeout + ", orphanedMessageDelay=" + orphanedMessageDelay +
-                ", deleteBufferSize=" + deleteBufferSize + "]";
+                ", deleteBufferSize=" + deleteBufferSize + ", putBatchSize=" + putBatchSize +
+                ", putBatchLinger=" + putBatchLinger + "]";
     }
 }
@@ -203,6 +203,19 @@ public interface RowLogConfigurationManager {
      */
     List<String> getListeners(final String rowLogId, final String subscriptionId) throws KeeperException, InterruptedException;
     
+    /**
+     * Claims a node id, between 0 (inclusive) and maxNodeIds (exclusive), which is not in use by any other
+     * claimer for the same rowlog. The claim is held by an ephemeral node, so it is released when the ZooKeeper
+     * session ends, or by calling {@link RowLogNodeIdClaim#release}. The returned claim takes care of claiming
+     * a node id again when the session expired, see {@link RowLogNodeIdClaim#getNodeId}.
+     *
+     * <p>This method blocks if the ZK connection is down.
+     *
+     * @throws RowLogException if all node ids are in use
+     */
+    RowLogNodeIdClaim claimNodeId(String rowLogId, int maxNodeIds) throws RowLogException, InterruptedException,
+            KeeperException;
+
     /**
      * Notify the processor that a new message has been put on the rowlog for the given subscription.
      * <p>If the processor was in a wait mode, it will wake up and check the rowlog for new messages.
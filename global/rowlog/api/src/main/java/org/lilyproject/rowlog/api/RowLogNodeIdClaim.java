@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.api;
+
+/**
+ * A node id claimed through {@link RowLogConfigurationManager#claimNodeId}.
+ *
+ * <p>The claim is bound to a ZooKeeper session. When that session expires, other claimers can obtain the same
+ * node id, so the node id can not be used anymore until it has been claimed again in the new session, which
+ * might give another node id.</p>
+ */
+public interface RowLogNodeIdClaim {
+    /**
+     * Returns the claimed node id.
+     *
+     * <p>While the ZooKeeper connection is lost, the claim can not be relied on, so this method waits for the
+     * connection to come back. If the session expired, it claims a node id again once connected with a new
+     * session. It waits at most the given timeout for either.</p>
+     *
+     * @throws RowLogException if no valid node id is available within the timeout
+     */
+    int getNodeId(long timeout) throws RowLogException, InterruptedException;
+
+    /**
+     * Releases the claim. Afterwards, {@link #getNodeId} should not be called anymore.
+     */
+    void release() throws InterruptedException;
+}
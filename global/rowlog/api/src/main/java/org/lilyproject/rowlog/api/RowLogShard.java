@@ -44,6 +44,13 @@ public interface RowLogShard {
      */
     void putMessage(RowLogMessage message) throws RowLogException;
 
+    /**
+     * Puts a list of RowLogMessages onto the table, using one multi-put for all of them.
+     *
+     * @param subscriptionIds the subscriptions for which to put the messages, the same for all messages
+     */
+    void putMessages(List<RowLogMessage> messages, List<String> subscriptionIds) throws RowLogException;
+
     /**
      * Removes the RowLogMessage from the table for the indicated subscription.
      * 
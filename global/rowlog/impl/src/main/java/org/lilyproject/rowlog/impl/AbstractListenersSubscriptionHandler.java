@@ -15,6 +15,7 @@
  */
 package org.lilyproject.rowlog.impl;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -27,7 +28,7 @@ import org.lilyproject.rowlog.api.RowLogConfigurationManager;
 
 public abstract class AbstractListenersSubscriptionHandler extends AbstractSubscriptionHandler implements ListenersObserver {
     protected RowLogConfigurationManager rowLogConfigurationManager;
-    private Map<String, Worker> listeners = new ConcurrentHashMap<String, Worker>();
+    private Map<String, List<Worker>> listeners = new ConcurrentHashMap<String, List<Worker>>();
     protected volatile boolean stop = false;
     private Log log = LogFactory.getLog(getClass());
 
@@ -69,18 +70,35 @@ public abstract class AbstractListenersSubscriptionHandler extends AbstractSubsc
     }
 
     protected void submitWorker(String listener) {
-        Worker worker = new Worker(subscriptionId, listener);
-        worker.start();
-        listeners.put(listener, worker);
+        int workerCount = getWorkersPerListener();
+        List<Worker> workers = new ArrayList<Worker>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            Worker worker = new Worker(subscriptionId, listener);
+            worker.start();
+            workers.add(worker);
+        }
+        listeners.put(listener, workers);
+    }
+
+    /**
+     * The number of workers to start for each listener. Each worker handles one message at a time, so this
+     * is the number of messages that can be handed to a single listener concurrently. The workers take their
+     * messages from the same {@link MessagesWorkQueue}, so messages of the same row are still never processed
+     * concurrently.
+     */
+    protected int getWorkersPerListener() {
+        return 1;
     }
 
     protected void listenerUnregistered(String listenerId) {
-        Worker worker = listeners.get(listenerId);
-        if (worker != null) {
-            try {
-                worker.stop();
-            } catch (InterruptedException e) {
-                log.info("Interrupted while stopping subscription handler worker.", e);
+        List<Worker> workers = listeners.get(listenerId);
+        if (workers != null) {
+            for (Worker worker : workers) {
+                try {
+                    worker.stop();
+                } catch (InterruptedException e) {
+                    log.info("Interrupted while stopping subscription handler worker.", e);
+                }
             }
             listeners.remove(listenerId);
         }
@@ -15,6 +15,10 @@
  */
 package org.lilyproject.rowlog.impl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.lilyproject.rowlog.api.*;
@@ -27,6 +31,7 @@ public abstract class AbstractSubscriptionHandler implements SubscriptionHandler
     protected final MessagesWorkQueue messagesWorkQueue;
     private Log log = LogFactory.getLog(AbstractSubscriptionHandler.class);
 	private SubscriptionHandlerMetrics metrics;
+    private volatile int maxMessagesPerRow = 1;
     
     public AbstractSubscriptionHandler(String subscriptionId, MessagesWorkQueue messagesWorkQueue, RowLog rowLog) {
         this.rowLog = rowLog;
@@ -36,6 +41,16 @@ public abstract class AbstractSubscriptionHandler implements SubscriptionHandler
         this.metrics = new SubscriptionHandlerMetrics(rowLog.getId() + "_" + subscriptionId);
     }
 
+    /**
+     * Sets the maximum number of messages of the same row that are handed over to the listener together.
+     * When a worker takes a message from the {@link MessagesWorkQueue}, other messages of the same row which
+     * are waiting in the queue are taken along, up to this number. Default is 1, i.e. messages are always
+     * processed one by one. See also {@link RowLogBatchMessageListener}.
+     */
+    public void setMaxMessagesPerRow(int maxMessagesPerRow) {
+        this.maxMessagesPerRow = Math.max(1, maxMessagesPerRow);
+    }
+
     /**
      * Called once on the setup of a worker, thus the WorkerDelegate is suited for keeping any
      * per-worker state. Since a worker only processes one message at a time, this means per-message
@@ -46,6 +61,14 @@ public abstract class AbstractSubscriptionHandler implements SubscriptionHandler
     protected static interface WorkerDelegate {
         boolean processMessage(RowLogMessage message) throws RowLogException, InterruptedException;
 
+        /**
+         * Processes several messages of the same row, see {@link RowLogBatchMessageListener#processMessages}.
+         * Listeners which are not a {@link RowLogBatchMessageListener} get the messages one by one, see
+         * {@link BatchProcessResult}.
+         */
+        BatchProcessResult processMessages(List<RowLogMessage> messages) throws RowLogException,
+                InterruptedException;
+
         /**
          * Called when the worker is stopped.
          */
@@ -87,16 +110,45 @@ public abstract class AbstractSubscriptionHandler implements SubscriptionHandler
                 	metrics.queueSize.set(messagesWorkQueue.size());
                     message = messagesWorkQueue.take();
                     if (message != null) {
+                        List<RowLogMessage> messages = Collections.singletonList(message);
+                        if (maxMessagesPerRow > 1) {
+                            List<RowLogMessage> more = messagesWorkQueue.takeMoreOfRow(message, maxMessagesPerRow - 1);
+                            if (!more.isEmpty()) {
+                                messages = new ArrayList<RowLogMessage>(more.size() + 1);
+                                messages.add(message);
+                                messages.addAll(more);
+                            }
+                        }
+
                         try {
                             // We removed taking the lock here
                             // A rowlock should be taken by the WalListener or the HBaseRepository methods so that they don't interfere
                             // Taking a lock in the execution state is not needed since :
-                            //   1) there is currently only one rowlog processor
+                            //   1) the messages of a row are only processed by one rowlog processor, since a row always
+                            //      maps to the same shard (see RowLogProcessorPartitioning)
                             //   2) the messagesWorkQueue take() and done() calls make sure messages for the same row are not given to multiple listeners at the same time
-                            if (rowLog.isMessageAvailable(message, subscriptionId)) {
-                                boolean processMessageResult = false;
+                            List<RowLogMessage> available = new ArrayList<RowLogMessage>(messages.size());
+                            for (RowLogMessage msg : messages) {
+                                if (rowLog.isMessageAvailable(msg, subscriptionId)) {
+                                    available.add(msg);
+                                } else if (log.isDebugEnabled()) {
+                                    log.debug(String.format("[%1$s - %2$s] Message is not available: %3$s", rowLogId, subscriptionId, msg));
+                                }
+                            }
+
+                            if (!available.isEmpty()) {
+                                // The number of messages, from the start of the list, which were processed
+                                int processed = 0;
                                 try {
-                                    processMessageResult = delegate.processMessage(message);
+                                    if (available.size() == 1) {
+                                        processed = delegate.processMessage(available.get(0)) ? 1 : 0;
+                                    } else {
+                                        BatchProcessResult result = delegate.processMessages(available);
+                                        processed = result.getProcessed();
+                                        if (result.isCoalesced()) {
+                                            metrics.coalescedMessages.inc(available.size() - 1);
+                                        }
+                                    }
                                 } catch (RemoteListenerIOException e) {
                                     metrics.ioExceptionRate.inc();
                                     // Logging to info to avoid log-flooding in case of network connection problems
@@ -104,15 +156,14 @@ public abstract class AbstractSubscriptionHandler implements SubscriptionHandler
                                         log.info(String.format("[%1$s - %2$s] RemoteListenerIOException occurred while processing message %3$s", rowLogId, subscriptionId, message), e);
                                     }
                                 }
-                                if (processMessageResult) {
-                                	metrics.successRate.inc();
-                                    rowLog.messageDone(message, subscriptionId);
-                                } else {
-                                	metrics.failureRate.inc();
+                                if (processed > 0) {
+                                	metrics.successRate.inc(processed);
+                                    for (RowLogMessage msg : available.subList(0, processed)) {
+                                        rowLog.messageDone(msg, subscriptionId);
+                                    }
                                 }
-                            } else {
-                                if (log.isDebugEnabled()) {
-                                    log.debug(String.format("[%1$s - %2$s] Message is not available: %3$s", rowLogId, subscriptionId, message));
+                                if (processed < available.size()) {
+                                	metrics.failureRate.inc(available.size() - processed);
                                 }
                             }
                         } catch (InterruptedException e) {
@@ -120,7 +171,9 @@ public abstract class AbstractSubscriptionHandler implements SubscriptionHandler
                         } catch (Throwable e) {
                             log.warn(String.format("[%1$s - %2$s] RowLogException occurred while processing message %3$s", rowLogId, subscriptionId, message), e);
                         } finally {
-                            messagesWorkQueue.done(message);
+                            for (RowLogMessage msg : messages) {
+                                messagesWorkQueue.done(msg);
+                            }
                         }
                     }
                 } catch (InterruptedException e) {
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.lilyproject.rowlog.api.RowLogBatchMessageListener;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.rowlog.api.RowLogMessageListener;
+
+/**
+ * The result of handing several messages of the same row to a listener.
+ *
+ * <p>A {@link RowLogBatchMessageListener} processes the messages together, so either all or none of them are
+ * processed. Other listeners get the messages one by one, up to the first one that fails: the messages before
+ * it are processed and should be marked as done, so that they are not offered again.</p>
+ */
+public class BatchProcessResult {
+    private final int processed;
+    private final boolean coalesced;
+
+    public BatchProcessResult(int processed, boolean coalesced) {
+        this.processed = processed;
+        this.coalesced = coalesced;
+    }
+
+    /**
+     * The number of messages, counted from the start of the list, which were processed successfully.
+     */
+    public int getProcessed() {
+        return processed;
+    }
+
+    /**
+     * True if the listener processed the messages together, rather than one by one.
+     */
+    public boolean isCoalesced() {
+        return coalesced;
+    }
+
+    public static BatchProcessResult process(RowLogMessageListener listener, List<RowLogMessage> messages)
+            throws InterruptedException {
+        if (listener instanceof RowLogBatchMessageListener) {
+            boolean result = ((RowLogBatchMessageListener)listener).processMessages(messages);
+            return new BatchProcessResult(result ? messages.size() : 0, true);
+        }
+
+        int processed = 0;
+        for (RowLogMessage message : messages) {
+            try {
+                if (!listener.processMessage(message))
+                    break;
+            } catch (RuntimeException e) {
+                if (processed == 0)
+                    throw e;
+                // Report the messages which were processed already, the failed one will be offered again
+                Log log = LogFactory.getLog(BatchProcessResult.class);
+                log.warn("Error processing message " + message, e);
+                break;
+            }
+            processed++;
+        }
+        return new BatchProcessResult(processed, false);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+
+/**
+ * Combines the puts of concurrent writers on one table into multi-puts (group commit).
+ *
+ * <p>Writers calling {@link #put} add their puts to the current batch. The first writer of a batch becomes its
+ * leader: it waits until no other batch is being written and, optionally, for a linger time, and then writes the
+ * batch with one multi-put. The other writers of the batch wait until it is written. So each call only returns
+ * once its puts are written (or throws if the multi-put failed), just as with a direct put on the table.</p>
+ *
+ * <p>With a linger time of 0, no time is lost waiting: a batch consists of the puts which arrived while the
+ * previous batch was being written.</p>
+ */
+public class GroupCommitPutBuffer {
+    private final HTableInterface table;
+    private final int maxBatchSize;
+    private final long linger;
+    private final RowLogShardMetrics metrics;
+
+    /**
+     * The batch to which new puts are added, null if no batch is collecting puts.
+     */
+    private Batch currentBatch;
+
+    /**
+     * True while a batch is being written to HBase.
+     */
+    private boolean writing;
+
+    /**
+     * @param metrics optional, can be null
+     */
+    public GroupCommitPutBuffer(HTableInterface table, int maxBatchSize, long linger, RowLogShardMetrics metrics) {
+        this.table = table;
+        this.maxBatchSize = maxBatchSize;
+        this.linger = linger;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Writes the puts, returns when they have been written to HBase.
+     */
+    public void put(List<Put> puts) throws IOException {
+        Batch batch;
+        boolean interrupted = false;
+        synchronized (this) {
+            boolean leader = currentBatch == null;
+            if (leader) {
+                currentBatch = new Batch();
+            }
+            batch = currentBatch;
+            batch.puts.addAll(puts);
+
+            if (batch.puts.size() >= maxBatchSize) {
+                // The batch is full, later writers start a new one
+                currentBatch = null;
+                notifyAll();
+            }
+
+            if (!leader) {
+                // Waiting is not interruptible: the leader will write our puts anyway, we can't withdraw them
+                while (!batch.done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } else {
+                long flushAt = System.currentTimeMillis() + linger;
+                while (!batch.done) {
+                    long now = System.currentTimeMillis();
+                    boolean lingering = !interrupted && batch.puts.size() < maxBatchSize && now < flushAt;
+                    if (!writing && !lingering) {
+                        break;
+                    }
+                    try {
+                        // When only waiting for the other batch to be written, we'll be notified
+                        wait(writing ? 0 : flushAt - now);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (currentBatch == batch) {
+                    currentBatch = null;
+                }
+                writing = true;
+            }
+        }
+
+        try {
+            if (batch.done) {
+                // We were not the leader
+                if (batch.error != null) {
+                    throw new IOException("Error writing batch of " + batch.puts.size() + " puts", batch.error);
+                }
+                return;
+            }
+
+            long before = System.currentTimeMillis();
+            try {
+                table.put(batch.puts);
+            } catch (IOException e) {
+                batch.error = e;
+                throw e;
+            } catch (RuntimeException e) {
+                batch.error = e;
+                throw e;
+            } finally {
+                synchronized (this) {
+                    writing = false;
+                    batch.done = true;
+                    notifyAll();
+                }
+            }
+
+            if (metrics != null) {
+                metrics.putBatchSize.inc(batch.puts.size());
+                metrics.putBatchDuration.inc(System.currentTimeMillis() - before);
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Batch {
+        private final List<Put> puts = new ArrayList<Put>();
+        private boolean done;
+        private Throwable error;
+    }
+}
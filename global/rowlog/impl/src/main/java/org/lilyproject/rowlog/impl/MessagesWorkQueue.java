@@ -15,7 +15,14 @@
  */
 package org.lilyproject.rowlog.impl;
 
-import java.util.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -23,17 +30,40 @@ import java.util.concurrent.locks.ReentrantLock;
 import org.lilyproject.rowlog.api.RowLogMessage;
 import org.lilyproject.util.ByteArrayKey;
 
+/**
+ * Queue of messages to be processed by the workers of a subscription, which makes sure that messages of the
+ * same row are never processed concurrently and are handed out in the order they were offered.
+ *
+ * <p>The messages are kept in a FIFO queue per row. The rows which have messages waiting and on which no worker
+ * is busy are kept in a queue of ready rows, so that {@link #take()} and {@link #done} don't need to search
+ * through the queued messages.</p>
+ */
 public class MessagesWorkQueue {
     private final int maxMessages;
-    
-    private final List<RowLogMessage> messageList;
-    
-    private final Set<RowLogMessage> messagesWorkingOn = new HashSet<RowLogMessage>();
 
-    private final Set<ByteArrayKey> rowsWorkingOn = new HashSet<ByteArrayKey>();
-    
     /**
-     * This lock must be obtained by anyone modifying the above lists, or of course when waiting/signalling
+     * The rows which have queued messages or on which a worker is busy.
+     */
+    private final Map<ByteArrayKey, RowMessages> rows = new HashMap<ByteArrayKey, RowMessages>();
+
+    /**
+     * The rows which have queued messages and on which no worker is busy, in the order they became ready.
+     */
+    private final Queue<RowMessages> readyRows = new ArrayDeque<RowMessages>();
+
+    /**
+     * The messages which are queued or which are being worked on. The processor regularly offers messages
+     * which it already offered before, these are ignored.
+     */
+    private final Set<RowLogMessage> messages = new HashSet<RowLogMessage>();
+
+    /**
+     * The number of queued messages, not counting those being worked on.
+     */
+    private volatile int size;
+
+    /**
+     * This lock must be obtained by anyone modifying the above structures, or of course when waiting/signalling
      * the conditions associated with this lock.
      */
     private final Lock lock = new ReentrantLock();
@@ -51,17 +81,30 @@ public class MessagesWorkQueue {
 
     public MessagesWorkQueue(int size) {
         this.maxMessages = size;
-        this.messageList = new LinkedList<RowLogMessage>();
     }
 
     public void offer(RowLogMessage message) throws InterruptedException {
         lock.lock();
         try {
-            while (messageList.size() >= maxMessages) {
+            while (size >= maxMessages) {
                 notFull.await();
             }
-            messageList.add(message);
-            notEmpty.signal();
+            if (!messages.add(message)) {
+                // Already queued or being worked on
+                return;
+            }
+            ByteArrayKey rowKey = new ByteArrayKey(message.getRowKey());
+            RowMessages row = rows.get(rowKey);
+            if (row == null) {
+                row = new RowMessages();
+                rows.put(rowKey, row);
+            }
+            row.queue.add(message);
+            size++;
+            if (row.working == 0 && row.queue.size() == 1) {
+                readyRows.add(row);
+                notEmpty.signal();
+            }
         } finally {
             lock.unlock();
         }
@@ -73,65 +116,98 @@ public class MessagesWorkQueue {
     public RowLogMessage take() throws InterruptedException {
         lock.lock();
         try {
-            while (true) {
-                while (messageList.isEmpty()) {
-                    notEmpty.await();
-                }
+            while (readyRows.isEmpty()) {
+                notEmpty.await();
+            }
 
-                Iterator<RowLogMessage> messages = messageList.iterator();
-                while (messages.hasNext()) {
-                    RowLogMessage message = messages.next();
-                    ByteArrayKey row = new ByteArrayKey(message.getRowKey());
-                    if (messagesWorkingOn.contains(message)) {
-                        messages.remove();
-                        afterMessageRemoval();
-                    } else if (!rowsWorkingOn.contains(row)) {
-                        messages.remove();
-                        afterMessageRemoval();
-                        messagesWorkingOn.add(message);
-                        rowsWorkingOn.add(row);
-                        return message;
-                    }
-                }
+            RowMessages row = readyRows.remove();
+            row.working = 1;
+            RowLogMessage message = row.queue.remove();
+            afterMessageRemoval();
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-                // The messages list is not empty, but only contains messages for rows on which we are already working
-                notEmpty.await();
+    /**
+     * Takes the messages which are queued for the same row as the given message, which should be a message
+     * obtained through {@link #take()}. The messages are returned in the order they were offered, and have
+     * to be confirmed through {@link #done} just like the message returned by take().
+     *
+     * @param max maximum number of messages to take
+     */
+    public List<RowLogMessage> takeMoreOfRow(RowLogMessage message, int max) {
+        List<RowLogMessage> result = new ArrayList<RowLogMessage>();
+        if (max < 1) {
+            return result;
+        }
+
+        lock.lock();
+        try {
+            RowMessages row = rows.get(new ByteArrayKey(message.getRowKey()));
+            if (row != null && row.working > 0) {
+                while (!row.queue.isEmpty() && result.size() < max) {
+                    result.add(row.queue.remove());
+                    row.working++;
+                    afterMessageRemoval();
+                }
             }
+            return result;
         } finally {
             lock.unlock();
         }
     }
 
     private void afterMessageRemoval() {
+        size--;
         notFull.signal();
-        if (messageList.size() <= refillThreshold) {
+        if (size <= refillThreshold) {
             synchronized (refillTrigger) {
                 refillTrigger.notifyAll();
             }
         }
     }
-    
+
     public void done(RowLogMessage message) {
         lock.lock();
         try {
-            messagesWorkingOn.remove(message);
-            if (rowsWorkingOn.remove(new ByteArrayKey(message.getRowKey()))) {
-                notEmpty.signal();
+            if (!messages.remove(message)) {
+                return;
+            }
+            ByteArrayKey rowKey = new ByteArrayKey(message.getRowKey());
+            RowMessages row = rows.get(rowKey);
+            if (row != null && row.working > 0 && --row.working == 0) {
+                if (row.queue.isEmpty()) {
+                    rows.remove(rowKey);
+                } else {
+                    readyRows.add(row);
+                    notEmpty.signal();
+                }
             }
         } finally {
             lock.unlock();
         }
     }
-    
+
     public int size() {
-    	return messageList.size();
+        return size;
     }
 
     public void waitOnRefillThreshold() throws InterruptedException {
         synchronized (refillTrigger) {
-            while (messageList.size() > refillThreshold) {
+            while (size > refillThreshold) {
                 refillTrigger.wait();
             }
         }
     }
+
+    private static class RowMessages {
+        private final Queue<RowLogMessage> queue = new ArrayDeque<RowLogMessage>(4);
+        /**
+         * The number of messages of this row which were taken and are not yet done. As long as this is
+         * not zero, the row is not handed out to another worker.
+         */
+        private int working;
+    }
 }
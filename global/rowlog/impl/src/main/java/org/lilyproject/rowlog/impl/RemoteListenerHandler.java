@@ -16,7 +16,10 @@
 package org.lilyproject.rowlog.impl;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,6 +35,8 @@ import org.jboss.netty.channel.group.ChannelGroupFuture;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.MemoryAwareThreadPoolExecutor;
 import org.lilyproject.rowlog.api.*;
 import org.lilyproject.util.concurrent.CustomThreadFactory;
 
@@ -46,9 +51,23 @@ public class RemoteListenerHandler {
     private final String subscriptionId;
     private final RowLogConfigurationManager rowLogConfMgr;
     private final String hostName;
+    private ExecutionHandler executionHandler;
 
     public RemoteListenerHandler(RowLog rowLog, String subscriptionId, RowLogMessageListener rowLogMessageListener,
             RowLogConfigurationManager rowLogConfMgr, String hostName) throws RowLogException {
+        this(rowLog, subscriptionId, rowLogMessageListener, rowLogConfMgr, hostName, 1);
+    }
+
+    /**
+     * @param maxConcurrentMessages the number of messages that can be processed concurrently by this listener.
+     *                              When 1, messages are processed one at a time on the I/O thread of the
+     *                              connection, as they arrive. When larger, the messages are handed over to a
+     *                              thread pool of this size, so that the messages which the processor sends
+     *                              concurrently over one connection are also processed concurrently.
+     */
+    public RemoteListenerHandler(RowLog rowLog, String subscriptionId, RowLogMessageListener rowLogMessageListener,
+            RowLogConfigurationManager rowLogConfMgr, String hostName, int maxConcurrentMessages)
+            throws RowLogException {
         this.rowLog = rowLog;
         this.subscriptionId = subscriptionId;
         this.rowLogMessageListener = rowLogMessageListener;
@@ -62,12 +81,22 @@ public class RemoteListenerHandler {
                         Executors.newCachedThreadPool(
                                 new CustomThreadFactory("rowlog-server-" + rowLog.getId() + "-worker",
                                         new ThreadGroup("RowLogListener_" + subscriptionId)))));
+        if (maxConcurrentMessages > 1) {
+            // Not ordered: the processor never sends messages of the same row concurrently, so the messages
+            // received over one connection can be processed in any order.
+            executionHandler = new ExecutionHandler(new MemoryAwareThreadPoolExecutor(maxConcurrentMessages, 0, 0,
+                    30, TimeUnit.SECONDS, new CustomThreadFactory("rowlog-server-" + rowLog.getId() + "-processor",
+                            new ThreadGroup("RowLogListenerProcessor_" + subscriptionId))));
+        }
         bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
             @Override
             public ChannelPipeline getPipeline() throws Exception {
                 ChannelPipeline pipeline = Channels.pipeline();
                 pipeline.addLast("messageDecoder", new MessageDecoder()); // Read enough bytes
                 pipeline.addLast("rowLogMessageDecoder", new RowLogMessageDecoder()); // Decode the bytes into a RowLogMessage
+                if (executionHandler != null) {
+                    pipeline.addLast("executionHandler", executionHandler); // Process messages concurrently
+                }
                 pipeline.addLast("messageHandler", new MessageHandler()); // Handle the RowLogMessage
                 pipeline.addLast("resultEncoder", new ResultEncoder()); // Encode the result
                 return pipeline;
@@ -92,6 +121,9 @@ public class RemoteListenerHandler {
         future.awaitUninterruptibly();
 
         bootstrap.releaseExternalResources();
+        if (executionHandler != null) {
+            executionHandler.releaseExternalResources();
+        }
 
         if (listenerId != null) {
             try {
@@ -153,40 +185,56 @@ public class RemoteListenerHandler {
         @Override
         public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
             ChannelBufferInputStream inputStream = new ChannelBufferInputStream((ChannelBuffer)e.getMessage());
-            
-            long timestamp = inputStream.readLong();
-            
-            int rowKeyLength = inputStream.readInt();
-            byte[] rowKey = new byte[rowKeyLength];
-            inputStream.readFully(rowKey, 0, rowKeyLength);
-            
-            long seqnr = inputStream.readLong();
-            
-            int dataLength = inputStream.readInt();
-            byte[] data = null;
-            if (dataLength > 0) {
-                data = new byte[dataLength];
-                inputStream.readFully(data, 0, dataLength);
+
+            int requestId = inputStream.readInt();
+
+            int count = inputStream.readInt();
+            List<RowLogMessage> messages = new ArrayList<RowLogMessage>(count);
+            for (int i = 0; i < count; i++) {
+                long timestamp = inputStream.readLong();
+
+                int rowKeyLength = inputStream.readInt();
+                byte[] rowKey = new byte[rowKeyLength];
+                inputStream.readFully(rowKey, 0, rowKeyLength);
+
+                long seqnr = inputStream.readLong();
+
+                int dataLength = inputStream.readInt();
+                byte[] data = null;
+                if (dataLength > 0) {
+                    data = new byte[dataLength];
+                    inputStream.readFully(data, 0, dataLength);
+                }
+                messages.add(new RowLogMessageImpl(timestamp, rowKey, seqnr, data, rowLog));
             }
             inputStream.close();
-            RowLogMessage rowLogMessage = new RowLogMessageImpl(timestamp, rowKey, seqnr, data, rowLog);
-            Channels.fireMessageReceived(ctx, rowLogMessage); // Give the message to the MessageHandler
+            Channels.fireMessageReceived(ctx, new RemoteRequest(requestId, messages)); // Give the messages to the MessageHandler
         }
     }
     
     private class MessageHandler extends SimpleChannelUpstreamHandler {
         @Override
         public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-            RowLogMessage message = (RowLogMessage)e.getMessage();
-            boolean result = rowLogMessageListener.processMessage(message);
-            writeResult(e.getChannel(), result, message);
+            RemoteRequest request = (RemoteRequest)e.getMessage();
+            BatchProcessResult result = process(request.messages);
+            writeResult(e.getChannel(), request.requestId, result, request.messages.get(0));
         }
 
-        private void writeResult(Channel channel, boolean result, RowLogMessage message) throws InterruptedException {
+        private BatchProcessResult process(List<RowLogMessage> messages) throws InterruptedException {
+            if (messages.size() == 1) {
+                boolean result = rowLogMessageListener.processMessage(messages.get(0));
+                return new BatchProcessResult(result ? 1 : 0, false);
+            }
+            return BatchProcessResult.process(rowLogMessageListener, messages);
+        }
+
+        private void writeResult(Channel channel, int requestId, BatchProcessResult result, RowLogMessage message) {
             if (channel.isOpen()) {
-                channel.write(Boolean.valueOf(result)).await();
+                // No need to wait for the write to finish: the result is matched to the message by its request id
+                channel.write(new RemoteResult(requestId, result));
             } else {
-                log.warn("Failed to send processing result '"+result+"' for message '"+message+"' due to closed channel.");
+                log.warn("Failed to send processing result '" + result.getProcessed() + "' for message '" +
+                        message + "' due to closed channel.");
             }
         }
         
@@ -209,10 +257,34 @@ public class RemoteListenerHandler {
     private class ResultEncoder extends SimpleChannelDownstreamHandler {
         @Override
         public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-            Boolean result = (Boolean)e.getMessage();
-            ChannelBuffer channelBuffer = ChannelBuffers.buffer(Bytes.SIZEOF_BOOLEAN);
-            channelBuffer.writeBytes(Bytes.toBytes(result));
+            RemoteResult result = (RemoteResult)e.getMessage();
+            // request-id + number of processed messages + coalesced
+            ChannelBuffer channelBuffer = ChannelBuffers.buffer(Bytes.SIZEOF_INT + Bytes.SIZEOF_INT +
+                    Bytes.SIZEOF_BOOLEAN);
+            channelBuffer.writeInt(result.requestId);
+            channelBuffer.writeInt(result.result.getProcessed());
+            channelBuffer.writeBytes(Bytes.toBytes(result.result.isCoalesced()));
             Channels.write(ctx, e.getFuture(), channelBuffer);
         }
     }
+
+    private static class RemoteRequest {
+        private final int requestId;
+        private final List<RowLogMessage> messages;
+
+        public RemoteRequest(int requestId, List<RowLogMessage> messages) {
+            this.requestId = requestId;
+            this.messages = messages;
+        }
+    }
+
+    private static class RemoteResult {
+        private final int requestId;
+        private final BatchProcessResult result;
+
+        public RemoteResult(int requestId, BatchProcessResult result) {
+            this.requestId = requestId;
+            this.result = result;
+        }
+    }
 }
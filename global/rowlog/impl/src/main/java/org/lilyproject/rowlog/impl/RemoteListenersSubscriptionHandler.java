@@ -16,10 +16,13 @@
 package org.lilyproject.rowlog.impl;
 
 import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -35,33 +38,86 @@ import org.lilyproject.rowlog.api.*;
 import org.lilyproject.util.concurrent.CustomThreadFactory;
 import org.lilyproject.util.io.Closer;
 
+/**
+ * Subscription handler which sends the messages to remote listeners, these are {@link RemoteListenerHandler}s
+ * running in other processes.
+ *
+ * <p>All workers for the same listener share one connection. Each message is sent with a request id, which the
+ * listener sends back together with the processing result, so that multiple messages can be in flight over
+ * the same connection. The number of in-flight messages per listener is bounded by the number of workers per
+ * listener (the 'window'): a worker waits for the result of its message before taking the next one from the
+ * {@link MessagesWorkQueue}, which also keeps the guarantee that messages of the same row are not processed
+ * concurrently.</p>
+ */
 public class RemoteListenersSubscriptionHandler extends AbstractListenersSubscriptionHandler {
     private Log log = LogFactory.getLog(getClass());
     private ClientBootstrap bootstrap;
     private NioClientSocketChannelFactory channelFactory;
-    private Map<Integer, RemoteWorkerDelegate> workerDelegates = new ConcurrentHashMap<Integer, RemoteWorkerDelegate>();
+    private final int window;
+    private Map<String, ListenerConnection> connectionsByHost = new ConcurrentHashMap<String, ListenerConnection>();
+    private Map<Integer, ListenerConnection> connectionsByChannel = new ConcurrentHashMap<Integer, ListenerConnection>();
 
     public RemoteListenersSubscriptionHandler(String subscriptionId, MessagesWorkQueue messagesWorkQueue,
             RowLog rowLog, RowLogConfigurationManager rowLogConfigurationManager) {
+        this(subscriptionId, messagesWorkQueue, rowLog, rowLogConfigurationManager, 1);
+    }
+
+    /**
+     * @param window the maximum number of messages that are sent concurrently to one listener
+     */
+    public RemoteListenersSubscriptionHandler(String subscriptionId, MessagesWorkQueue messagesWorkQueue,
+            RowLog rowLog, RowLogConfigurationManager rowLogConfigurationManager, int window) {
         super(subscriptionId, messagesWorkQueue, rowLog, rowLogConfigurationManager);
+        this.window = Math.max(1, window);
         initBootstrap();
     }
 
+    @Override
+    protected int getWorkersPerListener() {
+        return window;
+    }
+
     @Override
     protected WorkerDelegate createWorkerDelegate(String host) {
-        return new RemoteWorkerDelegate(host);
+        return new RemoteWorkerDelegate(getConnection(host));
     }
 
-    private class RemoteWorkerDelegate implements WorkerDelegate {
-        private Boolean remoteProcessMessageResult = null;
-        private Throwable resultHandlerException = null;
-        private Semaphore semaphore = new Semaphore(0);
+    private ListenerConnection getConnection(String host) {
+        synchronized (connectionsByHost) {
+            ListenerConnection connection = connectionsByHost.get(host);
+            if (connection == null) {
+                connection = new ListenerConnection(host);
+                connectionsByHost.put(host, connection);
+            }
+            connection.users++;
+            return connection;
+        }
+    }
+
+    /**
+     * The connection to one remote listener, shared by the workers of that listener.
+     */
+    private class ListenerConnection {
+        private final String host;
         private Channel channel = null;
-        private String host;
+        private final AtomicInteger requestIdCounter = new AtomicInteger();
+        private final Map<Integer, PendingResult> pendingResults = new ConcurrentHashMap<Integer, PendingResult>();
+        /** Number of workers using this connection, guarded by connectionsByHost. */
+        private int users;
 
-        public RemoteWorkerDelegate(String host) {
+        public ListenerConnection(String host) {
             this.host = host;
-            initBootstrap();
+        }
+
+        public synchronized Channel getChannel() throws RemoteListenerIOException, InterruptedException {
+            if (channel == null || (!channel.isConnected())) {
+                if (channel != null) {
+                    connectionsByChannel.remove(channel.getId());
+                }
+                channel = getListenerChannel(host);
+                connectionsByChannel.put(channel.getId(), this);
+            }
+            return channel;
         }
 
         private Channel getListenerChannel(String host) throws RemoteListenerIOException, InterruptedException {
@@ -85,6 +141,94 @@ public class RemoteListenersSubscriptionHandler extends AbstractListenersSubscri
             }
         }
 
+        public PendingResult register() {
+            PendingResult pendingResult = new PendingResult(requestIdCounter.incrementAndGet());
+            pendingResults.put(pendingResult.requestId, pendingResult);
+            return pendingResult;
+        }
+
+        public void unregister(PendingResult pendingResult) {
+            pendingResults.remove(pendingResult.requestId);
+        }
+
+        public void resultReceived(int requestId, BatchProcessResult result) {
+            PendingResult pendingResult = pendingResults.remove(requestId);
+            if (pendingResult != null) {
+                pendingResult.result = result;
+                pendingResult.semaphore.release();
+            } else {
+                log.debug("Received result for unknown request " + requestId + " from listener " + host);
+            }
+        }
+
+        /**
+         * Releases all outstanding requests on the given channel, their result will remain null.
+         */
+        public void failAll(Channel failedChannel, Throwable cause) {
+            for (PendingResult pendingResult : pendingResults.values()) {
+                if (pendingResult.channel == failedChannel) {
+                    pendingResults.remove(pendingResult.requestId);
+                    pendingResult.exception = cause;
+                    pendingResult.semaphore.release();
+                }
+            }
+        }
+
+        /**
+         * Closes the connection once the last worker using it is closed.
+         */
+        public void release() {
+            synchronized (connectionsByHost) {
+                users--;
+                if (users > 0)
+                    return;
+                connectionsByHost.remove(host);
+            }
+            close();
+        }
+
+        private synchronized void close() {
+            if (channel != null) {
+                connectionsByChannel.remove(channel.getId());
+                channel.close().awaitUninterruptibly();
+                channel = null;
+            }
+        }
+    }
+
+    private static class PendingResult {
+        private final int requestId;
+        private volatile Channel channel;
+        private volatile BatchProcessResult result = null;
+        private volatile Throwable exception = null;
+        private final Semaphore semaphore = new Semaphore(0);
+
+        public PendingResult(int requestId) {
+            this.requestId = requestId;
+        }
+    }
+
+    /**
+     * The messages sent to a remote listener in one request (usually one message, or several messages of the
+     * same row), with the id used to match the result to it.
+     */
+    private static class RemoteRequest {
+        private final int requestId;
+        private final List<RowLogMessage> messages;
+
+        public RemoteRequest(int requestId, List<RowLogMessage> messages) {
+            this.requestId = requestId;
+            this.messages = messages;
+        }
+    }
+
+    private class RemoteWorkerDelegate implements WorkerDelegate {
+        private final ListenerConnection connection;
+
+        public RemoteWorkerDelegate(ListenerConnection connection) {
+            this.connection = connection;
+        }
+
         /**
          * Processes a message by sending the message to a remote listener.
          * This method retries (5 times) until a communication channel has been successfully setup and a result has been received
@@ -92,65 +236,77 @@ public class RemoteListenersSubscriptionHandler extends AbstractListenersSubscri
          */
         @Override
         public boolean processMessage(RowLogMessage message) throws RowLogException, InterruptedException {
-            return processMessage(message, 4);
+            return processMessages(Collections.singletonList(message), 4).getProcessed() == 1;
         }
 
-        public boolean processMessage(RowLogMessage message, int triesRemaining) throws RowLogException,
+        /**
+         * Sends the messages in one request, the remote listener processes them together if it is a
+         * {@link RowLogBatchMessageListener}, and otherwise one by one.
+         */
+        @Override
+        public BatchProcessResult processMessages(List<RowLogMessage> messages) throws RowLogException,
                 InterruptedException {
+            return processMessages(messages, 4);
+        }
 
-            remoteProcessMessageResult = null;
-            resultHandlerException = null;
-            try {
-                if (channel == null || (!channel.isConnected())) {
-                    channel = getListenerChannel(host);
-                }
+        public BatchProcessResult processMessages(List<RowLogMessage> messages, int triesRemaining)
+                throws RowLogException, InterruptedException {
 
-                // We can associate 'this' directly with the channel, as we never handle more than one
-                // message at a time over a channel. If this ever changes, we should rather generate a per-request ID
-                workerDelegates.put(channel.getId(), this);
+            PendingResult pendingResult = connection.register();
+            Channel channel = null;
+            try {
+                channel = connection.getChannel();
+                pendingResult.channel = channel;
 
-                ChannelFuture writeFuture = channel.write(message);
+                ChannelFuture writeFuture = channel.write(new RemoteRequest(pendingResult.requestId, messages));
                 writeFuture.await();
-                semaphore.acquire();
-                if (remoteProcessMessageResult == null || resultHandlerException != null) {
+                if (!writeFuture.isSuccess()) {
+                    connection.unregister(pendingResult);
+                    pendingResult.exception = writeFuture.getCause();
+                } else if (!channel.isOpen()) {
+                    // The channel might have been closed before our request was registered on it
+                    connection.unregister(pendingResult);
+                } else {
+                    pendingResult.semaphore.acquire();
+                }
+
+                if (pendingResult.result == null || pendingResult.exception != null) {
                     if (triesRemaining > 0) {
                         // Retry
                         if (log.isInfoEnabled()) {
                             log.info("Failed to process message. Retries remaining : " + triesRemaining,
-                                    resultHandlerException);
+                                    pendingResult.exception);
                         }
                         Thread.sleep(10);
-                        return processMessage(message, triesRemaining - 1);
+                        return processMessages(messages, triesRemaining - 1);
                     } else {
-                        throw new RemoteListenerIOException("Failure in sending message '" + message +
-                                "' to remote listener on host '" + host + "'", resultHandlerException);
+                        throw new RemoteListenerIOException("Failure in sending message '" + messages.get(0) +
+                                "' to remote listener on host '" + connection.host + "'", pendingResult.exception);
                     }
                 }
 
-                return remoteProcessMessageResult;
+                return pendingResult.result;
             } catch (InterruptedException e) {
+                // Other workers might be waiting on this channel too, they will get a failure and retry
+                // on a new channel.
                 if (channel != null) {
                     channel.close().awaitUninterruptibly();
                 }
                 throw e;
             } finally {
-                if (channel != null) {
-                    workerDelegates.remove(channel.getId());
-                }
+                connection.unregister(pendingResult);
             }
         }
 
         @Override
         public void close() {
-            if (channel != null) {
-                channel.close().awaitUninterruptibly();
-            }
+            connection.release();
         }
 
     }
 
-    private RemoteWorkerDelegate getWorkerDelegate(ChannelHandlerContext ctx) {
-        return workerDelegates.get(ctx.getChannel().getId());
+    private ListenerConnection getConnection(ChannelHandlerContext ctx) {
+        return connectionsByChannel.get(ctx.getChannel().getId());
     }
 
 
@@ -190,39 +346,58 @@ public class RemoteListenersSubscriptionHandler extends AbstractListenersSubscri
 
         @Override
         public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-            RemoteWorkerDelegate worker = getWorkerDelegate(ctx);
-            worker.remoteProcessMessageResult = (Boolean) e.getMessage();
-            worker.semaphore.release(); // We received the message, the processMessage call can continue
+            ListenerConnection connection = getConnection(ctx);
+            if (connection != null) {
+                RemoteResult result = (RemoteResult)e.getMessage();
+                // We received the result, the processMessage call can continue
+                connection.resultReceived(result.requestId, result.result);
+            }
         }
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
             log.debug("Receive response from listener: error occurred", e.getCause());
-            RemoteWorkerDelegate worker = getWorkerDelegate(ctx);
-            if (worker != null) {
-                worker.resultHandlerException = e.getCause();
-                worker.semaphore.release(); // An exception occurred, the processMessage call should handle it
+            ListenerConnection connection = getConnection(ctx);
+            if (connection != null) {
+                // An exception occurred, the processMessage calls should handle it. Since we can't know to which
+                // request the exception relates, the channel is closed so that all requests are retried.
+                connection.failAll(ctx.getChannel(), e.getCause());
+                ctx.getChannel().close();
             }
         }
 
         @Override
         public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
             log.debug("Receive response from listener: channel was closed");
-            RemoteWorkerDelegate worker = getWorkerDelegate(ctx);
-            if (worker != null) {
-                worker.semaphore.release(); // The remoteProcessMessageResult will still be null
-                super.channelClosed(ctx, e);
+            ListenerConnection connection = getConnection(ctx);
+            if (connection != null) {
+                connection.failAll(ctx.getChannel(), null); // The results will still be null
             }
+            super.channelClosed(ctx, e);
+        }
+    }
+
+    private static class RemoteResult {
+        private final int requestId;
+        private final BatchProcessResult result;
+
+        public RemoteResult(int requestId, BatchProcessResult result) {
+            this.requestId = requestId;
+            this.result = result;
         }
     }
 
     private class ResultDecoder extends FrameDecoder {
         @Override
-        protected Boolean decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
-            if (buffer.readableBytes() < Bytes.SIZEOF_BOOLEAN) {
+        protected RemoteResult decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+            // request-id + number of processed messages + coalesced
+            if (buffer.readableBytes() < Bytes.SIZEOF_INT + Bytes.SIZEOF_INT + Bytes.SIZEOF_BOOLEAN) {
                 return null;
             }
-            return Bytes.toBoolean(buffer.readBytes(Bytes.SIZEOF_BOOLEAN).array()); // Send the result to the ResultHandler
+            int requestId = buffer.readInt();
+            int processed = buffer.readInt();
+            boolean coalesced = Bytes.toBoolean(buffer.readBytes(Bytes.SIZEOF_BOOLEAN).array());
+            return new RemoteResult(requestId, new BatchProcessResult(processed, coalesced)); // Send the result to the ResultHandler
         }
     }
 
@@ -231,24 +406,34 @@ public class RemoteListenersSubscriptionHandler extends AbstractListenersSubscri
         public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
             ChannelBufferOutputStream outputStream = null;
             try {
-                RowLogMessage message = (RowLogMessage) e.getMessage();
-                byte[] rowKey = message.getRowKey();
-                byte[] data = message.getData();
-                int msgLength = 8 + 4 + rowKey.length + 8 + 4; // timestamp + rowkey-length + rowkey + seqnr + data-length + data
-                if (data != null)
-                    msgLength = msgLength + data.length;
+                RemoteRequest request = (RemoteRequest) e.getMessage();
+                // request-id + message-count, then for each message:
+                // timestamp + rowkey-length + rowkey + seqnr + data-length + data
+                int msgLength = 4 + 4;
+                for (RowLogMessage message : request.messages) {
+                    byte[] data = message.getData();
+                    msgLength += 8 + 4 + message.getRowKey().length + 8 + 4;
+                    if (data != null)
+                        msgLength = msgLength + data.length;
+                }
                 ChannelBuffer channelBuffer = ChannelBuffers.buffer(4 + msgLength);
                 outputStream = new ChannelBufferOutputStream(channelBuffer);
                 outputStream.writeInt(msgLength);
-                outputStream.writeLong(message.getTimestamp());
-                outputStream.writeInt(rowKey.length);
-                outputStream.write(rowKey);
-                outputStream.writeLong(message.getSeqNr());
-                if (data != null) {
-                    outputStream.writeInt(data.length);
-                    outputStream.write(data);
-                } else {
-                    outputStream.writeInt(0);
+                outputStream.writeInt(request.requestId);
+                outputStream.writeInt(request.messages.size());
+                for (RowLogMessage message : request.messages) {
+                    byte[] rowKey = message.getRowKey();
+                    byte[] data = message.getData();
+                    outputStream.writeLong(message.getTimestamp());
+                    outputStream.writeInt(rowKey.length);
+                    outputStream.write(rowKey);
+                    outputStream.writeLong(message.getSeqNr());
+                    if (data != null) {
+                        outputStream.writeInt(data.length);
+                        outputStream.write(data);
+                    } else {
+                        outputStream.writeInt(0);
+                    }
                 }
                 Channels.write(ctx, e.getFuture(), channelBuffer);
             } finally {
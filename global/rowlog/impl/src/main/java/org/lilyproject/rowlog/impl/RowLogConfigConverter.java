@@ -47,9 +47,12 @@ public class RowLogConfigConverter {
         long orphanedMessageDelay = JsonUtil.getLong(node, "orphanedMessageDelay", 120000L);
         // For deleteBufferSize we supply a default because the parameter was new in Lily 1.2
         int deleteBufferSize = JsonUtil.getInt(node, "deleteBufferSize", 100);
+        // For putBatchSize and putBatchLinger we supply a default because the parameters were new in Lily 1.4
+        int putBatchSize = JsonUtil.getInt(node, "putBatchSize", 100);
+        long putBatchLinger = JsonUtil.getLong(node, "putBatchLinger", 0L);
 
         return new RowLogConfig(respectOrder, enableNotify, notifyDelay, minimalProcessDelay, wakeupTimeout,
-                orphanedMessageDelay, deleteBufferSize);
+                orphanedMessageDelay, deleteBufferSize, putBatchSize, putBatchLinger);
     }
 
     public byte[] toJsonBytes(String rowLogId, RowLogConfig config) {
@@ -71,6 +74,8 @@ public class RowLogConfigConverter {
         node.put("wakeupTimeout", config.getWakeupTimeout());
         node.put("orphanedMessageDelay", config.getOrphanedMessageDelay());
         node.put("deleteBufferSize", config.getDeleteBufferSize());
+        node.put("putBatchSize", config.getPutBatchSize());
+        node.put("putBatchLinger", config.getPutBatchLinger());
 
         return node;
     }
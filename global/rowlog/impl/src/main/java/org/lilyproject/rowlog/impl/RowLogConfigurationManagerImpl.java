@@ -40,6 +40,7 @@ import org.lilyproject.rowlog.api.ProcessorNotifyObserver;
 import org.lilyproject.rowlog.api.RowLogConfig;
 import org.lilyproject.rowlog.api.RowLogConfigurationManager;
 import org.lilyproject.rowlog.api.RowLogException;
+import org.lilyproject.rowlog.api.RowLogNodeIdClaim;
 import org.lilyproject.rowlog.api.RowLogObserver;
 import org.lilyproject.rowlog.api.RowLogSubscription;
 import org.lilyproject.rowlog.api.SubscriptionsObserver;
@@ -395,6 +396,60 @@ public class RowLogConfigurationManagerImpl implements RowLogConfigurationManage
         else return listenerIds;
     }
     
+    @Override
+    public RowLogNodeIdClaim claimNodeId(String rowLogId, int maxNodeIds) throws RowLogException,
+            InterruptedException, KeeperException {
+        ZkUtil.createPath(zooKeeper, nodeIdsPath(rowLogId));
+        NodeIdClaim claim = new NodeIdClaim(rowLogId, maxNodeIds);
+        zooKeeper.addDefaultWatcher(claim);
+        try {
+            claim.claim();
+        } catch (RowLogException e) {
+            zooKeeper.removeDefaultWatcher(claim);
+            throw e;
+        } catch (KeeperException e) {
+            zooKeeper.removeDefaultWatcher(claim);
+            throw e;
+        }
+        return claim;
+    }
+
+    private int createNodeId(String rowLogId, int maxNodeIds) throws RowLogException, InterruptedException,
+            KeeperException {
+        for (int nodeId = 0; nodeId < maxNodeIds; nodeId++) {
+            final String path = nodeIdPath(rowLogId, nodeId);
+            try {
+                zooKeeper.retryOperation(new ZooKeeperOperation<String>() {
+                    @Override
+                    public String execute() throws KeeperException, InterruptedException {
+                        return zooKeeper.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+                    }
+                });
+                return nodeId;
+            } catch (KeeperException.NodeExistsException e) {
+                // In use by someone else (or, in case of a retried create, by ourselves, in which case the node id
+                // remains unused until our session ends), try the next one.
+            }
+        }
+        throw new RowLogException("Cannot claim a node id for rowlog " + rowLogId + ": all " + maxNodeIds +
+                " node ids are in use.");
+    }
+
+    private void deleteNodeId(String rowLogId, int nodeId) throws InterruptedException, KeeperException {
+        final String path = nodeIdPath(rowLogId, nodeId);
+        try {
+            zooKeeper.retryOperation(new ZooKeeperOperation<Object>() {
+                @Override
+                public Object execute() throws KeeperException, InterruptedException {
+                    zooKeeper.delete(path, -1);
+                    return null;
+                }
+            });
+        } catch (KeeperException.NoNodeException ignore) {
+            // Silently ignore. Might occur because we use retryOperation.
+        }
+    }
+
     // Processor Notify
     @Override
     public void setProcessorNotifyObserver(String rowLogId, String subscriptionId, ProcessorNotifyObserver observer) {
@@ -436,6 +491,14 @@ public class RowLogConfigurationManagerImpl implements RowLogConfigurationManage
         return rowLogPath(subscriptionKey.getRowLogId()) + "/" + "processorNotify/" + subscriptionKey.getSubscriptionId();
     }
     
+    private String nodeIdsPath(String rowLogId) {
+        return rowLogPath(rowLogId) + "/nodeIds";
+    }
+
+    private String nodeIdPath(String rowLogId, int nodeId) {
+        return nodeIdsPath(rowLogId) + "/" + nodeId;
+    }
+
     private String listenerPath(String rowLogId, String subscriptionId, String listenerId) {
         return subscriptionPath(rowLogId, subscriptionId) + "/" + listenerId;
     }
@@ -1034,6 +1097,142 @@ public class RowLogConfigurationManagerImpl implements RowLogConfigurationManage
     	}
     }
 
+    /**
+     * A node id claimed by an ephemeral node. It watches the connection state to know whether the ephemeral
+     * node is still ours, and claims a node id again when connected in a new session.
+     *
+     * <p>While disconnected, the node id is not handed out either: the session might expire on the server
+     * before the client notices, and then someone else can claim the same node id.</p>
+     */
+    private class NodeIdClaim implements RowLogNodeIdClaim, Watcher {
+        private final String rowLogId;
+        private final int maxNodeIds;
+        private int nodeId = -1;
+        /** The session owning the ephemeral node of the node id. */
+        private long sessionId;
+        /** True when the ephemeral node is gone, and a node id needs to be claimed again. */
+        private boolean lost = true;
+        private boolean connected = true;
+        private boolean claiming;
+        private boolean released;
+
+        NodeIdClaim(String rowLogId, int maxNodeIds) {
+            this.rowLogId = rowLogId;
+            this.maxNodeIds = maxNodeIds;
+        }
+
+        /**
+         * Claims a node id. Should not be called while holding the lock on this object: a ZooKeeper operation
+         * might need to wait for the ZooKeeper event thread, which might be waiting for that lock in process().
+         */
+        private void claim() throws RowLogException, InterruptedException, KeeperException {
+            int nodeId = createNodeId(rowLogId, maxNodeIds);
+            final String path = nodeIdPath(rowLogId, nodeId);
+            // Look at the owner rather than assuming the current session: the session might have changed since
+            // the node was created. This also sets a watch to notice when the node is removed.
+            Stat stat = zooKeeper.retryOperation(new ZooKeeperOperation<Stat>() {
+                @Override
+                public Stat execute() throws KeeperException, InterruptedException {
+                    return zooKeeper.exists(path, NodeIdClaim.this);
+                }
+            });
+
+            synchronized (this) {
+                this.nodeId = nodeId;
+                this.sessionId = stat != null ? stat.getEphemeralOwner() : -1;
+                this.lost = stat == null || sessionId != zooKeeper.getSessionId();
+                notifyAll();
+            }
+        }
+
+        @Override
+        public int getNodeId(long timeout) throws RowLogException, InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                int previousNodeId;
+                synchronized (this) {
+                    if (released) {
+                        throw new RowLogException("The node id of rowlog " + rowLogId + " has been released.");
+                    }
+                    if (!lost && connected) {
+                        return nodeId;
+                    }
+                    if (!lost || !connected || claiming) {
+                        // Wait for the connection to come back, or for another thread to claim a node id
+                        long now = System.currentTimeMillis();
+                        if (now >= deadline) {
+                            throw new RowLogException("No valid node id for rowlog " + rowLogId + " within " +
+                                    timeout + " ms: the ZooKeeper connection is lost or the session expired.");
+                        }
+                        wait(deadline - now);
+                        continue;
+                    }
+                    claiming = true;
+                    previousNodeId = nodeId;
+                }
+
+                log.info("Claiming a node id again for rowlog " + rowLogId + ", previous node id was " +
+                        previousNodeId);
+                try {
+                    claim();
+                } catch (KeeperException e) {
+                    throw new RowLogException("Failed to claim a node id for rowlog " + rowLogId, e);
+                } finally {
+                    synchronized (this) {
+                        claiming = false;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void release() throws InterruptedException {
+            int nodeId;
+            boolean owned;
+            synchronized (this) {
+                released = true;
+                nodeId = this.nodeId;
+                owned = !lost && sessionId == zooKeeper.getSessionId();
+                notifyAll();
+            }
+            zooKeeper.removeDefaultWatcher(this);
+            if (owned) {
+                try {
+                    deleteNodeId(rowLogId, nodeId);
+                } catch (KeeperException e) {
+                    log.warn("Failed to release node id " + nodeId + " of rowlog " + rowLogId, e);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void process(WatchedEvent event) {
+            if (released) {
+                return;
+            }
+
+            if (event.getType() == EventType.None) {
+                if (event.getState() == Event.KeeperState.Disconnected) {
+                    connected = false;
+                } else if (event.getState() == Event.KeeperState.Expired) {
+                    connected = false;
+                    lost = true;
+                } else if (event.getState() == Event.KeeperState.SyncConnected) {
+                    connected = true;
+                    if (zooKeeper.getSessionId() != sessionId) {
+                        // Connected with a new session: our ephemeral node is gone with the old one
+                        lost = true;
+                    }
+                }
+            } else if (event.getType() == EventType.NodeDeleted
+                    && event.getPath().equals(nodeIdPath(rowLogId, nodeId))) {
+                lost = true;
+            }
+            notifyAll();
+        }
+    }
+
     public class ConnectStateWatcher implements Watcher {
         private final ObserverSupport observerSupport;
 
@@ -44,7 +44,11 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
 
     private static final byte PL_BYTE = (byte)1;
     private static final byte ES_BYTE = (byte)2;
-    private static final byte[] SEQ_NR = Bytes.toBytes("SEQNR");
+    /**
+     * How long to wait for the node id to be claimed again after the ZooKeeper session expired, before
+     * failing to put a message.
+     */
+    private static final long NODE_ID_TIMEOUT = 10000;
     private final HTableInterface rowTable;
     private final byte[] rowLogColumnFamily;
     private RowLogConfig rowLogConfig;
@@ -64,7 +68,8 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
     private final RowLocker rowLocker;
     private byte[] payloadPrefix;
     private byte[] executionStatePrefix;
-    private byte[] seqNrQualifier;
+    private final RowLogSeqNrGenerator seqNrGenerator = new RowLogSeqNrGenerator();
+    private final RowLogNodeIdClaim nodeIdClaim;
     private ObjectName mbeanName;
 
     /**
@@ -85,7 +90,6 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
         this.rowLogColumnFamily = rowLogColumnFamily;
         this.payloadPrefix = new byte[]{rowLogId, PL_BYTE};
         this.executionStatePrefix = new byte[]{rowLogId, ES_BYTE};
-        this.seqNrQualifier = Bytes.add(new byte[]{rowLogId}, SEQ_NR);
         this.rowLogConfigurationManager = rowLogConfigurationManager;
         this.rowLocker = rowLocker;
         this.shardRouter = shardRouter;
@@ -104,6 +108,15 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
             }
         }
 
+        // The node id makes the sequence numbers unique among the RowLogImpl instances writing to the same rows
+        try {
+            this.nodeIdClaim = rowLogConfigurationManager.claimNodeId(id, RowLogSeqNrGenerator.MAX_NODE_IDS);
+        } catch (KeeperException e) {
+            throw new IOException("Failed to claim a node id for rowlog " + id, e);
+        } catch (RowLogException e) {
+            throw new IOException("Failed to claim a node id for rowlog " + id, e);
+        }
+
         registerMBean();
     }
 
@@ -145,6 +158,14 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
             initialSubscriptionsLoaded.set(false);
         }
         Closer.close(processorNotifier);
+        for (RowLogShard shard : shardList.getShards()) {
+            Closer.close(shard);
+        }
+        try {
+            nodeIdClaim.release();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
     
     @Override
@@ -221,9 +242,6 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
             if (subscriptions.isEmpty())
                 return null;
 
-            // Get a sequence number for this new message
-            long seqnr = rowTable.incrementColumnValue(rowKey, rowLogColumnFamily, seqNrQualifier, 1L);
-
             // Create Put object if not supplied
             boolean ownPut = false;
             if (put == null) {
@@ -231,7 +249,10 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
                 ownPut = true;
             }
 
+            // Get a sequence number for this new message
+            int nodeId = nodeIdClaim.getNodeId(NODE_ID_TIMEOUT);
             long now = System.currentTimeMillis();
+            long seqnr = seqNrGenerator.next(now, nodeId);
 
             putPayload(seqnr, payload, now, put);
                     
@@ -282,15 +303,79 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
         }
     }
 
+    @Override
+    public List<RowLogMessage> putMessages(List<byte[]> data, List<byte[]> payloads, List<Put> puts)
+            throws RowLogException, InterruptedException {
+        // Take current snapshot of the subscriptions, see putMessage
+        List<RowLogSubscription> subscriptions = getSubscriptions();
+        if (subscriptions.isEmpty() || puts.isEmpty())
+            return Collections.emptyList();
+
+        try {
+            List<RowLogMessage> messages = new ArrayList<RowLogMessage>(puts.size());
+            int nodeId = nodeIdClaim.getNodeId(NODE_ID_TIMEOUT);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < puts.size(); i++) {
+                Put put = puts.get(i);
+                byte[] rowKey = put.getRow();
+                byte[] payload = payloads.get(i);
+
+                long seqnr = seqNrGenerator.next(now, nodeId);
+                putPayload(seqnr, payload, now, put);
+                messages.add(new RowLogMessageImpl(now, rowKey, seqnr, data == null ? null : data.get(i), payload,
+                        this));
+            }
+
+            putMessagesOnShards(messages, subscriptions);
+
+            for (int i = 0; i < messages.size(); i++) {
+                initializeSubscriptions(messages.get(i), puts.get(i), subscriptions);
+            }
+
+            return messages;
+        } catch (IOException e) {
+            throw new RowLogException("Failed to put messages on RowLog", e);
+        }
+    }
+
     protected void putMessageOnShard(RowLogMessage message, List<RowLogSubscription> subscriptions)
             throws RowLogException {
-        List<String> subscriptionIds = Lists.transform(subscriptions, new Function<RowLogSubscription, String>() {
+        getShard(message).putMessage(message, toSubscriptionIds(subscriptions));
+    }
+
+    /**
+     * Puts the messages on their shards, doing one batched put per shard.
+     */
+    protected void putMessagesOnShards(List<RowLogMessage> messages, List<RowLogSubscription> subscriptions)
+            throws RowLogException {
+        List<String> subscriptionIds = toSubscriptionIds(subscriptions);
+        for (Entry<RowLogShard, List<RowLogMessage>> entry : groupByShard(messages).entrySet()) {
+            entry.getKey().putMessages(entry.getValue(), subscriptionIds);
+        }
+    }
+
+    protected Map<RowLogShard, List<RowLogMessage>> groupByShard(List<RowLogMessage> messages)
+            throws RowLogException {
+        Map<RowLogShard, List<RowLogMessage>> messagesByShard = new HashMap<RowLogShard, List<RowLogMessage>>();
+        for (RowLogMessage message : messages) {
+            RowLogShard shard = getShard(message);
+            List<RowLogMessage> shardMessages = messagesByShard.get(shard);
+            if (shardMessages == null) {
+                shardMessages = new ArrayList<RowLogMessage>();
+                messagesByShard.put(shard, shardMessages);
+            }
+            shardMessages.add(message);
+        }
+        return messagesByShard;
+    }
+
+    private List<String> toSubscriptionIds(List<RowLogSubscription> subscriptions) {
+        return Lists.transform(subscriptions, new Function<RowLogSubscription, String>() {
             @Override
             public String apply(RowLogSubscription input) {
                 return input.getId();
             }
         });
-        getShard(message).putMessage(message, subscriptionIds);
     }
 
     
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.rowlog.api.RowLogMessage;
+
+/**
+ * Merges lists of messages which are each already sorted (as returned by {@link
+ * org.lilyproject.rowlog.api.RowLogShard#next}) into one sorted sequence, using a heap of the heads of the
+ * lists rather than sorting the concatenation of all lists.
+ *
+ * <p>Lists can be added while iterating: a list added after some messages have already been returned is merged
+ * with what remains of the other lists. This is used to start processing the messages of the shards which
+ * returned first, before the scan on the slower shards finished.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+public class RowLogMessageMerger implements Iterator<RowLogMessage> {
+    /**
+     * Orders messages by timestamp, row key and sequence number, the same order in which they are stored in
+     * a shard.
+     */
+    public static final Comparator<RowLogMessage> MESSAGE_COMPARATOR = new Comparator<RowLogMessage>() {
+        @Override
+        public int compare(RowLogMessage o1, RowLogMessage o2) {
+            if (o1.getTimestamp() != o2.getTimestamp()) {
+                return o1.getTimestamp() < o2.getTimestamp() ? -1 : 1;
+            }
+            int result = Bytes.compareTo(o1.getRowKey(), o2.getRowKey());
+            if (result != 0) {
+                return result;
+            }
+            return o1.getSeqNr() < o2.getSeqNr() ? -1 : (o1.getSeqNr() == o2.getSeqNr() ? 0 : 1);
+        }
+    };
+
+    private final PriorityQueue<Cursor> heap;
+
+    /**
+     * @param expectedLists the number of lists that will be added, used to size the heap
+     */
+    public RowLogMessageMerger(int expectedLists) {
+        heap = new PriorityQueue<Cursor>(Math.max(expectedLists, 1));
+    }
+
+    /**
+     * Adds a list of messages which is sorted according to {@link #MESSAGE_COMPARATOR}.
+     */
+    public void add(List<RowLogMessage> messages) {
+        if (!messages.isEmpty()) {
+            heap.add(new Cursor(messages));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    @Override
+    public RowLogMessage next() {
+        Cursor cursor = heap.poll();
+        if (cursor == null) {
+            throw new NoSuchElementException();
+        }
+        RowLogMessage message = cursor.head;
+        if (cursor.advance()) {
+            heap.add(cursor);
+        }
+        return message;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static class Cursor implements Comparable<Cursor> {
+        private final List<RowLogMessage> messages;
+        private int position;
+        private RowLogMessage head;
+
+        Cursor(List<RowLogMessage> messages) {
+            this.messages = messages;
+            this.head = messages.get(0);
+        }
+
+        boolean advance() {
+            position++;
+            if (position < messages.size()) {
+                head = messages.get(position);
+                return true;
+            }
+            head = null;
+            return false;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return MESSAGE_COMPARATOR.compare(head, other.head);
+        }
+    }
+}
@@ -19,12 +19,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -38,11 +39,9 @@ import com.google.common.base.Function;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
-import com.google.common.collect.ComparisonChain;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.hbase.util.Bytes;
 import org.lilyproject.rowlog.api.ProcessorNotifyObserver;
 import org.lilyproject.rowlog.api.RowLog;
 import org.lilyproject.rowlog.api.RowLogConfig;
@@ -76,6 +75,8 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
     private LoadingCache<String, Triggerable> bufferedProcessorNotifiers;
 
     private final AtomicBoolean initialRowLogConfigLoaded = new AtomicBoolean(false);
+    /** The shards this processor processes, null for all shards of the rowlog. */
+    private volatile List<RowLogShard> shards;
     
     public RowLogProcessorImpl(RowLog rowLog, RowLogConfigurationManager rowLogConfigurationManager,
             final Configuration hbaseConf) {
@@ -94,6 +95,26 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
     public RowLog getRowLog() {
         return rowLog;
     }
+
+    /**
+     * Limits this processor to the given shards of the rowlog, rather than processing all shards. This can
+     * be changed while the processor is running, the next scan of each subscription will use the new shards.
+     * Note that messages of shards which are no longer in the list, but which have been scanned before, can
+     * still be in the process of being dispatched: to make sure this is finished, stop the processor.
+     *
+     * @param shards null to process all shards
+     */
+    public void setShards(List<RowLogShard> shards) {
+        this.shards = shards == null ? null : Collections.unmodifiableList(new ArrayList<RowLogShard>(shards));
+    }
+
+    /**
+     * The shards processed by this processor.
+     */
+    public List<RowLogShard> getShards() {
+        List<RowLogShard> shards = this.shards;
+        return shards != null ? shards : rowLog.getShards();
+    }
     
     @Override
     public synchronized void start() throws InterruptedException, IOException {
@@ -151,8 +172,10 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
     @Override
     public synchronized void stop() {
         stop = true;
-        for (Triggerable triggerable : bufferedProcessorNotifiers.asMap().values()) {
-            Closer.close(triggerable);
+        if (bufferedProcessorNotifiers != null) {
+            for (Triggerable triggerable : bufferedProcessorNotifiers.asMap().values()) {
+                Closer.close(triggerable);
+            }
         }
         if (scheduledServices != null)
             scheduledServices.shutdownNow();
@@ -328,47 +351,55 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
         private SubscriptionHandler subscriptionHandler;
         private final RowLogSubscription subscription;
         private boolean firstRun = true;
-        private final int scanBatchPerShard;
 
         public SubscriptionThread(RowLogSubscription subscription) {
             super(new ThreadGroup("RowLogProcessor"), "Row log SubscriptionThread for " + subscription.getId());
             this.subscription = subscription;
             this.metrics = new ProcessorMetrics(rowLog.getId()+"_"+subscription.getId());
 
-            int scanBatchPerShard = settings.getScanBatchSize() / rowLog.getShards().size();
-            if (scanBatchPerShard < 1) {
-                scanBatchPerShard = 1;
-            }
-            this.scanBatchPerShard = scanBatchPerShard;
-            log.info("RowLog scan batch size (on each shard/split): " + scanBatchPerShard);
+            log.info("RowLog scan batch size (on each shard/split): " + getScanBatchPerShard(getShards()));
 
             messagesWorkQueue = new MessagesWorkQueue(settings.getMessagesWorkQueueSize());
             log.info("RowLog messages work queue size: " + settings.getMessagesWorkQueueSize());
 
+            AbstractSubscriptionHandler handler = null;
             switch (subscription.getType()) {
                 case VM:
-                    subscriptionHandler =new LocalListenersSubscriptionHandler(subscription.getId(), messagesWorkQueue,
+                    handler = new LocalListenersSubscriptionHandler(subscription.getId(), messagesWorkQueue,
                             rowLog, rowLogConfigurationManager);
                     break;
 
                 case Netty:
-                    subscriptionHandler = new RemoteListenersSubscriptionHandler(subscription.getId(),
-                            messagesWorkQueue, rowLog, rowLogConfigurationManager);
+                    handler = new RemoteListenersSubscriptionHandler(subscription.getId(),
+                            messagesWorkQueue, rowLog, rowLogConfigurationManager,
+                            settings.getRemoteListenerWindow());
+                    log.info("RowLog remote listener window: " + settings.getRemoteListenerWindow());
                     break;
 
                 case WAL:
-                    subscriptionHandler = new WalSubscriptionHandler(subscription.getId(), messagesWorkQueue, rowLog,
+                    handler = new WalSubscriptionHandler(subscription.getId(), messagesWorkQueue, rowLog,
                             rowLogConfigurationManager);
                     break;
 
                 default:
                     break;
             }
+
+            if (handler != null) {
+                handler.setMaxMessagesPerRow(settings.getMaxMessagesPerRow());
+                log.info("RowLog max messages per row: " + settings.getMaxMessagesPerRow());
+            }
+            subscriptionHandler = handler;
         }
         
         public RowLogSubscription getSubscription() {
             return subscription;
         }
+
+        private int getScanBatchPerShard(List<RowLogShard> shards) {
+            int scanBatchPerShard = shards.isEmpty() ? 1 : settings.getScanBatchSize() / shards.size();
+            return scanBatchPerShard < 1 ? 1 : scanBatchPerShard;
+        }
         
         public synchronized void wakeup() {
             metrics.wakeups.inc();
@@ -399,6 +430,7 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
                 // Therefore, this boolean indicates that just one message should be scanned. Note that this assumes
                 // that the minimalProcessDelay parameter will only be used for WAL-type uses.
                 boolean scanFirstMessageOnly = false;
+                List<RowLogShard> previousShards = null;
                 while (!isInterrupted() && !stopRequested) {
                     final String subscriptionId = subscription.getId();
                     try {
@@ -410,19 +442,29 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
                         // Ideally, we would figure out on what servers what regions are deployed and then do the
                         // requests such that we touch the maximum number of different servers. For now, we keep
                         // it simple and assume the requests will be distributed enough by chance.
+                        List<RowLogShard> shards = getShards();
+                        if (previousShards != null && !shards.equals(previousShards)) {
+                            // A shard we did not process before might contain older messages, start over
+                            minimalTimestamp = null;
+                            firstRun = true;
+                        }
+                        previousShards = shards;
+                        int scanBatchPerShard = getScanBatchPerShard(shards);
                         final int batchSize = scanFirstMessageOnly ? 1 : scanBatchPerShard;
-                        List<RowLogMessage> messages = new ArrayList<RowLogMessage>();
                         int maxMessagesFromOneShard = 0;
-                        List<Future<List<RowLogMessage>>> scanFutures = new ArrayList<Future<List<RowLogMessage>>>();
+                        CompletionService<List<RowLogMessage>> scans =
+                                new ExecutorCompletionService<List<RowLogMessage>>(globalQScanExecutor);
+                        int pendingScans = 0;
                         final Long currentMinimalTimestamp = minimalTimestamp;
-                        for (final RowLogShard shard : rowLog.getShards()) {
+                        for (final RowLogShard shard : shards) {
                             try {
-                                scanFutures.add(globalQScanExecutor.submit(new Callable<List<RowLogMessage>>() {
+                                scans.submit(new Callable<List<RowLogMessage>>() {
                                     @Override
                                     public List<RowLogMessage> call() throws Exception {
                                         return shard.next(subscriptionId, currentMinimalTimestamp, batchSize);
                                     }
-                                }));
+                                });
+                                pendingScans++;
                             } catch (RejectedExecutionException e) {
                                 // The only reason this could occur is because we're shutting down, since there
                                 // is no limit on the size of the queue
@@ -431,42 +473,68 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
                             }
                         }
 
-                        for (Future<List<RowLogMessage>> future : scanFutures) {
-                            List<RowLogMessage> shardMessages = future.get();
-                            messages.addAll(shardMessages);
-                            if (shardMessages.size() > maxMessagesFromOneShard) {
-                                 maxMessagesFromOneShard = shardMessages.size();
+                        // The messages returned by each shard are already sorted, they are merged by timestamp as
+                        // the scans complete. Messages of the shards which returned first are handed to the work
+                        // queue while the other scans are still running: the order among messages of different
+                        // shards is then not strict, but the messages of one row are always in the same shard and
+                        // thus stay in order. When a minimal process delay is configured, we wait for all shards,
+                        // since checkMinimalProcessDelay relies on the messages coming in timestamp order.
+                        boolean waitForAllScans = rowLogConfig.getMinimalProcessDelay() > 0;
+                        RowLogMessageMerger merger = new RowLogMessageMerger(pendingScans);
+                        int messageCount = 0;
+                        long oldestTimestamp = Long.MAX_VALUE;
+                        boolean delayed = false;
+                        while (pendingScans > 0) {
+                            Future<List<RowLogMessage>> future = scans.take();
+                            do {
+                                pendingScans--;
+                                List<RowLogMessage> shardMessages = future.get();
+                                merger.add(shardMessages);
+                                messageCount += shardMessages.size();
+                                if (!shardMessages.isEmpty() && shardMessages.get(0).getTimestamp() < oldestTimestamp) {
+                                    oldestTimestamp = shardMessages.get(0).getTimestamp();
+                                }
+                                if (shardMessages.size() > maxMessagesFromOneShard) {
+                                    maxMessagesFromOneShard = shardMessages.size();
+                                }
+                            } while (pendingScans > 0 && (future = scans.poll()) != null);
+
+                            if (stopRequested) {
+                                // Check if not stopped because HBase hides thread interruptions
+                                return;
                             }
-                        }
 
-                        // Sort the messages from the different shards by timestamp
-                        // TODO this could be improved, knowing that the lists from shard.next() are already sorted
-                        Collections.sort(messages, new Comparator<RowLogMessage>() {
-                            @Override
-                            public int compare(RowLogMessage o1, RowLogMessage o2) {
-                                return ComparisonChain.start()
-                                        .compare(o1.getTimestamp(), o2.getTimestamp())
-                                        .compare(o1.getRowKey(), o2.getRowKey(), Bytes.BYTES_RAWCOMPARATOR)
-                                        .compare(o1.getSeqNr(), o2.getSeqNr())
-                                        .result();
+                            if (delayed || (waitForAllScans && pendingScans > 0)) {
+                                continue;
+                            }
+
+                            while (merger.hasNext()) {
+                                RowLogMessage message = merger.next();
+                                if (stopRequested)
+                                    return;
+
+                                if (checkMinimalProcessDelay(message)) {
+                                    scanFirstMessageOnly = true;
+                                    delayed = true;
+                                    break; // Rescan the messages since they might have been processed in the meanwhile
+                                } else {
+                                    scanFirstMessageOnly = false;
+                                }
+
+                                messagesWorkQueue.offer(message);
                             }
-                        });
+                        }
 
                         metrics.scanDuration.inc(System.currentTimeMillis() - tsBeforeGetMessages);
 
                         if (log.isDebugEnabled()) {
                             log.debug(String.format("[%1$s - %2$s] Scanned with minimal timestamp of %3$s, got %4$s messages.",
-                                    rowLog.getId(), subscriptionId, minimalTimestamp, messages.size()));
-                        }
-
-                        if (stopRequested) {
-                            // Check if not stopped because HBase hides thread interruptions
-                            return;
+                                    rowLog.getId(), subscriptionId, minimalTimestamp, messageCount));
                         }
 
                         if (firstRun) {
                             firstRun = false;
-                            if (messages.isEmpty()) {
+                            if (messageCount == 0) {
                                 // If on startup of this processor, we have no messages, we initialize the
                                 // minimalTimestamp manually so that we would not always scan from the start
                                 // of the table.
@@ -479,22 +547,9 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
                             }
                         }
 
-                        metrics.messagesPerScan.inc(messages != null ? messages.size() : 0);
-						if (messages != null && !messages.isEmpty()) {
-						    minimalTimestamp = messages.get(0).getTimestamp() - settings.getMsgTimestampMargin();
-                            for (RowLogMessage message : messages) {
-                                if (stopRequested)
-                                    return;
-
-                                if (checkMinimalProcessDelay(message)) {
-                                    scanFirstMessageOnly = true;
-                                	break; // Rescan the messages since they might have been processed in the meanwhile
-                                } else {
-                                    scanFirstMessageOnly = false;
-                                }
-
-                                messagesWorkQueue.offer(message);
-                            }
+                        metrics.messagesPerScan.inc(messageCount);
+                        if (messageCount > 0) {
+                            minimalTimestamp = oldestTimestamp - settings.getMsgTimestampMargin();
                         }
 
                         // If we had a full batch of messages, we will immediately request the next batch, without
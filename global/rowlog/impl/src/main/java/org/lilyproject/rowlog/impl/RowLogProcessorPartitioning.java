@@ -0,0 +1,431 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.lilyproject.rowlog.api.RowLogShard;
+import org.lilyproject.util.LilyInfo;
+import org.lilyproject.util.Logs;
+import org.lilyproject.util.zookeeper.ZkUtil;
+import org.lilyproject.util.zookeeper.ZooKeeperItf;
+import org.lilyproject.util.zookeeper.ZooKeeperOperation;
+
+/**
+ * Distributes the shards of a rowlog over all nodes which run a RowLogProcessor for it, as an alternative
+ * to {@link RowLogProcessorElection}, where one elected node processes all shards.
+ *
+ * <p>Each participating node registers itself with an ephemeral node in ZooKeeper. The shards, sorted by id,
+ * are assigned round-robin to the participants, sorted by the order in which they registered, so that all nodes
+ * come to the same assignment. When a node joins or leaves, the assignment is recomputed.</p>
+ *
+ * <p>Since a row is always routed to the same shard, messages of the same row are still processed by one
+ * processor only. To guarantee this during a rebalance, a node only processes a shard once it owns it, which
+ * is recorded with an ephemeral node per shard. A node which has to hand over a shard first stops its processor,
+ * so that it has finished dispatching the messages of that shard, and only then gives up the ownership. The
+ * node to which the shard is assigned waits for this before it starts processing the shard.</p>
+ *
+ * <p>Like {@link org.lilyproject.util.zookeeper.LeaderElection}, processing is stopped as soon as we are
+ * disconnected from ZooKeeper, since our shards might be taken over by other nodes once our session expires.</p>
+ *
+ * <p>The changes to the processor are done in a separate thread rather than in the ZooKeeper event thread,
+ * since stopping a processor can take a while.</p>
+ */
+public class RowLogProcessorPartitioning {
+    private final ZooKeeperItf zk;
+    private final RowLogProcessorImpl rowLogProcessor;
+    private final LilyInfo lilyInfo;
+    private final String rowLogId;
+    private final String participantsPath;
+    private final String ownersPath;
+
+    /** The ids of the shards we own. Only accessed by the provisioner thread. */
+    private final Set<String> ownedShards = new HashSet<String>();
+    private boolean processorRunning = false;
+
+    private final Watcher watcher = new ChangeWatcher();
+    private final Watcher connectStateWatcher = new ConnectStateWatcher();
+    private volatile boolean connected = true;
+    private volatile boolean stopped = false;
+    private final Object changeLock = new Object();
+    private boolean changed = false;
+    private Thread provisioner;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    public RowLogProcessorPartitioning(ZooKeeperItf zk, RowLogProcessorImpl rowLogProcessor, LilyInfo lilyInfo) {
+        this.zk = zk;
+        this.rowLogProcessor = rowLogProcessor;
+        this.lilyInfo = lilyInfo;
+        this.rowLogId = rowLogProcessor.getRowLog().getId();
+        this.participantsPath = "/lily/rowlog/" + rowLogId + "/processors";
+        this.ownersPath = "/lily/rowlog/" + rowLogId + "/shardowners";
+    }
+
+    @PostConstruct
+    public void start() throws InterruptedException, KeeperException {
+        ZkUtil.createPath(zk, participantsPath);
+        ZkUtil.createPath(zk, ownersPath);
+
+        registerParticipant();
+
+        zk.addDefaultWatcher(connectStateWatcher);
+
+        stopped = false;
+        provisioner = new Thread(new Provisioner(), "RowLog processor partitioning for " + rowLogId);
+        provisioner.start();
+        requestRebalance();
+    }
+
+    private void registerParticipant() throws InterruptedException, KeeperException {
+        // In case of connection loss, a node might have been created for us (we do not know it). Therefore,
+        // retrying upon connection loss is important. We do not look at the name of the node we created here,
+        // but at the owner, see getParticipants.
+        zk.retryOperation(new ZooKeeperOperation<String>() {
+            @Override
+            public String execute() throws KeeperException, InterruptedException {
+                return zk.create(participantsPath + "/n_", null, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.EPHEMERAL_SEQUENTIAL);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        // Note that ZooKeeper does not have a way to remove watches (see ZOOKEEPER-422)
+        stopped = true;
+        zk.removeDefaultWatcher(connectStateWatcher);
+        if (provisioner != null) {
+            provisioner.interrupt();
+            try {
+                Logs.logThreadJoin(provisioner);
+                provisioner.join();
+            } catch (InterruptedException e) {
+                log.info("Interrupted while shutting down rowlog processor partitioning.");
+            }
+            provisioner = null;
+        }
+
+        // Our ephemeral nodes disappear when we disconnect, but giving up the shards right away allows other
+        // nodes to take over sooner, and the ZooKeeper session might be shared with other components which
+        // keep running.
+        stopProcessor();
+        unregisterParticipant();
+        for (String shardId : ownedShards) {
+            deleteOwnership(shardId);
+        }
+        ownedShards.clear();
+    }
+
+    private void unregisterParticipant() {
+        try {
+            for (String child : zk.getChildren(participantsPath, false)) {
+                final String path = participantsPath + "/" + child;
+                Stat stat = zk.exists(path, false);
+                if (stat != null && stat.getEphemeralOwner() == zk.getSessionId()) {
+                    try {
+                        zk.retryOperation(new ZooKeeperOperation<Object>() {
+                            @Override
+                            public Object execute() throws KeeperException, InterruptedException {
+                                zk.delete(path, -1);
+                                return null;
+                            }
+                        });
+                    } catch (KeeperException.NoNodeException e) {
+                        // already gone
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (KeeperException e) {
+            log.error("Error unregistering as processor of the rowlog shards of " + rowLogId, e);
+        }
+    }
+
+    private void requestRebalance() {
+        synchronized (changeLock) {
+            changed = true;
+            changeLock.notifyAll();
+        }
+    }
+
+    private void rebalance() throws InterruptedException, KeeperException, IOException {
+        if (!connected) {
+            stopProcessor();
+            return;
+        }
+
+        // Our ownerships might have been lost, e.g. when our session expired
+        ownedShards.retainAll(getConfirmedOwnerships());
+
+        List<Long> participants = getParticipants();
+        if (!participants.contains(zk.getSessionId())) {
+            // Our participant node is gone, e.g. because our session expired and we are connected again with
+            // a new session
+            log.info("Registering again as processor of the rowlog shards of " + rowLogId);
+            registerParticipant();
+            participants = getParticipants();
+        }
+
+        Set<String> assignedShards = getAssignedShards(participants);
+
+        Set<String> toRelease = new HashSet<String>(ownedShards);
+        toRelease.removeAll(assignedShards);
+        if (!toRelease.isEmpty()) {
+            log.info("Handing over rowlog shards " + toRelease + " of " + rowLogId);
+            // Stopping the processor makes sure the messages of these shards are not being dispatched anymore
+            stopProcessor();
+            for (String shardId : toRelease) {
+                deleteOwnership(shardId);
+                ownedShards.remove(shardId);
+            }
+        }
+
+        for (String shardId : assignedShards) {
+            if (!ownedShards.contains(shardId) && claimOwnership(shardId)) {
+                log.info("Taking over rowlog shard " + shardId + " of " + rowLogId);
+                ownedShards.add(shardId);
+            }
+        }
+
+        updateProcessor();
+    }
+
+    /**
+     * Returns the session ids of the participants, in the order in which they registered.
+     */
+    private List<Long> getParticipants() throws InterruptedException, KeeperException {
+        List<String> children = zk.getChildren(participantsPath, watcher);
+
+        // The child sequence numbers are fixed-with, prefixed with zeros, so we can sort them as strings.
+        // The nodes are identified by their session, since a retried create (see registerParticipant()) can
+        // leave two nodes for the same session.
+        Collections.sort(children);
+        List<Long> participants = new ArrayList<Long>(children.size());
+        for (String child : children) {
+            Stat stat = zk.exists(participantsPath + "/" + child, false);
+            if (stat != null && !participants.contains(stat.getEphemeralOwner())) {
+                participants.add(stat.getEphemeralOwner());
+            }
+        }
+        return participants;
+    }
+
+    /**
+     * Returns the ids of the shards which are assigned to us, based on the given participants.
+     */
+    private Set<String> getAssignedShards(List<Long> participants) {
+        Set<String> assigned = new HashSet<String>();
+        int index = participants.indexOf(zk.getSessionId());
+        if (index == -1) {
+            return assigned;
+        }
+
+        List<RowLogShard> shards = getShardsSortedById();
+        for (int i = 0; i < shards.size(); i++) {
+            if (i % participants.size() == index) {
+                assigned.add(shards.get(i).getId());
+            }
+        }
+        return assigned;
+    }
+
+    private Set<String> getConfirmedOwnerships() throws InterruptedException, KeeperException {
+        Set<String> confirmed = new HashSet<String>();
+        for (String shardId : ownedShards) {
+            Stat stat = zk.exists(ownersPath + "/" + shardId, false);
+            if (stat != null && stat.getEphemeralOwner() == zk.getSessionId()) {
+                confirmed.add(shardId);
+            }
+        }
+        return confirmed;
+    }
+
+    /**
+     * Tries to become the owner of the shard. If another node still owns it, a watch is left on its ownership
+     * so that we try again once it is given up.
+     */
+    private boolean claimOwnership(String shardId) throws InterruptedException, KeeperException {
+        final String path = ownersPath + "/" + shardId;
+        try {
+            zk.retryOperation(new ZooKeeperOperation<String>() {
+                @Override
+                public String execute() throws KeeperException, InterruptedException {
+                    return zk.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+                }
+            });
+            return true;
+        } catch (KeeperException.NodeExistsException e) {
+            Stat stat = zk.exists(path, watcher);
+            if (stat == null) {
+                // Given up in the meantime
+                requestRebalance();
+                return false;
+            }
+            // A retried create can have succeeded the first time
+            return stat.getEphemeralOwner() == zk.getSessionId();
+        }
+    }
+
+    private void deleteOwnership(final String shardId) {
+        try {
+            zk.retryOperation(new ZooKeeperOperation<Object>() {
+                @Override
+                public Object execute() throws KeeperException, InterruptedException {
+                    zk.delete(ownersPath + "/" + shardId, -1);
+                    return null;
+                }
+            });
+        } catch (KeeperException.NoNodeException e) {
+            // already gone
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (KeeperException e) {
+            log.error("Error giving up ownership of rowlog shard " + shardId + " of " + rowLogId, e);
+        }
+    }
+
+    /**
+     * Lets the processor run on the shards we own, or stops it if we don't own any.
+     */
+    private void updateProcessor() throws InterruptedException, IOException {
+        List<RowLogShard> shards = new ArrayList<RowLogShard>();
+        for (RowLogShard shard : getShardsSortedById()) {
+            if (ownedShards.contains(shard.getId())) {
+                shards.add(shard);
+            }
+        }
+
+        if (shards.isEmpty()) {
+            stopProcessor();
+            return;
+        }
+
+        rowLogProcessor.setShards(shards);
+        if (!processorRunning) {
+            log.info("Starting row log processor for " + rowLogId);
+            rowLogProcessor.start();
+            processorRunning = true;
+            setProcessorInfo(true);
+        }
+    }
+
+    private void stopProcessor() {
+        if (processorRunning) {
+            log.info("Shutting down row log processor for " + rowLogId);
+            rowLogProcessor.stop();
+            processorRunning = false;
+            setProcessorInfo(false);
+        }
+    }
+
+    private void setProcessorInfo(boolean running) {
+        if (rowLogId.equals("mq")) {
+            lilyInfo.setRowLogProcessorMQ(running);
+        } else if (rowLogId.equals("wal")) {
+            lilyInfo.setRowLogProcessorWAL(running);
+        }
+    }
+
+    private List<RowLogShard> getShardsSortedById() {
+        List<RowLogShard> shards = new ArrayList<RowLogShard>(rowLogProcessor.getRowLog().getShards());
+        Collections.sort(shards, new Comparator<RowLogShard>() {
+            @Override
+            public int compare(RowLogShard o1, RowLogShard o2) {
+                return o1.getId().compareTo(o2.getId());
+            }
+        });
+        return shards;
+    }
+
+    private class Provisioner implements Runnable {
+        @Override
+        public void run() {
+            while (!stopped && !Thread.interrupted()) {
+                try {
+                    synchronized (changeLock) {
+                        while (!changed && !stopped) {
+                            changeLock.wait();
+                        }
+                        changed = false;
+                    }
+
+                    if (!stopped) {
+                        rebalance();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Throwable t) {
+                    log.error("Error assigning rowlog shards of " + rowLogId + " to processors, will retry.", t);
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    requestRebalance();
+                }
+            }
+        }
+    }
+
+    private class ChangeWatcher implements Watcher {
+        @Override
+        public void process(WatchedEvent event) {
+            if (stopped) {
+                return;
+            }
+
+            if (event.getType() == Event.EventType.NodeChildrenChanged
+                    || event.getType() == Event.EventType.NodeDeleted) {
+                requestRebalance();
+            }
+        }
+    }
+
+    private class ConnectStateWatcher implements Watcher {
+        @Override
+        public void process(WatchedEvent event) {
+            if (stopped || event.getType() != Event.EventType.None) {
+                return;
+            }
+
+            if (event.getState() == Event.KeeperState.Disconnected || event.getState() == Event.KeeperState.Expired) {
+                connected = false;
+                requestRebalance();
+            } else if (event.getState() == Event.KeeperState.SyncConnected) {
+                connected = true;
+                requestRebalance();
+            }
+        }
+    }
+}
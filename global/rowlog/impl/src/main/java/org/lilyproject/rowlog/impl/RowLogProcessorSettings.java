@@ -26,6 +26,10 @@ public class RowLogProcessorSettings {
     
     private int messagesWorkQueueSize = 1000;
 
+    private int remoteListenerWindow = 1;
+
+    private int maxMessagesPerRow = 1;
+
     public int getScanThreadCount() {
         return scanThreadCount;
     }
@@ -79,4 +83,31 @@ public class RowLogProcessorSettings {
     public void setMessagesWorkQueueSize(int messagesWorkQueueSize) {
         this.messagesWorkQueueSize = messagesWorkQueueSize;
     }
+
+    public int getRemoteListenerWindow() {
+        return remoteListenerWindow;
+    }
+
+    /**
+     * The maximum number of messages that are sent concurrently to one remote listener (over the same
+     * connection). Messages for the same row are never sent concurrently.
+     */
+    public void setRemoteListenerWindow(int remoteListenerWindow) {
+        this.remoteListenerWindow = remoteListenerWindow;
+    }
+
+    public int getMaxMessagesPerRow() {
+        return maxMessagesPerRow;
+    }
+
+    /**
+     * The maximum number of messages of the same row that are handed over to a listener together. When
+     * several messages for the same row are waiting to be processed, e.g. because a record was updated
+     * several times in quick succession, listeners which implement
+     * {@link org.lilyproject.rowlog.api.RowLogBatchMessageListener} can then process them in one go.
+     * The default of 1 means messages are always handed over one by one.
+     */
+    public void setMaxMessagesPerRow(int maxMessagesPerRow) {
+        this.maxMessagesPerRow = maxMessagesPerRow;
+    }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+/**
+ * Generates the sequence numbers of rowlog messages without a round-trip to HBase.
+ *
+ * <p>Previously, the sequence number was obtained with an incrementColumnValue on the row, which is a
+ * separate synchronous call on the write path of each message. Instead, the sequence number is now
+ * derived from the current time, combined with a counter to make it strictly increasing within this
+ * generator, and with a node id to avoid collisions between generators in different processes. The node
+ * id must be unique among the generators writing to the same rowlog: {@link RowLogImpl} claims it in
+ * ZooKeeper, see {@link org.lilyproject.rowlog.api.RowLogConfigurationManager#claimNodeId}. It is passed
+ * on each call since the claim can change when the ZooKeeper session expires.</p>
+ *
+ * <p>The layout of the sequence number is (from most to least significant bits):</p>
+ *
+ * <ul>
+ *     <li>41 bits: milliseconds since {@link #EPOCH}</li>
+ *     <li>12 bits: counter within the millisecond</li>
+ *     <li>10 bits: node id</li>
+ * </ul>
+ *
+ * <p>The time part follows the message timestamps, which are also what the RowLogProcessor and the
+ * MessagesWorkQueue use to order messages, so ordering by sequence number within a row is consistent with
+ * the order in which messages are processed. Messages which are put while holding the row lock (as is
+ * the case for the WAL) will get increasing sequence numbers as long as the clocks of the nodes writing to
+ * the same row are not skewed more than the time between the writes, which is the same assumption that
+ * was already made for the message timestamps. The generated numbers are always larger than the ones
+ * produced by the old per-row counter, so existing rows move over transparently.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class RowLogSeqNrGenerator {
+    /**
+     * 2010-01-01T00:00:00Z, gives room for about 69 years of sequence numbers.
+     */
+    public static final long EPOCH = 1262304000000L;
+
+    private static final int NODE_BITS = 10;
+    public static final int MAX_NODE_IDS = 1 << NODE_BITS;
+    private static final int COUNTER_BITS = 12;
+    private static final long NODE_MASK = (1L << NODE_BITS) - 1;
+
+    private long lastLogical;
+
+    public long next(int nodeId) {
+        return next(System.currentTimeMillis(), nodeId);
+    }
+
+    /**
+     * Returns the next sequence number, using the given time as lower bound for the time part.
+     * If the clock goes backwards, or more numbers are requested within one millisecond than the counter
+     * can hold, the time part runs ahead of the clock rather than repeating a value.
+     */
+    public synchronized long next(long now, int nodeId) {
+        if (nodeId < 0 || nodeId > NODE_MASK) {
+            throw new IllegalArgumentException("Node id should be between 0 and " + NODE_MASK + ", but it is: "
+                    + nodeId);
+        }
+        long logical = Math.max(lastLogical + 1, (now - EPOCH) << COUNTER_BITS);
+        lastLogical = logical;
+        return (logical << NODE_BITS) | nodeId;
+    }
+
+    /**
+     * Returns the time at which the sequence number was allocated, or -1 if the sequence number was
+     * not produced by this class (for example a sequence number from the old per-row counter).
+     */
+    public static long getTime(long seqNr) {
+        long time = (seqNr >>> (NODE_BITS + COUNTER_BITS)) + EPOCH;
+        return seqNr > 0 && time > EPOCH ? time : -1;
+    }
+
+    public static int getNodeId(long seqNr) {
+        return (int)(seqNr & NODE_MASK);
+    }
+}
@@ -39,11 +39,23 @@ public class RowLogShardImpl implements RowLogShard {
     private final int deleteBufferSize;
     private final List<Delete> messagesToDelete;
     private long lastDelete;
+    private final GroupCommitPutBuffer putBuffer;
+    private final RowLogShardMetrics metrics;
     // while 0 is a valid unicode codepoint, it will only occur in utf-8 when using the NULL char
     private byte[] END_OF_SUBSCRIPTION_NAME_MARKER = new byte[] { (byte)0 };
 
     public RowLogShardImpl(String id, byte[] rowKeyPrefix, HTableInterface table, RowLog rowLog, int deleteBufferSize)
             throws IOException {
+        this(id, rowKeyPrefix, table, rowLog, deleteBufferSize, 1, 0L);
+    }
+
+    /**
+     * @param putBatchSize maximum number of puts of concurrent writers that are combined in one multi-put,
+     *                     see {@link GroupCommitPutBuffer}. A value of 1 or less disables this.
+     * @param putBatchLinger see {@link GroupCommitPutBuffer}
+     */
+    public RowLogShardImpl(String id, byte[] rowKeyPrefix, HTableInterface table, RowLog rowLog, int deleteBufferSize,
+            int putBatchSize, long putBatchLinger) throws IOException {
         this.id = id;
         this.rowKeyPrefix = rowKeyPrefix;
         this.table = table;
@@ -52,6 +64,20 @@ public class RowLogShardImpl implements RowLogShard {
 
         this.messagesToDelete = new ArrayList<Delete>(deleteBufferSize);
         this.lastDelete = System.currentTimeMillis();
+
+        if (putBatchSize > 1) {
+            this.metrics = new RowLogShardMetrics(rowLog.getId() + "_" + id);
+            this.putBuffer = new GroupCommitPutBuffer(table, putBatchSize, putBatchLinger, metrics);
+        } else {
+            this.metrics = null;
+            this.putBuffer = null;
+        }
+    }
+
+    public void close() {
+        if (metrics != null) {
+            metrics.shutdown();
+        }
     }
 
     @Override
@@ -61,29 +87,66 @@ public class RowLogShardImpl implements RowLogShard {
 
     @Override
     public void putMessage(RowLogMessage message) throws RowLogException {
+        List<String> subscriptionIds = new ArrayList<String>();
         for (RowLogSubscription subscription : rowLog.getSubscriptions()) {
-            putMessage(message, subscription.getId());
+            subscriptionIds.add(subscription.getId());
         }
+        putMessage(message, subscriptionIds);
     }
 
     @Override
     public void putMessage(RowLogMessage message, List<String> subscriptionIds) throws RowLogException {
+        if (subscriptionIds.isEmpty())
+            return;
+
+        List<Put> puts = new ArrayList<Put>(subscriptionIds.size());
         for (String subscriptionId : subscriptionIds) {
-            putMessage(message, subscriptionId);
+            puts.add(createPut(message, subscriptionId));
         }
-    }
 
-    private void putMessage(RowLogMessage message, String subscriptionId) throws RowLogException {
-        byte[] rowKey = createRowKey(message, subscriptionId);
-        Put put = new Put(rowKey);
-        put.add(MESSAGES_CF, MESSAGE_COLUMN, encodeMessage(message));
         try {
-            table.put(put);
+            put(puts);
         } catch (IOException e) {
             throw new RowLogException("Failed to put message on RowLogShard", e);
         }
     }
 
+    @Override
+    public void putMessages(List<RowLogMessage> messages, List<String> subscriptionIds) throws RowLogException {
+        if (messages.isEmpty())
+            return;
+
+        List<Put> puts = new ArrayList<Put>(messages.size() * subscriptionIds.size());
+        for (RowLogMessage message : messages) {
+            for (String subscriptionId : subscriptionIds) {
+                puts.add(createPut(message, subscriptionId));
+            }
+        }
+
+        try {
+            put(puts);
+        } catch (IOException e) {
+            throw new RowLogException("Failed to put messages on RowLogShard", e);
+        }
+    }
+
+    private void put(List<Put> puts) throws IOException {
+        if (putBuffer != null) {
+            putBuffer.put(puts);
+        } else if (puts.size() == 1) {
+            table.put(puts.get(0));
+        } else {
+            table.put(puts);
+        }
+    }
+
+    private Put createPut(RowLogMessage message, String subscriptionId) {
+        byte[] rowKey = createRowKey(message, subscriptionId);
+        Put put = new Put(rowKey);
+        put.add(MESSAGES_CF, MESSAGE_COLUMN, encodeMessage(message));
+        return put;
+    }
+
     /**
      * Removing a message is batched.
      *
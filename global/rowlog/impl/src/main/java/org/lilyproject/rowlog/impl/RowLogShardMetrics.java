@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import javax.management.ObjectName;
+
+import org.apache.hadoop.metrics.MetricsContext;
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.MetricsUtil;
+import org.apache.hadoop.metrics.Updater;
+import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
+import org.lilyproject.util.hbase.metrics.MBeanUtil;
+import org.lilyproject.util.hbase.metrics.MetricsDynamicMBeanBase;
+
+public class RowLogShardMetrics implements Updater {
+    private final String name;
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final MetricsRecord metricsRecord;
+    private final RowLogShardMetricsMXBean mbean;
+    private final MetricsContext context;
+
+    /**
+     * The number of message puts combined in one multi-put. The min, max and average over the
+     * metrics interval describe the distribution of the batch sizes.
+     */
+    public MetricsTimeVaryingRate putBatchSize = new MetricsTimeVaryingRate("put_batch_size", registry);
+
+    public MetricsTimeVaryingRate putBatchDuration = new MetricsTimeVaryingRate("put_batch_duration", registry);
+
+    public RowLogShardMetrics(String name) {
+        this.name = name;
+        context = MetricsUtil.getContext("rowlog");
+        metricsRecord = MetricsUtil.createRecord(context, name);
+        context.registerUpdater(this);
+        mbean = new RowLogShardMetricsMXBean(this.registry);
+    }
+
+    public void shutdown() {
+        context.unregisterUpdater(this);
+        mbean.shutdown();
+    }
+
+    @Override
+    public void doUpdates(MetricsContext metricsContext) {
+        synchronized (this) {
+          for (MetricsBase m : registry.getMetricsList()) {
+            m.pushMetric(metricsRecord);
+          }
+        }
+        metricsRecord.update();
+    }
+
+    public class RowLogShardMetricsMXBean extends MetricsDynamicMBeanBase {
+        private final ObjectName mbeanName;
+
+        public RowLogShardMetricsMXBean(MetricsRegistry registry) {
+            super(registry, "Lily Row Log Shard");
+
+            mbeanName = MBeanUtil.registerMBean("Row Log Shard", name, this);
+        }
+
+        public void shutdown() {
+            if (mbeanName != null)
+                MBeanUtil.unregisterMBean(mbeanName);
+        }
+    }
+}
@@ -62,7 +62,8 @@ public class RowLogShardSetup {
         for (int i = 0; i < shardCount; i++) {
             byte[] rowKeyPrefix = new byte[] { (byte)i };
             shards.addShard(new RowLogShardImpl("shard" + i, rowKeyPrefix, table, rowLog,
-                    rowLog.getConfig().getDeleteBufferSize()));
+                    rowLog.getConfig().getDeleteBufferSize(), rowLog.getConfig().getPutBatchSize(),
+                    rowLog.getConfig().getPutBatchLinger()));
         }
     }
 }
@@ -39,6 +39,11 @@ public class SubscriptionHandlerMetrics implements Updater {
     public MetricsTimeVaryingInt failureRate = new MetricsTimeVaryingInt("failure_rate", registry);
     public MetricsTimeVaryingInt ioExceptionRate = new MetricsTimeVaryingInt("ioexception_rate", registry);
     public MetricsIntValue queueSize = new MetricsIntValue("queueSize", registry);
+    /**
+     * Messages which were processed by the listener together with an earlier message of the same row, see
+     * {@link BatchProcessResult#isCoalesced}.
+     */
+    public MetricsTimeVaryingInt coalescedMessages = new MetricsTimeVaryingInt("coalesced_messages", registry);
 
     public SubscriptionHandlerMetrics(String subscriptionId) {
         this.subscriptionId = subscriptionId;
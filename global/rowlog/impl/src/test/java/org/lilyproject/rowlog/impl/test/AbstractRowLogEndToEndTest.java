@@ -41,7 +41,7 @@ public abstract class AbstractRowLogEndToEndTest {
     protected static RowLogConfigurationManagerImpl rowLogConfigurationManager;
     protected String subscriptionId = "Subscription1";
     protected ValidationMessageListener validationListener;
-    private static Configuration configuration;
+    protected static Configuration configuration;
     protected static ZooKeeperItf zooKeeper;
 
     @Rule public TestName name = new TestName();
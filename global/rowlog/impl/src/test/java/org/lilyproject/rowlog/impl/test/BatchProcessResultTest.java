@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.lilyproject.rowlog.api.RowLogBatchMessageListener;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.rowlog.api.RowLogMessageListener;
+import org.lilyproject.rowlog.impl.BatchProcessResult;
+import org.lilyproject.rowlog.impl.RowLogMessageImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchProcessResultTest {
+    private final List<RowLogMessage> messages = Arrays.asList(message(1), message(2), message(3));
+
+    @Test
+    public void testOneByOneStopsAtFirstFailure() throws Exception {
+        final List<RowLogMessage> received = new ArrayList<RowLogMessage>();
+        RowLogMessageListener listener = new RowLogMessageListener() {
+            @Override
+            public boolean processMessage(RowLogMessage message) {
+                received.add(message);
+                return message.getSeqNr() != 2;
+            }
+        };
+
+        BatchProcessResult result = BatchProcessResult.process(listener, messages);
+        assertEquals(1, result.getProcessed());
+        assertFalse(result.isCoalesced());
+        assertEquals(messages.subList(0, 2), received);
+    }
+
+    @Test
+    public void testOneByOneReportsProcessedMessagesOnException() throws Exception {
+        RowLogMessageListener listener = new RowLogMessageListener() {
+            @Override
+            public boolean processMessage(RowLogMessage message) {
+                if (message.getSeqNr() == 3)
+                    throw new RuntimeException("failure");
+                return true;
+            }
+        };
+
+        assertEquals(2, BatchProcessResult.process(listener, messages).getProcessed());
+    }
+
+    @Test
+    public void testBatchListener() throws Exception {
+        RowLogBatchMessageListener listener = new RowLogBatchMessageListener() {
+            @Override
+            public boolean processMessages(List<RowLogMessage> messages) {
+                return messages.size() == 3;
+            }
+
+            @Override
+            public boolean processMessage(RowLogMessage message) {
+                return false;
+            }
+        };
+
+        BatchProcessResult result = BatchProcessResult.process(listener, messages);
+        assertEquals(3, result.getProcessed());
+        assertTrue(result.isCoalesced());
+    }
+
+    private RowLogMessage message(long seqNr) {
+        return new RowLogMessageImpl(seqNr, Bytes.toBytes("row"), seqNr, null, null);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl.test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.lilyproject.rowlog.impl.GroupCommitPutBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GroupCommitPutBufferTest {
+
+    @Test
+    public void testConcurrentPutsAreCombined() throws Exception {
+        RecordingTable recorder = new RecordingTable();
+        final GroupCommitPutBuffer buffer = new GroupCommitPutBuffer(recorder.proxy(), 10, 0L, null);
+
+        ExecutorService executor = Executors.newFixedThreadPool(20);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 100; i++) {
+            final byte[] row = Bytes.toBytes(i);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    buffer.put(Collections.singletonList(new Put(row)));
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(100, recorder.puts.size());
+        assertTrue("Expected puts to be combined, number of multi-puts: " + recorder.batchSizes.size(),
+                recorder.batchSizes.size() < 100);
+        for (int batchSize : recorder.batchSizes) {
+            assertTrue("Batch too large: " + batchSize, batchSize <= 10);
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        RecordingTable recorder = new RecordingTable();
+        recorder.fail = true;
+        GroupCommitPutBuffer buffer = new GroupCommitPutBuffer(recorder.proxy(), 10, 0L, null);
+
+        try {
+            buffer.put(Collections.singletonList(new Put(Bytes.toBytes("row"))));
+            fail("Expected exception");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // The buffer is still usable afterwards
+        recorder.fail = false;
+        buffer.put(Collections.singletonList(new Put(Bytes.toBytes("row"))));
+        assertEquals(1, recorder.puts.size());
+    }
+
+    /**
+     * Records the multi-puts done on an HTableInterface, taking some time for each of them.
+     */
+    private static class RecordingTable implements InvocationHandler {
+        private final List<Put> puts = Collections.synchronizedList(new ArrayList<Put>());
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        private volatile boolean fail;
+
+        public HTableInterface proxy() {
+            return (HTableInterface)Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class[] {HTableInterface.class}, this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("put") && args[0] instanceof List) {
+                Thread.sleep(10);
+                if (fail) {
+                    throw new IOException("failure");
+                }
+                List<Put> batch = (List<Put>)args[0];
+                batchSizes.add(batch.size());
+                puts.addAll(batch);
+                return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package org.lilyproject.rowlog.impl.test;
 
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -25,10 +26,15 @@ import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
 import org.junit.Test;
 import org.lilyproject.rowlog.api.ListenersObserver;
 import org.lilyproject.rowlog.api.ProcessorNotifyObserver;
 import org.lilyproject.rowlog.api.RowLogConfig;
+import org.lilyproject.rowlog.api.RowLogException;
+import org.lilyproject.rowlog.api.RowLogNodeIdClaim;
 import org.lilyproject.rowlog.api.RowLogObserver;
 import org.lilyproject.rowlog.api.RowLogSubscription;
 import org.lilyproject.rowlog.api.SubscriptionsObserver;
@@ -38,6 +44,7 @@ import org.lilyproject.hadooptestfw.HBaseProxy;
 import org.lilyproject.hadooptestfw.TestHelper;
 import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.zookeeper.ZkUtil;
+import org.lilyproject.util.zookeeper.ZooKeeperImpl;
 import org.lilyproject.util.zookeeper.ZooKeeperItf;
 
 public class RowLogConfigurationManagerTest {
@@ -286,6 +293,131 @@ public class RowLogConfigurationManagerTest {
         }
     }
 
+    @Test
+    public void testNodeIds() throws Exception {
+        String rowLogId = "testNodeIdsRowLogId";
+        RowLogConfigurationManagerImpl rowLogConfigurationManager = new RowLogConfigurationManagerImpl(zooKeeper);
+
+        RowLogNodeIdClaim claim0 = rowLogConfigurationManager.claimNodeId(rowLogId, 3);
+        RowLogNodeIdClaim claim1 = rowLogConfigurationManager.claimNodeId(rowLogId, 3);
+        RowLogNodeIdClaim claim2 = rowLogConfigurationManager.claimNodeId(rowLogId, 3);
+        Assert.assertEquals(0, claim0.getNodeId(0));
+        Assert.assertEquals(1, claim1.getNodeId(0));
+        Assert.assertEquals(2, claim2.getNodeId(0));
+        try {
+            rowLogConfigurationManager.claimNodeId(rowLogId, 3);
+            Assert.fail("Expected an exception since all node ids are in use");
+        } catch (RowLogException expected) {
+        }
+
+        // A released node id can be claimed again
+        claim1.release();
+        try {
+            claim1.getNodeId(0);
+            Assert.fail("Expected an exception since the node id is released");
+        } catch (RowLogException expected) {
+        }
+        Assert.assertEquals(1, rowLogConfigurationManager.claimNodeId(rowLogId, 3).getNodeId(0));
+
+        // The claims are released when the session ends
+        ZooKeeperItf zooKeeper2 = ZkUtil.connect(HBASE_PROXY.getZkConnectString(), 120000);
+        RowLogConfigurationManagerImpl rowLogConfigurationManager2 = new RowLogConfigurationManagerImpl(zooKeeper2);
+        Assert.assertEquals(3, rowLogConfigurationManager2.claimNodeId(rowLogId, 4).getNodeId(0));
+        rowLogConfigurationManager2.shutdown();
+        zooKeeper2.close();
+        Assert.assertEquals(3, rowLogConfigurationManager.claimNodeId(rowLogId, 4).getNodeId(0));
+
+        rowLogConfigurationManager.shutdown();
+    }
+
+    @Test
+    public void testNodeIdClaimedAgainAfterSessionExpiry() throws Exception {
+        String rowLogId = "testNodeIdExpiryRowLogId";
+        String connectString = HBASE_PROXY.getZkConnectString();
+        ReconnectingZooKeeper zooKeeper1 = new ReconnectingZooKeeper(connectString, 20000);
+        RowLogConfigurationManagerImpl rowLogConfigurationManager1 = new RowLogConfigurationManagerImpl(zooKeeper1);
+        RowLogConfigurationManagerImpl rowLogConfigurationManager2 = new RowLogConfigurationManagerImpl(zooKeeper);
+        try {
+            RowLogNodeIdClaim claim1 = rowLogConfigurationManager1.claimNodeId(rowLogId, 4);
+            Assert.assertEquals(0, claim1.getNodeId(0));
+
+            // Expire the session by closing another handle which uses the same session
+            long sessionId = zooKeeper1.getSessionId();
+            ZooKeeper sameSession = new ZooKeeper(connectString, 20000, new Watcher() {
+                @Override
+                public void process(WatchedEvent event) {
+                }
+            }, sessionId, zooKeeper1.getSessionPasswd());
+            long timeout = System.currentTimeMillis() + 30000;
+            while (sameSession.getState() != ZooKeeper.States.CONNECTED) {
+                if (System.currentTimeMillis() > timeout) {
+                    Assert.fail("Second handle on the session did not connect");
+                }
+                Thread.sleep(50);
+            }
+            sameSession.close();
+
+            // Once the ephemeral node is gone, the node id is free for others
+            RowLogNodeIdClaim claim2 = rowLogConfigurationManager2.claimNodeId(rowLogId, 4);
+            Assert.assertEquals(0, claim2.getNodeId(0));
+
+            // Wait for the first handle to be connected with a new session
+            while (zooKeeper1.getSessionId() == sessionId || !zooKeeper1.isConnected()) {
+                if (System.currentTimeMillis() > timeout) {
+                    Assert.fail("No new session was established after the session expired");
+                }
+                Thread.sleep(50);
+            }
+
+            // The first claim should not hand out node id 0 anymore, but claim another one in the new session
+            Assert.assertEquals(1, claim1.getNodeId(30000));
+            Assert.assertEquals(0, claim2.getNodeId(0));
+
+            claim1.release();
+            claim2.release();
+        } finally {
+            rowLogConfigurationManager1.shutdown();
+            rowLogConfigurationManager2.shutdown();
+            zooKeeper1.close();
+        }
+    }
+
+    /**
+     * A ZooKeeper handle which starts a new session when its session expired, like applications which
+     * survive session expiry would do.
+     */
+    private static class ReconnectingZooKeeper extends ZooKeeperImpl {
+        private final String connectString;
+        private final int sessionTimeout;
+
+        ReconnectingZooKeeper(String connectString, int sessionTimeout) throws Exception {
+            this.connectString = connectString;
+            this.sessionTimeout = sessionTimeout;
+            setDelegate(new ZooKeeper(connectString, sessionTimeout, new ReconnectingWatcher()));
+            waitForConnection();
+        }
+
+        boolean isConnected() {
+            synchronized (connectedMonitor) {
+                return connected;
+            }
+        }
+
+        private class ReconnectingWatcher extends MyWatcher {
+            @Override
+            public void process(WatchedEvent event) {
+                super.process(event);
+                if (event.getState() == Watcher.Event.KeeperState.Expired) {
+                    try {
+                        setDelegate(new ZooKeeper(connectString, sessionTimeout, new ReconnectingWatcher()));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        }
+    }
+
     @Test
     public void testProcessorNotify() throws Exception {
     	String rowLogId1 = "testProcessorNotifyRowLogId1";
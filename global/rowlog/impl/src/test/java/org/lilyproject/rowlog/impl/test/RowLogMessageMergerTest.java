@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.rowlog.impl.RowLogMessageImpl;
+import org.lilyproject.rowlog.impl.RowLogMessageMerger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class RowLogMessageMergerTest {
+
+    @Test
+    public void testMerge() {
+        Random random = new Random(5);
+        List<RowLogMessage> all = new ArrayList<RowLogMessage>();
+        RowLogMessageMerger merger = new RowLogMessageMerger(10);
+        for (int shard = 0; shard < 10; shard++) {
+            List<RowLogMessage> shardMessages = new ArrayList<RowLogMessage>();
+            for (int i = random.nextInt(20); i > 0; i--) {
+                shardMessages.add(message(random.nextInt(50), "row" + random.nextInt(5), random.nextInt(3)));
+            }
+            Collections.sort(shardMessages, RowLogMessageMerger.MESSAGE_COMPARATOR);
+            merger.add(shardMessages);
+            all.addAll(shardMessages);
+        }
+        Collections.sort(all, RowLogMessageMerger.MESSAGE_COMPARATOR);
+
+        List<RowLogMessage> merged = new ArrayList<RowLogMessage>();
+        while (merger.hasNext()) {
+            merged.add(merger.next());
+        }
+
+        assertEquals(all, merged);
+    }
+
+    @Test
+    public void testAddWhileIterating() {
+        RowLogMessageMerger merger = new RowLogMessageMerger(2);
+        RowLogMessage m1 = message(1, "a", 0);
+        RowLogMessage m2 = message(2, "a", 0);
+        RowLogMessage m3 = message(3, "b", 0);
+        RowLogMessage m4 = message(4, "a", 0);
+
+        merger.add(Arrays.asList(m1, m4));
+        assertEquals(m1, merger.next());
+
+        merger.add(Collections.<RowLogMessage>emptyList());
+        merger.add(Arrays.asList(m2, m3));
+        assertEquals(m2, merger.next());
+        assertEquals(m3, merger.next());
+        assertEquals(m4, merger.next());
+        assertFalse(merger.hasNext());
+    }
+
+    private RowLogMessage message(long timestamp, String row, long seqNr) {
+        return new RowLogMessageImpl(timestamp, Bytes.toBytes(row), seqNr, null, null);
+    }
+}
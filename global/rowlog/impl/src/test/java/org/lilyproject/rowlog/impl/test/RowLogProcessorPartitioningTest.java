@@ -0,0 +1,239 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lilyproject.hadooptestfw.HBaseProxy;
+import org.lilyproject.hadooptestfw.TestHelper;
+import org.lilyproject.rowlog.api.RowLog;
+import org.lilyproject.rowlog.api.RowLogShard;
+import org.lilyproject.rowlog.impl.RowLogProcessorImpl;
+import org.lilyproject.rowlog.impl.RowLogProcessorPartitioning;
+import org.lilyproject.util.io.Closer;
+import org.lilyproject.util.zookeeper.ZkUtil;
+import org.lilyproject.util.zookeeper.ZooKeeperItf;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RowLogProcessorPartitioningTest {
+    private static HBaseProxy HBASE_PROXY;
+    private static int rowLogCounter = 0;
+
+    private String rowLogId;
+    private RowLog rowLog;
+    private ZooKeeperItf zk1;
+    private ZooKeeperItf zk2;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestHelper.setupLogging();
+        HBASE_PROXY = new HBaseProxy();
+        HBASE_PROXY.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        HBASE_PROXY.stop();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // A different rowlog for each test, so that the nodes of earlier tests do not interfere
+        rowLogId = "PartitioningTest" + (rowLogCounter++);
+
+        List<RowLogShard> shards = new ArrayList<RowLogShard>();
+        for (int i = 0; i < 4; i++) {
+            RowLogShard shard = createMock(RowLogShard.class);
+            expect(shard.getId()).andReturn("shard" + i).anyTimes();
+            replay(shard);
+            shards.add(shard);
+        }
+        rowLog = createMock(RowLog.class);
+        expect(rowLog.getId()).andReturn(rowLogId).anyTimes();
+        expect(rowLog.getShards()).andReturn(shards).anyTimes();
+        replay(rowLog);
+
+        zk1 = ZkUtil.connect(HBASE_PROXY.getZkConnectString(), 120000);
+        zk2 = ZkUtil.connect(HBASE_PROXY.getZkConnectString(), 120000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Closer.close(zk1);
+        Closer.close(zk2);
+    }
+
+    @Test
+    public void testShardsSplitOverParticipants() throws Exception {
+        TestProcessor processor1 = new TestProcessor(rowLog);
+        RowLogProcessorPartitioning partitioning1 = new RowLogProcessorPartitioning(zk1, processor1, null);
+        TestProcessor processor2 = new TestProcessor(rowLog);
+        RowLogProcessorPartitioning partitioning2 = new RowLogProcessorPartitioning(zk2, processor2, null);
+        try {
+            partitioning1.start();
+            waitForShards(processor1, "shard0", "shard1", "shard2", "shard3");
+
+            // The shards are assigned round-robin, in the order in which the participants registered
+            partitioning2.start();
+            waitForShards(processor1, "shard0", "shard2");
+            waitForShards(processor2, "shard1", "shard3");
+
+            assertEquals(zk1.getSessionId(), getOwner("shard0"));
+            assertEquals(zk2.getSessionId(), getOwner("shard1"));
+        } finally {
+            partitioning2.stop();
+            partitioning1.stop();
+        }
+    }
+
+    @Test
+    public void testHandoverWhenParticipantLeaves() throws Exception {
+        TestProcessor processor1 = new TestProcessor(rowLog);
+        RowLogProcessorPartitioning partitioning1 = new RowLogProcessorPartitioning(zk1, processor1, null);
+        TestProcessor processor2 = new TestProcessor(rowLog);
+        RowLogProcessorPartitioning partitioning2 = new RowLogProcessorPartitioning(zk2, processor2, null);
+        try {
+            partitioning1.start();
+            partitioning2.start();
+            waitForShards(processor1, "shard0", "shard2");
+            waitForShards(processor2, "shard1", "shard3");
+
+            // The session of zk2 stays open, the shards are handed over because partitioning2 stops
+            partitioning2.stop();
+            waitForShards(processor1, "shard0", "shard1", "shard2", "shard3");
+            assertFalse(processor2.running);
+            assertEquals(zk1.getSessionId(), getOwner("shard1"));
+            assertEquals(zk1.getSessionId(), getOwner("shard3"));
+        } finally {
+            partitioning2.stop();
+            partitioning1.stop();
+        }
+    }
+
+    @Test
+    public void testStopReleasesOwnership() throws Exception {
+        TestProcessor processor = new TestProcessor(rowLog);
+        RowLogProcessorPartitioning partitioning = new RowLogProcessorPartitioning(zk1, processor, null);
+        partitioning.start();
+        waitForShards(processor, "shard0", "shard1", "shard2", "shard3");
+
+        partitioning.stop();
+        assertFalse(processor.running);
+        assertEquals(0, zk1.getChildren(ownersPath(), false).size());
+        assertEquals(0, zk1.getChildren(participantsPath(), false).size());
+    }
+
+    @Test
+    public void testRegisterAgainWhenParticipantNodeIsGone() throws Exception {
+        TestProcessor processor = new TestProcessor(rowLog);
+        RowLogProcessorPartitioning partitioning = new RowLogProcessorPartitioning(zk1, processor, null);
+        try {
+            partitioning.start();
+            waitForShards(processor, "shard0", "shard1", "shard2", "shard3");
+
+            // This is what happens to the participant node when the session expires
+            for (String child : zk2.getChildren(participantsPath(), false)) {
+                zk2.delete(participantsPath() + "/" + child, -1);
+            }
+
+            long timeout = System.currentTimeMillis() + 30000;
+            while (zk2.getChildren(participantsPath(), false).isEmpty()) {
+                if (System.currentTimeMillis() > timeout) {
+                    fail("Participant node was not created again");
+                }
+                Thread.sleep(50);
+            }
+            waitForShards(processor, "shard0", "shard1", "shard2", "shard3");
+        } finally {
+            partitioning.stop();
+        }
+    }
+
+    private String participantsPath() {
+        return "/lily/rowlog/" + rowLogId + "/processors";
+    }
+
+    private String ownersPath() {
+        return "/lily/rowlog/" + rowLogId + "/shardowners";
+    }
+
+    private long getOwner(String shardId) throws Exception {
+        Stat stat = zk1.exists(ownersPath() + "/" + shardId, false);
+        return stat != null ? stat.getEphemeralOwner() : -1;
+    }
+
+    private void waitForShards(TestProcessor processor, String... shardIds) throws InterruptedException {
+        Set<String> expected = new HashSet<String>(Arrays.asList(shardIds));
+        long timeout = System.currentTimeMillis() + 30000;
+        while (!expected.equals(processor.getRunningShardIds())) {
+            if (System.currentTimeMillis() > timeout) {
+                fail("Expected processor to run on shards " + expected + " but got " +
+                        processor.getRunningShardIds());
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Only keeps track of whether it runs, and on which shards.
+     */
+    private static class TestProcessor extends RowLogProcessorImpl {
+        private volatile boolean running;
+
+        public TestProcessor(RowLog rowLog) {
+            super(rowLog, null, null);
+        }
+
+        @Override
+        public synchronized void start() {
+            running = true;
+        }
+
+        @Override
+        public synchronized void stop() {
+            running = false;
+        }
+
+        public Set<String> getRunningShardIds() {
+            if (!running) {
+                return Collections.emptySet();
+            }
+            Set<String> shardIds = new HashSet<String>();
+            for (RowLogShard shard : getShards()) {
+                shardIds.add(shard.getId());
+            }
+            return shardIds;
+        }
+    }
+}
@@ -21,7 +21,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.lilyproject.rowlog.api.RowLogMessage;
 import org.lilyproject.rowlog.api.RowLogSubscription;
+import org.lilyproject.rowlog.api.RowLogProcessor;
 import org.lilyproject.rowlog.impl.RemoteListenerHandler;
+import org.lilyproject.rowlog.impl.RowLogProcessorImpl;
+import org.lilyproject.rowlog.impl.RowLogProcessorSettings;
 
 public class RowLogRemoteEndToEndTest extends AbstractRowLogEndToEndTest {
 
@@ -81,4 +84,33 @@ public class RowLogRemoteEndToEndTest extends AbstractRowLogEndToEndTest {
         remoteListener2.stop();
         rowLogConfigurationManager.removeSubscription(rowLog.getId(), subscriptionId2);
     }
+
+    @Test(timeout=270000)
+    public void testConcurrentMessagesOverOneConnection() throws Exception {
+        // Replace the listener by one which processes multiple messages concurrently
+        remoteListener.stop();
+        remoteListener = new RemoteListenerHandler(rowLog, subscriptionId, validationListener,
+                rowLogConfigurationManager, "localhost", 4);
+        remoteListener.start();
+
+        RowLogProcessorSettings settings = new RowLogProcessorSettings();
+        settings.setRemoteListenerWindow(4);
+        RowLogProcessor windowedProcessor = new RowLogProcessorImpl(rowLog, rowLogConfigurationManager,
+                configuration, settings);
+
+        validationListener.expectMessages(20);
+        RowLogMessage message;
+        for (long seqnr = 0L; seqnr < 2; seqnr++) {
+            for (int rownr = 30; rownr < 40; rownr++) {
+                byte[] data = Bytes.toBytes(rownr);
+                data = Bytes.add(data, Bytes.toBytes(seqnr));
+                message = rowLog.putMessage(Bytes.toBytes("row" + rownr), data, null, null);
+                validationListener.expectMessage(message);
+            }
+        }
+        windowedProcessor.start();
+        validationListener.waitUntilMessagesConsumed(120000);
+        windowedProcessor.stop();
+        validationListener.validate();
+    }
 }
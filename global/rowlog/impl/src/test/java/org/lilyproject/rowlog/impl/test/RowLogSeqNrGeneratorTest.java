@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl.test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.lilyproject.rowlog.impl.RowLogSeqNrGenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RowLogSeqNrGeneratorTest {
+
+    @Test
+    public void testIncreasing() {
+        RowLogSeqNrGenerator generator = new RowLogSeqNrGenerator();
+        long now = System.currentTimeMillis();
+
+        long previous = generator.next(now, 5);
+        assertEquals(now, RowLogSeqNrGenerator.getTime(previous));
+        assertEquals(5, RowLogSeqNrGenerator.getNodeId(previous));
+
+        // Many numbers within the same millisecond, and a clock going backwards
+        Set<Long> seqNrs = new HashSet<Long>();
+        for (int i = 0; i < 10000; i++) {
+            long seqNr = generator.next(i < 5000 ? now : now - 1000, 5);
+            assertTrue(seqNr > previous);
+            assertTrue(seqNrs.add(seqNr));
+            previous = seqNr;
+        }
+
+        // Once the clock moves past the counter, the time part follows the clock again
+        long seqNr = generator.next(now + 60000, 5);
+        assertEquals(now + 60000, RowLogSeqNrGenerator.getTime(seqNr));
+    }
+
+    @Test
+    public void testOrderedByTime() {
+        RowLogSeqNrGenerator generator1 = new RowLogSeqNrGenerator();
+        RowLogSeqNrGenerator generator2 = new RowLogSeqNrGenerator();
+        long now = System.currentTimeMillis();
+
+        assertTrue(generator1.next(now, 1000) < generator2.next(now + 1, 0));
+        assertTrue(generator1.next(now, 1000) != generator2.next(now, 0));
+    }
+
+    @Test
+    public void testLegacySeqNr() {
+        // Sequence numbers from the old per-row counter are smaller than any generated one
+        long seqNr = new RowLogSeqNrGenerator().next(0);
+        assertTrue(seqNr > Integer.MAX_VALUE);
+        assertEquals(-1, RowLogSeqNrGenerator.getTime(15));
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.perftest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.rowlog.impl.MessagesWorkQueue;
+import org.lilyproject.rowlog.impl.RowLogMessageImpl;
+import org.lilyproject.util.ByteArrayKey;
+
+/**
+ * Micro-benchmark of the {@link MessagesWorkQueue}, compared with the queue implementation it replaced, which
+ * searched a linked list of messages for a message of a row on which no worker was busy.
+ *
+ * <p>One thread offers messages spread over a number of rows, of which one row is hot (gets a large part of
+ * the messages), while a number of worker threads take messages and confirm them as done. This runs in a
+ * single JVM and does not need HBase.</p>
+ *
+ * <p>Arguments (all optional): number of messages, number of worker threads, number of rows, queue size.</p>
+ */
+public class MessagesWorkQueuePerfTest {
+    private final int messages;
+    private final int workers;
+    private final int rows;
+    private final int queueSize;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int queueSize = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+        new MessagesWorkQueuePerfTest(messages, workers, rows, queueSize).run();
+    }
+
+    public MessagesWorkQueuePerfTest(int messages, int workers, int rows, int queueSize) {
+        this.messages = messages;
+        this.workers = workers;
+        this.rows = rows;
+        this.queueSize = queueSize;
+    }
+
+    public void run() throws Exception {
+        System.out.println(String.format("%1$s messages, %2$s workers, %3$s rows, queue size %4$s",
+                messages, workers, rows, queueSize));
+
+        List<RowLogMessage> input = createMessages();
+
+        // The first rounds warm up the JIT
+        for (int round = 1; round <= 3; round++) {
+            System.out.println("Round " + round);
+            measure("Linear scan queue", new LinearScanQueue(queueSize), input);
+            measure("Row-keyed queue", new RowKeyedQueue(new MessagesWorkQueue(queueSize)), input);
+        }
+    }
+
+    private List<RowLogMessage> createMessages() {
+        byte[][] rowKeys = new byte[rows][];
+        for (int i = 0; i < rows; i++) {
+            rowKeys[i] = Bytes.toBytes("row" + i);
+        }
+
+        List<RowLogMessage> result = new ArrayList<RowLogMessage>(messages);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < messages; i++) {
+            // A quarter of the messages is for the first row
+            byte[] rowKey = i % 4 == 0 ? rowKeys[0] : rowKeys[(int)(Math.random() * rows)];
+            result.add(new RowLogMessageImpl(now + i, rowKey, i, null, null));
+        }
+        return result;
+    }
+
+    private void measure(String name, final WorkQueue queue, List<RowLogMessage> input) throws Exception {
+        final CountDownLatch processed = new CountDownLatch(input.size());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < workers; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            RowLogMessage message = queue.take();
+                            queue.done(message);
+                            processed.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                        // stop
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        long before = System.nanoTime();
+        for (RowLogMessage message : input) {
+            queue.offer(message);
+        }
+        processed.await();
+        double duration = (System.nanoTime() - before) / 1e6d;
+
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        System.out.println(String.format("  %1$s: %2$.0f ms, %3$.0f messages/s", name, duration,
+                input.size() / (duration / 1000d)));
+    }
+
+    private interface WorkQueue {
+        void offer(RowLogMessage message) throws InterruptedException;
+
+        RowLogMessage take() throws InterruptedException;
+
+        void done(RowLogMessage message);
+    }
+
+    private static class RowKeyedQueue implements WorkQueue {
+        private final MessagesWorkQueue queue;
+
+        RowKeyedQueue(MessagesWorkQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void offer(RowLogMessage message) throws InterruptedException {
+            queue.offer(message);
+        }
+
+        @Override
+        public RowLogMessage take() throws InterruptedException {
+            return queue.take();
+        }
+
+        @Override
+        public void done(RowLogMessage message) {
+            queue.done(message);
+        }
+    }
+
+    /**
+     * The previous MessagesWorkQueue implementation, kept here as reference.
+     */
+    private static class LinearScanQueue implements WorkQueue {
+        private final int maxMessages;
+        private final List<RowLogMessage> messageList = new LinkedList<RowLogMessage>();
+        private final Set<RowLogMessage> messagesWorkingOn = new HashSet<RowLogMessage>();
+        private final Set<ByteArrayKey> rowsWorkingOn = new HashSet<ByteArrayKey>();
+        private final Lock lock = new ReentrantLock();
+        private final Condition notFull  = lock.newCondition();
+        private final Condition notEmpty = lock.newCondition();
+
+        LinearScanQueue(int maxMessages) {
+            this.maxMessages = maxMessages;
+        }
+
+        @Override
+        public void offer(RowLogMessage message) throws InterruptedException {
+            lock.lock();
+            try {
+                while (messageList.size() >= maxMessages) {
+                    notFull.await();
+                }
+                messageList.add(message);
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public RowLogMessage take() throws InterruptedException {
+            lock.lock();
+            try {
+                while (true) {
+                    while (messageList.isEmpty()) {
+                        notEmpty.await();
+                    }
+
+                    Iterator<RowLogMessage> messages = messageList.iterator();
+                    while (messages.hasNext()) {
+                        RowLogMessage message = messages.next();
+                        ByteArrayKey row = new ByteArrayKey(message.getRowKey());
+                        if (messagesWorkingOn.contains(message)) {
+                            messages.remove();
+                            notFull.signal();
+                        } else if (!rowsWorkingOn.contains(row)) {
+                            messages.remove();
+                            notFull.signal();
+                            messagesWorkingOn.add(message);
+                            rowsWorkingOn.add(row);
+                            return message;
+                        }
+                    }
+
+                    notEmpty.await();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void done(RowLogMessage message) {
+            lock.lock();
+            try {
+                messagesWorkingOn.remove(message);
+                if (rowsWorkingOn.remove(new ByteArrayKey(message.getRowKey()))) {
+                    notEmpty.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.perftest;
+
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.cli.OptionUtil;
+import org.lilyproject.rowlog.api.RowLog;
+import org.lilyproject.rowlog.api.RowLogConfig;
+import org.lilyproject.rowlog.api.RowLogSubscription;
+import org.lilyproject.rowlog.impl.RowLogConfigurationManagerImpl;
+import org.lilyproject.rowlog.impl.RowLogHashShardRouter;
+import org.lilyproject.rowlog.impl.RowLogImpl;
+import org.lilyproject.rowlog.impl.RowLogShardSetup;
+import org.lilyproject.testclientfw.BaseTestTool;
+import org.lilyproject.util.Version;
+import org.lilyproject.util.hbase.HBaseTableFactory;
+import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
+
+/**
+ * Measures the latency of putting messages on a rowlog, which is on the write path of every repository
+ * update (WAL) and every indexer message (MQ).
+ *
+ * <p>The messages are put on a rowlog of its own, with one subscription but without any listeners, so
+ * the messages stay around: this tool only measures the write side.</p>
+ */
+public class RowLogPerfTest extends BaseTestTool {
+    private static final String ROWLOG_ID = "perftest";
+    private static final String SUBSCRIPTION_ID = "perftest";
+    private static final byte[] DATA_CF = Bytes.toBytes("data");
+    private static final byte[] ROWLOG_CF = Bytes.toBytes("rowlog");
+    private static final byte[] DATA_COLUMN = Bytes.toBytes("d");
+
+    private RowLog rowLog;
+    private HTableInterface rowTable;
+    private RowLogConfigurationManagerImpl confMgr;
+
+    private Option messagesOption;
+    private Option rowsOption;
+    private Option shardsOption;
+
+    private int messages;
+    private int rows;
+
+    public static void main(String[] args) throws Exception {
+        new RowLogPerfTest().start(args);
+    }
+
+    @Override
+    protected String getCmdName() {
+        return "rowlog-perftest";
+    }
+
+    @Override
+    protected String getVersion() {
+        return Version.readVersion("org.lilyproject", "lily-rowlog-perftest");
+    }
+
+    @Override
+    public List<Option> getOptions() {
+        List<Option> options = super.getOptions();
+
+        messagesOption = OptionBuilder
+                .withArgName("amount")
+                .hasArg()
+                .withDescription("Number of messages to put, for each of the put variants")
+                .withLongOpt("messages")
+                .create("m");
+        options.add(messagesOption);
+
+        rowsOption = OptionBuilder
+                .withArgName("amount")
+                .hasArg()
+                .withDescription("Number of distinct rows over which the messages are spread")
+                .withLongOpt("rows")
+                .create("r");
+        options.add(rowsOption);
+
+        shardsOption = OptionBuilder
+                .withArgName("amount")
+                .hasArg()
+                .withDescription("Number of rowlog shards, only used when the rowlog table does not exist yet")
+                .withLongOpt("shards")
+                .create("s");
+        options.add(shardsOption);
+
+        return options;
+    }
+
+    @Override
+    public int run(CommandLine cmd) throws Exception {
+        int result = super.run(cmd);
+        if (result != 0)
+            return result;
+
+        messages = OptionUtil.getIntOption(cmd, messagesOption, 100000);
+        rows = OptionUtil.getIntOption(cmd, rowsOption, 10000);
+        int shards = OptionUtil.getIntOption(cmd, shardsOption, 1);
+
+        Configuration hbaseConf = getHBaseConf();
+        HBaseTableFactory tableFactory = new HBaseTableFactoryImpl(hbaseConf);
+
+        HTableDescriptor tableDescriptor = new HTableDescriptor("rowlog-perftest-rows");
+        tableDescriptor.addFamily(new HColumnDescriptor(DATA_CF));
+        tableDescriptor.addFamily(new HColumnDescriptor(ROWLOG_CF));
+        rowTable = tableFactory.getTable(tableDescriptor);
+
+        confMgr = new RowLogConfigurationManagerImpl(getZooKeeper());
+        if (!confMgr.rowLogExists(ROWLOG_ID)) {
+            confMgr.addRowLog(ROWLOG_ID, new RowLogConfig(false, false, 100L, 0L, 5000L, 120000L, 100));
+        }
+        if (!confMgr.subscriptionExists(ROWLOG_ID, SUBSCRIPTION_ID)) {
+            confMgr.addSubscription(ROWLOG_ID, SUBSCRIPTION_ID, RowLogSubscription.Type.VM, 1);
+        }
+
+        rowLog = new RowLogImpl(ROWLOG_ID, rowTable, ROWLOG_CF, (byte)1, confMgr, null,
+                new RowLogHashShardRouter());
+        RowLogShardSetup.setupShards(shards, rowLog, tableFactory);
+
+        // Wait until the subscription is known to the rowlog, otherwise no messages would be put
+        while (rowLog.getSubscriptions().isEmpty()) {
+            Thread.sleep(50);
+        }
+
+        System.out.println("Will put " + messages + " messages, spread over " + rows + " rows, for each put variant");
+
+        setupMetrics();
+
+        startExecutor();
+        for (int i = 0; i < messages; i++) {
+            executor.submit(new MessagePutter(false));
+        }
+        stopExecutor();
+
+        startExecutor();
+        for (int i = 0; i < messages; i++) {
+            executor.submit(new MessagePutter(true));
+        }
+        stopExecutor();
+
+        finishMetrics();
+
+        return 0;
+    }
+
+    @Override
+    protected void cleanup() {
+        if (confMgr != null) {
+            try {
+                confMgr.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        super.cleanup();
+    }
+
+    private class MessagePutter implements Runnable {
+        private boolean withPut;
+
+        /**
+         * @param withPut if true, the message is put in combination with a row update, as done by the WAL,
+         *                otherwise the rowlog does the put itself, as done by the MQ.
+         */
+        public MessagePutter(boolean withPut) {
+            this.withPut = withPut;
+        }
+
+        @Override
+        public void run() {
+            try {
+                byte[] rowKey = Bytes.toBytes("row" + (int)Math.floor(Math.random() * rows));
+                byte[] payload = Bytes.toBytes(System.currentTimeMillis());
+
+                long before = System.nanoTime();
+                if (withPut) {
+                    Put put = new Put(rowKey);
+                    put.add(DATA_CF, DATA_COLUMN, payload);
+                    rowLog.putMessage(rowKey, null, payload, put);
+                    rowTable.put(put);
+                } else {
+                    rowLog.putMessage(rowKey, null, payload, null);
+                }
+                double duration = System.nanoTime() - before;
+
+                metrics.increment(withPut ? "Put message with row update" : "Put message", "P", duration / 1e6d);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+}
@@ -28,6 +28,7 @@ import org.lilyproject.repository.api.IdGenerator;
 import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.impl.id.IdGeneratorImpl;
 import org.lilyproject.rowlog.api.ExecutionState;
+import org.lilyproject.rowlog.impl.RowLogSeqNrGenerator;
 import org.lilyproject.rowlog.impl.SubscriptionExecutionState;
 import org.lilyproject.util.Version;
 import org.lilyproject.util.hbase.HBaseAdminFactory;
@@ -118,6 +119,7 @@ public class RowLogVisualizer extends BaseZkCliTool {
         ResultScanner scanner = rowlogTable.getScanner(scan);
         Result rowlogRow;
         int counter = 0;
+        long totalShardPutDelay = 0;
         while ((rowlogRow = scanner.next()) != null) {
             counter++;
             byte[] rowkey = rowlogRow.getRow();
@@ -171,7 +173,15 @@ public class RowLogVisualizer extends BaseZkCliTool {
             System.out.println("   Rowlog shard: " + (int)shardKey);
             System.out.println("      Timestamp: " + new LocalDateTime(timestamp) + " - " + timestamp);
             System.out.println("HBase timestamp: " + new LocalDateTime(hbaseTimestamp) + " - " + hbaseTimestamp);
-            System.out.println("          Seqnr: " + seqNr);
+            long seqNrTime = RowLogSeqNrGenerator.getTime(seqNr);
+            if (seqNrTime == -1) {
+                System.out.println("          Seqnr: " + seqNr);
+            } else {
+                System.out.println("          Seqnr: " + seqNr + " (allocated " + new LocalDateTime(seqNrTime)
+                        + ", node " + RowLogSeqNrGenerator.getNodeId(seqNr) + ")");
+            }
+            System.out.println("Shard put delay: " + (hbaseTimestamp - timestamp) + " ms");
+            totalShardPutDelay += hbaseTimestamp - timestamp;
             System.out.println();
             if (execState == null) {
                 System.out.println("No execution state found.");
@@ -192,6 +202,11 @@ public class RowLogVisualizer extends BaseZkCliTool {
 
         System.out.println();
         System.out.println("Total number of entries: " + counter);
+        if (counter > 0) {
+            // The delay between the message timestamp and the put on the shard covers the write path of
+            // the message before it became visible on the global queue.
+            System.out.println("Average shard put delay: " + (totalShardPutDelay / counter) + " ms");
+        }
 
         scanner.close();
 